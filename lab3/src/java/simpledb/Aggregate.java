@@ -1,36 +1,120 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * min). Any number of aggregates, grouped by any number of columns, are
+ * computed in a single pass over the child, sharing one hash table of groups.
+ * <p>
+ * When the child is a SeqScan over a heap file, possibly under Filters, and
+ * the table has enough pages, the aggregate runs in parallel on a
+ * ForkJoinPool: the page range is split in halves until each task has a few
+ * pages, each task aggregates its own scan into a private aggregator, and
+ * the partial aggregators are merged as the tasks join. Partials are merged
+ * in page order, so the groups come out in the same order as a serial run.
+ * <p>
+ * At most memoryGroups groups are held in memory. Once there are that many,
+ * rows of groups not yet seen are hash-partitioned to {@link SpillFile}s,
+ * and each partition is aggregated in turn after the groups in memory have
+ * been returned. A partition with too many groups is partitioned again, with
+ * a different hash, up to MAX_DEPTH times. A parallel aggregate whose
+ * partial results grow past the budget starts over serially.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
     
+    /** Fewest pages aggregated by one parallel task. */
+    public static final int MIN_PAGES_PER_TASK = 32;
+    
+    // Tasks per worker thread, so that threads that finish early can steal work
+    private static final int TASKS_PER_THREAD = 4;
+    
+    /** Number of groups held in memory unless another budget is given. */
+    public static final int DEFAULT_MEMORY_GROUPS = 1000000;
+    
+    /** Number of partitions the rows of groups that do not fit are split into. */
+    public static final int PARTITIONS = HybridHashJoin.PARTITIONS;
+    
+    /** Number of times a partition is split before it is aggregated regardless of the budget. */
+    public static final int MAX_DEPTH = HybridHashJoin.MAX_DEPTH;
+    
+    private static ForkJoinPool pool = new ForkJoinPool();
+    
     // ME
     private DbIterator child;
     private DbIterator newChild;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op aop;
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
+    private int partitions = 0;
+    private final int memoryGroups;
+    
+    /** The rows of a partition of the groups, waiting to be aggregated. */
+    private static class SpilledPartition {
+    	final SpillFile rows;
+    	final int level;
+    	
+    	SpilledPartition(SpillFile rows, int level) {
+    		this.rows = rows;
+    		this.level = level;
+    	}
+    }
+    
+    // spill state of the current execution; the files are deleted on close
+    // and rewind, the statistics are kept for the plan output
+    transient private LinkedList<SpilledPartition> pending = null;
+    transient private ArrayList<SpillFile> spills = null;
+    transient private long bytesSpilled = 0;
+    transient private int spilledPartitions = 0;
+    
+    /**
+     * Sets the number of threads parallel aggregates run on. 1 makes every
+     * aggregate serial.
+     */
+    public static synchronized void setParallelism(int threads) {
+    	if (threads < 1)
+    		throw new IllegalArgumentException("Parallelism must be at least 1.");
+    	if (threads != pool.getParallelism()) {
+    		pool.shutdown();
+    		pool = new ForkJoinPool(threads);
+    	}
+    }
+    
+    public static synchronized int getParallelism() {
+    	return pool.getParallelism();
+    }
+    
+    private static synchronized ForkJoinPool getPool() {
+    	return pool;
+    }
     
     // ME: Helper function
     private boolean noGrouping() {
-    	return gfield == -1;
+    	return gfields.length == 0;
     }
     
     private Type getGroupFieldType()
     {
-    	return noGrouping() ? null : child.getTupleDesc().getFieldType(gfield);
+    	return noGrouping() ? null : child.getTupleDesc().getFieldType(gfields[0]);
     }
     
     private Type getAggFieldType()
     {
-    	return child.getTupleDesc().getFieldType(afield);
+    	return child.getTupleDesc().getFieldType(afields[0]);
+    }
+    
+    // ME: the types of the given fields of the child
+    private Type[] childTypes(int[] fields) {
+    	Type[] types = new Type[fields.length];
+    	for (int i = 0; i < fields.length; i++)
+    		types[i] = child.getTupleDesc().getFieldType(fields[i]);
+    	return types;
     }
 
     /**
@@ -53,10 +137,58 @@ public class Aggregate extends Operator {
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
 		// DONE
+    	this(child, afield, gfield, aop, DEFAULT_MEMORY_GROUPS);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param memoryGroups
+     *            The number of groups that may be held in memory
+     * @see #Aggregate(DbIterator, int, int, Aggregator.Op)
+     */
+    public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop,
+    		int memoryGroups) {
+    	this(child, new int[] { afield },
+    			gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+    			new Aggregator.Op[] { aop }, memoryGroups);
+    }
+
+    /**
+     * Constructor for several aggregates over composite groups.
+     * 
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result, most
+     *            significant first; empty if there is no grouping
+     * @param aops
+     *            The aggregation operator of each of afields
+     */
+    public Aggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+    	this(child, afields, gfields, aops, DEFAULT_MEMORY_GROUPS);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param memoryGroups
+     *            The number of groups that may be held in memory
+     * @see #Aggregate(DbIterator, int[], int[], Aggregator.Op[])
+     */
+    public Aggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops,
+    		int memoryGroups) {
+    	if (afields.length == 0 || afields.length != aops.length)
+    		throw new IllegalArgumentException("Need one operator for each of at least one aggregate field");
+    	if (memoryGroups < 1)
+    		throw new IllegalArgumentException("memoryGroups must be positive");
     	this.child = child;
-    	this.afield = afield;
-    	this.gfield = gfield;
-    	this.aop = aop;
+    	this.afields = afields.clone();
+    	this.gfields = gfields.clone();
+    	this.aops = aops.clone();
+    	this.memoryGroups = memoryGroups;
     }
 
     /**
@@ -66,7 +198,15 @@ public class Aggregate extends Operator {
      * */
     public int groupField() {
 		// DONE
-    	return noGrouping() ? Aggregator.NO_GROUPING : gfield; 
+    	return noGrouping() ? Aggregator.NO_GROUPING : gfields[0]; 
+    }
+
+    /**
+     * @return the indexes of the groupby fields in the <b>INPUT</b> tuples,
+     *         most significant first; empty if there is no grouping.
+     */
+    public int[] groupFields() {
+    	return gfields.clone();
     }
 
     /**
@@ -76,7 +216,14 @@ public class Aggregate extends Operator {
      * */
     public String groupFieldName() {
 		// DONE?
-    	return noGrouping() ? null : child.getTupleDesc().getFieldName(gfield);
+    	return noGrouping() ? null : groupFieldName(0);
+    }
+
+    /**
+     * @return the name of groupby field i in the <b>OUTPUT</b> tuples.
+     */
+    public String groupFieldName(int i) {
+    	return child.getTupleDesc().getFieldName(gfields[i]);
     }
 
     /**
@@ -84,7 +231,14 @@ public class Aggregate extends Operator {
      * */
     public int aggregateField() {
     	// DONE?
-    	return afield;
+    	return afields[0];
+    }
+
+    /**
+     * @return the indexes of the aggregate fields in the <b>INPUT</b> tuples.
+     */
+    public int[] aggregateFields() {
+    	return afields.clone();
     }
 
     /**
@@ -93,7 +247,14 @@ public class Aggregate extends Operator {
      * */
     public String aggregateFieldName() {
 		// DONE
-    	return aop.toString() + child.getTupleDesc().getFieldName(afield);
+    	return aggregateFieldName(0);
+    }
+
+    /**
+     * @return the name of aggregate i in the <b>OUTPUT</b> tuples.
+     */
+    public String aggregateFieldName(int i) {
+    	return aops[i].toString() + child.getTupleDesc().getFieldName(afields[i]);
     }
 
     /**
@@ -101,7 +262,14 @@ public class Aggregate extends Operator {
      * */
     public Aggregator.Op aggregateOp() {
 		// DONE
-    	return aop;
+    	return aops[0];
+    }
+
+    /**
+     * @return the operator of each aggregate.
+     */
+    public Aggregator.Op[] aggregateOps() {
+    	return aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -109,43 +277,296 @@ public class Aggregate extends Operator {
     	return aop.toString();
     }
 
+    /**
+     * @return the number of groups that may be held in memory.
+     */
+    public int getMemoryGroups() {
+    	return memoryGroups;
+    }
+
+    /**
+     * @return the number of partial aggregates merged by the last open, 1 if
+     *         it ran serially.
+     */
+    public int numPartitions() {
+    	return partitions;
+    }
+
+    /**
+     * @return the number of partitions spilled to disk by the last
+     *         execution, at any level.
+     */
+    public int numSpilledPartitions() {
+    	return spilledPartitions;
+    }
+
+    /**
+     * @return the number of bytes written to spill files by the last
+     *         execution.
+     */
+    public long getBytesSpilled() {
+    	return bytesSpilled;
+    }
+
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
 		// DONE?
     	
     	child.open();
     	super.open();
+    	start();
+    }
+    
+    // ME: aggregates the child, in parallel if possible
+    private void start() throws DbException, TransactionAbortedException {
+    	pending = new LinkedList<SpilledPartition>();
+    	spills = new ArrayList<SpillFile>();
+    	bytesSpilled = 0;
+    	spilledPartitions = 0;
     	
     	// First merge all the tuples
-    	Type aType = getAggFieldType();
-		Type gType = getGroupFieldType();
-		
-		if (aType == Type.INT_TYPE) {
-			
-			IntegerAggregator ia = new IntegerAggregator(gfield, gType, afield, aop);
-			
-			while (child.hasNext()) {
-	    		Tuple tuple = child.next();
-	    		ia.mergeTupleIntoGroup(tuple);
-	    	}
-			
-			newChild = ia.iterator();
-			
-		} else if (aType == Type.STRING_TYPE) {
-			
-			StringAggregator sa = new StringAggregator(gfield, gType, afield, aop);
-			
-			while (child.hasNext()) {
-	    		Tuple tuple = child.next();
-	    		sa.mergeTupleIntoGroup(tuple);
-	    	}
-			
-			newChild = sa.iterator();
-		}
+    	SeqScan scan = partitionableScan(child);
+    	ForkJoinPool pool = getPool();
+    	int numPages = scan == null ? 0 : scan.numPartitionPages();
+    	
+    	Aggregator agg = null;
+    	if (pool.getParallelism() > 1 && numPages >= 2 * MIN_PAGES_PER_TASK) {
+    		int pagesPerTask = Math.max(MIN_PAGES_PER_TASK,
+    				numPages / (pool.getParallelism() * TASKS_PER_THREAD));
+    		int leafGroups = Math.max(1, memoryGroups / pool.getParallelism());
+    		partitions = 0;
+    		try {
+    			agg = pool.invoke(new PartialAggregate(scan, 0, numPages, pagesPerTask,
+    					leafGroups, new AtomicBoolean()));
+    		} catch (RuntimeException e) {
+    			throw unwrap(e);
+    		}
+    		// too many groups: aggregate serially so that groups can spill
+    		if (agg == null)
+    			child.rewind();
+    	}
+    	if (agg == null) {
+    		agg = newAggregator();
+    		aggregate(child, agg, 0);
+    		partitions = 1;
+    	}
+    	
+		newChild = agg.iterator();
 		
 		// Do we need this?
 		newChild.open();
     }
+    
+    // ME: an empty aggregator for the aggregates and groups
+    private Aggregator newAggregator() {
+    	if (afields.length > 1 || gfields.length > 1)
+    		return new MultiAggregator(gfields, childTypes(gfields), afields,
+    				childTypes(afields), aops);
+    	if (getAggFieldType() == Type.INT_TYPE)
+    		return new IntegerAggregator(groupField(), getGroupFieldType(), afields[0], aops[0]);
+    	return new StringAggregator(groupField(), getGroupFieldType(), afields[0], aops[0]);
+    }
+    
+    // ME: spreads the groups of rows that do not fit over the partitions
+    private int partitionOf(TupleBatch batch, int row, int level) {
+    	int h = 0;
+    	for (int f : gfields)
+    		h = 31 * h + batch.getField(f, row).hashCode();
+    	return HybridHashJoin.partition(h, level);
+    }
+    
+    /**
+     * Merges every tuple of an opened iterator into agg until agg has
+     * memoryGroups groups. After that, rows of groups that agg has not seen
+     * are written to the spill file of their partition, and the partitions
+     * are queued to be aggregated after agg.
+     */
+    private void aggregate(DbIterator it, Aggregator agg, int level)
+    		throws DbException, TransactionAbortedException {
+    	// past MAX_DEPTH levels the partition is skewed, not too large
+    	int budget = level < MAX_DEPTH ? memoryGroups : Integer.MAX_VALUE;
+    	SpillFile[] parts = new SpillFile[PARTITIONS];
+    	boolean[] rejected = new boolean[TupleBatch.DEFAULT_CAPACITY];
+    	
+    	try {
+    		TupleBatch batch;
+    		while ((batch = BatchAdapter.nextBatch(it)) != null) {
+    			if (agg.numGroups() + batch.size() <= budget) {
+    				agg.mergeBatchIntoGroup(batch);
+    				continue;
+    			}
+    			if (rejected.length < batch.size())
+    				rejected = new boolean[batch.size()];
+    			if (agg.mergeBatchIntoGroup(batch, budget, rejected) == 0)
+    				continue;
+    			for (int row = 0; row < batch.size(); row++) {
+    				if (!rejected[row])
+    					continue;
+    				int part = partitionOf(batch, row, level);
+    				if (parts[part] == null) {
+    					parts[part] = new SpillFile(it.getTupleDesc());
+    					spills.add(parts[part]);
+    				}
+    				parts[part].add(batch.getTuple(row));
+    			}
+    		}
+    		
+    		for (int i = 0; i < PARTITIONS; i++) {
+    			if (parts[i] == null)
+    				continue;
+    			parts[i].finish();
+    			bytesSpilled += (long) parts[i].numPages() * BufferPool.getPageSize();
+    			spilledPartitions++;
+    			pending.add(new SpilledPartition(parts[i], level + 1));
+    		}
+    	} catch (IOException e) {
+    		throw new DbException("Could not spill aggregate partition: " + e.getMessage());
+    	}
+    }
+    
+    /**
+     * Aggregates the next pending partition, queueing the partitions it
+     * spills in turn.
+     *
+     * @return false if there are no pending partitions.
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+    	SpilledPartition next = pending.poll();
+    	if (next == null)
+    		return false;
+    	
+    	newChild.close();
+    	Aggregator agg = newAggregator();
+    	try {
+    		DbIterator rows = next.rows.iterator();
+    		rows.open();
+    		aggregate(rows, agg, next.level);
+    		rows.close();
+    	} catch (IOException e) {
+    		throw new DbException("Could not read aggregate partition: " + e.getMessage());
+    	}
+    	next.rows.delete();
+    	
+    	newChild = agg.iterator();
+    	newChild.open();
+    	return true;
+    }
+    
+    private void cleanup() {
+    	if (spills != null) {
+    		for (SpillFile f : spills)
+    			f.delete();
+    	}
+    	pending = null;
+    	spills = null;
+    }
+    
+    /**
+     * @return the SeqScan that it reads, if it is a SeqScan or a chain of
+     *         Filters over one; otherwise null.
+     */
+    private static SeqScan partitionableScan(DbIterator it) {
+    	while (it instanceof Filter)
+    		it = ((Filter) it).getChildren()[0];
+    	return it instanceof SeqScan ? (SeqScan) it : null;
+    }
+    
+    /**
+     * @return a copy of the chain of Filters of it, reading from scan rather
+     *         than from its own SeqScan.
+     */
+    private static DbIterator copyOver(DbIterator it, SeqScan scan) {
+    	if (it instanceof Filter) {
+    		Filter f = (Filter) it;
+    		return new Filter(f.getPredicate(), copyOver(f.getChildren()[0], scan));
+    	}
+    	return scan;
+    }
+    
+    /**
+     * Rethrows the DbException or TransactionAbortedException that a task
+     * failed with, wrapped in a RuntimeException.
+     */
+    private static RuntimeException unwrap(RuntimeException e)
+    		throws DbException, TransactionAbortedException {
+    	for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+    		if (cause instanceof DbException)
+    			throw (DbException) cause;
+    		if (cause instanceof TransactionAbortedException)
+    			throw (TransactionAbortedException) cause;
+    	}
+    	return e;
+    }
+    
+    /**
+     * Aggregates pages first to end - 1 of the scan, splitting the range in
+     * halves until it has at most pagesPerTask pages. Returns null, and
+     * makes the other tasks give up, once a leaf has more than leafGroups
+     * groups or a merged result more than memoryGroups.
+     */
+    private class PartialAggregate extends RecursiveTask<Aggregator> {
+    	private static final long serialVersionUID = 1L;
+    	
+    	private final SeqScan scan;
+    	private final int first, end, pagesPerTask, leafGroups;
+    	private final AtomicBoolean overBudget;
+    	
+    	PartialAggregate(SeqScan scan, int first, int end, int pagesPerTask,
+    			int leafGroups, AtomicBoolean overBudget) {
+    		this.scan = scan;
+    		this.first = first;
+    		this.end = end;
+    		this.pagesPerTask = pagesPerTask;
+    		this.leafGroups = leafGroups;
+    		this.overBudget = overBudget;
+    	}
+    	
+    	protected Aggregator compute() {
+    		if (end - first > pagesPerTask) {
+    			int mid = (first + end) >>> 1;
+    			PartialAggregate left = new PartialAggregate(scan, first, mid,
+    					pagesPerTask, leafGroups, overBudget);
+    			PartialAggregate right = new PartialAggregate(scan, mid, end,
+    					pagesPerTask, leafGroups, overBudget);
+    			left.fork();
+    			Aggregator rightAgg = right.compute();
+    			Aggregator leftAgg = left.join();
+    			if (leftAgg == null || rightAgg == null)
+    				return null;
+    			// left first, to keep the groups in page order
+    			leftAgg.mergePartial(rightAgg);
+    			return exceeds(leftAgg, memoryGroups) ? null : leftAgg;
+    		}
+    		
+    		Aggregator agg = newAggregator();
+    		DbIterator it = copyOver(child, scan.partition(first, end));
+    		try {
+    			it.open();
+    			TupleBatch batch;
+    			while ((batch = BatchAdapter.nextBatch(it)) != null) {
+    				agg.mergeBatchIntoGroup(batch);
+    				if (exceeds(agg, leafGroups))
+    					return null;
+    			}
+    		} catch (DbException e) {
+    			throw new RuntimeException(e);
+    		} catch (TransactionAbortedException e) {
+    			throw new RuntimeException(e);
+    		} finally {
+    			it.close();
+    		}
+    		synchronized (Aggregate.this) {
+    			partitions++;
+    		}
+    		return agg;
+    	}
+    	
+    	private boolean exceeds(Aggregator agg, int groups) {
+    		if (agg.numGroups() > groups)
+    			overBudget.set(true);
+    		return overBudget.get();
+    	}
+    }
 
     /**
      * Returns the next tuple. If there is a group by field, then the first
@@ -156,23 +577,35 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 		// DONE
-    	while(newChild.hasNext())
-    		return newChild.next();
-    	
-    	return null;
+    	while (true) {
+    		if (newChild.hasNext())
+    			return newChild.next();
+    		// ME: then the groups of each spilled partition
+    		if (!nextPartition())
+    			return null;
+    	}
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
 		// DONE?
+    	if (spilledPartitions == 0) {
+    		newChild.rewind();
+    		return;
+    	}
+    	// the partitions have been aggregated and deleted: start over
+    	newChild.close();
+    	cleanup();
     	child.rewind();
-    	newChild.rewind();
+    	start();
     }
 
     /**
      * Returns the TupleDesc of this Aggregate. If there is no group by field,
      * this will have one field - the aggregate column. If there is a group by
      * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * the aggregate value column. With several group by fields or aggregates,
+     * the group by fields come first, followed by the aggregates, each in the
+     * order given to the constructor.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -181,31 +614,36 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
     	// DONE?
-    	TupleDesc newTD;
-    	Type gType = getGroupFieldType();
+    	int n = gfields.length + afields.length;
+    	Type[] types = new Type[n];
+    	String[] names = new String[n];
     	
-    	if (noGrouping()) {
-    		// No grouping
-    		newTD = new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{aggregateFieldName()});
-    	} else {
-    		// Grouping
-    		newTD = new TupleDesc(new Type[]{gType, Type.INT_TYPE}, new String[]{groupFieldName(), aggregateFieldName()});
+    	// Grouping
+    	for (int i = 0; i < gfields.length; i++) {
+    		types[i] = child.getTupleDesc().getFieldType(gfields[i]);
+    		names[i] = groupFieldName(i);
+    	}
+    	for (int i = 0; i < afields.length; i++) {
+    		types[gfields.length + i] = Type.INT_TYPE;
+    		names[gfields.length + i] = aggregateFieldName(i);
     	}
     	
-    	return newTD;
+    	return new TupleDesc(types, names);
     }
 
     public void close() {
 		// DONE
     	super.close();
     	child.close();
-    	newChild.close();
+    	if (newChild != null)
+    		newChild.close();
+    	cleanup();
     }
 
     @Override
     public DbIterator[] getChildren() {
 		// DONE
-    	return new DbIterator[] {newChild};
+    	return new DbIterator[] {child};
     }
 
     @Override
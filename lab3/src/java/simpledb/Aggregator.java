@@ -76,6 +76,43 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge every row of a batch into the aggregate, as if each row had
+     * been passed to mergeTupleIntoGroup.
+     *
+     * @param batch rows containing an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch);
+
+    /**
+     * Merge every row of a batch into the aggregate, as mergeBatchIntoGroup
+     * would, but without adding groups once there are maxGroups groups.
+     *
+     * @param batch rows containing an aggregate field and a group-by field
+     * @param maxGroups the most groups the aggregate may have
+     * @param rejected set to true for each row that was not merged because
+     *        its group is new and there are already maxGroups groups, and to
+     *        false for the others; must have room for every row of the batch
+     * @return the number of rows rejected
+     */
+    public int mergeBatchIntoGroup(TupleBatch batch, int maxGroups, boolean[] rejected);
+
+    /**
+     * @return the number of groups merged so far; 1 if there is no
+     *         grouping.
+     */
+    public int numGroups();
+
+    /**
+     * Merge the partial results of another aggregator, built with the same
+     * arguments over a disjoint part of the input, as if its input had been
+     * merged into this one. Groups new to this aggregator are added after
+     * its own.
+     *
+     * @param partial an aggregator of the same class and arguments
+     */
+    public void mergePartial(Aggregator partial);
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
@@ -0,0 +1,655 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * BTreeFile is a secondary B+ tree index over one field of a table. It maps
+ * each value of the field to the RecordIds of the tuples holding it. The
+ * index is a DbFile of its own: its {@link BTreePage}s are read through the
+ * BufferPool under {@link BTreePageId}s, and it is registered with
+ * {@link Catalog#addIndex}.
+ * <p>
+ * Page 0 is always the root. When the root splits, its entries move to two
+ * new pages and it becomes an internal page over them, so the root never
+ * moves. Deletes remove entries from leaves without merging pages; scans
+ * step over empty leaves.
+ * <p>
+ * As a DbFile, the tuples of the index are its entries: (key, page, slot),
+ * in key order, where page and slot locate the tuple in the indexed table.
+ * {@link #insertTuple} and {@link #deleteTuple} take tuples of the indexed
+ * table, with their RecordIds set; BufferPool calls them for every index in
+ * the catalog when it inserts or deletes a tuple of the table. A new index
+ * is filled by {@link #build}, which sorts the entries and packs the pages
+ * bottom-up.
+ * <p>
+ * Next to the index file, a stamp file records the version of the table
+ * (see {@link FreeSpaceMap#getVersion}) that the index was last known to
+ * match, so an index left over from other contents of the table can be told
+ * apart; see {@link #isStale} and {@link #sync}.
+ *
+ * @see IndexScan
+ */
+public class BTreeFile implements DbFile {
+
+    /** Suffix appended to the path of an index file to name its stamp file. */
+    public static final String STAMP_SUFFIX = ".stamp";
+
+    private static final int STAMP_MAGIC = 0x42545332;
+
+    private final File file;
+    private final File stampFile;
+    private final ChannelPool channels;
+    private final HeapFile table;   // null if the table is not a HeapFile
+    private final int tableid;
+    private final int keyField;
+    private final Type keyType;
+    private final TupleDesc td;
+
+    /**
+     * Constructs a B+ tree index backed by the specified file. An empty or
+     * missing file is an empty index.
+     *
+     * @param f
+     *            the file that stores the index
+     * @param keyField
+     *            the index of the indexed field in the table's TupleDesc
+     * @param table
+     *            the indexed table
+     */
+    public BTreeFile(File f, int keyField, DbFile table) {
+        this.file = f;
+        this.stampFile = new File(f.getPath() + STAMP_SUFFIX);
+        this.channels = new ChannelPool(f);
+        this.table = table instanceof HeapFile ? (HeapFile) table : null;
+        this.tableid = table.getId();
+        this.keyField = keyField;
+        this.keyType = table.getTupleDesc().getFieldType(keyField);
+        this.td = new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "key", "page", "slot" });
+    }
+
+    /**
+     * @return the File backing this index on disk.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public int getId() {
+        return file.getAbsoluteFile().hashCode();
+    }
+
+    /**
+     * @return the id of the indexed table.
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the index of the indexed field in the table's TupleDesc.
+     */
+    public int getKeyField() {
+        return keyField;
+    }
+
+    /**
+     * @return the type of the indexed field.
+     */
+    public Type getKeyType() {
+        return keyType;
+    }
+
+    /**
+     * @return the TupleDesc of the entries of this index: the key, and the
+     *         page and slot of the indexed tuple.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Checks whether the index file may not match the table: the index is
+     * stale if its file or stamp is missing, or if the table's version has
+     * changed since the index was built or last synced. Inserts and deletes
+     * keep the index in step with the table, so an index synced after
+     * them is not stale.
+     *
+     * @return true if the index should be rebuilt before it is used
+     */
+    public boolean isStale() {
+        if (!file.exists())
+            return true;
+        if (table == null)
+            return false;
+        if (!stampFile.exists())
+            return true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(stampFile)));
+            return in.readInt() != STAMP_MAGIC
+                    || in.readLong() != table.getFreeSpaceMap().getVersion();
+        } catch (IOException e) {
+            return true;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records in the stamp file that the index on disk matches the table on
+     * disk. {@link #build} calls it when it finishes, and
+     * {@link BufferPool#flushAllPages} once the pages of both are written.
+     */
+    public void sync() throws IOException {
+        if (table == null)
+            return;
+        long version = table.getFreeSpaceMap().getVersion();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(stampFile));
+        try {
+            out.writeInt(STAMP_MAGIC);
+            out.writeLong(version);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the number of pages in this index, at least 1 for the root.
+     */
+    public int numPages() {
+        return Math.max(1, (int) (file.length() / BufferPool.getPageSize()));
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int pageSize = BufferPool.getPageSize();
+        byte[] bytes = new byte[pageSize];
+        try {
+            if (file.exists())
+                channels.read(ByteBuffer.wrap(bytes), (long) pid.pageNumber() * pageSize);
+            // pages past the end of the file, such as the root of a new
+            // index, are empty leaves
+            return new BTreePage(new BTreePageId(pid.getTableId(), pid.pageNumber()), bytes, keyType);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Page does not exist in this file.");
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        channels.write(ByteBuffer.wrap(page.getPageData()),
+                (long) page.getId().pageNumber() * BufferPool.getPageSize());
+    }
+
+    private BTreePage getPage(TransactionId tid, int pgNo, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        return (BTreePage) Database.getBufferPool().getPage(tid, new BTreePageId(getId(), pgNo), perm);
+    }
+
+    private void unpin(TransactionId tid, BTreePage page) {
+        Database.getBufferPool().unpinPage(tid, page.getId());
+    }
+
+    /**
+     * Adds an empty page at the end of the file.
+     */
+    private BTreePage newPage(TransactionId tid, boolean leaf)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreePageId pid = new BTreePageId(getId(), numPages());
+        writePage(new BTreePage(pid, BTreePage.createEmptyPageData(), keyType));
+        BTreePage page = getPage(tid, pid.pageNumber(), Permissions.READ_WRITE);
+        page.reset(leaf);
+        return page;
+    }
+
+    /**
+     * Adds the entry of a tuple of the indexed table.
+     *
+     * @param t a tuple of the indexed table, with its RecordId set
+     * @return the pages that were modified
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (t.getRecordId() == null)
+            throw new DbException("Tuple is not stored in a table");
+        return insert(tid, t.getField(keyField), t.getRecordId());
+    }
+
+    /**
+     * Adds an entry for key and rid.
+     *
+     * @return the pages that were modified
+     */
+    public ArrayList<Page> insert(TransactionId tid, Field key, RecordId rid)
+            throws DbException, IOException, TransactionAbortedException {
+        int ridPage = rid.getPageId().pageNumber();
+        int ridSlot = rid.tupleno();
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+
+        // find the leaf, remembering the path to it
+        ArrayList<BTreePage> path = new ArrayList<BTreePage>();
+        BTreePage page = getPage(tid, 0, Permissions.READ_WRITE);
+        while (!page.isLeaf()) {
+            path.add(page);
+            page = getPage(tid, page.child(page.upperBound(key, ridPage, ridSlot)),
+                    Permissions.READ_WRITE);
+        }
+        page.insert(page.lowerBound(key, ridPage, ridSlot), key, ridPage, ridSlot, 0);
+        dirtied.add(page);
+
+        // split full pages from the leaf up
+        while (page.numEntries() > page.maxEntries()) {
+            if (page.getId().pageNumber() == 0) {
+                splitRoot(tid, page, dirtied);
+                break;
+            }
+            BTreePage right = newPage(tid, page.isLeaf());
+            dirtied.add(right);
+            int sep = split(page, right);
+            Field sepKey = sep < 0 ? right.key(0) : page.key(sep);
+            int sepPage = sep < 0 ? right.ridPage(0) : page.ridPage(sep);
+            int sepSlot = sep < 0 ? right.ridSlot(0) : page.ridSlot(sep);
+            if (sep >= 0)
+                page.truncate(sep);
+
+            BTreePage parent = path.remove(path.size() - 1);
+            parent.insert(parent.upperBound(sepKey, sepPage, sepSlot), sepKey, sepPage, sepSlot,
+                    right.getId().pageNumber());
+            dirtied.add(parent);
+            page = parent;
+        }
+        return dirtied;
+    }
+
+    /**
+     * Moves the upper half of the entries of page to the empty page right.
+     * A leaf keeps its lower half and links to right; its first entry
+     * separates the two. An internal page keeps its separators and children
+     * up to the middle separator, which moves up to the parent.
+     *
+     * @return the position of the separator that moves up, which the caller
+     *         truncates page to, or -1 for a leaf
+     */
+    private static int split(BTreePage page, BTreePage right) {
+        int n = page.numEntries();
+        int mid = n / 2;
+        if (page.isLeaf()) {
+            for (int i = mid; i < n; i++)
+                right.insert(i - mid, page.key(i), page.ridPage(i), page.ridSlot(i), 0);
+            page.truncate(mid);
+            right.setNext(page.getNext());
+            page.setNext(right.getId().pageNumber());
+            return -1;
+        }
+        right.setChild(0, page.child(mid + 1));
+        for (int i = mid + 1; i < n; i++)
+            right.insert(i - mid - 1, page.key(i), page.ridPage(i), page.ridSlot(i), page.child(i + 1));
+        return mid;
+    }
+
+    /**
+     * Splits the root over two new pages and makes it an internal page with
+     * a single separator.
+     */
+    private void splitRoot(TransactionId tid, BTreePage root, ArrayList<Page> dirtied)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreePage left = newPage(tid, root.isLeaf());
+        BTreePage right = newPage(tid, root.isLeaf());
+        dirtied.add(left);
+        dirtied.add(right);
+
+        int n = root.numEntries();
+        left.setChild(0, root.child(0));
+        for (int i = 0; i < n; i++)
+            left.insert(i, root.key(i), root.ridPage(i), root.ridSlot(i), root.child(i + 1));
+        int sep = split(left, right);
+        Field sepKey = sep < 0 ? right.key(0) : left.key(sep);
+        int sepPage = sep < 0 ? right.ridPage(0) : left.ridPage(sep);
+        int sepSlot = sep < 0 ? right.ridSlot(0) : left.ridSlot(sep);
+        if (sep >= 0)
+            left.truncate(sep);
+
+        root.reset(false);
+        root.setChild(0, left.getId().pageNumber());
+        root.insert(0, sepKey, sepPage, sepSlot, right.getId().pageNumber());
+    }
+
+    /**
+     * Replaces the contents of this index with an entry for every tuple of
+     * the indexed table, sorting up to OrderBy.DEFAULT_MEMORY_TUPLES entries
+     * in memory.
+     *
+     * @see #build(int)
+     */
+    public void build() throws DbException, IOException, TransactionAbortedException {
+        build(OrderBy.DEFAULT_MEMORY_TUPLES);
+    }
+
+    /**
+     * Replaces the contents of this index with an entry for every tuple of
+     * the indexed table. The entries are sorted with an external sort, then
+     * packed bottom-up: full leaves left to right, then each level of
+     * internal pages over the one below, until a level fits in the root.
+     * The pages are written straight to the file, bypassing the BufferPool,
+     * so the index must not be in use while it is built.
+     *
+     * @param memoryTuples
+     *            the number of entries to sort in memory before spilling a
+     *            sorted run to disk
+     */
+    public void build(int memoryTuples) throws DbException, IOException,
+            TransactionAbortedException {
+        // forget the cached pages of the old contents
+        for (int i = 0; i < numPages(); i++)
+            Database.getBufferPool().discardPage(new BTreePageId(getId(), i));
+
+        TransactionId tid = new TransactionId();
+        OrderBy sorted = new OrderBy(new int[] { 0, 1, 2 }, new boolean[] { true, true, true },
+                new EntryScan(new SeqScan(tid, tableid, "")), memoryTuples);
+        BTreePage root;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            // page 0 is kept for the root, which is known last
+            out.write(BTreePage.createEmptyPageData());
+            sorted.open();
+            root = new BulkBuilder(out).pack(sorted);
+        } finally {
+            sorted.close();
+            out.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        writePage(new BTreePage(new BTreePageId(getId(), 0), root.getPageData(), keyType));
+        sync();
+    }
+
+    /**
+     * Removes the entry of a tuple of the indexed table.
+     *
+     * @param t a tuple of the indexed table, with its RecordId set
+     * @return the pages that were modified
+     * @throws DbException if the index has no entry for the tuple
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        if (t.getRecordId() == null)
+            throw new DbException("Tuple is not stored in a table");
+        return delete(tid, t.getField(keyField), t.getRecordId());
+    }
+
+    /**
+     * Removes the entry for key and rid.
+     *
+     * @return the pages that were modified
+     * @throws DbException if the index has no such entry
+     */
+    public ArrayList<Page> delete(TransactionId tid, Field key, RecordId rid)
+            throws DbException, TransactionAbortedException {
+        int ridPage = rid.getPageId().pageNumber();
+        int ridSlot = rid.tupleno();
+        BTreePage page = getPage(tid, 0, Permissions.READ_WRITE);
+        while (!page.isLeaf())
+            page = getPage(tid, page.child(page.upperBound(key, ridPage, ridSlot)),
+                    Permissions.READ_WRITE);
+        int pos = page.lowerBound(key, ridPage, ridSlot);
+        if (pos == page.numEntries() || page.compare(pos, key, ridPage, ridSlot) != 0)
+            throw new DbException("No index entry for " + key + " at " + ridPage + ":" + ridSlot);
+        page.delete(pos);
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        dirtied.add(page);
+        return dirtied;
+    }
+
+    /**
+     * @return the RecordId of the indexed tuple of an entry of this index.
+     */
+    public RecordId recordId(Tuple entry) {
+        return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(1)).getValue()),
+                ((IntField) entry.getField(2)).getValue());
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new IndexIterator(tid, null, null);
+    }
+
+    /**
+     * Returns an iterator over the entries whose key satisfies
+     * <tt>key op constant</tt>, in key order.
+     *
+     * @param op
+     *            EQUALS, LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or
+     *            GREATER_THAN_OR_EQ
+     * @throws IllegalArgumentException
+     *             if op cannot be answered by a range of the index
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate.Op op, Field constant) {
+        if (!supports(op))
+            throw new IllegalArgumentException("Index cannot answer " + op);
+        return new IndexIterator(tid, op, constant);
+    }
+
+    /**
+     * @return true if the entries satisfying a predicate with op form a
+     *         range of the index.
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN
+                || op == Predicate.Op.LESS_THAN_OR_EQ || op == Predicate.Op.GREATER_THAN
+                || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /**
+     * Walks the leaves from the first one that can hold a matching entry,
+     * and stops at the first entry past the range.
+     */
+    private class IndexIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final Predicate.Op op;
+        private final Field constant;
+        private BTreePage leaf;
+        private int pos;
+
+        IndexIterator(TransactionId tid, Predicate.Op op, Field constant) {
+            this.tid = tid;
+            this.op = op;
+            this.constant = constant;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            // ranges bounded below start at the first entry with the key;
+            // others at the first leaf
+            boolean seek = op == Predicate.Op.EQUALS || op == Predicate.Op.GREATER_THAN
+                    || op == Predicate.Op.GREATER_THAN_OR_EQ;
+            leaf = getPage(tid, 0, Permissions.READ_ONLY);
+            while (!leaf.isLeaf()) {
+                int c = seek ? leaf.upperBound(constant, Integer.MIN_VALUE, Integer.MIN_VALUE) : 0;
+                BTreePage parent = leaf;
+                leaf = getPage(tid, leaf.child(c), Permissions.READ_ONLY);
+                unpin(tid, parent);
+            }
+            pos = seek ? leaf.lowerBound(constant, Integer.MIN_VALUE, Integer.MIN_VALUE) : 0;
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (leaf != null) {
+                if (pos >= leaf.numEntries()) {
+                    int next = leaf.getNext();
+                    unpin(tid, leaf);
+                    leaf = next == 0 ? null : getPage(tid, next, Permissions.READ_ONLY);
+                    pos = 0;
+                    continue;
+                }
+                Field key = leaf.key(pos);
+                if (op != null && !key.compare(op, constant)) {
+                    if (op == Predicate.Op.GREATER_THAN) {
+                        // skip the entries equal to the constant
+                        pos++;
+                        continue;
+                    }
+                    unpin(tid, leaf);
+                    leaf = null;
+                    return null;
+                }
+                Tuple t = entry(key, leaf.ridPage(pos), leaf.ridSlot(pos));
+                pos++;
+                return t;
+            }
+            return null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (leaf != null)
+                unpin(tid, leaf);
+            leaf = null;
+        }
+    }
+
+    /**
+     * Turns the tuples of the indexed table into entries of the index.
+     */
+    private class EntryScan extends Operator {
+        private static final long serialVersionUID = 1L;
+
+        private DbIterator child;
+
+        EntryScan(DbIterator child) {
+            this.child = child;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (!child.hasNext())
+                return null;
+            Tuple t = child.next();
+            RecordId rid = t.getRecordId();
+            return entry(t.getField(keyField), rid.getPageId().pageNumber(), rid.tupleno());
+        }
+
+        public DbIterator[] getChildren() {
+            return new DbIterator[] { child };
+        }
+
+        public void setChildren(DbIterator[] children) {
+            child = children[0];
+        }
+    }
+
+    private Tuple entry(Field key, int page, int slot) {
+        Tuple t = new Tuple(td);
+        t.setField(0, key);
+        t.setField(1, new IntField(page));
+        t.setField(2, new IntField(slot));
+        return t;
+    }
+
+    /**
+     * Packs sorted entries into the pages of a new tree. Pages are written
+     * in page number order from page 1. The last page of each level is held
+     * back until the level is finished, so that a level of one page can
+     * become the root instead.
+     */
+    private class BulkBuilder {
+        private final OutputStream out;
+        private int nextPage = 1;
+        // the page number and smallest entry of each written page of a level
+        private ArrayList<Integer> children = new ArrayList<Integer>();
+        private ArrayList<Tuple> mins = new ArrayList<Tuple>();
+
+        BulkBuilder(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * @return the root; it is not written
+         */
+        BTreePage pack(DbIterator sorted) throws DbException, IOException,
+                TransactionAbortedException {
+            BTreePage page = emptyPage(true);
+            while (sorted.hasNext()) {
+                Tuple t = sorted.next();
+                if (page.numEntries() == page.maxEntries()) {
+                    page.setNext(nextPage + 1);
+                    write(page, entry(page.key(0), page.ridPage(0), page.ridSlot(0)));
+                    page = emptyPage(true);
+                }
+                page.insert(page.numEntries(), t.getField(0), ((IntField) t.getField(1)).getValue(),
+                        ((IntField) t.getField(2)).getValue(), 0);
+            }
+            Tuple min = page.numEntries() == 0 ? null
+                    : entry(page.key(0), page.ridPage(0), page.ridSlot(0));
+
+            // page is the last page of its level; while the level has
+            // others, write it and pack the level above
+            while (!children.isEmpty()) {
+                write(page, min);
+                ArrayList<Integer> level = children;
+                ArrayList<Tuple> levelMins = mins;
+                children = new ArrayList<Integer>();
+                mins = new ArrayList<Tuple>();
+
+                page = emptyPage(false);
+                page.setChild(0, level.get(0));
+                min = levelMins.get(0);
+                for (int i = 1; i < level.size(); i++) {
+                    Tuple sep = levelMins.get(i);
+                    if (page.numEntries() == page.maxEntries()) {
+                        write(page, min);
+                        page = emptyPage(false);
+                        page.setChild(0, level.get(i));
+                        min = sep;
+                        continue;
+                    }
+                    page.insert(page.numEntries(), sep.getField(0),
+                            ((IntField) sep.getField(1)).getValue(),
+                            ((IntField) sep.getField(2)).getValue(), level.get(i));
+                }
+            }
+            return page;
+        }
+
+        private BTreePage emptyPage(boolean leaf) throws IOException {
+            BTreePage page = new BTreePage(new BTreePageId(getId(), nextPage),
+                    BTreePage.createEmptyPageData(), keyType);
+            page.reset(leaf);
+            return page;
+        }
+
+        private void write(BTreePage page, Tuple min) throws IOException {
+            out.write(page.getPageData());
+            children.add(nextPage++);
+            mins.add(min);
+        }
+    }
+}
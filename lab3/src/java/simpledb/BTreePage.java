@@ -0,0 +1,291 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A page of a {@link BTreeFile}. A page is either a leaf, holding sorted
+ * (key, RecordId) entries and the page number of the next leaf, or an
+ * internal page, holding sorted separator entries and one more child page
+ * number than separators. Entries compare by key, then by RecordId, so
+ * entries with equal keys still have a single place in the tree.
+ * <p>
+ * The page layout is:
+ * <pre>
+ *   byte  leaf (0) or internal (1)
+ *   int   number of entries n
+ *   int   next leaf, or 0 if there is none
+ *   int   child 0                     (internal pages only)
+ *   n x   key, int page, int slot     (leaf pages)
+ *   n x   key, int page, int slot, int child i+1   (internal pages)
+ * </pre>
+ * Page 0 of a file is always the root, so no leaf ever links to it and 0
+ * can mean "no next leaf". A page of zeros is an empty leaf.
+ */
+public class BTreePage implements Page {
+
+    private static final int HEADER_SIZE = 9;
+
+    private final BTreePageId pid;
+    private final Type keyType;
+
+    private boolean leaf;
+    private int n;
+    private int next;
+    private Field[] keys;
+    private int[] ridPages;
+    private int[] ridSlots;
+    private int[] children;
+
+    private byte[] oldData;
+    private TransactionId dirtier;
+
+    /**
+     * Create a BTreePage from a set of bytes of data read from disk. The key
+     * type is the type of the first field of the index's TupleDesc.
+     */
+    public BTreePage(BTreePageId id, byte[] data) throws IOException {
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()).getFieldType(0));
+    }
+
+    BTreePage(BTreePageId id, byte[] data, Type keyType) throws IOException {
+        this.pid = id;
+        this.keyType = keyType;
+        int capacity = Math.max(leafCapacity(keyType), internalCapacity(keyType)) + 1;
+        keys = new Field[capacity];
+        ridPages = new int[capacity];
+        ridSlots = new int[capacity];
+        children = new int[capacity + 1];
+
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        leaf = buf.get(0) == 0;
+        n = buf.getInt(1);
+        next = buf.getInt(5);
+        if (n < 0 || n > maxEntries())
+            throw new IOException("Corrupt index page " + id.pageNumber());
+        int offset = HEADER_SIZE;
+        if (!leaf) {
+            children[0] = buf.getInt(offset);
+            offset += 4;
+        }
+        for (int i = 0; i < n; i++) {
+            keys[i] = keyType.parse(buf, offset);
+            offset += keyType.getLen();
+            ridPages[i] = buf.getInt(offset);
+            ridSlots[i] = buf.getInt(offset + 4);
+            offset += 8;
+            if (!leaf) {
+                children[i + 1] = buf.getInt(offset);
+                offset += 4;
+            }
+        }
+        oldData = data.clone();
+    }
+
+    /**
+     * @return the bytes of an empty leaf page.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    /** @return the number of entries that fit on a leaf page. */
+    static int leafCapacity(Type keyType) {
+        return (BufferPool.getPageSize() - HEADER_SIZE) / (keyType.getLen() + 8);
+    }
+
+    /** @return the number of separators that fit on an internal page. */
+    static int internalCapacity(Type keyType) {
+        return (BufferPool.getPageSize() - HEADER_SIZE - 4) / (keyType.getLen() + 12);
+    }
+
+    public BTreePageId getId() {
+        return pid;
+    }
+
+    boolean isLeaf() {
+        return leaf;
+    }
+
+    /** Empties this page and makes it a leaf or an internal page. */
+    void reset(boolean leaf) {
+        this.leaf = leaf;
+        n = 0;
+        next = 0;
+        children[0] = 0;
+        Arrays.fill(keys, null);
+    }
+
+    int numEntries() {
+        return n;
+    }
+
+    /** @return the number of entries this page holds before it must split. */
+    int maxEntries() {
+        return leaf ? leafCapacity(keyType) : internalCapacity(keyType);
+    }
+
+    Field key(int i) {
+        return keys[i];
+    }
+
+    int ridPage(int i) {
+        return ridPages[i];
+    }
+
+    int ridSlot(int i) {
+        return ridSlots[i];
+    }
+
+    /** @return the page number of child i of an internal page, 0 <= i <= n. */
+    int child(int i) {
+        return children[i];
+    }
+
+    void setChild(int i, int pgNo) {
+        children[i] = pgNo;
+    }
+
+    /** @return the page number of the next leaf, or 0 if this is the last. */
+    int getNext() {
+        return next;
+    }
+
+    void setNext(int pgNo) {
+        next = pgNo;
+    }
+
+    /**
+     * Inserts an entry at position pos. On an internal page, rightChild
+     * becomes the child after the new separator. A page may hold one entry
+     * more than maxEntries() until it is split.
+     */
+    void insert(int pos, Field key, int page, int slot, int rightChild) {
+        if (key.getType() != keyType)
+            throw new IllegalArgumentException("Key " + key + " is not a " + keyType);
+        System.arraycopy(keys, pos, keys, pos + 1, n - pos);
+        System.arraycopy(ridPages, pos, ridPages, pos + 1, n - pos);
+        System.arraycopy(ridSlots, pos, ridSlots, pos + 1, n - pos);
+        keys[pos] = key;
+        ridPages[pos] = page;
+        ridSlots[pos] = slot;
+        if (!leaf) {
+            System.arraycopy(children, pos + 1, children, pos + 2, n - pos);
+            children[pos + 1] = rightChild;
+        }
+        n++;
+    }
+
+    /** Removes entry pos of a leaf page. */
+    void delete(int pos) {
+        System.arraycopy(keys, pos + 1, keys, pos, n - pos - 1);
+        System.arraycopy(ridPages, pos + 1, ridPages, pos, n - pos - 1);
+        System.arraycopy(ridSlots, pos + 1, ridSlots, pos, n - pos - 1);
+        keys[--n] = null;
+    }
+
+    /**
+     * Keeps only the first size entries; an internal page keeps children 0
+     * to size.
+     */
+    void truncate(int size) {
+        Arrays.fill(keys, size, n, null);
+        n = size;
+    }
+
+    /**
+     * @return the order of entry i relative to (key, page, slot)
+     */
+    int compare(int i, Field key, int page, int slot) {
+        int c = compareKeys(keys[i], key);
+        if (c != 0)
+            return c;
+        if (ridPages[i] != page)
+            return ridPages[i] < page ? -1 : 1;
+        return ridSlots[i] < slot ? -1 : ridSlots[i] == slot ? 0 : 1;
+    }
+
+    static int compareKeys(Field a, Field b) {
+        if (a.compare(Predicate.Op.LESS_THAN, b))
+            return -1;
+        return a.compare(Predicate.Op.EQUALS, b) ? 0 : 1;
+    }
+
+    /**
+     * @return the position of the first entry not less than
+     *         (key, page, slot), or numEntries() if there is none.
+     */
+    int lowerBound(Field key, int page, int slot) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(mid, key, page, slot) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the position of the first entry greater than
+     *         (key, page, slot), or numEntries() if there is none. On an
+     *         internal page this is the child whose subtree holds the entry.
+     */
+    int upperBound(Field key, int page, int slot) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(mid, key, page, slot) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeByte(leaf ? 0 : 1);
+            dos.writeInt(n);
+            dos.writeInt(next);
+            if (!leaf)
+                dos.writeInt(children[0]);
+            for (int i = 0; i < n; i++) {
+                keys[i].serialize(dos);
+                dos.writeInt(ridPages[i]);
+                dos.writeInt(ridSlots[i]);
+                if (!leaf)
+                    dos.writeInt(children[i + 1]);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return Arrays.copyOf(baos.toByteArray(), BufferPool.getPageSize());
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtier = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtier;
+    }
+
+    public BTreePage getBeforeImage() {
+        try {
+            return new BTreePage(pid, oldData, keyType);
+        } catch (IOException e) {
+            // the before image was valid page data when it was taken
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        oldData = getPageData();
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * BatchAdapter runs a BatchIterator a batch at a time and returns its tuples
+ * one by one through the DbIterator interface, so that a plan can be
+ * executed batch-wise underneath a tuple-at-a-time consumer.
+ */
+public class BatchAdapter implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BatchIterator child;
+    private transient TupleBatch batch;
+    private transient int row;
+
+    public BatchAdapter(BatchIterator child) {
+        this.child = child;
+    }
+
+    /**
+     * @return the iterator this adapter reads batches from
+     */
+    public BatchIterator getChild() {
+        return child;
+    }
+
+    /**
+     * Returns the next batch of it: by calling nextBatch if it is a
+     * BatchIterator, or otherwise by collecting up to
+     * TupleBatch.DEFAULT_CAPACITY tuples from next.
+     *
+     * @return a non-empty batch, or null if there are no more tuples.
+     */
+    public static TupleBatch nextBatch(DbIterator it) throws DbException,
+            TransactionAbortedException {
+        if (it instanceof BatchIterator)
+            return ((BatchIterator) it).nextBatch();
+        if (!it.hasNext())
+            return null;
+        TupleBatch batch = new TupleBatch(it.getTupleDesc());
+        while (!batch.isFull() && it.hasNext())
+            batch.addTuple(it.next());
+        return batch;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        batch = null;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        while (batch == null || row >= batch.size()) {
+            batch = child.nextBatch();
+            row = 0;
+            if (batch == null)
+                return false;
+        }
+        return true;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return batch.getTuple(row++);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+        batch = null;
+    }
+}
@@ -0,0 +1,21 @@
+package simpledb;
+
+/**
+ * BatchIterator is a DbIterator that can also return its tuples a batch at a
+ * time. Reading a batch costs one call instead of one per tuple, and lets
+ * the producer hand over INT_TYPE columns as primitive arrays.
+ * <p>
+ * A consumer should read an open iterator either with nextBatch or with
+ * hasNext/next, not with both.
+ */
+public interface BatchIterator extends DbIterator {
+
+  /**
+   * Returns the next batch of tuples.
+   *
+   * @return a non-empty batch, or null if there are no more tuples.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+}
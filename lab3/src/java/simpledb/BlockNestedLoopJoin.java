@@ -0,0 +1,201 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BlockNestedLoopJoin evaluates a join with any predicate by reading child1
+ * a block at a time and matching each block against one pass of child2.
+ * Where {@link Join} rescans child2 once per tuple of child1, this operator
+ * rescans it once per block, so an outer relation of B blocks costs B scans
+ * of the inner relation.
+ * <p>
+ * The block is sized in pages of child1's tuples, so that the memory it
+ * takes can be budgeted like buffer pool pages.
+ */
+public class BlockNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of pages of outer tuples per block unless another size is given. */
+    public static final int DEFAULT_BLOCK_PAGES = 10;
+
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private TupleDesc comboTD;
+    private final int blockPages;
+
+    // the current block of child1, with the join field of each tuple decoded
+    transient private ArrayList<Tuple> block = null;
+    transient private Field[] blockKeys = null;
+    transient private int blockSize;
+    // the current tuple of child2 and the next block position to try
+    transient private Tuple t2 = null;
+    transient private Field key2 = null;
+    transient private int blockIdx;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on, with blocks of DEFAULT_BLOCK_PAGES pages.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param blockPages
+     *            The number of pages of child1's tuples held in each block
+     * @see #BlockNestedLoopJoin(JoinPredicate, DbIterator, DbIterator)
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, DbIterator child1,
+            DbIterator child2, int blockPages) {
+        if (blockPages < 1)
+            throw new IllegalArgumentException("blockPages must be positive");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.blockPages = blockPages;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return the number of tuples of tupleSize bytes that fit in the given
+     *         number of HeapFile pages.
+     */
+    public static int blockTuples(int tupleSize, int pages) {
+        return pages * ((BufferPool.getPageSize() * 8) / (tupleSize * 8 + 1));
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * @return the number of pages of outer tuples in each block.
+     */
+    public int getBlockPages() {
+        return blockPages;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        super.open();
+        int capacity = blockTuples(child1.getTupleDesc().getSize(), blockPages);
+        block = new ArrayList<Tuple>(capacity);
+        blockKeys = new Field[capacity];
+        loadBlock();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        block = null;
+        blockKeys = null;
+        t2 = null;
+        key2 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        loadBlock();
+    }
+
+    /**
+     * Reads the next block of child1.
+     *
+     * @return false if child1 is exhausted.
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        int field1 = pred.getField1();
+        while (block.size() < blockKeys.length && child1.hasNext()) {
+            Tuple t = child1.next();
+            blockKeys[block.size()] = t.getField(field1);
+            block.add(t);
+        }
+        blockSize = block.size();
+        t2 = null;
+        return blockSize > 0;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Each result is the concatenation of a tuple of child1 and
+     * a tuple of child2 that satisfy the join predicate; the results of a
+     * block are ordered by child2.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        Predicate.Op op = pred.getOperator();
+        while (blockSize > 0) {
+            if (t2 != null) {
+                while (blockIdx < blockSize) {
+                    int i = blockIdx++;
+                    if (blockKeys[i].compare(op, key2))
+                        return merge(block.get(i), t2);
+                }
+            }
+
+            if (child2.hasNext()) {
+                t2 = child2.next();
+                key2 = t2.getField(pred.getField2());
+                blockIdx = 0;
+            } else {
+                // one pass of child2 is done: advance to the next block
+                if (loadBlock())
+                    child2.rewind();
+            }
+        }
+        return null;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+}
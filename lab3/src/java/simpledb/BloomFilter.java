@@ -0,0 +1,99 @@
+package simpledb;
+
+/**
+ * BloomFilter is a set of keys that can answer "possibly present" or
+ * "definitely absent". It never gives a false negative, and gives a false
+ * positive for about 1% of absent keys when it holds no more keys than it
+ * was sized for.
+ * <p>
+ * Keys are added and looked up by hash code, so equal Fields always agree,
+ * and an int column of a {@link TupleBatch} can be probed without creating
+ * IntFields. The bit positions of a key are derived from two halves of a
+ * 64-bit mix of its hash code (double hashing).
+ */
+public class BloomFilter {
+
+    /** Bits per expected key; with 7 hash functions, about 1% false positives. */
+    public static final int BITS_PER_KEY = 10;
+
+    private static final int NUM_HASHES = 7;
+
+    private final long[] bits;
+    private final int mask;
+
+    /**
+     * Creates an empty filter sized for a number of keys.
+     *
+     * @param expectedKeys
+     *            the number of distinct keys that will be added
+     */
+    public BloomFilter(int expectedKeys) {
+        long wanted = Math.max(64L, (long) expectedKeys * BITS_PER_KEY);
+        // a power of two, so that a position is a mask away
+        int numBits = Integer.highestOneBit((int) Math.min(wanted, 1 << 30));
+        if (numBits < wanted && numBits < (1 << 30))
+            numBits <<= 1;
+        this.bits = new long[numBits / 64];
+        this.mask = numBits - 1;
+    }
+
+    /**
+     * @return the number of bits in this filter.
+     */
+    public int numBits() {
+        return mask + 1;
+    }
+
+    public void add(Field key) {
+        add(key.hashCode());
+    }
+
+    /**
+     * Adds the key with the given hash code.
+     */
+    public void add(int hashCode) {
+        long h = mix(hashCode);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if key was definitely never added.
+     */
+    public boolean mightContain(Field key) {
+        return mightContain(key.hashCode());
+    }
+
+    /**
+     * @return false if no key with the given hash code was ever added.
+     */
+    public boolean mightContain(int hashCode) {
+        long h = mix(hashCode);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Spreads the bits of a hash code over 64 bits; IntField hash codes are
+     * the values themselves. This is the finalizer of MurmurHash3.
+     */
+    private static long mix(int hashCode) {
+        long h = hashCode;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -4,6 +4,11 @@ import java.io.*;
 
 import java.util.*; // for ArrayList<>
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -13,6 +18,15 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Pages live in a fixed array of frames. Each frame has a pin count and a
+ * read/write latch. The page table that maps page ids to frames is split
+ * into independently locked partitions, so threads that fetch, load and
+ * evict different pages do not wait on one global monitor.
+ * <p>
+ * A page returned by {@link #getPage} stays pinned, and cannot be evicted,
+ * until the transaction that asked for it calls {@link #unpinPage} or
+ * {@link #releasePage}, or completes.
  * 
  * @Threadsafe, all fields are final
  */
@@ -26,98 +40,245 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+    
+    /** Number of partitions the page table is split into. */
+    public static final int PAGE_TABLE_STRIPES = 16;
 
     // ME:
-    // As indicated above, ConcurrentHashMap is clearly recommended to store the pages
-    // because it supports concurrent retrievals and some degree of concurrent updates 
-    private ConcurrentHashMap<PageId, PageNode> pageNodes;
-    private int maxNumPages;
-    private PageId newestPageId = null;
-    private PageId oldestPageId = null;
-    
-    // Used to enforce LRU policy
-    private class PageNode {
-    	public PageId next = null;
-    	public PageId prev = null;
-    	public Page page;
-    	
-    	public PageNode(Page page) {
-    		this.page = page;
-    	}
+    // A frame holds one cached page. The pin count keeps the frame from being
+    // evicted while a thread is using it. The write latch is held while the
+    // page is loaded into the frame or evicted from it; the read latch while
+    // the page is flushed.
+    private static class Frame {
+    	volatile PageId pid;	// page held or being loaded, null if free
+    	volatile Page page;		// null while free or loading
+    	final AtomicInteger pinCount = new AtomicInteger();
+    	final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
     }
     
-    private void insertToMap(Page page) {
-    	
-    	PageId pid = page.getId();
+    // One partition of the page table
+    private static class Partition {
+    	final ReentrantLock lock = new ReentrantLock();
+    	final HashMap<PageId, Frame> frames = new HashMap<PageId, Frame>();
+    }
+    
+    private final Frame[] frames;
+    private final Partition[] pageTable;
+    private final ConcurrentLinkedQueue<Frame> freeFrames = new ConcurrentLinkedQueue<Frame>();
+    
+    // Pins taken by getPage, per transaction: page -> number of pins. A
+    // transaction's entry is removed once it holds no pins.
+    private final ConcurrentHashMap<TransactionId, HashMap<PageId, Integer>> pinsHeld =
+    		new ConcurrentHashMap<TransactionId, HashMap<PageId, Integer>>();
+    
+    // The pins taken by an insertTuple or deleteTuple call, which it releases
+    // when it is done
+    private static class CallPins {
+    	final TransactionId tid;
+    	final ArrayList<PageId> pages = new ArrayList<PageId>();
     	
-    	if (pageNodes.get(pid) == null) {
-    		
-    		PageNode pn = new PageNode(page);
-    		pageNodes.put(pid, pn);
-    		
-    		if (newestPageId != null) {
-    			PageNode second = pageNodes.get(newestPageId);
-    			second.prev = pid;
-    		}
-    		
-    		pn.prev = null;
-    		pn.next = newestPageId;
-    		newestPageId = pid;
-    		
-    		if (oldestPageId == null)
-    			oldestPageId = pid;
-    		
-    	} else {
-    		
-    		// Page has been cached, update MAP
-    		if (pid != newestPageId) {
-        		PageNode pn = pageNodes.get(pid);
-        		
-        		if (pn.prev != null) {
-        			PageNode prevNode = pageNodes.get(pn.prev);
-        			prevNode.next = pn.next;
-        		}
-        		
-        		if (pn.next != null) {
-        			PageNode nextNode = pageNodes.get(pn.next);
-        			nextNode.prev = pn.prev;
-        		}
-        		
-        		if (newestPageId != null) {
-        			PageNode second = pageNodes.get(newestPageId);
-        			second.prev = pid;
-        		}
-        		
-        		pn.prev = null;
-        		pn.next = newestPageId;
-        		newestPageId = pid;
-        		
-        		if (oldestPageId == null)
-        			oldestPageId = pid;
-    		}
-    		
+    	CallPins(TransactionId tid) {
+    		this.tid = tid;
     	}
     }
     
+    // The call running on each thread; other threads of the same transaction
+    // keep their own pins
+    private final ThreadLocal<CallPins> currentCall = new ThreadLocal<CallPins>();
+    
+    // Decides which page to evict; see EvictionPolicy
+    private final EvictionPolicy policy;
+    
+    // Requests for cached and uncached pages
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicting the
+     * least recently used page when it is full.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     */
+    public BufferPool(int numPages) {
+    	this(numPages, new LruPolicy());
+    }
+    
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the policy that picks pages to evict
      */
-    public BufferPool(int numPages) {
+    public BufferPool(int numPages, EvictionPolicy policy) {
     	// DONE
-        pageNodes = new ConcurrentHashMap<PageId, PageNode>();
-    	maxNumPages = numPages;
+    	frames = new Frame[numPages];
+    	for (int i = 0; i < numPages; i++) {
+    		frames[i] = new Frame();
+    		freeFrames.add(frames[i]);
+    	}
+    	pageTable = new Partition[PAGE_TABLE_STRIPES];
+    	for (int i = 0; i < PAGE_TABLE_STRIPES; i++)
+    		pageTable[i] = new Partition();
+    	this.policy = policy;
+    }
+    
+    /**
+     * @return the policy that picks pages to evict
+     */
+    public EvictionPolicy getEvictionPolicy() {
+    	return policy;
+    }
+    
+    /**
+     * @return the number of page requests served from the buffer pool
+     */
+    public long getHitCount() {
+    	return hits.get();
+    }
+    
+    /**
+     * @return the number of page requests that had to read the page from disk
+     */
+    public long getMissCount() {
+    	return misses.get();
+    }
+    
+    /**
+     * @return the fraction of page requests served from the buffer pool
+     */
+    public double getHitRatio() {
+    	long total = hits.get() + misses.get();
+    	return total == 0 ? 0 : (double)hits.get() / total;
+    }
+    
+    public void resetStats() {
+    	hits.set(0);
+    	misses.set(0);
     }
     
     public static int getPageSize() {
       return pageSize;
     }
     
+    /**
+     * @return the maximum number of pages this buffer pool caches.
+     */
+    public int getNumPages() {
+    	return frames.length;
+    }
+    
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
     	BufferPool.pageSize = pageSize;
     }
+    
+    private Partition partitionFor(PageId pid) {
+    	return pageTable[(pid.hashCode() & 0x7fffffff) % pageTable.length];
+    }
+    
+    /**
+     * Looks up the frame holding (or loading) a page and pins it.
+     * @return the pinned frame, or null if the page is not in the buffer pool
+     */
+    private Frame pinFrame(PageId pid) {
+    	Partition part = partitionFor(pid);
+    	part.lock.lock();
+    	try {
+    		Frame frame = part.frames.get(pid);
+    		if (frame != null)
+    			frame.pinCount.incrementAndGet();
+    		return frame;
+    	} finally {
+    		part.lock.unlock();
+    	}
+    }
+    
+    private void unpin(Frame frame) {
+    	frame.pinCount.decrementAndGet();
+    }
+    
+    /** Drops n pins on the frame holding a page pinned by a transaction. */
+    private void unpin(PageId pid, int n) {
+    	// A pinned page is never evicted, so its frame is still mapped
+    	Partition part = partitionFor(pid);
+    	Frame frame;
+    	part.lock.lock();
+    	try {
+    		frame = part.frames.get(pid);
+    	} finally {
+    		part.lock.unlock();
+    	}
+    	if (frame != null)
+    		frame.pinCount.addAndGet(-n);
+    }
+    
+    private HashMap<PageId, Integer> pinsOf(TransactionId tid) {
+    	HashMap<PageId, Integer> pins = pinsHeld.get(tid);
+    	if (pins == null) {
+    		pins = new HashMap<PageId, Integer>();
+    		HashMap<PageId, Integer> raced = pinsHeld.putIfAbsent(tid, pins);
+    		if (raced != null)
+    			pins = raced;
+    	}
+    	return pins;
+    }
+    
+    /**
+     * Releases up to n of the pins tid holds on a page.
+     * @return the number of pins released
+     */
+    private int releasePins(TransactionId tid, PageId pid, int n) {
+    	HashMap<PageId, Integer> pins = pinsHeld.get(tid);
+    	if (pins == null)
+    		return 0;
+    	int released;
+    	synchronized (pins) {
+    		Integer held = pins.get(pid);
+    		if (held == null)
+    			return 0;
+    		released = Math.min(held, n);
+    		if (held == released)
+    			pins.remove(pid);
+    		else
+    			pins.put(pid, held - released);
+    		if (pins.isEmpty())
+    			pinsHeld.remove(tid, pins);
+    	}
+    	unpin(pid, released);
+    	return released;
+    }
+    
+    /**
+     * Starts tracking the pins tid takes on this thread, until
+     * {@link #endCall}.
+     * @return the call it interrupts, if any
+     */
+    private CallPins beginCall(TransactionId tid) {
+    	CallPins outer = currentCall.get();
+    	currentCall.set(tid == null ? null : new CallPins(tid));
+    	return outer;
+    }
+    
+    /** Releases the pins the current call still holds and resumes outer. */
+    private void endCall(CallPins outer) {
+    	CallPins call = currentCall.get();
+    	currentCall.set(outer);
+    	if (call == null)
+    		return;
+    	for (PageId pid : call.pages)
+    		releasePins(call.tid, pid, 1);
+    }
+    
+    /** Forgets up to n pins of the current call on a page released by tid. */
+    private void forgetCallPins(TransactionId tid, PageId pid, int n) {
+    	CallPins call = currentCall.get();
+    	if (call == null || !call.tid.equals(tid))
+    		return;
+    	for (int i = 0; i < n; i++) {
+    		if (!call.pages.remove(pid))
+    			break;
+    	}
+    }
 
     /**
      * Retrieve the specified page with the associated permissions.
@@ -129,6 +290,9 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * The page stays pinned for tid until tid unpins or releases it, or
+     * completes; pages are pinned once per call.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -137,32 +301,180 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // DONE
-    	// Get the page by the pid
-    	PageNode pn = pageNodes.get(pid);
-    	Page page;
-    	
-    	if (pn == null) {
-    		// Page has not been cached
-    		if (pageNodes.size() == maxNumPages)
-    			evictPage();
-    		
-    		page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-    		
-    		// IMPORTANT: store page in node
-    		insertToMap(page);
+    	Frame frame = fetchFrame(pid, true);
+    	Page page = frame.page;
+    	if (tid == null) {
+    		// No transaction to release the pin later
+    		unpin(frame);
     	} else {
-    		//System.out.println("BufferPool.java: Page has been cached.");
-    		page = pn.page;
+    		while (true) {
+    			HashMap<PageId, Integer> pins = pinsOf(tid);
+    			synchronized (pins) {
+    				// an emptied entry may have been removed meanwhile
+    				if (pinsHeld.get(tid) != pins)
+    					continue;
+    				Integer held = pins.get(pid);
+    				pins.put(pid, held == null ? 1 : held + 1);
+    				break;
+    			}
+    		}
+    		CallPins call = currentCall.get();
+    		if (call != null && call.tid.equals(tid))
+    			call.pages.add(pid);
     	}
     	
+    	policy.pageReferenced(pid);
     	return page;
     }
+    
+    /**
+     * Releases one pin that tid took on a page with {@link #getPage}. Once
+     * no transaction has the page pinned, it may be evicted.
+     *
+     * @param tid the ID of the transaction that requested the page
+     * @param pid the ID of the page
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+    	if (tid != null)
+    		forgetCallPins(tid, pid, releasePins(tid, pid, 1));
+    }
+    
+    /**
+     * Reads a page into the buffer pool ahead of the transaction asking for it.
+     * Does nothing if the page is already cached or being read.
+     *
+     * @param tid the ID of the transaction the page is read for
+     * @param pid the ID of the page to read
+     */
+    public void prefetchPage(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+    	if (!holdsPage(pid))
+    		unpin(fetchFrame(pid, false));
+    }
+    
+    /**
+     * @return true if the page is cached or is currently being read into the
+     *         buffer pool
+     */
+    public boolean holdsPage(PageId pid) {
+    	Partition part = partitionFor(pid);
+    	part.lock.lock();
+    	try {
+    		return part.frames.containsKey(pid);
+    	} finally {
+    		part.lock.unlock();
+    	}
+    }
+    
+    /**
+     * Returns the pinned frame holding a page, reading the page from its
+     * DbFile first if it is not cached. If another thread is already reading
+     * the page, waits for that read instead of reading the page again.
+     */
+    private Frame fetchFrame(PageId pid, boolean countRequest) throws DbException {
+    	while (true) {
+    		Frame frame = pinFrame(pid);
+    		if (frame != null) {
+    			// Wait for a load in progress to finish
+    			frame.latch.readLock().lock();
+    			boolean loaded = frame.page != null && pid.equals(frame.pid);
+    			frame.latch.readLock().unlock();
+    			if (loaded) {
+    				if (countRequest)
+    					hits.incrementAndGet();
+    				return frame;
+    			}
+    			// The load failed; try again ourselves
+    			unpin(frame);
+    			continue;
+    		}
+    		
+    		// Page has not been cached
+    		frame = loadFrame(pid);
+    		if (frame != null) {
+    			if (countRequest)
+    				misses.incrementAndGet();
+    			return frame;
+    		}
+    	}
+    }
+    
+    /**
+     * Reads a page into a free frame. The page table entry is added before
+     * the read, with the frame write-latched, so concurrent requests for the
+     * page wait on the latch; the read itself happens outside any page table
+     * lock.
+     *
+     * @return the pinned frame, or null if another thread started loading the
+     *         page first
+     */
+    private Frame loadFrame(PageId pid) throws DbException {
+    	Frame frame = allocateFrame();
+    	frame.latch.writeLock().lock();
+    	try {
+    		Partition part = partitionFor(pid);
+    		part.lock.lock();
+    		try {
+    			if (part.frames.containsKey(pid)) {
+    				freeFrames.add(frame);
+    				return null;
+    			}
+    			frame.pid = pid;
+    			frame.page = null;
+    			frame.pinCount.incrementAndGet();
+    			part.frames.put(pid, frame);
+    		} finally {
+    			part.lock.unlock();
+    		}
+    		
+    		try {
+    			frame.page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    		} catch (RuntimeException e) {
+    			unmap(pid, frame);
+    			unpin(frame);
+    			freeFrames.add(frame);
+    			throw e;
+    		}
+    		policy.pageLoaded(pid);
+    		return frame;
+    	} finally {
+    		frame.latch.writeLock().unlock();
+    	}
+    }
+    
+    /** Removes the page table entry for pid if it still points at frame. */
+    private boolean unmap(PageId pid, Frame frame) {
+    	Partition part = partitionFor(pid);
+    	part.lock.lock();
+    	try {
+    		if (part.frames.get(pid) != frame)
+    			return false;
+    		part.frames.remove(pid);
+    		frame.pid = null;
+    		frame.page = null;
+    		return true;
+    	} finally {
+    		part.lock.unlock();
+    	}
+    }
+    
+    /**
+     * Returns a free, unmapped frame, evicting a page if there is none.
+     */
+    private Frame allocateFrame() throws DbException {
+    	Frame frame = freeFrames.poll();
+    	if (frame != null)
+    		return frame;
+    	return evictPage();
+    }
 
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
      * about who needs to call this and why, and why they can run the risk of
      * calling it.
+     * <p>
+     * Also releases every pin tid holds on the page.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param pid the ID of the page to unlock
@@ -170,6 +482,8 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+    	if (tid != null)
+    		forgetCallPins(tid, pid, releasePins(tid, pid, Integer.MAX_VALUE));
     }
 
     /**
@@ -180,6 +494,7 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
@@ -200,6 +515,13 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	HashMap<PageId, Integer> pins = tid == null ? null : pinsHeld.remove(tid);
+    	if (pins == null)
+    		return;
+    	synchronized (pins) {
+    		for (Map.Entry<PageId, Integer> e : pins.entrySet())
+    			unpin(e.getKey(), e.getValue());
+    	}
     }
 
     /**
@@ -211,6 +533,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and updates cached versions of any pages that have 
      * been dirtied so that future requests see up-to-date pages. 
+     * The tuple's entry is added to every index over the table.
+     * The pages the operation fetched stay pinned until they are cached.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -220,19 +544,23 @@ public class BufferPool {
         throws DbException, TransactionAbortedException {
     	// IOException - removed
         // DONE
+    	CallPins outer = beginCall(tid);
     	try {
-    		HeapFile file = (HeapFile)Database.getCatalog().getDatabaseFile(tableId);
+    		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         	ArrayList<Page> dirtiedPages = file.insertTuple(tid, t);
         	
-        	for (Page dirtiedPage: dirtiedPages) {
-        		// Mark page as dirty
-        		dirtiedPage.markDirty(true, tid);
-        		
-        		// Update page's cached version
-        		pageNodes.get(dirtiedPage.getId()).page = dirtiedPage;
+        	// The insert set the tuple's RecordId; add its entry to each index
+        	if (!(file instanceof BTreeFile)) {
+        		for (BTreeFile index : Database.getCatalog().getIndexes(tableId))
+        			dirtiedPages.addAll(index.insertTuple(tid, t));
         	}
+        	
+        	for (Page dirtiedPage: dirtiedPages)
+        		cacheDirtiedPage(tid, dirtiedPage);
     	} catch(IOException e) {
     		e.printStackTrace();
+    	} finally {
+    		endCall(outer);
     	}
     }
 
@@ -244,6 +572,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and updates cached versions of any pages that have 
      * been dirtied so that future requests see up-to-date pages. 
+     * The tuple's entry is removed from every index over the table.
+     * The pages the operation fetched stay pinned until they are cached.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
@@ -252,28 +582,88 @@ public class BufferPool {
         throws DbException, TransactionAbortedException {
     	// IOException - removed
     	// DONE
-    	HeapFile file = (HeapFile)Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-		ArrayList<Page> dirtiedPages = file.deleteTuple(tid, t);
-		
-		for (Page dirtiedPage: dirtiedPages) {
-			// Mark page as dirty
-			dirtiedPage.markDirty(true, tid);
-			
-			// Update page's cached version
-			pageNodes.get(dirtiedPage.getId()).page = dirtiedPage;
-		}
+    	CallPins outer = beginCall(tid);
+    	try {
+    		DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+    		ArrayList<Page> dirtiedPages = file.deleteTuple(tid, t);
+    		
+    		// The tuple keeps its fields and RecordId; remove its index entries
+    		if (!(file instanceof BTreeFile)) {
+    			for (BTreeFile index : Database.getCatalog().getIndexes(file.getId()))
+    				dirtiedPages.addAll(index.deleteTuple(tid, t));
+    		}
+    		
+    		for (Page dirtiedPage: dirtiedPages)
+    			cacheDirtiedPage(tid, dirtiedPage);
+    	} catch(IOException e) {
+    		e.printStackTrace();
+    	} finally {
+    		endCall(outer);
+    	}
+    }
+
+    /**
+     * Marks a page dirtied by tid as dirty and makes it the cached version of
+     * that page. The page is cached again if it was evicted in the meantime.
+     */
+    private void cacheDirtiedPage(TransactionId tid, Page dirtiedPage)
+        throws DbException {
+    	// Mark page as dirty
+    	dirtiedPage.markDirty(true, tid);
+    	PageId pid = dirtiedPage.getId();
+    	
+    	while (true) {
+    		// Update page's cached version
+    		Frame frame = pinFrame(pid);
+    		if (frame != null) {
+    			frame.latch.writeLock().lock();
+    			boolean updated = pid.equals(frame.pid);
+    			if (updated)
+    				frame.page = dirtiedPage;
+    			frame.latch.writeLock().unlock();
+    			unpin(frame);
+    			if (updated)
+    				return;
+    			continue;
+    		}
+    		
+    		// The page was evicted before it was marked dirty; cache it again
+    		frame = allocateFrame();
+    		Partition part = partitionFor(pid);
+    		part.lock.lock();
+    		try {
+    			if (part.frames.containsKey(pid)) {
+    				freeFrames.add(frame);
+    				continue;
+    			}
+    			frame.pid = pid;
+    			frame.page = dirtiedPage;
+    			part.frames.put(pid, frame);
+    		} finally {
+    			part.lock.unlock();
+    		}
+    		policy.pageLoaded(pid);
+    		return;
+    	}
     }
 
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
+     * Every table and its indexes then match on disk, so the indexes are
+     * synced to their tables.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // DONE
-    	for (PageNode pn: pageNodes.values()) {
-    		if (pn.page.isDirty() != null)
-    			flushPage(pn.page.getId());
+    	for (Frame frame: frames)
+    		flushFrame(frame);
+    	
+    	Catalog catalog = Database.getCatalog();
+    	Iterator<Integer> tableIds = catalog.tableIdIterator();
+    	while (tableIds.hasNext()) {
+    		for (BTreeFile index : catalog.getIndexes(tableIds.next()))
+    			index.sync();
     	}
     }
 
@@ -282,33 +672,65 @@ public class BufferPool {
         buffer pool doesn't keep a rolled back page in its
         cache.
     */
-    public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // only necessary for lab5
+    public void discardPage(PageId pid) {
+    	Frame frame = pinFrame(pid);
+    	if (frame == null)
+    		return;
+    	
+    	frame.latch.writeLock().lock();
+    	try {
+    		unpin(frame);
+    		if (frame.pinCount.get() == 0 && unmap(pid, frame)) {
+    			policy.pageRemoved(pid);
+    			freeFrames.add(frame);
+    		}
+    	} finally {
+    		frame.latch.writeLock().unlock();
+    	}
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
     	// DONE
+    	Frame frame = pinFrame(pid);
+    	if (frame == null)
+    		return;
     	try {
-    		Page page = pageNodes.get(pid).page;
-        	
-        	// Write the page to disk
-        	Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
-        	
-        	// Mark the page as not dirty
-        	page.markDirty(false, page.isDirty());
-    	} catch(IOException e) {
-    		e.printStackTrace();
-    	} 	
+    		flushFrame(frame);
+    	} finally {
+    		unpin(frame);
+    	}
+    }
+    
+    /**
+     * Writes the page in a frame to disk if it is dirty. Holds the frame's
+     * read latch, so the page cannot be evicted or replaced meanwhile.
+     */
+    private void flushFrame(Frame frame) throws IOException {
+    	frame.latch.readLock().lock();
+    	try {
+    		Page page = frame.page;
+    		if (page != null && page.isDirty() != null)
+    			writePage(page);
+    	} finally {
+    		frame.latch.readLock().unlock();
+    	}
+    }
+    
+    private void writePage(Page page) throws IOException {
+    	// Write the page to disk
+    	Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+    	
+    	// Mark the page as not dirty
+    	page.markDirty(false, page.isDirty());
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
     }
@@ -316,35 +738,58 @@ public class BufferPool {
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Pages that are pinned, or whose frame latch is held, are skipped.
+     *
+     * @return the frame that held the evicted page, now free and unmapped
      */
-    private synchronized  void evictPage() throws DbException {
+    private Frame evictPage() throws DbException {
         // DONE
-    	try {
+    	HashSet<PageId> skip = new HashSet<PageId>();
+    	while (true) {
+    		PageId victim = policy.chooseVictim(skip);
+    		if (victim == null)
+    			throw new DbException("All pages in the buffer pool are in use.");
+    		skip.add(victim);
     		
-    		if (oldestPageId != null) {
+    		Partition part = partitionFor(victim);
+    		Frame frame;
+    		part.lock.lock();
+    		try {
+    			frame = part.frames.get(victim);
+    		} finally {
+    			part.lock.unlock();
+    		}
+    		if (frame == null || frame.pinCount.get() > 0 || !frame.latch.writeLock().tryLock())
+    			continue;
+    		
+    		try {
+    			Page page = frame.page;
+    			if (page == null || !victim.equals(frame.pid))
+    				continue;
+    			if (page.isDirty() != null)
+    				writePage(page);
     			
-    			// Evict the least-recently-used page
-        		PageNode pn = pageNodes.get(oldestPageId);
-        		PageId tempId = oldestPageId;
-        		
-        		if (pn.prev != null) {
-        			PageNode prevNode = pageNodes.get(pn.prev);
-            		prevNode.next = null;	
-        		}
-        		
-        		// Update oldest pageId
-        		oldestPageId = pn.prev;
-        		
-        		if (oldestPageId == null)
-        			newestPageId = null;
-        		
-        		flushPage(tempId);
-        		pageNodes.remove(tempId);
+    			// A thread may have pinned the page while it was written out
+    			part.lock.lock();
+    			try {
+    				if (frame.pinCount.get() > 0 || part.frames.get(victim) != frame)
+    					continue;
+    				part.frames.remove(victim);
+    				frame.pid = null;
+    				frame.page = null;
+    			} finally {
+    				part.lock.unlock();
+    			}
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    			continue;
+    		} finally {
+    			frame.latch.writeLock().unlock();
     		}
     		
-    	} catch(IOException e) {
-    		e.printStackTrace();
-    	}	
+    		policy.pageRemoved(victim);
+    		return frame;
+    	}
     }
 
 }
@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -22,17 +23,22 @@ public class Catalog {
 	// List of tables with tableid maps to table metadata
 	private ConcurrentHashMap<Integer, Metadata> tables;
 	
+	// List of indexes with index id maps to index
+	private ConcurrentHashMap<Integer, BTreeFile> indexes;
+	
 	// Private class that holds table metadata
 	private class Metadata {
 		
 		public DbFile mFile;
 		public String mName;
 		public String mPkeyField;
+		public CopyOnWriteArrayList<BTreeFile> mIndexes;
 		
 		public Metadata(DbFile f, String n, String p) {
 			mFile = f;
 			mName = n;
 			mPkeyField = p;
+			mIndexes = new CopyOnWriteArrayList<BTreeFile>();
 		}
 	}
 
@@ -43,6 +49,7 @@ public class Catalog {
     public Catalog() {
         // DONE
     	tables = new ConcurrentHashMap<Integer, Metadata>();
+    	indexes = new ConcurrentHashMap<Integer, BTreeFile>();
     }
 
     /**
@@ -68,6 +75,8 @@ public class Catalog {
     		if (metadata.mName.equals(name)) {
     			// name conflict, replace the existing table with the new one
     			tables.remove(tableId);
+    			for (BTreeFile index : metadata.mIndexes)
+    				indexes.remove(index.getId());
     			break;
     		}
     	}
@@ -89,6 +98,49 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add a B+ tree index over a field of a table in the catalog. Its pages
+     * can then be read through the buffer pool, and queries over the table
+     * may scan it instead of the table.
+     * @param index the index to add; index.getTableId() is the indexed table
+     * @throws NoSuchElementException if the indexed table doesn't exist
+     */
+    public void addIndex(BTreeFile index) {
+    	Metadata metadata = tables.get(new Integer(index.getTableId()));
+    	if (metadata == null)
+    		throw new NoSuchElementException("Table with id: " + index.getTableId() + " does not exist.");
+    	
+    	BTreeFile old = indexes.put(new Integer(index.getId()), index);
+    	if (old != null)
+    		metadata.mIndexes.remove(old);
+    	metadata.mIndexes.add(index);
+    }
+
+    /**
+     * Returns the indexes over the specified table.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public List<BTreeFile> getIndexes(int tableid) throws NoSuchElementException {
+    	Metadata metadata = tables.get(new Integer(tableid));
+    	if (metadata == null)
+    		throw new NoSuchElementException("Table with id: " + tableid + " does not exist.");
+    	
+    	return Collections.unmodifiableList(metadata.mIndexes);
+    }
+
+    /**
+     * @return an index over the specified field of the specified table, or
+     *         null if there is none
+     */
+    public BTreeFile getIndex(int tableid, int field) {
+    	for (BTreeFile index : getIndexes(tableid)) {
+    		if (index.getKeyField() == field)
+    			return index;
+    	}
+    	return null;
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -119,23 +171,31 @@ public class Catalog {
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
         // DONE
     	Metadata metadata = tables.get(new Integer(tableid));
-    	if (metadata == null)
+    	if (metadata == null) {
+    		BTreeFile index = indexes.get(new Integer(tableid));
+    		if (index != null)
+    			return index.getTupleDesc();
     		throw new NoSuchElementException("Table with id: " + tableid + " does not exist.");
+    	}
     	
     	return metadata.mFile.getTupleDesc();
     }
 
     /**
      * Returns the DbFile that can be used to read the contents of the
-     * specified table.
+     * specified table or index.
      * @param tableid The id of the table, as specified by the DbFile.getId()
      *     function passed to addTable
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
         // DONE
         Metadata metadata = tables.get(new Integer(tableid));
-    	if (metadata == null)
+    	if (metadata == null) {
+    		BTreeFile index = indexes.get(new Integer(tableid));
+    		if (index != null)
+    			return index;
     		throw new NoSuchElementException("Table with id: " + tableid + " does not exist.");
+    	}
     	
     	return metadata.mFile;
     }
@@ -167,6 +227,7 @@ public class Catalog {
     public void clear() {
         // DONE
     	tables.clear();
+    	indexes.clear();
     }
     
     /**
@@ -180,7 +241,7 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type [pk] [index], field type, ...) [mmap] [pax]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -188,6 +249,7 @@ public class Catalog {
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                ArrayList<Integer> indexed = new ArrayList<Integer>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -199,11 +261,13 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int j = 2; j < els2.length; j++) {
+                        if (els2[j].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[j].trim().equals("index"))
+                            indexed.add(names.size() - 1);
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[j]);
                             System.exit(0);
                         }
                     }
@@ -211,13 +275,48 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                // optional storage modes after the field list: mmap to
+                // read pages from memory mappings, pax to store them
+                // column by column
+                String storage = line.substring(line.indexOf(")") + 1).trim().toLowerCase();
+                boolean memoryMapped = false;
+                boolean pax = false;
+                for (String mode : storage.split("\\s+")) {
+                    if (mode.equals("mmap"))
+                        memoryMapped = true;
+                    else if (mode.equals("pax"))
+                        pax = true;
+                    else if (!mode.equals("")) {
+                        System.out.println("Unknown storage mode " + mode);
+                        System.exit(0);
+                    }
+                }
+                File dataFile = new File(baseFolder+"/"+name + ".dat");
+                HeapFile tabHf = pax ? new PaxFile(dataFile, t, memoryMapped)
+                        : new HeapFile(dataFile, t, memoryMapped);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                // indexes live next to the table, and are built the first
+                // time the table is loaded with them, or again when the
+                // table has changed since they were written
+                for (int field : indexed) {
+                    File idxFile = new File(baseFolder+"/"+name + "." + namesAr[field] + ".idx");
+                    BTreeFile index = new BTreeFile(idxFile, field, tabHf);
+                    addIndex(index);
+                    if (index.isStale())
+                        index.build();
+                    System.out.println("Added index : " + idxFile.getName());
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
+        } catch (DbException e) {
+            e.printStackTrace();
+            System.exit(0);
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+            System.exit(0);
         } catch (IndexOutOfBoundsException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
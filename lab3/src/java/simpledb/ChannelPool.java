@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * ChannelPool keeps long-lived FileChannels to one file, so that page reads
+ * and writes do not open and close the file each time. Reads and writes are
+ * positional, so the channels have no shared seek pointer and several
+ * threads can use the pool at once. A channel is opened only when the pool
+ * is empty, and at most MAX_IDLE_CHANNELS are kept open while idle.
+ * <p>
+ * {@link HeapFile} and {@link BTreeFile} do their page I/O through a pool.
+ */
+class ChannelPool {
+
+    /** Maximum number of idle channels kept open per file. */
+    public static final int MAX_IDLE_CHANNELS = 8;
+
+    private final File file;
+    private final ConcurrentLinkedQueue<FileChannel> channels = new ConcurrentLinkedQueue<FileChannel>();
+
+    ChannelPool(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Takes a channel out of the pool, opening a new one if every pooled
+     * channel is in use. The file is created if it does not exist.
+     */
+    FileChannel acquire() throws IOException {
+        FileChannel channel;
+        while ((channel = channels.poll()) != null) {
+            if (channel.isOpen())
+                return channel;
+        }
+
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+        } catch (FileNotFoundException e) {
+            // Read-only data files can still be scanned
+            raf = new RandomAccessFile(file, "r");
+        }
+        return raf.getChannel();
+    }
+
+    /**
+     * Returns a channel to the pool. Channels beyond MAX_IDLE_CHANNELS are
+     * closed instead of being kept around, and channels that have been
+     * closed, for instance by an interrupt during a read, are dropped.
+     */
+    void release(FileChannel channel) {
+        if (!channel.isOpen())
+            return;
+        if (channels.size() < MAX_IDLE_CHANNELS) {
+            channels.add(channel);
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads exactly buf.remaining() bytes starting at position. Bytes past the
+     * end of the file are left as zeros.
+     */
+    void read(ByteBuffer buf, long position) throws IOException {
+        FileChannel channel = acquire();
+        try {
+            while (buf.hasRemaining()) {
+                int n = channel.read(buf, position);
+                if (n < 0)
+                    break;
+                position += n;
+            }
+        } finally {
+            release(channel);
+        }
+    }
+
+    /**
+     * Writes all of buf starting at position.
+     */
+    void write(ByteBuffer buf, long position) throws IOException {
+        FileChannel channel = acquire();
+        try {
+            while (buf.hasRemaining())
+                position += channel.write(buf, position);
+        } finally {
+            release(channel);
+        }
+    }
+
+    /**
+     * Closes every pooled channel. The pool reopens channels on demand, so
+     * it can still be used afterwards.
+     */
+    void close() throws IOException {
+        FileChannel channel;
+        while ((channel = channels.poll()) != null)
+            channel.close();
+    }
+}
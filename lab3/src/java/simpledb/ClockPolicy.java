@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * CLOCK replacement that resists scans. Pages sit in a ring swept by a
+ * clock hand. A page is cold until it is referenced a second time while
+ * cached, and hot after that. The hand evicts the first cold page it
+ * meets.
+ * <p>
+ * Hot pages are aged as the hand passes them, like in classic CLOCK. A hot
+ * page referenced since the hand last passed it loses its reference bit
+ * and stays hot. A hot page without the bit has not been used for a whole
+ * sweep, and is demoted to cold, so the next sweep can evict it.
+ * <p>
+ * A sequential scan references each page once, so scanned pages stay cold
+ * and replace each other. The hot working set is left alone as long as it
+ * is used, and gives way to a new one once it no longer is.
+ */
+public class ClockPolicy implements EvictionPolicy {
+
+    private static class Slot {
+        PageId pid;
+        int references;
+        boolean refBit;
+
+        boolean isHot() {
+            return references >= 2;
+        }
+    }
+
+    private final ArrayList<Slot> ring = new ArrayList<Slot>();
+    private final HashMap<PageId, Slot> slots = new HashMap<PageId, Slot>();
+    private final LinkedList<Slot> freeSlots = new LinkedList<Slot>();
+    private int hand = 0;
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (slots.containsKey(pid))
+            return;
+        Slot slot = freeSlots.isEmpty() ? null : freeSlots.removeFirst();
+        if (slot == null) {
+            slot = new Slot();
+            ring.add(slot);
+        }
+        slot.pid = pid;
+        slot.references = 0;
+        slot.refBit = false;
+        slots.put(pid, slot);
+    }
+
+    public synchronized void pageReferenced(PageId pid) {
+        Slot slot = slots.get(pid);
+        if (slot == null)
+            return;
+        if (slot.references < 2)
+            slot.references++;
+        slot.refBit = slot.isHot();
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Slot slot = slots.remove(pid);
+        if (slot != null) {
+            slot.pid = null;
+            freeSlots.add(slot);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Set<PageId> skip) {
+        if (slots.size() <= skip.size() && skip.containsAll(slots.keySet()))
+            return null;
+
+        // Within two sweeps every page that is not skipped is cold
+        while (true) {
+            Slot slot = advance();
+            if (slot.pid == null || skip.contains(slot.pid))
+                continue;
+            if (!slot.isHot())
+                return slot.pid;
+            if (slot.refBit)
+                slot.refBit = false;
+            else
+                slot.references = 1;
+        }
+    }
+
+    /** Returns the slot under the hand and moves the hand past it. */
+    private Slot advance() {
+        Slot slot = ring.get(hand);
+        hand = (hand + 1) % ring.size();
+        return slot;
+    }
+}
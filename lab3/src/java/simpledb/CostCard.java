@@ -11,4 +11,8 @@ public class CostCard {
     public int card;
     /** The optimal subplan */
     public Vector<LogicalJoinNode> plan;
+    /** The algorithm chosen for the last join of the plan */
+    public JoinAlgorithm algorithm;
+    /** The quantified name of the field the output of the plan is sorted on, or null if it is unordered */
+    public String sortOrder;
 }
@@ -0,0 +1,51 @@
+package simpledb;
+
+import java.util.Set;
+
+/**
+ * An EvictionPolicy decides which page the BufferPool evicts when it needs a
+ * free slot. The BufferPool reports every page that enters or leaves the pool
+ * and every request for a cached page; the policy keeps whatever bookkeeping
+ * it needs to pick a victim.
+ * <p>
+ * A page that is read ahead of a scan is loaded without being referenced, so
+ * it only counts as used once a transaction asks for it.
+ * <p>
+ * Implementations must be thread safe.
+ *
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called when a page is brought into the buffer pool.
+     *
+     * @param pid the id of the page that was loaded
+     */
+    public void pageLoaded(PageId pid);
+
+    /**
+     * Called every time a transaction requests a page that is in the buffer
+     * pool, including right after the page was loaded for that request.
+     *
+     * @param pid the id of the page that was requested
+     */
+    public void pageReferenced(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool.
+     *
+     * @param pid the id of the page that was removed
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Picks the page to evict next. The page stays tracked by the policy
+     * until the BufferPool calls {@link #pageRemoved}.
+     *
+     * @param skip pages that cannot be evicted right now, e.g. because they
+     *             are pinned; the policy must not return any of them
+     * @return the id of the page to evict, or null if every page is skipped
+     */
+    public PageId chooseVictim(Set<PageId> skip);
+}
@@ -4,6 +4,10 @@ import java.util.*;
 
 /**
  * Filter is an operator that implements a relational select.
+ * <p>
+ * When it is opened, a Filter over a SeqScan, directly or through other
+ * Filters, passes its predicate to the scan, which uses it to skip the pages
+ * that cannot hold a matching tuple.
  */
 public class Filter extends Operator {
 
@@ -41,6 +45,11 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // DONE
+    	DbIterator scan = child;
+    	while (scan instanceof Filter)
+    		scan = ((Filter) scan).child;
+    	if (scan instanceof SeqScan)
+    		((SeqScan) scan).addPageFilter(p);
     	child.open();
     	super.open();
     }
@@ -78,6 +87,26 @@ public class Filter extends Operator {
     	return null;
     }
 
+    /**
+     * Operator.fetchNextBatch implementation. Applies the predicate to whole
+     * batches from the child operator.
+     * 
+     * @return The next non-empty batch of tuples that pass the filter, or
+     *         null if there are no more tuples
+     * @see Predicate#filter(TupleBatch)
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException,
+            DbException {
+    	TupleBatch batch;
+    	while ((batch = BatchAdapter.nextBatch(child)) != null) {
+    		batch = p.filter(batch);
+    		if (!batch.isEmpty())
+    			return batch;
+    	}
+    	
+    	return null;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         // DONE
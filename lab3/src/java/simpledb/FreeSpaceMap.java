@@ -0,0 +1,307 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * FreeSpaceMap records how many free tuple slots each page of a HeapFile
+ * has, so that inserts can go straight to a page with room instead of
+ * reading every page of the file.
+ * <p>
+ * The map is kept in a side file next to the heap file, named after it with
+ * a ".fsm" suffix. The side file starts with a header holding a magic
+ * number, the number of pages and the length of the heap file it describes,
+ * and the version of the heap file, followed by one byte per page with the
+ * number of free slots on that page (saturated at 255). The entry for a page
+ * is written whenever the page is written, so the side file always describes
+ * the pages on disk; changes to pages still in the buffer pool are only
+ * tracked in memory.
+ * <p>
+ * The side file is read the first time the map is needed. If it is missing
+ * or does not match the heap file, the map is rebuilt by reading every page
+ * of the file once.
+ * <p>
+ * The version changes every time a page is written or appended through the
+ * map, and is a new random number when the map is rebuilt, since the heap
+ * file was then changed behind its back. Anything derived from the heap
+ * file, such as a {@link BTreeFile}, can record the version it matches and
+ * compare it later.
+ */
+public class FreeSpaceMap {
+
+    /** Suffix appended to the heap file name to get the side file name. */
+    public static final String SUFFIX = ".fsm";
+
+    private static final int MAGIC = 0x46534d32;
+    private static final int HEADER_SIZE = 24;
+    private static final int MAX_COUNT = 255;
+
+    private final HeapFile hf;
+    private final File file;
+
+    private boolean loaded = false;
+    // Set when a page is written while the map is not loaded, so that the
+    // side file is not trusted when it is
+    private boolean missedWrite = false;
+    private long version = 0;
+    private int numPages = 0;
+    private byte[] counts = new byte[0];
+    // Pages with at least one free slot
+    private final BitSet hasSpace = new BitSet();
+    // Null until the side file is first written, or if it cannot be written
+    private RandomAccessFile raf = null;
+    private boolean writable = true;
+
+    /**
+     * Creates the free-space map of a heap file. Nothing is read from disk
+     * until the map is first used.
+     */
+    public FreeSpaceMap(HeapFile hf) {
+        this.hf = hf;
+        this.file = new File(hf.getFile().getPath() + SUFFIX);
+    }
+
+    /**
+     * @return the side file storing this map.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the first page at or after page from that has at least one
+     * free slot according to the map.
+     *
+     * @return the page number, or -1 if no such page is known.
+     */
+    public synchronized int findPage(int from) throws IOException {
+        ensureLoaded();
+        int pgNo = hasSpace.nextSetBit(from);
+        return pgNo < numPages ? pgNo : -1;
+    }
+
+    /**
+     * @return the number of free slots recorded for a page (saturated at
+     *         255), or 0 if the page is not in the map.
+     */
+    public synchronized int getFreeSlots(int pgNo) throws IOException {
+        ensureLoaded();
+        if (pgNo < 0 || pgNo >= numPages)
+            return 0;
+        return counts[pgNo] & 0xff;
+    }
+
+    /**
+     * @return the version of the heap file: it changes whenever the heap
+     *         file is written, and whenever it is found to have been
+     *         changed without the map.
+     */
+    public synchronized long getVersion() throws IOException {
+        ensureLoaded();
+        return version;
+    }
+
+    /**
+     * Records the number of free slots on a page that has been changed in
+     * the buffer pool but not yet written.
+     */
+    public synchronized void update(int pgNo, int freeSlots) throws IOException {
+        ensureLoaded();
+        set(pgNo, freeSlots);
+    }
+
+    /**
+     * Records the number of free slots on a page that has just been written
+     * to the heap file, and writes the entry to the side file.
+     */
+    public synchronized void pageWritten(int pgNo, int freeSlots) {
+        if (!loaded) {
+            // The side file no longer matches the heap file; it is rebuilt
+            // when the map is next loaded
+            missedWrite = true;
+            return;
+        }
+        set(pgNo, freeSlots);
+        version++;
+        if (!openSideFile())
+            return;
+        try {
+            writeHeader();
+            raf.seek(HEADER_SIZE + pgNo);
+            raf.writeByte(counts[pgNo]);
+        } catch (IOException e) {
+            e.printStackTrace();
+            writable = false;
+        }
+    }
+
+    /**
+     * Records pages [from, to) that were appended directly to the heap file,
+     * all full except for the last one, and writes their entries to the
+     * side file.
+     *
+     * @param lastPageFree the number of free slots on the last page
+     */
+    public synchronized void pagesAppended(int from, int to, int lastPageFree) {
+        if (!loaded || from != numPages || to <= from) {
+            missedWrite = true;
+            return;
+        }
+        for (int i = from; i < to - 1; i++)
+            set(i, 0);
+        set(to - 1, lastPageFree);
+        version++;
+        if (!openSideFile())
+            return;
+        try {
+            writeHeader();
+            raf.seek(HEADER_SIZE + from);
+            raf.write(counts, from, to - from);
+        } catch (IOException e) {
+            e.printStackTrace();
+            writable = false;
+        }
+    }
+
+    /**
+     * Closes the side file. The map reopens it when it is next written.
+     */
+    public synchronized void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+    }
+
+    private void set(int pgNo, int freeSlots) {
+        if (pgNo >= counts.length) {
+            byte[] grown = new byte[Math.max(pgNo + 1, counts.length * 2)];
+            System.arraycopy(counts, 0, grown, 0, counts.length);
+            counts = grown;
+        }
+        numPages = Math.max(numPages, pgNo + 1);
+        counts[pgNo] = (byte) Math.min(freeSlots, MAX_COUNT);
+        hasSpace.set(pgNo, freeSlots > 0);
+    }
+
+    /**
+     * Loads the map from the side file, or rebuilds it from the heap file if
+     * the side file is missing or stale. Pages appended to the heap file
+     * without going through the map are scanned and added.
+     */
+    private void ensureLoaded() throws IOException {
+        int filePages = hf.numPages();
+        if (loaded && !missedWrite && filePages >= numPages) {
+            if (filePages > numPages) {
+                scan(numPages, filePages);
+                version++;
+            }
+            return;
+        }
+
+        loaded = false;
+        numPages = 0;
+        hasSpace.clear();
+        if (missedWrite || !readSideFile()) {
+            scan(0, filePages);
+            version = new Random().nextLong();
+            writeSideFile();
+        }
+        missedWrite = false;
+        loaded = true;
+    }
+
+    /**
+     * Reads the side file if it matches the heap file.
+     *
+     * @return true if the map was read.
+     */
+    private boolean readSideFile() {
+        File dataFile = hf.getFile();
+        if (!file.exists() || file.lastModified() < dataFile.lastModified())
+            return false;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC)
+                return false;
+            int pages = in.readInt();
+            long length = in.readLong();
+            long stored = in.readLong();
+            if (length != dataFile.length() || pages != hf.numPages())
+                return false;
+
+            byte[] free = new byte[pages];
+            in.readFully(free);
+            for (int i = 0; i < pages; i++)
+                set(i, free[i] & 0xff);
+            numPages = pages;
+            version = stored;
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads pages [from, to) of the heap file directly, bypassing the buffer
+     * pool, and records their free slots.
+     */
+    private void scan(int from, int to) {
+        int tableId = hf.getId();
+        for (int i = from; i < to; i++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(tableId, i));
+            set(i, page.getNumEmptySlots());
+        }
+    }
+
+    private void writeSideFile() {
+        if (!openSideFile())
+            return;
+        try {
+            raf.setLength(0);
+            writeHeader();
+            raf.seek(HEADER_SIZE);
+            raf.write(counts, 0, numPages);
+        } catch (IOException e) {
+            e.printStackTrace();
+            writable = false;
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(numPages);
+        raf.writeLong(hf.getFile().length());
+        raf.writeLong(version);
+    }
+
+    /**
+     * @return true if the side file is open for writing.
+     */
+    private boolean openSideFile() {
+        if (raf != null)
+            return true;
+        if (!writable)
+            return false;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            return true;
+        } catch (FileNotFoundException e) {
+            // Read-only directory: keep the map in memory only
+            writable = false;
+            return false;
+        }
+    }
+}
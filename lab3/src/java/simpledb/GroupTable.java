@@ -0,0 +1,283 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * GroupTable numbers the distinct group-by keys seen by an aggregator
+ * 0, 1, 2, ... in order of first appearance, so that the aggregator can keep
+ * its per-group state in primitive arrays indexed by group number. A key is
+ * the values of any number of group-by fields.
+ * <p>
+ * Keys of INT_TYPE fields only are looked up in an open-addressing hash
+ * table of primitive ints with linear probing, which looks up a row of a
+ * {@link TupleBatch} without creating a Field for it. Other keys are kept in
+ * a HashMap. A table without group-by fields has a single group, 0.
+ */
+class GroupTable {
+
+    private static final int INITIAL_SLOTS = 64;
+
+    private final Type[] types;
+    private final int width;
+    private int size = 0;
+
+    // int keys: slots[i] is the group number in slot i, or -1 if the slot is
+    // empty; keys[g * width + j] is field j of the key of group g
+    private final boolean intKeys;
+    private int[] slots;
+    private int[] keys;
+    private final int[] probe;	// the key being looked up
+
+    // other keys: a Field, or a List of Fields for composite keys
+    private HashMap<Object, Integer> groups;
+    private ArrayList<Field[]> fields;
+
+    /**
+     * @param type
+     *            the type of the group-by values, or null if there is no
+     *            grouping
+     */
+    GroupTable(Type type) {
+        this(type == null ? new Type[0] : new Type[] { type });
+    }
+
+    /**
+     * @param types
+     *            the types of the group-by fields, most significant first;
+     *            empty if there is no grouping
+     */
+    GroupTable(Type[] types) {
+        this.types = types.clone();
+        this.width = types.length;
+        boolean ints = width > 0;
+        for (Type t : types)
+            ints &= t == Type.INT_TYPE;
+        this.intKeys = ints;
+        this.probe = new int[width];
+        if (intKeys) {
+            slots = new int[INITIAL_SLOTS];
+            Arrays.fill(slots, -1);
+            keys = new int[INITIAL_SLOTS / 2 * width];
+        } else if (width > 0) {
+            groups = new HashMap<Object, Integer>();
+            fields = new ArrayList<Field[]>();
+        }
+    }
+
+    /**
+     * @return the types of the group-by fields.
+     */
+    Type[] getTypes() {
+        return types.clone();
+    }
+
+    /**
+     * @return the number of groups.
+     */
+    int size() {
+        return width == 0 ? 1 : size;
+    }
+
+    /**
+     * @return the number of the group of a single group-by value, adding a
+     *         new group if the value has not been seen before. Always 0 if
+     *         there is no grouping.
+     */
+    int groupOf(Field value) {
+        if (width == 0)
+            return 0;
+        return groupOf(new Field[] { value });
+    }
+
+    /**
+     * @return the number of the group of a key, adding a new group if the
+     *         key has not been seen before.
+     */
+    int groupOf(Field[] key) {
+        if (width == 0)
+            return 0;
+        if (intKeys) {
+            for (int j = 0; j < width; j++)
+                probe[j] = ((IntField) key[j]).getValue();
+            return groupOfProbe();
+        }
+        Object k = hashKey(key);
+        Integer g = groups.get(k);
+        if (g == null) {
+            g = size++;
+            groups.put(k, g);
+            fields.add(key.clone());
+        }
+        return g;
+    }
+
+    /**
+     * @return the number of the group of a single INT_TYPE value, adding a
+     *         new group if the value has not been seen before.
+     */
+    int groupOf(int value) {
+        probe[0] = value;
+        return groupOfProbe();
+    }
+
+    /**
+     * @return the number of the group of a single group-by field of a row
+     *         of a batch, adding a new group if its value has not been seen
+     *         before.
+     */
+    int groupOf(TupleBatch batch, int field, int row) {
+        if (width == 0)
+            return 0;
+        if (intKeys)
+            return groupOf(batch.getInt(field, row));
+        return groupOf(batch.getField(field, row));
+    }
+
+    /**
+     * @return the number of the group of the group-by fields of a row of a
+     *         batch, adding a new group if its key has not been seen before.
+     */
+    int groupOf(TupleBatch batch, int[] fields, int row) {
+        if (width == 0)
+            return 0;
+        if (intKeys) {
+            for (int j = 0; j < width; j++)
+                probe[j] = batch.getInt(fields[j], row);
+            return groupOfProbe();
+        }
+        return groupOf(keyOf(batch, fields, row));
+    }
+
+    /**
+     * @return the number of the group of a single group-by field of a row
+     *         of a batch, or -1 if its value has not been seen before.
+     */
+    int find(TupleBatch batch, int field, int row) {
+        if (width == 0)
+            return 0;
+        if (intKeys) {
+            probe[0] = batch.getInt(field, row);
+            return slots[slotOfProbe()];
+        }
+        Integer g = groups.get(batch.getField(field, row));
+        return g == null ? -1 : g;
+    }
+
+    /**
+     * @return the number of the group of the group-by fields of a row of a
+     *         batch, or -1 if its key has not been seen before.
+     */
+    int find(TupleBatch batch, int[] fields, int row) {
+        if (width == 0)
+            return 0;
+        if (intKeys) {
+            for (int j = 0; j < width; j++)
+                probe[j] = batch.getInt(fields[j], row);
+            return slots[slotOfProbe()];
+        }
+        Integer g = groups.get(hashKey(keyOf(batch, fields, row)));
+        return g == null ? -1 : g;
+    }
+
+    /**
+     * @return the number of the group in this table of group g of another
+     *         table of the same types, adding a new group if this table has
+     *         not seen its key before.
+     */
+    int groupOf(GroupTable other, int g) {
+        if (width == 0)
+            return 0;
+        if (intKeys) {
+            System.arraycopy(other.keys, g * width, probe, 0, width);
+            return groupOfProbe();
+        }
+        return groupOf(other.fields.get(g));
+    }
+
+    /**
+     * @return the group-by value of group g, or null if there is no grouping.
+     */
+    Field value(int g) {
+        return width == 0 ? null : value(g, 0);
+    }
+
+    /**
+     * @return field i of the key of group g.
+     */
+    Field value(int g, int i) {
+        if (intKeys)
+            return new IntField(keys[g * width + i]);
+        return fields.get(g)[i];
+    }
+
+    private static Field[] keyOf(TupleBatch batch, int[] fields, int row) {
+        Field[] key = new Field[fields.length];
+        for (int j = 0; j < fields.length; j++)
+            key[j] = batch.getField(fields[j], row);
+        return key;
+    }
+
+    // a single field is its own key; composite keys compare as lists
+    private static Object hashKey(Field[] key) {
+        return key.length == 1 ? key[0] : Arrays.asList(key);
+    }
+
+    // the group of the key in probe, added if it is new
+    private int groupOfProbe() {
+        int i = slotOfProbe();
+        if (slots[i] >= 0)
+            return slots[i];
+
+        // not found: i is the free slot where it belongs
+        if ((size + 1) * width > keys.length)
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        System.arraycopy(probe, 0, keys, size * width, width);
+        slots[i] = size;
+        if (++size * 2 > slots.length)
+            rehash();
+        return size - 1;
+    }
+
+    // the slot holding the key in probe, or the free slot where it belongs
+    private int slotOfProbe() {
+        int mask = slots.length - 1;
+        int i = hash(probe, 0) & mask;
+        while (slots[i] >= 0 && !probeEquals(slots[i]))
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private boolean probeEquals(int g) {
+        int base = g * width;
+        for (int j = 0; j < width; j++) {
+            if (keys[base + j] != probe[j])
+                return false;
+        }
+        return true;
+    }
+
+    private void rehash() {
+        int[] newSlots = new int[slots.length * 2];
+        Arrays.fill(newSlots, -1);
+        int mask = newSlots.length - 1;
+        for (int g = 0; g < size; g++) {
+            int i = hash(keys, g * width) & mask;
+            while (newSlots[i] >= 0)
+                i = (i + 1) & mask;
+            newSlots[i] = g;
+        }
+        slots = newSlots;
+    }
+
+    /** Spreads the bits of consecutive keys over the whole table. */
+    private int hash(int[] key, int offset) {
+        int h = 0;
+        for (int j = 0; j < width; j++) {
+            h = (h + key[offset + j]) * 0x9E3779B9;
+            h ^= h >>> 16;
+        }
+        return h;
+    }
+}
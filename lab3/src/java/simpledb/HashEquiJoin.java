@@ -77,6 +77,7 @@ public class HashEquiJoin extends Operator {
         child1.open();
         child2.open();
         loadMap();
+        super.open();
     }
 
     public void close() {
@@ -87,11 +88,15 @@ public class HashEquiJoin extends Operator {
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        this.probeBatch=null;
+        this.matches=null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        this.probeBatch=null;
+        this.matches=null;
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -160,6 +165,60 @@ public class HashEquiJoin extends Operator {
         return null;
     }
 
+    // batch state: the current batch of child2 and the build tuples that
+    // match its current row
+    transient private TupleBatch probeBatch = null;
+    transient private int probeRow;
+    transient private ArrayList<Tuple> matches = null;
+    transient private int matchIdx;
+
+    /**
+     * Probes the map with child2 a batch at a time.
+     * 
+     * @return The next batch of matching tuples, or null if there are none.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException,
+            DbException {
+        TupleBatch out = new TupleBatch(comboTD);
+        int field2 = pred.getField2();
+
+        while (!out.isFull()) {
+            if (probeBatch == null) {
+                probeBatch = BatchAdapter.nextBatch(child2);
+                probeRow = 0;
+                matches = null;
+                if (probeBatch == null) {
+                    // child2 is done: advance child1
+                    child2.rewind();
+                    if (!loadMap())
+                        break;
+                    continue;
+                }
+            }
+
+            while (probeRow < probeBatch.size()) {
+                if (matches == null) {
+                    matches = map.get(probeBatch.getField(field2, probeRow));
+                    matchIdx = 0;
+                    if (matches == null) {
+                        probeRow++;
+                        continue;
+                    }
+                }
+                while (matchIdx < matches.size()) {
+                    if (out.isFull())
+                        return out;
+                    out.addJoinedRow(matches.get(matchIdx++), probeBatch, probeRow);
+                }
+                matches = null;
+                probeRow++;
+            }
+            probeBatch = null;
+        }
+
+        return out.isEmpty() ? null : out;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[]{this.child1, this.child2};
@@ -1,6 +1,10 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -18,6 +22,32 @@ public class HeapFile implements DbFile {
 	// ME
 	private File file;
 	private TupleDesc tupleDesc;
+	
+	/** Maximum number of idle channels kept open per HeapFile. */
+	public static final int MAX_IDLE_CHANNELS = ChannelPool.MAX_IDLE_CHANNELS;
+	
+	// Long-lived channels to the backing file
+	private final ChannelPool channels;
+	
+	/** Size of the read and write buffers used by bulkLoad. */
+	private static final int BULK_LOAD_BUFFER = 1 << 20;
+	
+	/** Largest number of pages mapped by a single MappedByteBuffer segment. */
+	public static final int MAPPED_SEGMENT_PAGES = 1 << 16;
+	
+	// Memory-mapped read mode. Pages are served as slices of read-only
+	// mappings; the segment array is replaced, never modified, when the file
+	// grows, so readers can use whatever snapshot they saw without locking.
+	private final boolean memoryMapped;
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	private volatile int mappedPages = 0;
+	private final Object mapLock = new Object();
+	
+	// Free slots per page, so inserts do not read every page
+	private final FreeSpaceMap freeSpace;
+	
+	// Integer field bounds per page, so filtered scans can skip pages
+	private final ZoneMap zoneMap;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -27,9 +57,35 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param memoryMapped
+     *            if true, pages are read from read-only memory mappings of
+     *            the file instead of being copied out with a channel read.
+     *            Intended for large tables that are mostly scanned.
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         // DONE
     	file = f;
     	tupleDesc = td;
+    	this.channels = new ChannelPool(f);
+    	this.memoryMapped = memoryMapped;
+    	this.freeSpace = new FreeSpaceMap(this);
+    	this.zoneMap = new ZoneMap(this);
+    }
+
+    /**
+     * @return true if this file serves pages from memory mappings
+     */
+    public boolean isMemoryMapped() {
+    	return memoryMapped;
     }
 
     /**
@@ -42,6 +98,20 @@ public class HeapFile implements DbFile {
     	return file;
     }
 
+    /**
+     * @return the free-space map of this file
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+    	return freeSpace;
+    }
+
+    /**
+     * @return the zone map of this file
+     */
+    public ZoneMap getZoneMap() {
+    	return zoneMap;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere ensure that each
@@ -66,25 +136,134 @@ public class HeapFile implements DbFile {
     	return tupleDesc;
     }
 
+    /**
+     * Closes every pooled channel. The pool reopens channels on demand, so
+     * the HeapFile can still be used afterwards.
+     */
+    public void close() throws IOException {
+    	channels.close();
+    	freeSpace.close();
+    	zoneMap.close();
+    	synchronized (mapLock) {
+    		// Existing slices stay valid; the mappings are released once
+    		// they are no longer referenced
+    		segments = new MappedByteBuffer[0];
+    		mappedPages = 0;
+    	}
+    }
+
+    /**
+     * Deletes the file, and the free-space map and zone map kept next to
+     * it, when the virtual machine exits. For tables over temporary files.
+     *
+     * @see File#deleteOnExit()
+     */
+    public void deleteOnExit() {
+    	file.deleteOnExit();
+    	freeSpace.getFile().deleteOnExit();
+    	zoneMap.getFile().deleteOnExit();
+    }
+
+    /**
+     * Maps any whole pages that have been added to the file since the last
+     * call. Only the last, partially filled segment is ever remapped; full
+     * segments are reused as they are.
+     */
+    private void refreshMapping() throws IOException {
+    	synchronized (mapLock) {
+    		int numPages = numPages();
+    		if (numPages <= mappedPages)
+    			return;
+    		
+    		long segmentBytes = (long)MAPPED_SEGMENT_PAGES * BufferPool.getPageSize();
+    		int numSegments = (numPages + MAPPED_SEGMENT_PAGES - 1) / MAPPED_SEGMENT_PAGES;
+    		MappedByteBuffer[] newSegments = new MappedByteBuffer[numSegments];
+    		
+    		FileChannel channel = channels.acquire();
+    		try {
+    			for (int i = 0; i < numSegments; i++) {
+    				long start = i * segmentBytes;
+    				long size = Math.min(segmentBytes, (long)numPages * BufferPool.getPageSize() - start);
+    				if (i < segments.length && segments[i].capacity() == size)
+    					newSegments[i] = segments[i];
+    				else
+    					newSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    			}
+    		} finally {
+    			channels.release(channel);
+    		}
+    		
+    		segments = newSegments;
+    		mappedPages = numPages;
+    	}
+    }
+    
+    /**
+     * Returns a slice of the mapping that holds the given page, or null if the
+     * page lies past the end of the file.
+     */
+    private ByteBuffer mappedPage(int pageNumber) throws IOException {
+    	if (pageNumber >= mappedPages)
+    		refreshMapping();
+    	if (pageNumber >= mappedPages)
+    		return null;
+    	
+    	MappedByteBuffer[] snapshot = segments;
+    	int pageSize = BufferPool.getPageSize();
+    	ByteBuffer slice = snapshot[pageNumber / MAPPED_SEGMENT_PAGES].duplicate();
+    	int offset = (pageNumber % MAPPED_SEGMENT_PAGES) * pageSize;
+    	slice.position(offset);
+    	slice.limit(offset + pageSize);
+    	return slice.slice();
+    }
+    
+    /**
+     * Creates a page of this file over data read from disk. Subclasses that
+     * lay out their pages differently, such as {@link PaxFile}, return
+     * their own kind of HeapPage.
+     */
+    HeapPage newPage(HeapPageId pid, byte[] data) throws IOException {
+    	return new HeapPage(pid, data);
+    }
+
+    /**
+     * Creates a page of this file over a slice of a memory mapping.
+     */
+    HeapPage newPage(HeapPageId pid, ByteBuffer data) throws IOException {
+    	return new HeapPage(pid, data);
+    }
+
+    /**
+     * Returns the stream that bulkLoad writes whole pages to, in the layout
+     * of a HeapPage. Subclasses with another layout convert the pages on
+     * their way to os.
+     */
+    OutputStream pageOutput(OutputStream os) {
+    	return os;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // DONE
-    	RandomAccessFile fOut = null;
-    	
-    	try {
-    		// Open the file
-    		fOut = new RandomAccessFile(file, "r");
-    	} catch(FileNotFoundException e) {
+    	if (!file.exists())
     		throw new IllegalArgumentException("File cannot be opened.");
+    	
+    	HeapPageId hpid = new HeapPageId(pid.getTableId(), pid.pageNumber());
+    	if (memoryMapped && pid.pageNumber() >= 0) {
+    		try {
+    			ByteBuffer slice = mappedPage(pid.pageNumber());
+    			if (slice != null)
+    				return newPage(hpid, slice);
+    		} catch (IOException e) {
+    			throw new IllegalArgumentException("Page does not exist in this file.");
+    		}
     	}
     	
+    	int pageSize = BufferPool.getPageSize();
+    	byte[] bytes = new byte[pageSize];
     	try {
-    		// Read the page
-    		fOut.seek(pid.pageNumber() * BufferPool.PAGE_SIZE);
-    		byte[] bytes = new byte[BufferPool.PAGE_SIZE];
-    		fOut.read(bytes, 0, BufferPool.PAGE_SIZE);
-    		fOut.close();
-    		return new HeapPage(new HeapPageId(pid.getTableId(), pid.pageNumber()), bytes);
+    		channels.read(ByteBuffer.wrap(bytes), (long)pid.pageNumber() * pageSize);
+    		return newPage(hpid, bytes);
     	} catch(IOException e) {
     		throw new IllegalArgumentException("Page does not exist in this file.");
     	}
@@ -93,19 +272,12 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // DONE
-    	RandomAccessFile fOut = null;
-    	
-    	try {
-    		// Open the file
-    		fOut = new RandomAccessFile(file, "rw");
-    	} catch(FileNotFoundException e) {
-    		throw new IllegalArgumentException("File cannot be opened.");
+    	long position = (long)page.getId().pageNumber() * BufferPool.getPageSize();
+    	channels.write(ByteBuffer.wrap(page.getPageData()), position);
+    	if (page instanceof HeapPage) {
+    		freeSpace.pageWritten(page.getId().pageNumber(), ((HeapPage)page).getNumEmptySlots());
+    		zoneMap.pageWritten((HeapPage)page);
     	}
-    	
-    	// Write page
-    	fOut.seek(page.getId().pageNumber());
-    	fOut.write(page.getPageData());
-    	fOut.close();
     }
 
     /**
@@ -115,9 +287,9 @@ public class HeapFile implements DbFile {
         // DONE
     	// IMPORTANT: Round down not up!!!
     	// The pages should fit in the file
-    	return (int) Math.floor((double)file.length() / (double)BufferPool.PAGE_SIZE);
+    	return (int) Math.floor((double)file.length() / (double)BufferPool.getPageSize());
     	
-    	//return (int) Math.ceil(file.length() / BufferPool.PAGE_SIZE);
+    	//return (int) Math.ceil(file.length() / BufferPool.getPageSize());
     }
 
     // see DbFile.java for javadocs
@@ -126,44 +298,94 @@ public class HeapFile implements DbFile {
         // DONE
     	ArrayList<Page> pages = new ArrayList<Page>();
     	
-    	// Check if we have an empty slot in any of our pages
-    	for (int i = 0; i < numPages(); i++) {
+    	// Go to the pages the free-space map says have an empty slot
+    	int i = freeSpace.findPage(0);
+    	while (i >= 0) {
     		
     		HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
         	
-    		// Check for an empty slot
+    		// Check for an empty slot; the map can be behind concurrent inserts
     		if (page.getNumEmptySlots() > 0) {
     			// We have an empty slot
     			page.insertTuple(t);
+    			freeSpace.update(i, page.getNumEmptySlots());
+    			zoneMap.tupleInserted(i, t);
     			pages.add(page);
     			return pages;
     		} 
     		else {
     			// We don't have an empty slot
+    			freeSpace.update(i, 0);
     			// Release the page (aka lock on the page)
     			// Maybe not necessary for lab2, however it is here for completion sake
-    			Database.getBufferPool().releasePage(tid, page.getId());
+    			// Only the pin taken here; tid may hold others on the page
+    			Database.getBufferPool().unpinPage(tid, page.getId());
     		}
+    		i = freeSpace.findPage(i + 1);
     	}
     	
     	// All pages are full, create a new page
     	HeapPageId pid = new HeapPageId(getId(), numPages());
-    	HeapPage newPage = new HeapPage(pid, HeapPage.createEmptyPageData());
+    	HeapPage newPage = newPage(pid, HeapPage.createEmptyPageData());
     	
-    	// Write new page data to file
-    	FileOutputStream of = new FileOutputStream(file, true); // append to file
-    	of.write(newPage.getPageData());
-    	of.close();
+    	// Write new page data to the end of the file
+    	writePage(newPage);
     	
     	// IMPORTANT: Don't forget to update the page with the required permissions
     	newPage = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
     	
     	// Insert tuple to new page
     	newPage.insertTuple(t);
+    	freeSpace.update(pid.pageNumber(), newPage.getNumEmptySlots());
+    	zoneMap.tupleInserted(pid.pageNumber(), t);
     	pages.add(newPage);
     	return pages;
     }
 
+    /**
+     * Appends the records of a delimited text file to this file as full
+     * pages, bypassing the buffer pool. The records are packed into pages
+     * by {@link HeapFileEncoder} and streamed to the end of the file in
+     * large sequential writes; existing pages are not touched, so the free
+     * slots on the current last page are left for later inserts. Must not
+     * be run concurrently with inserts into this file. Indexes over the
+     * table are not updated; rebuild them after the load.
+     * 
+     * @param in
+     *            the file to read records from, one per line
+     * @param fieldSeparator
+     *            the character separating the fields of a record
+     * @return the number of tuples loaded
+     */
+    public long bulkLoad(File in, char fieldSeparator) throws IOException {
+    	int pageSize = BufferPool.getPageSize();
+    	Type[] types = new Type[tupleDesc.numFields()];
+    	for (int i = 0; i < types.length; i++)
+    		types[i] = tupleDesc.getFieldType(i);
+    	
+    	int firstPage = numPages();
+    	long tuples;
+    	BufferedReader br = new BufferedReader(new FileReader(in), BULK_LOAD_BUFFER);
+    	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    	try {
+    		FileChannel channel = raf.getChannel();
+    		channel.position((long)firstPage * pageSize);
+    		OutputStream os = pageOutput(new BufferedOutputStream(Channels.newOutputStream(channel), BULK_LOAD_BUFFER));
+    		tuples = HeapFileEncoder.convert(br, os, pageSize, types.length, types, fieldSeparator, false);
+    	} finally {
+    		br.close();
+    		raf.close();
+    	}
+    	
+    	if (tuples > 0) {
+    		int slotsPerPage = (pageSize * 8) / (tupleDesc.getSize() * 8 + 1);
+    		int lastPage = firstPage + (int)((tuples - 1) / slotsPerPage);
+    		int lastPageFree = (int)((long)(lastPage - firstPage + 1) * slotsPerPage - tuples);
+    		freeSpace.pagesAppended(firstPage, lastPage + 1, lastPageFree);
+    	}
+    	return tuples;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -174,6 +396,12 @@ public class HeapFile implements DbFile {
     	
     	// Delete tuple from the page
     	page.deleteTuple(t);
+    	try {
+    		freeSpace.update(page.getId().pageNumber(), page.getNumEmptySlots());
+    	} catch (IOException e) {
+    		throw new DbException("Could not update free-space map: " + e.getMessage());
+    	}
+    	// The zone map keeps the page's wider bounds until the page is written
     	pages.add(page);
     	return pages;
     }
@@ -184,5 +412,13 @@ public class HeapFile implements DbFile {
     	return new HeapFileIterator(tid, this.getId(), this.numPages());
     }
 
+    /**
+     * @return an iterator over the tuples of pages firstPage to endPage - 1
+     *         of this file.
+     */
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int endPage) {
+    	return new HeapFileIterator(tid, this.getId(), firstPage, endPage);
+    }
+
 }
 
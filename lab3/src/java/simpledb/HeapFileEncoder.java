@@ -1,7 +1,11 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.concurrent.*;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -90,6 +94,42 @@ public class HeapFileEncoder {
   public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
+    BufferedReader br = new BufferedReader(new FileReader(inFile));
+    FileOutputStream os = new FileOutputStream(outFile);
+    convert(br, os, npagebytes, numFields, typeAr, fieldSeparator, true);
+    br.close();
+    os.close();
+  }
+
+   /** Convert the records read from br into pages of binary data and
+    * write them to os, in the same format as
+    * {@link #convert(File, File, int, int, Type[], char)}. Neither stream
+    * is closed.
+    *
+    * @param br The reader to read delimited records from
+    * @param os The stream to write pages to
+    * @param npagebytes The number of bytes per page in the output
+    * @param numFields the number of fields in each input line/output tuple
+    * @param emptyPage if true, write one empty page when there are no
+    *   records
+    * @return the number of records written
+    * @throws IOException if the input or output fails
+    */
+  public static long convert(Reader br, OutputStream os, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator,
+                 boolean emptyPage)
+      throws IOException {
+    return convert(br, os, npagebytes, numFields, typeAr, fieldSeparator,
+                   emptyPage, Long.MAX_VALUE);
+  }
+
+  /** As {@link #convert(Reader, OutputStream, int, int, Type[], char, boolean)},
+   * but stops after maxRecords records have been written.
+   */
+  private static long convert(Reader br, OutputStream os, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator,
+                 boolean emptyPage, long maxRecords)
+      throws IOException {
 
       int nrecbytes = 0;
       for (int i = 0; i < numFields ; i++) {
@@ -104,14 +144,12 @@ public class HeapFileEncoder {
         nheaderbytes++;  //ceiling
     int nheaderbits = nheaderbytes * 8;
 
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
     // our numbers probably won't be much larger than 1024 digits
     char buf[] = new char[1024];
 
     int curpos = 0;
     int recordcount = 0;
+    long totalrecords = 0;
     int npages = 0;
     int fieldNo = 0;
 
@@ -125,6 +163,10 @@ public class HeapFileEncoder {
     while (!done) {
         int c = br.read();
         
+        // The last line may not end with a newline
+        if (c == -1 && !first)
+            c = '\n';
+        
         // Ignore Windows/Notepad special line endings
         if (c == '\r')
             continue;
@@ -171,6 +213,9 @@ public class HeapFileEncoder {
             continue;
         }
         
+        if (c == '\n' && totalrecords + recordcount >= maxRecords)
+            done = true;
+        
         // if we wrote a full page of records, or if we're done altogether,
         // write out the header of the page.
         //
@@ -182,7 +227,7 @@ public class HeapFileEncoder {
         // page to disk.
         if (recordcount >= nrecords
             || done && recordcount > 0
-            || done && npages == 0) {
+            || done && npages == 0 && emptyPage) {
             int i = 0;
             byte headerbyte = 0;
             
@@ -216,11 +261,235 @@ public class HeapFileEncoder {
             pageBAOS = new ByteArrayOutputStream(npagebytes);
             pageStream = new DataOutputStream(pageBAOS);
             
+            totalrecords += recordcount;
             recordcount = 0;
             npages++;
         }
     }
-    br.close();
-    os.close();
+    os.flush();
+    return totalrecords;
+  }
+
+  /** Size of the buffers used to read and write chunks in parallel. */
+  private static final int CHUNK_BUFFER = 1 << 16;
+
+  /** Convert the specified input text file into a binary page file, like
+   * {@link #convert(File, File, int, int, Type[], char)}, using several
+   * threads. The output is byte-identical to that of the serial version.
+   * <p>
+   * The input is split into chunks at line boundaries and the records in
+   * each chunk are counted in parallel. Since every page holds a fixed
+   * number of records, the counts tell each chunk which pages it starts and
+   * ends, and at which offset in the output file those pages go. Each
+   * worker then skips the records at the start of its chunk that belong to
+   * the previous chunk's last page, reads on into the next chunk to fill
+   * its own last page, and writes its pages at their offset.
+   *
+   * @param threads the number of worker threads
+   * @throws IOException if the input/output file can't be opened or
+   *   written
+   */
+  public static void convertParallel(final File inFile, final File outFile,
+                 final int npagebytes, final int numFields, final Type[] typeAr,
+                 final char fieldSeparator, int threads)
+      throws IOException {
+    if (threads < 1)
+        throw new IllegalArgumentException("threads must be positive");
+
+    int nrecbytes = 0;
+    for (int i = 0; i < numFields ; i++)
+        nrecbytes += typeAr[i].getLen();
+    final int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);
+
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    try {
+        // split the input at line boundaries and count records per chunk
+        final long[] starts = splitAtLines(inFile, threads);
+        int nchunks = starts.length - 1;
+        ArrayList<Future<Long>> counts = new ArrayList<Future<Long>>();
+        for (int i = 0; i < nchunks; i++) {
+            final int chunk = i;
+            counts.add(workers.submit(new Callable<Long>() {
+                public Long call() throws IOException {
+                    return countRecords(inFile, starts[chunk], starts[chunk + 1]);
+                }
+            }));
+        }
+        final long[] firstRecord = new long[nchunks + 1];
+        for (int i = 0; i < nchunks; i++)
+            firstRecord[i + 1] = firstRecord[i] + get(counts.get(i));
+        final long totalRecords = firstRecord[nchunks];
+
+        RandomAccessFile out = new RandomAccessFile(outFile, "rw");
+        try {
+            if (totalRecords == 0) {
+                // like the serial version, an empty input gives one empty page
+                out.setLength(0);
+                out.write(new byte[npagebytes]);
+                return;
+            }
+            long npages = (totalRecords + nrecords - 1) / nrecords;
+            out.setLength(npages * npagebytes);
+        } finally {
+            out.close();
+        }
+
+        // pack the pages of each chunk
+        ArrayList<Future<Long>> writes = new ArrayList<Future<Long>>();
+        for (int i = 0; i < nchunks; i++) {
+            final long firstPage = (firstRecord[i] + nrecords - 1) / nrecords;
+            final long endPage = (firstRecord[i + 1] + nrecords - 1) / nrecords;
+            if (firstPage >= endPage)
+                continue;
+            final long skip = firstPage * nrecords - firstRecord[i];
+            final long records = Math.min(endPage * nrecords, totalRecords) - firstPage * nrecords;
+            final long start = starts[i];
+            writes.add(workers.submit(new Callable<Long>() {
+                public Long call() throws IOException {
+                    return convertChunk(inFile, start, skip, records, outFile,
+                            firstPage * npagebytes, npagebytes, numFields,
+                            typeAr, fieldSeparator);
+                }
+            }));
+        }
+        for (Future<Long> write : writes)
+            get(write);
+    } finally {
+        workers.shutdown();
+    }
+  }
+
+  /** Waits for a worker, rethrowing its failure as an IOException. */
+  private static long get(Future<Long> f) throws IOException {
+    try {
+        return f.get();
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while converting");
+    } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException)
+            throw (IOException) e.getCause();
+        throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /** Splits f into at most n chunks, each starting at the beginning of a
+   * line.
+   * @return the start offsets of the chunks, followed by the file length
+   */
+  private static long[] splitAtLines(File f, int n) throws IOException {
+    long length = f.length();
+    ArrayList<Long> starts = new ArrayList<Long>();
+    starts.add(0L);
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try {
+        byte[] buf = new byte[4096];
+        for (int i = 1; i < n; i++) {
+            long pos = Math.max(length * i / n, starts.get(starts.size() - 1));
+            // move forward to just after the next newline
+            long lineStart = -1;
+            while (lineStart < 0 && pos < length) {
+                raf.seek(pos);
+                int len = raf.read(buf);
+                if (len <= 0)
+                    break;
+                for (int j = 0; j < len; j++) {
+                    if (buf[j] == '\n') {
+                        lineStart = pos + j + 1;
+                        break;
+                    }
+                }
+                pos += len;
+            }
+            if (lineStart < 0 || lineStart >= length)
+                break;
+            if (lineStart > starts.get(starts.size() - 1))
+                starts.add(lineStart);
+        }
+    } finally {
+        raf.close();
+    }
+    long[] result = new long[starts.size() + 1];
+    for (int i = 0; i < starts.size(); i++)
+        result[i] = starts.get(i);
+    result[starts.size()] = length;
+    return result;
+  }
+
+  /** Counts the records between two line boundaries of f. As in convert,
+   * a record is a line with at least one character other than '\r'.
+   */
+  private static long countRecords(File f, long start, long end) throws IOException {
+    FileChannel channel = new FileInputStream(f).getChannel();
+    try {
+        ByteBuffer buf = ByteBuffer.allocate(CHUNK_BUFFER);
+        long records = 0;
+        boolean first = true;
+        long pos = start;
+        while (pos < end) {
+            buf.clear();
+            if (end - pos < buf.capacity())
+                buf.limit((int) (end - pos));
+            int len = channel.read(buf, pos);
+            if (len <= 0)
+                break;
+            for (int i = 0; i < len; i++) {
+                byte b = buf.get(i);
+                if (b == '\n') {
+                    if (!first)
+                        records++;
+                    first = true;
+                } else if (b != '\r') {
+                    first = false;
+                }
+            }
+            pos += len;
+        }
+        if (!first)
+            records++;
+        return records;
+    } finally {
+        channel.close();
+    }
+  }
+
+  /** Skips skip records from the line starting at offset start of inFile,
+   * then packs the next records records into pages written at offset
+   * outOffset of outFile.
+   * @return the number of records written
+   */
+  private static long convertChunk(File inFile, long start, long skip,
+                 long records, File outFile, long outOffset, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+    FileInputStream fis = new FileInputStream(inFile);
+    RandomAccessFile out = new RandomAccessFile(outFile, "rw");
+    try {
+        fis.getChannel().position(start);
+        Reader br = new BufferedReader(new InputStreamReader(fis), CHUNK_BUFFER);
+
+        boolean first = true;
+        while (skip > 0) {
+            int c = br.read();
+            if (c == -1)
+                throw new EOFException("input changed while converting");
+            if (c == '\n') {
+                if (!first)
+                    skip--;
+                first = true;
+            } else if (c != '\r') {
+                first = false;
+            }
+        }
+
+        FileChannel channel = out.getChannel();
+        channel.position(outOffset);
+        OutputStream os = new BufferedOutputStream(Channels.newOutputStream(channel), CHUNK_BUFFER);
+        return convert(br, os, npagebytes, numFields, typeAr, fieldSeparator,
+                       false, records);
+    } finally {
+        fis.close();
+        out.close();
+    }
   }
 }
@@ -1,25 +1,246 @@
 package simpledb;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * HeapFileIterator iterates through the tuples of each page in HeapFile
+ * HeapFileIterator iterates through the tuples of each page in HeapFile.
+ * <p>
+ * Once the iterator notices that pages are being read in order, it reads the
+ * next pages of the table into the BufferPool on a background thread, so the
+ * scan does not wait on disk for every page.
+ * <p>
+ * Predicates added with {@link #addPageFilter} let the scan skip, without
+ * reading them, the pages that the file's {@link ZoneMap} shows cannot hold
+ * a matching tuple.
+ * <p>
+ * With {@link #setProjection}, the iterator returns tuples holding only some
+ * fields of the table, and decodes only those fields.
  */
 public class HeapFileIterator implements DbFileIterator {
 	
+	/** Default number of pages read ahead of a sequential scan. */
+	public static final int DEFAULT_READ_AHEAD_PAGES = 8;
+	
+	/** Number of consecutive page reads after which a scan counts as sequential. */
+	public static final int SEQUENTIAL_THRESHOLD = 2;
+	
+	private static volatile int readAheadPages = DEFAULT_READ_AHEAD_PAGES;
+	
+	// Read-ahead statistics, shared by all iterators
+	private static final AtomicLong prefetchHits = new AtomicLong();
+	private static final AtomicLong prefetchWaste = new AtomicLong();
+	
+	// Pages skipped using zone maps, shared by all iterators
+	private static final AtomicLong pagesSkipped = new AtomicLong();
+	
+	private static final ExecutorService prefetcher = Executors.newFixedThreadPool(2, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "simpledb-read-ahead");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
 	private TransactionId tid;
-	private int numPages;
+	private int firstPage;
+	private int numPages;				// one past the last page scanned
 	private int tableId;
 	private int pgNo;					// 0 by default
-	private Iterator<Tuple>tupleItr;	// null by default
+	private HeapPage.SlotIterator tupleItr;	// null by default
+	private PageId pinned;				// page held pinned in the buffer pool, if any
 	private boolean open;				// false by default
 	
+	// Read-ahead state
+	private int lastPgNo = -1;
+	private int sequentialReads;
+	private int prefetchedUpTo = -1;	// highest page number handed to the prefetcher
+	private final HashMap<Integer, Future<?>> prefetches = new HashMap<Integer, Future<?>>();
+	
+	// Zone map pruning
+	private final ArrayList<Predicate> pageFilters = new ArrayList<Predicate>();
+	private ZoneMap zoneMap;			// looked up when first needed
+	
+	// Fields returned, or null for all of them
+	private int[] projection;
+	private TupleDesc projectedTd;
+	
+	/**
+	 * Sets the number of pages read ahead of sequential scans. 0 turns
+	 * read-ahead off.
+	 */
+	public static void setReadAheadPages(int pages) {
+		if (pages < 0)
+			throw new IllegalArgumentException("Read-ahead window cannot be negative.");
+		readAheadPages = pages;
+	}
+	
+	public static int getReadAheadPages() {
+		return readAheadPages;
+	}
+	
+	/** @return number of read-ahead pages that were later used by their scan */
+	public static long getPrefetchHits() {
+		return prefetchHits.get();
+	}
+	
+	/** @return number of read-ahead pages that were read but never used by their scan */
+	public static long getPrefetchWaste() {
+		return prefetchWaste.get();
+	}
+	
+	public static void resetPrefetchStats() {
+		prefetchHits.set(0);
+		prefetchWaste.set(0);
+	}
+	
+	/** @return number of pages that scans skipped using zone maps */
+	public static long getPagesSkipped() {
+		return pagesSkipped.get();
+	}
+	
+	public static void resetPagesSkipped() {
+		pagesSkipped.set(0);
+	}
+	
+	/**
+	 * Makes the scan skip the pages that cannot hold a tuple satisfying p
+	 * according to the zone map of the file. The tuples of the other pages
+	 * are returned unfiltered, so p must still be applied above the scan.
+	 */
+	public void addPageFilter(Predicate p) {
+		if (!pageFilters.contains(p))
+			pageFilters.add(p);
+	}
+	
+	/**
+	 * Makes the iterator return tuples holding only the given fields of the
+	 * tuples of the table, in that order, or every field if fields is null.
+	 * The page filters still refer to the fields of the table.
+	 */
+	public void setProjection(int[] fields) {
+		if (fields == null) {
+			projection = null;
+			projectedTd = null;
+			return;
+		}
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+		Type[] types = new Type[fields.length];
+		String[] names = new String[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			types[i] = td.getFieldType(fields[i]);
+			names[i] = td.getFieldName(fields[i]);
+		}
+		projection = fields.clone();
+		projectedTd = new TupleDesc(types, names);
+	}
+	
+	/**
+	 * @return false if the zone map shows that page pgNo cannot hold a tuple
+	 *         satisfying every page filter.
+	 */
+	private boolean mayMatch(int pgNo) throws DbException {
+		if (pageFilters.isEmpty())
+			return true;
+		if (zoneMap == null) {
+			DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+			if (!(file instanceof HeapFile))
+				return true;
+			zoneMap = ((HeapFile) file).getZoneMap();
+		}
+		try {
+			for (Predicate p : pageFilters) {
+				if (!zoneMap.mayMatch(pgNo, p))
+					return false;
+			}
+		} catch (IOException e) {
+			throw new DbException("Could not read zone map: " + e.getMessage());
+		}
+		return true;
+	}
+	
+	/**
+	 * Records an access to page pgNo and, once the access pattern looks
+	 * sequential, hands the pages after it to the read-ahead thread.
+	 */
+	private void readAhead(int pgNo) throws DbException {
+		Future<?> prefetch = prefetches.remove(pgNo);
+		if (prefetch != null && !prefetch.cancel(false)) {
+			// The page was read ahead; it is a hit if it is still cached
+			if (Database.getBufferPool().holdsPage(new HeapPageId(tableId, pgNo)))
+				prefetchHits.incrementAndGet();
+			else
+				prefetchWaste.incrementAndGet();
+		}
+		
+		sequentialReads = (pgNo == lastPgNo + 1) ? sequentialReads + 1 : 0;
+		lastPgNo = pgNo;
+		
+		// Never read ahead more than half of the buffer pool, or the pages
+		// read ahead would evict each other before they are used
+		int window = Math.min(readAheadPages, Database.getBufferPool().getNumPages() / 2);
+		if (sequentialReads < SEQUENTIAL_THRESHOLD || window == 0)
+			return;
+		
+		int last = Math.min(pgNo + window, numPages - 1);
+		for (int p = Math.max(pgNo + 1, prefetchedUpTo + 1); p <= last; p++) {
+			if (!mayMatch(p))
+				continue;
+			final PageId pid = new HeapPageId(tableId, p);
+			final TransactionId prefetchTid = tid;
+			prefetches.put(p, prefetcher.submit(new Runnable() {
+				public void run() {
+					try {
+						Database.getBufferPool().prefetchPage(prefetchTid, pid);
+					} catch (Exception e) {
+						// The scan will read the page itself
+					}
+				}
+			}));
+		}
+		prefetchedUpTo = Math.max(prefetchedUpTo, last);
+	}
+	
+	/**
+	 * Cancels read-ahead that has not started yet and counts pages that were
+	 * read ahead but never used.
+	 */
+	private void stopReadAhead() {
+		for (Future<?> prefetch : prefetches.values()) {
+			if (!prefetch.cancel(false))
+				prefetchWaste.incrementAndGet();
+		}
+		prefetches.clear();
+		lastPgNo = -1;
+		sequentialReads = 0;
+		prefetchedUpTo = -1;
+	}
+	
+	/** Releases the pin on the page the iterator was reading. */
+	private void unpinPage() {
+		if (pinned != null) {
+			Database.getBufferPool().unpinPage(tid, pinned);
+			pinned = null;
+		}
+	}
+	
 	// Find the first page with tuples starting with particular page number
     private boolean loadPage(int startPgNo) 
     		throws DbException, TransactionAbortedException {
     	
+    	unpinPage();
     	while (startPgNo < numPages) {
-    		HeapPage hp = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(tableId, startPgNo), Permissions.READ_WRITE);
-        	tupleItr = hp.iterator();
+    		if (!mayMatch(startPgNo)) {
+    			pagesSkipped.incrementAndGet();
+    			startPgNo++;
+    			continue;
+    		}
+    		readAhead(startPgNo);
+    		pinned = new HeapPageId(tableId, startPgNo);
+    		HeapPage hp = (HeapPage)Database.getBufferPool().getPage(tid, pinned, Permissions.READ_WRITE);
+        	tupleItr = projection == null ? hp.slotIterator()
+        			: hp.slotIterator(projection, projectedTd);
         	
         	if (tupleItr.hasNext()) {
         		// update current page number with the page number of the new page
@@ -28,6 +249,7 @@ public class HeapFileIterator implements DbFileIterator {
         	}
     		
         	// current page does not have any tuples, go to the next page
+    		unpinPage();
     		startPgNo++;
     	}
     	
@@ -37,9 +259,18 @@ public class HeapFileIterator implements DbFileIterator {
     }
     
 	public HeapFileIterator(TransactionId tid, int tableId, int numPages) {
+		this(tid, tableId, 0, numPages);
+	}
+	
+	/**
+	 * Creates an iterator over the tuples of pages firstPage to endPage - 1
+	 * of a table.
+	 */
+	public HeapFileIterator(TransactionId tid, int tableId, int firstPage, int endPage) {
 		this.tid = tid;
 		this.tableId = tableId;
-		this.numPages = numPages;
+		this.firstPage = firstPage;
+		this.numPages = endPage;
 	}
 	
     /**
@@ -51,8 +282,8 @@ public class HeapFileIterator implements DbFileIterator {
     	
     	open = true;
     	
-    	// find the first page with tuples starting at page 0
-    	this.loadPage(0);
+    	// find the first page with tuples starting at the first page
+    	this.loadPage(firstPage);
     }
 
     /** @return true if there are more tuples available. */
@@ -89,6 +320,16 @@ public class HeapFileIterator implements DbFileIterator {
     	return tupleItr.next();
     }
 
+    /**
+     * Decodes tuples into batch until it is full or the file is exhausted.
+     */
+    public void nextBatch(TupleBatch batch)
+        throws DbException, TransactionAbortedException {
+    	
+    	while (!batch.isFull() && this.hasNext())
+    		tupleItr.fillBatch(batch);
+    }
+
     /**
      * Resets the iterator to the start.
      * @throws DbException When rewind is unsupported.
@@ -104,5 +345,7 @@ public class HeapFileIterator implements DbFileIterator {
     public void close() {
     	open = false;
     	tupleItr = null;
+    	unpinPage();
+    	stopReadAhead();
     }
 }
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -15,11 +16,25 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
-
-    byte[] oldData;
+    final int headerSize;
+
+    // The page bytes are the only copy of the header and tuples. Tuples
+    // handed out by iterator() are views that decode their fields from the
+    // buffer, so once a buffer has been handed out (dataShared) it is never
+    // written again: the next insert or delete copies it first.
+    private ByteBuffer data;
+    private boolean dataShared;
+
+    // Offset of each field in slot 0 and the distance between slots
+    private final int[] fieldBase;
+    private final int[] fieldStride;
+
+    // Read-only before image. It may share the page buffer; oldDataMapped
+    // is set when it is a slice of a mapped file, which changes when this
+    // page is flushed, so it is copied out before the page is dirtied
+    private ByteBuffer oldData;
+    private boolean oldDataMapped;
     private final Byte oldDataLock=new Byte((byte)0);
     
     // ME
@@ -37,32 +52,84 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page wraps data rather than parsing it, and copies it before the
+     * first modification, so data must not be changed by the caller.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data), Database.getCatalog().getTupleDesc(id.getTableId()), false);
+    }
+
+    /**
+     * Create a HeapPage of tuples with the given schema, for pages of files
+     * that are not in the catalog, such as {@link SpillFile}s.
+     */
+    HeapPage(HeapPageId id, byte[] data, TupleDesc td) throws IOException {
+        this(id, ByteBuffer.wrap(data), td, false);
+    }
+
+    /**
+     * Create a HeapPage directly over a buffer of page data, such as a slice
+     * of a memory-mapped file, without copying the page into a byte array.
+     * The page layout is the same as for {@link #HeapPage(HeapPageId, byte[])}.
+     * The buffer is copied before the first modification of this page. Other
+     * writes to the buffer, such as a flush of a page of a mapped file, are
+     * visible to tuples already read from it.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()), true);
+    }
+
+    HeapPage(HeapPageId id, ByteBuffer source, TupleDesc td, boolean mapped) throws IOException {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.td = td;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+        this.headerSize = getHeaderSize();
         
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-        	for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        if (source.remaining() < BufferPool.getPageSize())
+            throw new IOException("short page: " + source.remaining() + " bytes");
+        ByteBuffer page = source.slice();
+        page.limit(BufferPool.getPageSize());
+        this.data = page.slice();
+        this.dataShared = true;
+
+        this.fieldBase = new int[td.numFields()];
+        this.fieldStride = new int[td.numFields()];
+        for (int i = 0; i < fieldBase.length; i++) {
+            fieldBase[i] = fieldBase(i);
+            fieldStride[i] = fieldStride(i);
+        }
+
+        synchronized(oldDataLock)
+        {
+        oldData = this.data.asReadOnlyBuffer();
+        oldDataMapped = mapped;
         }
-        dis.close();
+    }
 
-        setBeforeImage();
+    /**
+     * @return the offset of field i of slot 0. The fields of a slot are
+     *         stored together after the header.
+     */
+    int fieldBase(int i) {
+        return headerSize + td.getFieldOffset(i);
+    }
+
+    /**
+     * @return the distance between field i of two consecutive slots.
+     */
+    int fieldStride(int i) {
+        return td.getSize();
+    }
+
+    /**
+     * Creates a page of the same layout as this one over data, for before
+     * images.
+     */
+    HeapPage newPage(HeapPageId id, ByteBuffer data, TupleDesc td) throws IOException {
+        return new HeapPage(id, data, td, false);
     }
 
     /** Retrieve the number of tuples on this page.
@@ -86,12 +153,13 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
+            ByteBuffer oldDataRef = null;
             synchronized(oldDataLock)
             {
+                copyBeforeImage();
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
+            return newPage(pid,oldDataRef,td);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -100,53 +168,54 @@ public class HeapPage implements Page {
         return null;
     }
     
-    public void setBeforeImage() {
+    public synchronized void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = data.asReadOnlyBuffer();
+        oldDataMapped = false;
         }
+        dataShared = true;
     }
 
     /**
-     * @return the PageId associated with this page.
+     * Copies the before image out of a mapped file, if it is still backed
+     * by one. Must be called while holding oldDataLock.
      */
-    public HeapPageId getId() {
-	    // DONE
-    	return pid;
+    private void copyBeforeImage() {
+        if (oldDataMapped) {
+            oldData = ByteBuffer.wrap(copyOf(oldData)).asReadOnlyBuffer();
+            oldDataMapped = false;
+        }
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return a new array holding the whole of buf.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private static byte[] copyOf(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.capacity()];
+        ByteBuffer src = buf.duplicate();
+        src.clear();
+        src.get(bytes);
+        return bytes;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /**
+     * Makes the page buffer safe to write, copying it if it has been handed
+     * out. Must be called while holding the lock on this page.
+     */
+    private void ensureWritable() {
+        if (dataShared || data.isReadOnly()) {
+            data = ByteBuffer.wrap(copyOf(data));
+            dataShared = false;
         }
+    }
 
-        return t;
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+	    // DONE
+    	return pid;
     }
 
     /**
@@ -160,65 +229,8 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+    public synchronized byte[] getPageData() {
+        return copyOf(data);
     }
 
     /**
@@ -242,11 +254,11 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // DONE
     	RecordId rid = t.getRecordId();
     	
-    	if (rid.getPageId() != pid)
+    	if (rid == null || !pid.equals(rid.getPageId()))
     		throw new DbException("Tuple is not on this page.");
     	
     	int tupleNo = rid.tupleno();
@@ -255,8 +267,8 @@ public class HeapPage implements Page {
     		throw new DbException("Tuple is already empty.");
     	
     	// Free the slot
+    	ensureWritable();
     	markSlotUsed(tupleNo, false);
-    	tuples[tupleNo] = null;
     }
 
     /**
@@ -266,7 +278,7 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // DONE
     	if (getNumEmptySlots() == 0)
     		throw new DbException("The page is full.");
@@ -276,14 +288,33 @@ public class HeapPage implements Page {
     	
     	// Fill the slot
     	int i;
-    	for (i = 0; i < getNumTuples(); i++) {
+    	for (i = 0; i < numSlots; i++) {
     		if (!isSlotUsed(i))
     			break;
     	}
     	
+    	// Encode the tuple, then copy each field into its place in the slot
+    	ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+    	DataOutputStream dos = new DataOutputStream(baos);
+    	try {
+    		for (int j = 0; j < td.numFields(); j++)
+    			t.getField(j).serialize(dos);
+    		dos.flush();
+    	} catch (IOException e) {
+    		throw new DbException("Could not serialize tuple: " + e.getMessage());
+    	}
+    	
+    	byte[] bytes = baos.toByteArray();
+    	
+    	ensureWritable();
+    	ByteBuffer slot = data.duplicate();
+    	for (int j = 0; j < td.numFields(); j++) {
+    		slot.position(fieldBase[j] + i * fieldStride[j]);
+    		slot.put(bytes, td.getFieldOffset(j), td.getFieldType(j).getLen());
+    	}
+    	
     	markSlotUsed(i, true);
     	t.setRecordId(new RecordId(pid, i));
-    	tuples[i] = t;
     }
 
     /**
@@ -292,6 +323,12 @@ public class HeapPage implements Page {
      */
     public void markDirty(boolean dirty, TransactionId tid) {
     	// DONE
+    	if (dirty) {
+    		// A mapped before image is overwritten once this page is flushed
+    		synchronized(oldDataLock) {
+    			copyBeforeImage();
+    		}
+    	}
     	this.tid = dirty ? tid : null;
     }
 
@@ -306,14 +343,12 @@ public class HeapPage implements Page {
     /**
      * Returns the number of empty slots on this page.
      */
-    public int getNumEmptySlots() {
+    public synchronized int getNumEmptySlots() {
         // DONE
     	int numUsedSlots = 0;
     	
-    	for (int i = 0; i < numSlots; i++) {
-    		if (this.isSlotUsed(i))
-    			numUsedSlots++;
-    	}
+    	for (int i = 0; i < headerSize; i++)
+    		numUsedSlots += Integer.bitCount(data.get(i) & 0xff);
     	
     	return numSlots - numUsedSlots;
     }
@@ -321,9 +356,13 @@ public class HeapPage implements Page {
     /**
      * Returns true if associated slot on this page is filled.
      */
-    public boolean isSlotUsed(int i) {
+    public synchronized boolean isSlotUsed(int i) {
         // DONE
-    	byte byteIndex = header[i/8];
+    	return isSlotUsed(data, i);
+    }
+
+    private static boolean isSlotUsed(ByteBuffer page, int i) {
+    	byte byteIndex = page.get(i/8);
     	byte bit = (byte)(byteIndex >> (i % 8));
     	bit &= 1;
     	return bit == 1;
@@ -334,7 +373,7 @@ public class HeapPage implements Page {
      */
     private void markSlotUsed(int i, boolean value) {
         // DONE
-    	byte byteIndex = header[i/8];
+    	byte byteIndex = data.get(i/8);
     	byte bit = (byte)((byte)0x01 << (i % 8));
     	
     	if (value) {
@@ -345,26 +384,166 @@ public class HeapPage implements Page {
     		byteIndex &= ~bit;
     	}
     	
-    	header[i/8] = byteIndex;
+    	data.put(i/8, byteIndex);
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * <p>
+     * The tuples are views over the page as it was when this method was
+     * called; their fields are decoded the first time they are read.
      */
     public Iterator<Tuple> iterator() {
         // DONE
-    	ArrayList<Tuple> myTuples = new ArrayList<Tuple>(numSlots);
+    	return slotIterator();
+    }
+
+    /**
+     * @return an iterator like {@link #iterator()} that can also copy the
+     *         remaining tuples into a TupleBatch.
+     */
+    SlotIterator slotIterator() {
+    	return new SlotIterator(snapshot(), td, fieldBase, fieldStride);
+    }
+
+    /**
+     * @return an iterator like {@link #slotIterator()} over tuples that hold
+     *         only some fields of the tuples of this page. Only those fields
+     *         are ever decoded.
+     * @param fields
+     *            the fields of this page's tuples to return, in order
+     * @param projectedTd
+     *            the TupleDesc of the returned tuples, made of the types of
+     *            those fields
+     */
+    SlotIterator slotIterator(int[] fields, TupleDesc projectedTd) {
+    	int[] base = new int[fields.length];
+    	int[] stride = new int[fields.length];
+    	for (int i = 0; i < fields.length; i++) {
+    		base[i] = fieldBase[fields[i]];
+    		stride[i] = fieldStride[fields[i]];
+    	}
+    	return new SlotIterator(snapshot(), projectedTd, base, stride);
+    }
+
+    /**
+     * @return the page buffer, which is copied before it is next written.
+     */
+    private synchronized ByteBuffer snapshot() {
+    	dataShared = true;
+    	return data;
+    }
+
+    /**
+     * @return the tuple in slot i, as a view like those of
+     *         {@link #iterator()}, or null if the slot is empty.
+     */
+    public Tuple getTuple(int i) {
+    	ByteBuffer snapshot;
+    	synchronized (this) {
+    		if (i < 0 || i >= numSlots || !isSlotUsed(data, i))
+    			return null;
+    		snapshot = data;
+    		dataShared = true;
+    	}
+    	Tuple t = new Tuple(td, snapshot, fieldBase, fieldStride, i);
+    	t.setRecordId(new RecordId(pid, i));
+    	return t;
+    }
+
+    /**
+     * Computes the smallest and largest value of INT_TYPE field i over the
+     * tuples on this page, reading the values straight from the page bytes.
+     *
+     * @return {min, max}, or null if the page has no tuples
+     */
+    public synchronized int[] getIntRange(int i) {
+    	int slot = nextUsedSlot(data, 0);
+    	if (slot == numSlots)
+    		return null;
+    	int min = Integer.MAX_VALUE;
+    	int max = Integer.MIN_VALUE;
+    	for (; slot < numSlots; slot = nextUsedSlot(data, slot + 1)) {
+    		int v = data.getInt(fieldBase[i] + slot * fieldStride[i]);
+    		min = Math.min(min, v);
+    		max = Math.max(max, v);
+    	}
+    	return new int[] { min, max };
+    }
+
+    /**
+     * Iterator over the used slots of a snapshot of this page.
+     */
+    class SlotIterator implements Iterator<Tuple> {
+    	private final ByteBuffer snapshot;
+    	private final TupleDesc tupleDesc;
+    	private final int[] base;
+    	private final int[] stride;
+    	private int next;
+    	
+    	SlotIterator(ByteBuffer snapshot, TupleDesc tupleDesc, int[] base, int[] stride) {
+    		this.snapshot = snapshot;
+    		this.tupleDesc = tupleDesc;
+    		this.base = base;
+    		this.stride = stride;
+    		this.next = nextUsedSlot(snapshot, 0);
+    	}
+    	
+    	public boolean hasNext() {
+    		return next < numSlots;
+    	}
     	
-    	for (int i = 0; i < tuples.length; i++)
-    	{
-    		if (this.isSlotUsed(i))
-    			myTuples.add(tuples[i]);
+    	public Tuple next() {
+    		if (!hasNext())
+    			throw new NoSuchElementException();
+    		Tuple t = new Tuple(tupleDesc, snapshot, base, stride, next);
+    		t.setRecordId(new RecordId(pid, next));
+    		next = nextUsedSlot(snapshot, next + 1);
+    		return t;
     	}
     	
-    	// make ArrayList read-only
-    	return Collections.unmodifiableList(myTuples).iterator();
+    	public void remove() {
+    		throw new UnsupportedOperationException();
+    	}
+    	
+    	/**
+    	 * Decodes the remaining tuples into batch until the batch is full
+    	 * or the page is exhausted. The used slots are found first, then
+    	 * each column is decoded in turn, so a page that stores its fields
+    	 * column by column is read sequentially. INT_TYPE values are read
+    	 * straight into the batch's int columns.
+    	 */
+    	void fillBatch(TupleBatch batch) {
+    		int first = batch.size();
+    		int[] slots = new int[batch.capacity() - first];
+    		int n = 0;
+    		while (next < numSlots && !batch.isFull()) {
+    			batch.setRecordId(batch.addRow(), pid, next);
+    			slots[n++] = next;
+    			next = nextUsedSlot(snapshot, next + 1);
+    		}
+    		for (int i = 0; i < base.length; i++) {
+    			if (batch.isIntColumn(i)) {
+    				for (int k = 0; k < n; k++)
+    					batch.setInt(i, first + k, snapshot.getInt(base[i] + slots[k] * stride[i]));
+    			} else {
+    				Type type = tupleDesc.getFieldType(i);
+    				for (int k = 0; k < n; k++)
+    					batch.setField(i, first + k, type.parse(snapshot, base[i] + slots[k] * stride[i]));
+    			}
+    		}
+    	}
     }
 
-}
+    /**
+     * @return the first used slot of page at or after slot i, or numSlots
+     *         if there is none.
+     */
+    private int nextUsedSlot(ByteBuffer page, int i) {
+    	while (i < numSlots && !isSlotUsed(page, i))
+    		i++;
+    	return i;
+    }
 
+}
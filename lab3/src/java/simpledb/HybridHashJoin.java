@@ -0,0 +1,535 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * HybridHashJoin evaluates an equality join by building a hash table on
+ * child1 and probing it with child2, like {@link HashEquiJoin}, but it does
+ * not rescan child2 when child1 does not fit in memory.
+ * <p>
+ * Build tuples are hashed into PARTITIONS partitions, which all start in
+ * memory. Whenever more build tuples than the memory budget are held, the
+ * largest partition still in memory is spilled: its tuples are written to a
+ * {@link SpillFile}, and so are its later build tuples. Probe tuples of
+ * partitions in memory are joined as child2 is read; the others are written
+ * to the probe spill file of their partition. Each pair of spilled partitions
+ * is then joined the same way, hashed with a new seed so that a partition
+ * that is still too large (a skewed partition) is split further. Both
+ * children are read exactly once, and each spilled tuple is written and read
+ * once per level of partitioning.
+ * <p>
+ * A partition that is still too large after MAX_DEPTH levels, which happens
+ * when most of its tuples share one key, is joined one memory budget of
+ * build tuples at a time, reading its probe spill file once per chunk.
+ * <p>
+ * When child2 is a SeqScan, directly or under Filters, the join builds a
+ * {@link BloomFilter} of every key of child1 once child1 has been read,
+ * including the keys of spilled partitions, and hands it to the scan as a
+ * {@link RuntimeFilter}, so that probe tuples without a partner are dropped
+ * as they are read instead of being joined or spilled. The hash codes of
+ * spilled build keys are kept in memory until then, four bytes a tuple.
+ */
+public class HybridHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of build tuples held in memory unless another budget is given. */
+    public static final int DEFAULT_MEMORY_TUPLES = HashEquiJoin.MAP_SIZE;
+
+    /** Number of partitions each level splits its inputs into. */
+    public static final int PARTITIONS = 16;
+
+    /** Number of times a partition is split before it is joined in chunks. */
+    public static final int MAX_DEPTH = 3;
+
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private TupleDesc comboTD;
+    private final int memoryTuples;
+
+    /** One level of partitioning of a build input and a probe input. */
+    private static class Pass {
+        final DbIterator build, probe;
+        // the spilled partition read by this pass, or null for the children
+        final SpilledPartition input;
+        final int level;
+        // at MAX_DEPTH a single table is loaded a chunk at a time
+        final boolean chunked;
+        final ArrayList<HashMap<Field, ArrayList<Tuple>>> tables = new ArrayList<HashMap<Field, ArrayList<Tuple>>>();
+        final int[] sizes = new int[PARTITIONS];
+        // non-null for spilled partitions
+        final SpillFile[] buildSpills = new SpillFile[PARTITIONS];
+        final SpillFile[] probeSpills = new SpillFile[PARTITIONS];
+
+        Pass(DbIterator build, DbIterator probe, SpilledPartition input, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.input = input;
+            this.level = level;
+            this.chunked = level > MAX_DEPTH;
+            for (int i = 0; i < PARTITIONS; i++)
+                tables.add(new HashMap<Field, ArrayList<Tuple>>());
+        }
+    }
+
+    /** A pair of spilled partitions waiting to be joined. */
+    private static class SpilledPartition {
+        final SpillFile build, probe;
+        final int level;
+
+        SpilledPartition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+    }
+
+    transient private Pass pass = null;
+    transient private LinkedList<SpilledPartition> pending = null;
+    // every spill file of the current execution, deleted on close and rewind
+    transient private ArrayList<SpillFile> spills = null;
+
+    // the probe tuple being joined and its matching build tuples
+    transient private Tuple t2 = null;
+    transient private ArrayList<Tuple> matches = null;
+    transient private int matchIdx;
+
+    private static volatile boolean useRuntimeFilters = true;
+
+    // the Bloom filter of the build keys, and the scan it is pushed into
+    transient private RuntimeFilter runtimeFilter = null;
+    transient private SeqScan probeScan = null;
+    // hash codes of the build keys spilled while child1 is read
+    transient private int[] spilledKeys = null;
+    transient private int numSpilledKeys;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on, with the default memory budget.
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator
+     *            must be EQUALS
+     * @param child1
+     *            Iterator for the left(build) relation to join
+     * @param child2
+     *            Iterator for the right(probe) relation to join
+     */
+    public HybridHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_TUPLES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param memoryTuples
+     *            The number of build tuples that may be held in memory
+     * @see #HybridHashJoin(JoinPredicate, DbIterator, DbIterator)
+     */
+    public HybridHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            int memoryTuples) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("HybridHashJoin only supports EQUALS, not " + p.getOperator());
+        if (memoryTuples < 1)
+            throw new IllegalArgumentException("memoryTuples must be positive");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryTuples = memoryTuples;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * @return the number of build tuples that may be held in memory.
+     */
+    public int getMemoryTuples() {
+        return memoryTuples;
+    }
+
+    /**
+     * @return the number of partitions spilled to disk so far, at any level.
+     */
+    public int numSpilledPartitions() {
+        return spills == null ? 0 : spills.size() / 2;
+    }
+
+    /**
+     * Turns the pushdown of Bloom filters into probe scans on or off, for
+     * joins opened afterwards.
+     */
+    public static void setUseRuntimeFilters(boolean use) {
+        useRuntimeFilters = use;
+    }
+
+    public static boolean getUseRuntimeFilters() {
+        return useRuntimeFilters;
+    }
+
+    /**
+     * @return the number of probe tuples dropped by the runtime filter of
+     *         this join since it was created.
+     */
+    public long getRowsEliminated() {
+        return runtimeFilter == null ? 0 : runtimeFilter.getRowsEliminated();
+    }
+
+    /**
+     * @return the number of probe tuples checked against the runtime filter
+     *         of this join since it was created.
+     */
+    public long getRowsChecked() {
+        return runtimeFilter == null ? 0 : runtimeFilter.getRowsChecked();
+    }
+
+    /**
+     * Finds the SeqScan that child2 reads, under any Filters, which keep
+     * the TupleDesc and so the index of the join field.
+     */
+    private SeqScan findProbeScan() {
+        DbIterator it = child2;
+        while (it instanceof Filter)
+            it = ((Filter) it).getChildren()[0];
+        return it instanceof SeqScan ? (SeqScan) it : null;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        probeScan = useRuntimeFilters ? findProbeScan() : null;
+        if (probeScan != null) {
+            if (runtimeFilter == null)
+                runtimeFilter = new RuntimeFilter(pred.getField2());
+            probeScan.addRuntimeFilter(runtimeFilter);
+        }
+        super.open();
+        start();
+    }
+
+    public void close() {
+        super.close();
+        if (probeScan != null) {
+            probeScan.removeRuntimeFilter(runtimeFilter);
+            probeScan = null;
+        }
+        child2.close();
+        child1.close();
+        cleanup();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        cleanup();
+        child1.rewind();
+        child2.rewind();
+        start();
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        pending = new LinkedList<SpilledPartition>();
+        spills = new ArrayList<SpillFile>();
+        if (probeScan != null) {
+            runtimeFilter.setBloomFilter(null);
+            spilledKeys = new int[64];
+            numSpilledKeys = 0;
+        }
+        startPass(new Pass(child1, child2, null, 0));
+        if (probeScan != null) {
+            runtimeFilter.setBloomFilter(buildBloomFilter());
+            spilledKeys = null;
+        }
+    }
+
+    /**
+     * Notes the key of a build tuple of child1 that was spilled.
+     */
+    private void addSpilledKey(Field key) {
+        if (spilledKeys == null)
+            return;
+        if (numSpilledKeys == spilledKeys.length)
+            spilledKeys = Arrays.copyOf(spilledKeys, numSpilledKeys * 2);
+        spilledKeys[numSpilledKeys++] = key.hashCode();
+    }
+
+    /**
+     * @return a Bloom filter of every key of child1, once the first pass
+     *         has read it: the keys of the partitions in memory and those
+     *         noted as they were spilled.
+     */
+    private BloomFilter buildBloomFilter() {
+        int keys = numSpilledKeys;
+        for (HashMap<Field, ArrayList<Tuple>> table : pass.tables)
+            keys += table.size();
+        BloomFilter bloom = new BloomFilter(keys);
+        for (HashMap<Field, ArrayList<Tuple>> table : pass.tables) {
+            for (Field key : table.keySet())
+                bloom.add(key);
+        }
+        for (int i = 0; i < numSpilledKeys; i++)
+            bloom.add(spilledKeys[i]);
+        return bloom;
+    }
+
+    private void cleanup() {
+        if (pass != null && pass.input != null) {
+            pass.build.close();
+            pass.probe.close();
+        }
+        if (spills != null) {
+            for (SpillFile f : spills)
+                f.delete();
+        }
+        pass = null;
+        pending = null;
+        spills = null;
+        spilledKeys = null;
+        t2 = null;
+        matches = null;
+    }
+
+    /**
+     * Spreads the hash codes of keys, with a different seed at each level so
+     * that a partition is split differently when it is partitioned again.
+     */
+    private static int partition(Field key, int level) {
+        return partition(key.hashCode(), level);
+    }
+
+    /**
+     * @return the partition of a hash code at a level of partitioning.
+     */
+    static int partition(int hashCode, int level) {
+        int h = hashCode ^ (level * 0x9e3779b9);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % PARTITIONS;
+    }
+
+    private static void put(HashMap<Field, ArrayList<Tuple>> table, Field key, Tuple t) {
+        ArrayList<Tuple> list = table.get(key);
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            table.put(key, list);
+        }
+        list.add(t);
+    }
+
+    /**
+     * Reads the build input of a pass into its partitions, spilling
+     * partitions as the memory budget is exceeded.
+     */
+    private void startPass(Pass p) throws DbException, TransactionAbortedException {
+        pass = p;
+        if (p.chunked) {
+            loadChunk();
+            return;
+        }
+
+        int field1 = pred.getField1();
+        int inMemory = 0;
+        try {
+            while (p.build.hasNext()) {
+                Tuple t = p.build.next();
+                Field key = t.getField(field1);
+                int part = partition(key, p.level);
+                if (p.buildSpills[part] != null) {
+                    addSpilledKey(key);
+                    p.buildSpills[part].add(t);
+                    continue;
+                }
+                put(p.tables.get(part), key, t);
+                p.sizes[part]++;
+                if (++inMemory > memoryTuples)
+                    inMemory -= spillLargest();
+            }
+        } catch (IOException e) {
+            throw new DbException("Could not spill join partition: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves the largest partition still in memory to a pair of spill files.
+     *
+     * @return the number of build tuples that were moved.
+     */
+    private int spillLargest() throws IOException {
+        int largest = -1;
+        for (int i = 0; i < PARTITIONS; i++) {
+            if (pass.buildSpills[i] == null && (largest < 0 || pass.sizes[i] > pass.sizes[largest]))
+                largest = i;
+        }
+
+        SpillFile build = new SpillFile(pass.build.getTupleDesc());
+        SpillFile probe = new SpillFile(pass.probe.getTupleDesc());
+        spills.add(build);
+        spills.add(probe);
+        for (Map.Entry<Field, ArrayList<Tuple>> e : pass.tables.get(largest).entrySet()) {
+            addSpilledKey(e.getKey());
+            for (Tuple t : e.getValue())
+                build.add(t);
+        }
+        pass.tables.get(largest).clear();
+        pass.buildSpills[largest] = build;
+        pass.probeSpills[largest] = probe;
+        return pass.sizes[largest];
+    }
+
+    /**
+     * Loads up to memoryTuples tuples of the build input of a chunked pass.
+     *
+     * @return true if any tuples were loaded.
+     */
+    private boolean loadChunk() throws DbException, TransactionAbortedException {
+        HashMap<Field, ArrayList<Tuple>> table = pass.tables.get(0);
+        table.clear();
+        int field1 = pred.getField1();
+        int cnt = 0;
+        while (cnt < memoryTuples && pass.build.hasNext()) {
+            Tuple t = pass.build.next();
+            put(table, t.getField(field1), t);
+            cnt++;
+        }
+        return cnt > 0;
+    }
+
+    /**
+     * Called when the probe input of the current pass is exhausted. Loads
+     * the next chunk of a chunked pass, or queues the partitions the pass
+     * spilled and starts the next pending partition.
+     *
+     * @return false if there is nothing left to join.
+     */
+    private boolean finishPass() throws DbException, TransactionAbortedException {
+        if (pass.chunked && loadChunk()) {
+            pass.probe.rewind();
+            return true;
+        }
+
+        try {
+            for (int i = 0; i < PARTITIONS; i++) {
+                SpillFile build = pass.buildSpills[i];
+                SpillFile probe = pass.probeSpills[i];
+                if (build == null)
+                    continue;
+                if (build.numTuples() == 0 || probe.numTuples() == 0) {
+                    // an inner join of an empty partition is empty
+                    build.delete();
+                    probe.delete();
+                } else {
+                    build.finish();
+                    probe.finish();
+                    pending.add(new SpilledPartition(build, probe, pass.level + 1));
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("Could not spill join partition: " + e.getMessage());
+        }
+        if (pass.input != null) {
+            pass.build.close();
+            pass.probe.close();
+            pass.input.build.delete();
+            pass.input.probe.delete();
+        }
+
+        SpilledPartition next = pending.poll();
+        if (next == null) {
+            pass = null;
+            return false;
+        }
+        try {
+            DbIterator build = next.build.iterator();
+            DbIterator probe = next.probe.iterator();
+            build.open();
+            probe.open();
+            startPass(new Pass(build, probe, next, next.level));
+        } catch (IOException e) {
+            throw new DbException("Could not read join partition: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As with {@link HashEquiJoin}, each result is the
+     * concatenation of a tuple of child1 and a tuple of child2; results of
+     * spilled partitions are returned after those of the partitions that
+     * stayed in memory.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        int field2 = pred.getField2();
+        while (pass != null) {
+            if (matches != null && matchIdx < matches.size())
+                return merge(matches.get(matchIdx++), t2);
+            matches = null;
+
+            if (!pass.probe.hasNext()) {
+                finishPass();
+                continue;
+            }
+
+            t2 = pass.probe.next();
+            Field key = t2.getField(field2);
+            if (pass.chunked) {
+                matches = pass.tables.get(0).get(key);
+            } else {
+                int part = partition(key, pass.level);
+                if (pass.probeSpills[part] != null) {
+                    try {
+                        pass.probeSpills[part].add(t2);
+                    } catch (IOException e) {
+                        throw new DbException("Could not spill join partition: " + e.getMessage());
+                    }
+                    continue;
+                }
+                matches = pass.tables.get(part).get(key);
+            }
+            matchIdx = 0;
+        }
+        return null;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+}
@@ -0,0 +1,145 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan is an access method that reads the tuples of a table whose
+ * indexed field satisfies <tt>field op constant</tt>, by looking up the
+ * range of matching entries in a {@link BTreeFile} and fetching each tuple
+ * by its RecordId. Tuples come out in key order. Its output is the same as
+ * that of a {@link SeqScan} followed by a {@link Filter} with the same
+ * predicate, apart from the order.
+ */
+public class IndexScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final BTreeFile index;
+    private final String tableAlias;
+    private final Predicate.Op op;
+    private final Field constant;
+    private transient DbFileIterator entries;
+    private transient Tuple next;
+
+    /**
+     * Creates a scan over the tuples of the indexed table whose indexed
+     * field satisfies <tt>field op constant</tt>.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index over the table to scan
+     * @param tableAlias
+     *            the alias of the table; see {@link SeqScan#SeqScan}
+     * @param op
+     *            EQUALS, LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or
+     *            GREATER_THAN_OR_EQ
+     * @param constant
+     *            the value the indexed field is compared to
+     * @throws IllegalArgumentException
+     *             if op cannot be answered by the index
+     */
+    public IndexScan(TransactionId tid, BTreeFile index, String tableAlias,
+            Predicate.Op op, Field constant) {
+        if (!BTreeFile.supports(op))
+            throw new IllegalArgumentException("Index cannot answer " + op);
+        this.tid = tid;
+        this.index = index;
+        this.tableAlias = tableAlias;
+        this.op = op;
+        this.constant = constant;
+    }
+
+    /**
+     * @return the name of the table the operator scans
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans.
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    public BTreeFile getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the predicate this scan answers, over its own TupleDesc.
+     */
+    public Predicate getPredicate() {
+        return new Predicate(index.getKeyField(), op, constant);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        entries = index.iterator(tid, op, constant);
+        entries.open();
+        next = null;
+    }
+
+    /**
+     * Returns the TupleDesc of the table, with field names prefixed with the
+     * table alias, as {@link SeqScan#getTupleDesc} does.
+     */
+    public TupleDesc getTupleDesc() {
+        TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+        Type[] types = new Type[td.numFields()];
+        String[] names = new String[td.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = td.getFieldType(i);
+            names[i] = tableAlias + "." + td.getFieldName(i);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (next == null)
+            next = fetchNext();
+        return next != null;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = next;
+        next = null;
+        return t;
+    }
+
+    /**
+     * Fetches the tuple of the next entry, skipping entries whose tuple is
+     * no longer in the table.
+     */
+    private Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (entries == null)
+            throw new IllegalStateException("IndexScan is not open");
+        while (entries.hasNext()) {
+            RecordId rid = index.recordId(entries.next());
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                    rid.getPageId(), Permissions.READ_ONLY);
+            Tuple t = page.getTuple(rid.tupleno());
+            Database.getBufferPool().unpinPage(tid, rid.getPageId());
+            if (t != null)
+                return t;
+        }
+        return null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        entries.rewind();
+        next = null;
+    }
+
+    public void close() {
+        if (entries != null)
+            entries.close();
+        entries = null;
+        next = null;
+    }
+}
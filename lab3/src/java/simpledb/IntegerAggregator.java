@@ -4,6 +4,10 @@ import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Each group keeps a running count, sum, minimum and maximum in primitive
+ * arrays indexed by its number in a {@link GroupTable}, so memory grows with
+ * the number of groups rather than the number of input rows.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -15,8 +19,12 @@ public class IntegerAggregator implements Aggregator {
     private int afield;
     private Op what;
     
-    private ArrayList<Field> noGroup;
-    private HashMap<Field, ArrayList<Field>> group;
+    private GroupTable groups;
+    // running state of group g, at index g
+    private int[] counts;
+    private long[] sums;
+    private int[] mins;
+    private int[] maxs;
     
     /**
      * Aggregate constructor
@@ -40,14 +48,11 @@ public class IntegerAggregator implements Aggregator {
     	this.afield = afield;
     	this.what = what;
     	
-    	if (noGrouping()) {
-    		// No grouping
-    		noGroup = new ArrayList<Field>();
-    		
-    	} else {
-    		// Grouping
-    		group = new HashMap<Field, ArrayList<Field>>();
-    	}
+    	groups = new GroupTable(noGrouping() ? null : gbfieldtype);
+    	counts = new int[16];
+    	sums = new long[16];
+    	mins = new int[16];
+    	maxs = new int[16];
     }
 
     /**
@@ -59,22 +64,96 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // DONE
-    	if (noGrouping()) {
-    		// No grouping
-    		noGroup.add(tup.getField(afield));
-    	} else {
-    		// Grouping
-    		Field groupField = tup.getField(gbfield);
-    		
-    		ArrayList<Field> aggs = group.get(groupField);
-    		
-    		if (aggs == null) {
-    			aggs = new ArrayList<Field>();
+    	int g = groups.groupOf(noGrouping() ? null : tup.getField(gbfield));
+    	merge(g, ((IntField) tup.getField(afield)).getValue());
+    }
+
+    /**
+     * Merge every row of a batch into the aggregate, grouping as indicated
+     * in the constructor
+     * 
+     * @param batch
+     *            the rows containing an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+    	// read the primitive columns directly: no Field is created per row
+    	int[] values = batch.getIntColumn(afield);
+    	for (int row = 0; row < batch.size(); row++)
+    		merge(groups.groupOf(batch, gbfield, row), values[row]);
+    }
+
+    public int mergeBatchIntoGroup(TupleBatch batch, int maxGroups, boolean[] rejected) {
+    	int[] values = batch.getIntColumn(afield);
+    	int n = 0;
+    	for (int row = 0; row < batch.size(); row++) {
+    		int g = groups.find(batch, gbfield, row);
+    		if (g < 0 && groups.size() < maxGroups)
+    			g = groups.groupOf(batch, gbfield, row);
+    		rejected[row] = g < 0;
+    		if (g < 0) {
+    			n++;
+    			continue;
     		}
+    		merge(g, values[row]);
+    	}
+    	return n;
+    }
+
+    public int numGroups() {
+    	return groups.size();
+    }
+
+    /**
+     * Merge the running state of each group of another IntegerAggregator
+     * into this one. AVG stays exact, since the sum and count are merged
+     * separately.
+     */
+    public void mergePartial(Aggregator partial) {
+    	IntegerAggregator other = (IntegerAggregator) partial;
+    	for (int og = 0; og < other.groups.size(); og++) {
+    		if (other.counts[og] == 0)
+    			continue;	// no input without grouping
+    		int g = groups.groupOf(other.groups, og);
+    		if (g == counts.length)
+    			grow();
     		
-    		aggs.add(tup.getField(afield));
-    		group.put(tup.getField(gbfield), aggs);
+    		if (counts[g] == 0) {
+    			mins[g] = other.mins[og];
+    			maxs[g] = other.maxs[og];
+    		} else {
+    			mins[g] = Math.min(mins[g], other.mins[og]);
+    			maxs[g] = Math.max(maxs[g], other.maxs[og]);
+    		}
+    		counts[g] += other.counts[og];
+    		sums[g] += other.sums[og];
+    	}
+    }
+
+    // ME: add one value to the running state of group g
+    private void merge(int g, int value) {
+    	if (g == counts.length)
+    		grow();
+    	
+    	if (counts[g] == 0) {
+    		mins[g] = value;
+    		maxs[g] = value;
+    	} else {
+    		if (value < mins[g])
+    			mins[g] = value;
+    		if (value > maxs[g])
+    			maxs[g] = value;
     	}
+    	counts[g]++;
+    	sums[g] += value;
+    }
+    
+    // ME: make room for twice as many groups
+    private void grow() {
+    	int n = counts.length * 2;
+    	counts = Arrays.copyOf(counts, n);
+    	sums = Arrays.copyOf(sums, n);
+    	mins = Arrays.copyOf(mins, n);
+    	maxs = Arrays.copyOf(maxs, n);
     }
 
     /**
@@ -90,32 +169,23 @@ public class IntegerAggregator implements Aggregator {
     	ArrayList<Tuple> tuples = new ArrayList<Tuple>();
     	TupleDesc td;
     	Tuple tuple;
-    	int aggVal = 0;
     	
         if (noGrouping()) {
         	// No grouping
         	td = new TupleDesc(new Type[]{Type.INT_TYPE});
         	
-        	aggVal = aggregate(noGroup);
-        	
         	tuple = new Tuple(td);
-        	tuple.setField(0, new IntField(aggVal));
+        	tuple.setField(0, new IntField(aggregate(0)));
         	
         	tuples.add(tuple);
         } else {
         	// Grouping
         	td = new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE});
         	
-        	Iterator<Field> ki = group.keySet().iterator();
-        	
-        	while(ki.hasNext()) {
-        		Field newField = ki.next();
-        		
-        		aggVal = aggregate(group.get(newField));
-        		
+        	for (int g = 0; g < groups.size(); g++) {
         		tuple = new Tuple(td);
-            	tuple.setField(0, newField);
-            	tuple.setField(1, new IntField(aggVal));
+            	tuple.setField(0, groups.value(g));
+            	tuple.setField(1, new IntField(aggregate(g)));
             	
             	tuples.add(tuple);
         	}
@@ -126,73 +196,22 @@ public class IntegerAggregator implements Aggregator {
     }
     
     // ME: operation checking
-    private int aggregate(ArrayList<Field> list) {
+    private int aggregate(int g) {
+    	if (g >= counts.length || counts[g] == 0)
+    		return 0;
     	
-    	int result = 0;
+    	if (what == Op.COUNT)
+    		return counts[g];
+    	if (what == Op.AVG)
+    		return (int) (sums[g] / counts[g]);
+    	if (what == Op.MAX)
+    		return maxs[g];
+    	if (what == Op.MIN)
+    		return mins[g];
+    	if (what == Op.SUM)
+    		return (int) sums[g];
     	
-    	if (what == Op.COUNT) {
-    		result = list.size();
-    	} else {
-    		
-    		Iterator<Field> it = list.iterator();
-    		
-    		if (what == Op.AVG) {
-    			
-    			result = sum(it) / list.size();
-    			
-    		} else if (what == Op.MAX) {
-    			
-    			int max = 0;
-    			
-    			if (it.hasNext())
-    				max = ((IntField)it.next()).getValue(); 
-    			
-    			while (it.hasNext()) {
-    				IntField f = (IntField)it.next();
-    				int curVal = f.getValue();
-    				
-    				if (curVal > max)
-    					max = curVal;
-    			}
-    			
-    			result = max;
-    			
-    		} else if (what == Op.MIN) {
-    			
-    			int min = 0;
-    			
-    			if (it.hasNext())
-    				min = ((IntField)it.next()).getValue();
-    			
-    			while (it.hasNext()) {
-    				IntField f = (IntField)it.next();
-    				int curVal = f.getValue();
-    				
-    				if (curVal < min)
-    					min = curVal;
-    			}
-    			
-    			result = min;
-    			
-    		} else if (what == Op.SUM) {
-    			result = sum(it);
-    		}
-    		
-    	}// END-else
-    	
-    	return result;
-    }
-    
-    // ME:
-    private int sum(Iterator<Field> it) {
-    	int sum = 0;
-		
-		while (it.hasNext()) {
-			IntField f = (IntField)it.next();
-			sum += f.getValue();
-		}
-		
-		return sum;
+    	return 0;
     }
     
     // ME: convenient helper function
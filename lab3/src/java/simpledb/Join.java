@@ -16,6 +16,12 @@ public class Join extends Operator {
     private Tuple tuple1;
     private Tuple tuple2;
     private  boolean noMoreTuples;
+    
+    // ME: batch state; each outer batch is joined with one pass of child2
+    private transient TupleBatch outerBatch;
+    private transient TupleBatch innerBatch;
+    private transient int outerRow;
+    private transient int innerRow;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -82,6 +88,8 @@ public class Join extends Operator {
     	super.close();
     	child1.close();
     	child2.close();
+    	outerBatch = null;
+    	innerBatch = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -93,6 +101,8 @@ public class Join extends Operator {
     	tuple1 = null;
     	tuple2 = null;
     	noMoreTuples = false;
+    	outerBatch = null;
+    	innerBatch = null;
     }
 
     /**
@@ -148,6 +158,54 @@ public class Join extends Operator {
     	return null;
     }
     
+    /**
+     * Operator.fetchNextBatch implementation. Reads child1 a batch at a time
+     * and joins each of its batches with one pass over child2, so child2 is
+     * rescanned once per batch of child1 rather than once per tuple. The
+     * tuples are the same as those of fetchNext, in a different order.
+     * 
+     * @return The next batch of matching tuples, or null if there are none.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException,
+            DbException {
+    	TupleBatch out = new TupleBatch(getTupleDesc());
+    	
+    	while (!out.isFull()) {
+    		if (outerBatch == null) {
+    			outerBatch = BatchAdapter.nextBatch(child1);
+    			if (outerBatch == null)
+    				break;
+    			child2.rewind();
+    		}
+    		
+    		if (innerBatch == null) {
+    			innerBatch = BatchAdapter.nextBatch(child2);
+    			if (innerBatch == null) {
+    				// child2 is done: advance child1
+    				outerBatch = null;
+    				continue;
+    			}
+    			innerRow = 0;
+    			outerRow = 0;
+    		}
+    		
+    		// Resume where the previous call stopped
+    		for (; innerRow < innerBatch.size(); innerRow++) {
+    			for (; outerRow < outerBatch.size(); outerRow++) {
+    				if (!p.filter(outerBatch, outerRow, innerBatch, innerRow))
+    					continue;
+    				if (out.isFull())
+    					return out;
+    				out.addJoinedRow(outerBatch, outerRow, innerBatch, innerRow);
+    			}
+    			outerRow = 0;
+    		}
+    		innerBatch = null;
+    	}
+    	
+    	return out.isEmpty() ? null : out;
+    }
+    
     // ME: Helper function to merge two tuples
     private Tuple createMergedTuple(Tuple tuple1, Tuple tuple2) {
     	// TODO: Remove duplicate columns on equality???
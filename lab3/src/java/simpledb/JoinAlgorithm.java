@@ -0,0 +1,57 @@
+package simpledb;
+
+/**
+ * The physical algorithms the {@link JoinOptimizer} can choose between when
+ * it turns a {@link LogicalJoinNode} into an operator.
+ */
+public enum JoinAlgorithm {
+    /** Rescans the inner child once per outer tuple ({@link Join}). */
+    NESTED_LOOP("⨝"),
+    /**
+     * Rescans the inner child once per block of outer tuples
+     * ({@link BlockNestedLoopJoin}).
+     */
+    BLOCK_NESTED_LOOP("⨝(block)"),
+    /**
+     * Builds a hash table on the outer child and probes it with the inner
+     * child, spilling partitions that do not fit in memory
+     * ({@link HybridHashJoin}). {@link HashEquiJoin} is not planned: while
+     * the outer child fits in memory it does the same work, minus the
+     * runtime filter, and past that it rescans the inner child.
+     */
+    HASH("⨝(hash)"),
+    /**
+     * Sorts both children on the join fields, unless they are sorted already,
+     * and merges them ({@link SortMergeJoin}).
+     */
+    SORT_MERGE("⨝(merge)");
+
+    private final String symbol;
+
+    private JoinAlgorithm(String symbol) {
+        this.symbol = symbol;
+    }
+
+    /**
+     * @return the symbol used for this algorithm in printed query plans.
+     */
+    public String getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * @return true if this algorithm can evaluate a join predicate with the
+     *         given operator and there is an operator that implements it.
+     */
+    public boolean supports(Predicate.Op op) {
+        switch (this) {
+        case NESTED_LOOP:
+        case BLOCK_NESTED_LOOP:
+            return true;
+        case HASH:
+            return op == Predicate.Op.EQUALS;
+        default: // SORT_MERGE
+            return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+        }
+    }
+}
@@ -68,14 +68,31 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (!lj.algorithm.supports(lj.p))
+            throw new ParsingException("Join algorithm " + lj.algorithm
+                    + " cannot evaluate " + lj.p + " joins");
+
+        switch (lj.algorithm) {
+        case BLOCK_NESTED_LOOP:
+            j = new BlockNestedLoopJoin(p,plan1,plan2);
+            break;
+        case HASH:
+            j = new HybridHashJoin(p,plan1,plan2);
+            break;
+        case SORT_MERGE:
+            j = new SortMergeJoin(p,plan1,plan2,lj.t1Sorted,lj.t2Sorted);
+            break;
+        default:
+            j = new Join(p,plan1,plan2);
+        }
 
         return j;
 
     }
 
     /**
-     * Estimate the cost of a join.
+     * Estimate the cost of a join, evaluated with the algorithm recorded in
+     * j (see {@link #estimateJoinCost(LogicalJoinNode, JoinAlgorithm, int, int, double, double)}).
      * 
      * The cost of the join should be calculated based on the join algorithm (or
      * algorithms) that you implemented for Project 2. It should be a function of
@@ -102,22 +119,139 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, j.algorithm, card1, card2, cost1, cost2);
+    }
+
+    /**
+     * Estimate the cost of a join evaluated with a given algorithm. The
+     * left-hand side is the outer (build) side of the join.
+     * 
+     * @param algorithm
+     *            The algorithm the join is evaluated with.
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double)
+     */
+    public double estimateJoinCost(LogicalJoinNode j, JoinAlgorithm algorithm,
+            int card1, int card2, double cost1, double cost2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Project 3.
             return card1 + cost1 + cost2;
-        } else {
+        }
+
+        switch (algorithm) {
+        case BLOCK_NESTED_LOOP: {
+            // The inner side is scanned once per block of outer tuples, and
+            // each outer tuple is copied into the block first. With a single
+            // outer tuple there is nothing to save on rescans, so a plain
+            // nested-loop join is cheaper
+            double blocks = Math.max(1, Math.ceil((double) card1 / blockTuples(j)));
+            return cost1 + (blocks * cost2) // I/O cost
+                    + ((double) card1 * card2) + card1; // CPU cost
+        }
+        case HASH: {
+            // Both sides are read once. The fraction of the outer side that
+            // does not fit in memory, and the matching fraction of the inner
+            // side, is written to spill files and read back
+            double spilled = card1 <= HybridHashJoin.DEFAULT_MEMORY_TUPLES ? 0
+                    : 1 - (double) HybridHashJoin.DEFAULT_MEMORY_TUPLES / card1;
+            return (1 + 2 * spilled) * (cost1 + cost2) // I/O cost
+                    + (1 + spilled) * (card1 + card2); // CPU cost
+        }
+        case SORT_MERGE: {
+            // A range join holds its whole inner side in memory; it is not
+            // an option when that side is over the memory budget
+            if (j.p != Predicate.Op.EQUALS && card2 > SortMergeJoin.DEFAULT_MEMORY_TUPLES)
+                return Double.POSITIVE_INFINITY;
+            // A side that arrives sorted on its join field is not sorted
+            // again. A range join emits a share of all pairs of tuples
+            double io = cost1 + cost2 + (j.t1Sorted ? 0 : sortIoCost(card1, cost1))
+                    + (j.t2Sorted ? 0 : sortIoCost(card2, cost2));
+            double cpu = (j.t1Sorted ? 0 : sortCost(card1))
+                    + (j.t2Sorted ? 0 : sortCost(card2)) + card1 + card2;
+            if (j.p != Predicate.Op.EQUALS)
+                cpu += (double) card1 * card2 / 2;
+            return io // I/O cost
+                    + cpu; // CPU cost
+        }
+        default:
             // DONE
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic nested-loops
             // join.
-        	
-        	// Basic nested-loops join
-        	return cost1 + (card1 * cost2) // I/O cost
-        			+ (card1 * card2); // CPU cost
+
+            // Basic nested-loops join
+            return cost1 + (card1 * cost2) // I/O cost
+                    + ((double) card1 * card2); // CPU cost
         }
     }
 
+    /**
+     * Number of outer tuples a block nested-loop join of j matches against
+     * each scan of its inner side, going by the width of the outer table
+     * (or of a single int column if the outer table is not known).
+     */
+    private int blockTuples(LogicalJoinNode j) {
+        Integer tableId = p.getTableId(j.t1Alias);
+        int tupleSize = tableId == null ? Type.INT_TYPE.getLen()
+                : Database.getCatalog().getTupleDesc(tableId).getSize();
+        return BlockNestedLoopJoin.blockTuples(tupleSize,
+                BlockNestedLoopJoin.DEFAULT_BLOCK_PAGES);
+    }
+
+    /** CPU cost of sorting card tuples in memory. */
+    static double sortCost(int card) {
+        return card < 2 ? card : card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * I/O cost of sorting card tuples, which cost cost to scan, for a
+     * SortMergeJoin. Past the memory budget, the tuples are written to runs
+     * and read back once per merge pass.
+     */
+    static double sortIoCost(int card, double cost) {
+        if (card <= SortMergeJoin.DEFAULT_MEMORY_TUPLES)
+            return 0;
+        double runs = Math.ceil((double) card / SortMergeJoin.DEFAULT_MEMORY_TUPLES);
+        double passes = Math.max(1, Math.ceil(Math.log(runs) / Math.log(OrderBy.MERGE_FAN_IN)));
+        return 2 * passes * cost;
+    }
+
+    /**
+     * Choose the cheapest algorithm for a join, among the algorithms that
+     * support its predicate.
+     * 
+     * @param j
+     *            A LogicalJoinNode representing the join operation being
+     *            performed.
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param card2
+     *            Estimated cardinality of the right-hand side of the query
+     * @param cost1
+     *            Estimated cost of one full scan of the left-hand side
+     * @param cost2
+     *            Estimated cost of one full scan of the right-hand side
+     * @return the cheapest algorithm; subqueries always use NESTED_LOOP
+     */
+    public JoinAlgorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        if (j instanceof LogicalSubplanJoinNode)
+            return JoinAlgorithm.NESTED_LOOP;
+
+        JoinAlgorithm best = JoinAlgorithm.NESTED_LOOP;
+        double bestCost = estimateJoinCost(j, best, card1, card2, cost1, cost2);
+        for (JoinAlgorithm algorithm : JoinAlgorithm.values()) {
+            if (!algorithm.supports(j.p))
+                continue;
+            double cost = estimateJoinCost(j, algorithm, card1, card2, cost1, cost2);
+            if (cost < bestCost) {
+                best = algorithm;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -279,13 +413,22 @@ public class JoinOptimizer {
     			
     			// Add the best plan so far (if any) to cache
     			if (bestPlan.cost != Double.MAX_VALUE)
-    				planCache.addPlan(s, bestPlan.cost, bestPlan.card, bestPlan.plan);
+    				planCache.addPlan(s, bestPlan);
     		}
     	}
     	
-    	Vector<LogicalJoinNode> joinPlan = planCache.getOrder(new HashSet<LogicalJoinNode>(joins));
+    	Set<LogicalJoinNode> all = new HashSet<LogicalJoinNode>(joins);
+    	Vector<LogicalJoinNode> joinPlan = planCache.getOrder(all);
     	if (joinPlan == null)
     		joinPlan = joins;
+    	else {
+    		// A plan that is already sorted for the ORDER BY saves sorting the output of the best plan
+    		String order = p.getInterestingOrder();
+    		CostCard ordered = order == null ? null : planCache.getOrderedPlan(all, order);
+    		if (ordered != null && !order.equals(planCache.getSortOrder(all))
+    				&& ordered.cost < planCache.getCost(all) + sortCost(planCache.getCard(all)))
+    			joinPlan = ordered.plan;
+    	}
     	
     	if (explain)
     		printJoins(joinPlan, planCache, stats, filterSelectivities);
@@ -352,24 +495,15 @@ public class JoinOptimizer {
                 .clone();
         news.remove(j);
 
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
+        // the plans for news that j can be added to: the cheapest one, and
+        // the cheapest one producing each interesting sort order
+        Vector<CostCard> prevPlans = new Vector<CostCard>();
+        boolean prevIsLeft = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
+            CostCard none = new CostCard();
+            none.plan = new Vector<LogicalJoinNode>();
+            prevPlans.add(none);
         } else {
             // news is not empty -- figure best way to join j to news
             prevBest = pc.getOrder(news);
@@ -380,71 +514,158 @@ public class JoinOptimizer {
                 return null;
             }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
             if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
+                prevIsLeft = true;
             } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
                                                         // (both
                 // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
+                prevIsLeft = false;
             } else {
                 // don't consider this plan if one of j.t1 or j.t2
                 // isn't a table joined in prevBest (cross product)
                 return null;
             }
+            prevPlans.addAll(pc.getPlans(news));
+        }
+
+        CostCard best = null;
+        for (CostCard prev : prevPlans) {
+            CostCard cc = addJoinToPlan(stats, filterSelectivities, j, prev,
+                    prevIsLeft, table1Name, table2Name);
+            if (cc.sortOrder != null && isInterestingOrder(cc.sortOrder, joinSet))
+                pc.addOrderedPlan(joinSet, cc);
+            if (best == null || cc.cost < best.cost)
+                best = cc;
+        }
+        if (best.cost >= bestCostSoFar)
+            return null;
+        return best;
+    }
+
+    /**
+     * Computes the cost and cardinality of adding the join j to the plan
+     * prev, which joins the tables on the left-hand side of j if prevIsLeft
+     * and those on the right-hand side otherwise. If prev is empty, both sides
+     * of j are base relations.
+     * 
+     * @return A {@link CostCard} describing the cheaper of the two
+     *         orientations of j, with the algorithm chosen for it
+     */
+    @SuppressWarnings("unchecked")
+    private CostCard addJoinToPlan(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, LogicalJoinNode j,
+            CostCard prev, boolean prevIsLeft, String table1Name,
+            String table2Name) {
+        double t1cost, t2cost;
+        int t1card, t2card;
+        boolean leftPkey, rightPkey;
+        String table2Alias = j.t2Alias;
+
+        if (prev.plan.isEmpty()) { // base case -- both are base relations
+            t1cost = stats.get(table1Name).estimateScanCost();
+            t1card = stats.get(table1Name).estimateTableCardinality(
+                    filterSelectivities.get(j.t1Alias));
+            leftPkey = isPkey(j.t1Alias, j.f1PureName);
+
+            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
+                    .estimateScanCost();
+            t2card = table2Alias == null ? 0 : stats.get(table2Name)
+                    .estimateTableCardinality(
+                            filterSelectivities.get(j.t2Alias));
+            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
+                    j.f2PureName);
+        } else if (prevIsLeft) { // j.t1 is in prev
+            t1cost = prev.cost; // left side just has cost of whatever left
+                                // subtree is
+            t1card = prev.card;
+            leftPkey = hasPkey(prev.plan);
+
+            t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
+                    .estimateScanCost();
+            t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
+                    .estimateTableCardinality(
+                            filterSelectivities.get(j.t2Alias));
+            rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
+                    j.f2PureName);
+        } else { // j.t2 is in prev
+            t2cost = prev.cost;
+            t2card = prev.card;
+            rightPkey = hasPkey(prev.plan);
+
+            t1cost = stats.get(table1Name).estimateScanCost();
+            t1card = stats.get(table1Name).estimateTableCardinality(
+                    filterSelectivities.get(j.t1Alias));
+            leftPkey = isPkey(j.t1Alias, j.f1PureName);
         }
 
+        // a sort-merge join need not sort a side that prev already delivers
+        // sorted on the join field
+        boolean t1Sorted = prevIsLeft && j.f1QuantifiedName.equals(prev.sortOrder);
+        boolean t2Sorted = !prevIsLeft && j.f2QuantifiedName.equals(prev.sortOrder);
+        if (j.t1Sorted != t1Sorted || j.t2Sorted != t2Sorted)
+            j = j.withSortedInputs(t1Sorted, t2Sorted);
+
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        JoinAlgorithm algorithm1 = chooseJoinAlgorithm(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, algorithm1, t1card, t2card, t1cost, t2cost);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        JoinAlgorithm algorithm2 = chooseJoinAlgorithm(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, algorithm2, t2card, t1card, t2cost, t1cost);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
+            algorithm1 = algorithm2;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
+
+        // record the chosen algorithm on a copy, since j itself is shared
+        // by every plan in the cache that contains this join
+        if (j.algorithm != algorithm1)
+            j = j.withAlgorithm(algorithm1);
 
         CostCard cc = new CostCard();
 
         cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
                 rightPkey, stats);
         cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
+        cc.algorithm = algorithm1;
+        cc.sortOrder = outputOrder(j);
+        cc.plan = (Vector<LogicalJoinNode>) prev.plan.clone();
         cc.plan.addElement(j); // prevbest is left -- add new join to end
         return cc;
     }
 
+    /**
+     * @return the quantified name of the field the output of the join j is
+     *         sorted on, or null if it is in no particular order. Only a
+     *         sort-merge join produces sorted output: the others either do
+     *         not preserve the order of their outer child, or, like
+     *         {@link Join} in batch mode, do not always preserve it.
+     */
+    static String outputOrder(LogicalJoinNode j) {
+        return j.algorithm == JoinAlgorithm.SORT_MERGE ? j.f1QuantifiedName : null;
+    }
+
+    /**
+     * @return true if a plan for joinSet sorted on field may save a sort
+     *         later on: when field is joined to a table by a join outside
+     *         joinSet, or when the query is ordered by it.
+     */
+    private boolean isInterestingOrder(String field, Set<LogicalJoinNode> joinSet) {
+        if (field.equals(p.getInterestingOrder()))
+            return true;
+        for (LogicalJoinNode j : joins) {
+            if (!joinSet.contains(j)
+                    && (field.equals(j.f1QuantifiedName) || field.equals(j.f2QuantifiedName)))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Return true if the specified table is in the list of joins, false
      * otherwise
@@ -540,7 +761,8 @@ public class JoinOptimizer {
             // Double c = pc.getCost(pathSoFar);
             neither = true;
 
-            root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
+            root = new DefaultMutableTreeNode("Join " + j + " ("
+                    + pc.getAlgorithm(pathSoFar) + ", Cost ="
                     + pc.getCost(pathSoFar) + ", card = "
                     + pc.getCard(pathSoFar) + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
@@ -47,6 +47,17 @@ public class JoinPredicate implements Serializable {
     	return t1.getField(field1).compare(op, t2.getField(field2));
     }
     
+    /**
+     * Compares a row of b1 and a row of b2 like {@link #filter(Tuple, Tuple)}.
+     * 
+     * @return true if the rows satisfy the predicate.
+     */
+    public boolean filter(TupleBatch b1, int row1, TupleBatch b2, int row2) {
+    	if (b1.isIntColumn(field1) && b2.isIntColumn(field2))
+    		return TupleBatch.compare(b1.getInt(field1, row1), op, b2.getInt(field2, row2));
+    	return b1.getField(field1, row1).compare(op, b2.getField(field2, row2));
+    }
+    
     public int getField1()
     {
         // DONE
@@ -23,6 +23,15 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The algorithm used to evaluate this join, as chosen by the {@link JoinOptimizer} */
+    public JoinAlgorithm algorithm = JoinAlgorithm.NESTED_LOOP;
+
+    /** True if the t1 input arrives sorted on f1, so a sort-merge join need not sort it */
+    public boolean t1Sorted = false;
+
+    /** True if the t2 input arrives sorted on f2, so a sort-merge join need not sort it */
+    public boolean t2Sorted = false;
+
     public LogicalJoinNode() {
     }
 
@@ -60,6 +69,28 @@ public class LogicalJoinNode {
             newp = p;
         
         LogicalJoinNode j2 = new LogicalJoinNode(t2Alias,t1Alias,f2PureName,f1PureName, newp);
+        j2.algorithm = algorithm;
+        j2.t1Sorted = t2Sorted;
+        j2.t2Sorted = t1Sorted;
+        return j2;
+    }
+
+    /** Return a new LogicalJoinNode for the same join, evaluated with the
+     * given algorithm. */
+    public LogicalJoinNode withAlgorithm(JoinAlgorithm algorithm) {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j2.algorithm = algorithm;
+        j2.t1Sorted = t1Sorted;
+        j2.t2Sorted = t2Sorted;
+        return j2;
+    }
+
+    /** Return a new LogicalJoinNode for the same join, whose inputs are
+     * known to be sorted (or not) on their join fields. */
+    public LogicalJoinNode withSortedInputs(boolean t1Sorted, boolean t2Sorted) {
+        LogicalJoinNode j2 = withAlgorithm(algorithm);
+        j2.t1Sorted = t1Sorted;
+        j2.t2Sorted = t2Sorted;
         return j2;
     }
     
@@ -2,7 +2,9 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
@@ -12,9 +14,7 @@ import java.util.NoSuchElementException;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and group by fields.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,12 +29,14 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAscs = new Vector<Boolean>();
+    private int limit = -1;
     private String query;
 //    private Query owner;
 
@@ -186,36 +188,79 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  Each call adds an aggregate, unless the same one was
+        added before; all of them are computed in a single pass.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null to add no GROUP BY field
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
+        if (aggIndex(op, afield) < 0) {
+            aggOps.add(op);
+            aggFields.add(afield);
+        }
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a GROUP BY field to the query.  Each call adds a field that is less significant than the
+        fields of the previous calls; a field that was added before is not added again.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
+    }
+
+    /** @return the index of the aggregate of op over the fully qualified field afield, or -1 if it has not been added */
+    private int aggIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.get(i).equalsIgnoreCase(op) && aggFields.get(i).equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Each call adds
+        a field that is less significant than the fields of the previous calls.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAscs.add(asc);
         hasOrderBy = true;
     }
 
+    /** Limit the result to its first rows, in the order of the ORDER BY if there is one.
+        @param limit the greatest number of rows to return
+    */
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /** @return the greatest number of rows to return, or -1 if there is no LIMIT */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** The field the output of the joins would ideally be sorted on: the ORDER BY field, if the ORDER BY is
+     *  ascending and sorts the joined tuples directly rather than the output of an aggregate.
+     *  @return the fully qualified name of that field, or null if there is no such field
+     */
+    String getInterestingOrder() {
+        if (!hasOrderBy || oByFields.size() > 1 || !oByAscs.get(0) || hasAgg)
+            return null;
+        return oByFields.get(0);
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -258,6 +303,13 @@ public class LogicalPlan {
 
     }
 
+    /** @return the constant of a filter, as a field of the given type */
+    private static Field filterConstant(LogicalFilterNode lf, Type type) {
+        if (type == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c).intValue());
+        return new StringField(lf.c, Type.STRING_LEN);
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -271,6 +323,57 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** The fields that the query reads from each table alias: those it filters, joins, groups, aggregates,
+     *  orders by or outputs.
+     *  @return the pure names of the fields used from each alias, or null if the query outputs every field
+     */
+    private Map<String,Set<String>> usedFields() {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        names.addAll(aggFields);
+        names.addAll(groupByFields);
+        names.addAll(oByFields);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.f2QuantifiedName);
+        }
+
+        HashMap<String,Set<String>> used = new HashMap<String,Set<String>>();
+        for (String name : names) {
+            String[] parts = name.split("[.]");
+            if (parts.length != 2 || parts[1].equals("*"))
+                return null;
+            Set<String> fields = used.get(parts[0]);
+            if (fields == null) {
+                fields = new HashSet<String>();
+                used.put(parts[0], fields);
+            }
+            fields.add(parts[1]);
+        }
+        return used;
+    }
+
+    /** Make a scan return only the given fields, if it returns others too. */
+    private static void projectScan(SeqScan scan, Set<String> pureNames) {
+        TupleDesc td = scan.getTupleDesc();
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            String name = td.getFieldName(i);
+            if (pureNames.contains(name.substring(name.indexOf('.') + 1)))
+                fields.add(i);
+        }
+        if (fields.isEmpty() || fields.size() == td.numFields())
+            return;
+        int[] projection = new int[fields.size()];
+        for (int i = 0; i < projection.length; i++)
+            projection[i] = fields.get(i);
+        scan.setProjection(projection);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -306,7 +409,55 @@ public class LogicalPlan {
 
         }
 
-        Iterator<LogicalFilterNode> filterIt = filters.iterator();        
+        // scan a table through an index instead when one of its filters is
+        // selective enough for that to read fewer pages
+        HashMap<String,LogicalFilterNode> indexFilters = new HashMap<String,LogicalFilterNode>();
+        HashMap<String,Double> indexCosts = new HashMap<String,Double>();
+        for (LogicalFilterNode lf : filters) {
+            DbIterator subplan = subplanMap.get(lf.tableAlias);
+            if (subplan == null)
+                continue;
+            int tableId = this.getTableId(lf.tableAlias);
+            int field;
+            try {
+                field = subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName);
+            } catch (NoSuchElementException e) {
+                continue;
+            }
+            BTreeFile index = Database.getCatalog().getIndex(tableId, field);
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
+            if (index == null || s == null || !BTreeFile.supports(lf.p))
+                continue;
+
+            double sel = s.estimateSelectivity(field, lf.p, filterConstant(lf, subplan.getTupleDesc().getFieldType(field)));
+            double cost = s.estimateIndexScanCost(sel, index.getKeyType());
+            Double best = indexCosts.get(lf.tableAlias);
+            if (cost < (best == null ? s.estimateScanCost() : best)) {
+                indexFilters.put(lf.tableAlias, lf);
+                indexCosts.put(lf.tableAlias, cost);
+            }
+        }
+        for (Map.Entry<String,LogicalFilterNode> e : indexFilters.entrySet()) {
+            LogicalFilterNode lf = e.getValue();
+            DbIterator subplan = subplanMap.get(lf.tableAlias);
+            int field = subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName);
+            BTreeFile index = Database.getCatalog().getIndex(this.getTableId(lf.tableAlias), field);
+            subplanMap.put(lf.tableAlias, new IndexScan(t, index, lf.tableAlias, lf.p,
+                    filterConstant(lf, subplan.getTupleDesc().getFieldType(field))));
+        }
+
+        // the remaining sequential scans only return, and so only decode,
+        // the fields that the query uses
+        Map<String,Set<String>> usedFields = usedFields();
+        if (usedFields != null) {
+            for (LogicalScanNode table : tables) {
+                DbIterator subplan = subplanMap.get(table.alias);
+                if (subplan instanceof SeqScan && usedFields.containsKey(table.alias))
+                    projectScan((SeqScan) subplan, usedFields.get(table.alias));
+            }
+        }
+
+        Iterator<LogicalFilterNode> filterIt = filters.iterator();
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
             DbIterator subplan = subplanMap.get(lf.tableAlias);
@@ -323,10 +474,7 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = filterConstant(lf, ftyp);
 
             Predicate p = null;
             try {
@@ -334,11 +482,16 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // the index scan already applies its filter
+            if (indexFilters.get(lf.tableAlias) != lf)
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // the statistics are over every field of the table, which the
+            // scan may not return
+            int tableField = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias)).fieldNameToIndex(lf.fieldPureName);
+            double sel= s.estimateSelectivity(tableField, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -349,6 +502,9 @@ public class LogicalPlan {
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
+        // the last join instantiated, and the field its output is sorted on
+        DbIterator lastJoin = null;
+        String lastJoinOrder = null;
         while (joinIt.hasNext()) {
             LogicalJoinNode lj = joinIt.next();
             DbIterator plan1;
@@ -384,6 +540,8 @@ public class LogicalPlan {
             DbIterator j;
             j = jo.instantiateJoin(lj,plan1,plan2);
             subplanMap.put(t1name, j);
+            lastJoin = j;
+            lastJoinOrder = JoinOptimizer.outputOrder(lj);
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -414,7 +572,11 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                // the aggregates follow the GROUP BY fields in the output of the Aggregate
+                int agg = aggIndex(si.aggOp, si.fname);
+                if (agg < 0)
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
+                outFields.add(groupByFields.size() + agg);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -426,16 +588,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int group = groupByFields.indexOf(si.fname);
+                    if (group < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(group);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -462,10 +625,16 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] ops = new Aggregator.Op[aggFields.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggFields.get(i));
+                    ops[i] = getAggOp(aggOps.get(i));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                aggNode = new Aggregate(node, afields, gfields, ops);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -474,9 +643,24 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        // the joins may already have sorted the tuples as the ORDER BY asks
+        boolean sorted = node == lastJoin && lastJoinOrder != null
+                && lastJoinOrder.equals(getInterestingOrder());
+        if (hasOrderBy && !sorted) {
+            int[] fields = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                ascs[i] = oByAscs.get(i);
+            }
+            // a small LIMIT only needs to keep the first rows, not sort them all
+            if (limit >= 0 && limit <= OrderBy.DEFAULT_MEMORY_TUPLES)
+                node = new TopN(fields, ascs, limit, node);
+            else
+                node = new OrderBy(fields, ascs, node);
         }
+        if (limit >= 0 && !(node instanceof TopN))
+            node = new Limit(limit, node);
 
         return new Project(outFields, outTypes, node);
     }
@@ -35,6 +35,15 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
     
     public LogicalSubplanJoinNode swapInnerOuter() {
         LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        j2.algorithm = algorithm;
+        j2.t1Sorted = t1Sorted;
+        return j2;
+    }
+
+    public LogicalSubplanJoinNode withAlgorithm(JoinAlgorithm algorithm) {
+        LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        j2.algorithm = algorithm;
+        j2.t1Sorted = t1Sorted;
         return j2;
     }
 
@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The LRU-K replacement policy of O'Neil, O'Neil and Weikum. The policy
+ * remembers the times of the last K references to each page. It evicts the
+ * page whose K-th most recent reference is oldest. Pages with fewer than K
+ * references count as infinitely old; among those, the one referenced least
+ * recently goes first.
+ * <p>
+ * Reference history is kept for a bounded number of evicted pages too, so a
+ * page that comes back soon after eviction keeps its earlier references.
+ * Pages read once by a scan never reach K references, so they are evicted
+ * before any page that is reused.
+ */
+public class LruKPolicy implements EvictionPolicy {
+
+    /** Default K; LRU-2 gets most of the benefit of larger K. */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private final int historyCapacity;
+    private long clock = 0;
+
+    // Reference times per page, most recent first. Holds cached pages and,
+    // in access order, the history of recently evicted pages.
+    private final HashMap<PageId, long[]> history = new HashMap<PageId, long[]>();
+    private final HashSet<PageId> cached = new HashSet<PageId>();
+    private final LinkedHashSet<PageId> evicted = new LinkedHashSet<PageId>();
+
+    /**
+     * Creates an LRU-2 policy that keeps history for up to numPages evicted
+     * pages.
+     */
+    public LruKPolicy(int numPages) {
+        this(DEFAULT_K, Math.max(1, numPages));
+    }
+
+    /**
+     * @param k               the number of references remembered per page
+     * @param historyCapacity the number of evicted pages whose history is kept
+     */
+    public LruKPolicy(int k, int historyCapacity) {
+        if (k < 1)
+            throw new IllegalArgumentException("K must be at least 1");
+        this.k = k;
+        this.historyCapacity = historyCapacity;
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        cached.add(pid);
+        evicted.remove(pid);
+        if (!history.containsKey(pid))
+            history.put(pid, new long[k]);
+    }
+
+    public synchronized void pageReferenced(PageId pid) {
+        long[] times = history.get(pid);
+        if (times == null)
+            return;
+        System.arraycopy(times, 0, times, 1, k - 1);
+        times[0] = ++clock;
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (!cached.remove(pid))
+            return;
+        evicted.add(pid);
+        if (evicted.size() > historyCapacity) {
+            Iterator<PageId> it = evicted.iterator();
+            history.remove(it.next());
+            it.remove();
+        }
+    }
+
+    public synchronized PageId chooseVictim(Set<PageId> skip) {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+        for (PageId pid : cached) {
+            if (skip.contains(pid))
+                continue;
+            long[] times = history.get(pid);
+            // 0 means fewer than K references, i.e. infinitely old
+            long kth = times[k - 1];
+            long last = times[0];
+            if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+                victim = pid;
+                victimKth = kth;
+                victimLast = last;
+            }
+        }
+        return victim;
+    }
+}
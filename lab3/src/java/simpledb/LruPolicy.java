@@ -0,0 +1,36 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Evicts the least recently referenced page. This was the BufferPool's only
+ * policy before policies became pluggable and is still the default. It is
+ * not scan resistant: a scan larger than the buffer pool evicts every other
+ * page.
+ */
+public class LruPolicy implements EvictionPolicy {
+
+    // access-ordered, so the least recently referenced page comes first
+    private final LinkedHashMap<PageId, Boolean> pages =
+            new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    public synchronized void pageLoaded(PageId pid) {
+        pages.put(pid, Boolean.TRUE);
+    }
+
+    public synchronized void pageReferenced(PageId pid) {
+        pages.get(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        pages.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Set<PageId> skip) {
+        for (PageId pid : pages.keySet()) {
+            if (!skip.contains(pid))
+                return pid;
+        }
+        return null;
+    }
+}
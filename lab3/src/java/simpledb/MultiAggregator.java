@@ -0,0 +1,241 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Computes any number of aggregates at once, grouped by any number of
+ * fields. All of the aggregates share one {@link GroupTable}, so each row is
+ * looked up once however many aggregates there are. Each group keeps a
+ * count, and each aggregate keeps only the running state its operator needs,
+ * in primitive arrays indexed by group number.
+ * <p>
+ * INT_TYPE fields support every operator; other fields only COUNT.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_GROUPS = 16;
+
+    private final int[] gbfields;
+    private final int[] afields;
+    private final Op[] ops;
+    private final TupleDesc td;
+
+    private final GroupTable groups;
+    // rows in group g, at index g
+    private int[] counts;
+    // the running state of aggregate i of group g, at [i][g]; null for
+    // aggregates whose operator does not need it. Minimums start at
+    // Integer.MAX_VALUE and maximums at Integer.MIN_VALUE.
+    private long[][] sums;
+    private int[][] mins;
+    private int[][] maxs;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple,
+     *            most significant first; empty if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param aftypes
+     *            the types of the aggregate fields
+     * @param ops
+     *            the aggregation operator of each aggregate field
+     * @throws IllegalArgumentException
+     *             if the arrays of a pair differ in length, or an operator
+     *             other than COUNT is applied to a field that is not an
+     *             INT_TYPE
+     */
+    public MultiAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] aftypes, Op[] ops) {
+        if (gbfields.length != gbfieldtypes.length)
+            throw new IllegalArgumentException("Need one type for each group-by field");
+        if (afields.length != aftypes.length || afields.length != ops.length)
+            throw new IllegalArgumentException("Need one type and operator for each aggregate field");
+        this.gbfields = gbfields.clone();
+        this.afields = afields.clone();
+        this.ops = ops.clone();
+        this.groups = new GroupTable(gbfieldtypes);
+
+        Type[] outTypes = new Type[gbfields.length + afields.length];
+        System.arraycopy(gbfieldtypes, 0, outTypes, 0, gbfields.length);
+
+        counts = new int[INITIAL_GROUPS];
+        sums = new long[afields.length][];
+        mins = new int[afields.length][];
+        maxs = new int[afields.length][];
+        for (int i = 0; i < afields.length; i++) {
+            outTypes[gbfields.length + i] = Type.INT_TYPE;
+            if (aftypes[i] != Type.INT_TYPE) {
+                if (ops[i] != Op.COUNT)
+                    throw new IllegalArgumentException("Only COUNT is supported over " + aftypes[i]);
+                continue;
+            }
+            if (ops[i] == Op.SUM || ops[i] == Op.AVG)
+                sums[i] = new long[INITIAL_GROUPS];
+            else if (ops[i] == Op.MIN)
+                mins[i] = filled(INITIAL_GROUPS, Integer.MAX_VALUE);
+            else if (ops[i] == Op.MAX)
+                maxs[i] = filled(INITIAL_GROUPS, Integer.MIN_VALUE);
+        }
+        td = new TupleDesc(outTypes);
+    }
+
+    public void mergeTupleIntoGroup(Tuple tup) {
+        Field[] key = new Field[gbfields.length];
+        for (int j = 0; j < key.length; j++)
+            key[j] = tup.getField(gbfields[j]);
+        int g = groups.groupOf(key);
+        if (g == counts.length)
+            grow();
+        for (int i = 0; i < afields.length; i++) {
+            if (needsValue(i))
+                merge(i, g, ((IntField) tup.getField(afields[i])).getValue());
+        }
+        counts[g]++;
+    }
+
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        mergeBatchIntoGroup(batch, Integer.MAX_VALUE, null);
+    }
+
+    public int mergeBatchIntoGroup(TupleBatch batch, int maxGroups, boolean[] rejected) {
+        // look up each row once, then update the aggregates a column at a time
+        int[] rowGroups = new int[batch.size()];
+        int n = 0;
+        for (int row = 0; row < batch.size(); row++) {
+            int g = groups.find(batch, gbfields, row);
+            if (g < 0 && groups.size() < maxGroups)
+                g = groups.groupOf(batch, gbfields, row);
+            if (rejected != null)
+                rejected[row] = g < 0;
+            rowGroups[row] = g;
+            if (g < 0) {
+                n++;
+                continue;
+            }
+            if (g == counts.length)
+                grow();
+            counts[g]++;
+        }
+
+        for (int i = 0; i < afields.length; i++) {
+            if (!needsValue(i))
+                continue;
+            int[] values = batch.getIntColumn(afields[i]);
+            for (int row = 0; row < batch.size(); row++) {
+                if (rowGroups[row] >= 0)
+                    merge(i, rowGroups[row], values[row]);
+            }
+        }
+        return n;
+    }
+
+    public int numGroups() {
+        return groups.size();
+    }
+
+    public void mergePartial(Aggregator partial) {
+        MultiAggregator other = (MultiAggregator) partial;
+        for (int og = 0; og < other.groups.size(); og++) {
+            if (other.counts[og] == 0)
+                continue; // no input without grouping
+            int g = groups.groupOf(other.groups, og);
+            if (g == counts.length)
+                grow();
+            for (int i = 0; i < afields.length; i++) {
+                if (sums[i] != null)
+                    sums[i][g] += other.sums[i][og];
+                if (mins[i] != null)
+                    mins[i][g] = Math.min(mins[i][g], other.mins[i][og]);
+                if (maxs[i] != null)
+                    maxs[i][g] = Math.max(maxs[i][g], other.maxs[i][og]);
+            }
+            counts[g] += other.counts[og];
+        }
+    }
+
+    /**
+     * @return a DbIterator whose tuples are the group-by values of each
+     *         group, followed by the value of each aggregate. Without
+     *         grouping, there is a single tuple of the aggregates.
+     */
+    public DbIterator iterator() {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        int width = gbfields.length;
+        for (int g = 0; g < groups.size(); g++) {
+            Tuple t = new Tuple(td);
+            for (int j = 0; j < width; j++)
+                t.setField(j, groups.value(g, j));
+            for (int i = 0; i < afields.length; i++)
+                t.setField(width + i, new IntField(aggregate(i, g)));
+            tuples.add(t);
+        }
+        return new TupleIterator(td, tuples);
+    }
+
+    // true if aggregate i reads the values of its field
+    private boolean needsValue(int i) {
+        return sums[i] != null || mins[i] != null || maxs[i] != null;
+    }
+
+    // adds a value of aggregate i to group g
+    private void merge(int i, int g, int value) {
+        if (sums[i] != null)
+            sums[i][g] += value;
+        else if (mins[i] != null)
+            mins[i][g] = Math.min(mins[i][g], value);
+        else
+            maxs[i][g] = Math.max(maxs[i][g], value);
+    }
+
+    private int aggregate(int i, int g) {
+        if (g >= counts.length || counts[g] == 0)
+            return 0;
+        switch (ops[i]) {
+        case COUNT:
+            return counts[g];
+        case SUM:
+            return (int) sums[i][g];
+        case AVG:
+            return (int) (sums[i][g] / counts[g]);
+        case MIN:
+            return mins[i][g];
+        case MAX:
+            return maxs[i][g];
+        default:
+            return 0;
+        }
+    }
+
+    // make room for twice as many groups
+    private void grow() {
+        int old = counts.length;
+        int n = old * 2;
+        counts = Arrays.copyOf(counts, n);
+        for (int i = 0; i < afields.length; i++) {
+            if (sums[i] != null)
+                sums[i] = Arrays.copyOf(sums[i], n);
+            if (mins[i] != null) {
+                mins[i] = Arrays.copyOf(mins[i], n);
+                Arrays.fill(mins[i], old, n, Integer.MAX_VALUE);
+            }
+            if (maxs[i] != null) {
+                maxs[i] = Arrays.copyOf(maxs[i], n);
+                Arrays.fill(maxs[i], old, n, Integer.MIN_VALUE);
+            }
+        }
+    }
+
+    private static int[] filled(int n, int value) {
+        int[] a = new int[n];
+        Arrays.fill(a, value);
+        return a;
+    }
+}
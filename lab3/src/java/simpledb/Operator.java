@@ -6,8 +6,12 @@ import java.util.NoSuchElementException;
  * Abstract class for implementing operators. It handles <code>close</code>,
  * <code>next</code> and <code>hasNext</code>. Subclasses only need to implement
  * <code>open</code> and <code>readNext</code>.
+ * <p>
+ * Operators also implement <code>nextBatch</code>. By default it collects
+ * tuples from <code>fetchNext</code>; subclasses that can process a batch at
+ * once override <code>fetchNextBatch</code>.
  */
-public abstract class Operator implements DbIterator {
+public abstract class Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -44,6 +48,41 @@ public abstract class Operator implements DbIterator {
     protected abstract Tuple fetchNext() throws DbException,
             TransactionAbortedException;
 
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+
+        if (next != null) {
+            // hasNext() already fetched a tuple
+            TupleBatch batch = new TupleBatch(getTupleDesc());
+            batch.addTuple(next);
+            next = null;
+            return batch;
+        }
+        return fetchNextBatch();
+    }
+
+    /**
+     * Returns the next batch of tuples, or null if the iteration is finished.
+     * Operator uses this method to implement <code>nextBatch</code>. The
+     * default implementation collects up to TupleBatch.DEFAULT_CAPACITY
+     * tuples from <code>fetchNext</code>.
+     * 
+     * @return a non-empty batch, or null if the iteration is finished.
+     */
+    protected TupleBatch fetchNextBatch() throws DbException,
+            TransactionAbortedException {
+        Tuple t = fetchNext();
+        if (t == null)
+            return null;
+        TupleBatch batch = new TupleBatch(getTupleDesc());
+        batch.addTuple(t);
+        while (!batch.isFull() && (t = fetchNext()) != null)
+            batch.addTuple(t);
+        return batch;
+    }
+
     /**
      * Closes this iterator. If overridden by a subclass, they should call
      * super.close() in order for Operator's internal state to be consistent.
@@ -1,24 +1,49 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * Tuples are sorted in memory until more than a budget of tuples has been
+ * read. From then on the child is sorted externally: each full buffer is
+ * sorted and written to disk as a run, and the runs are combined with a
+ * k-way merge, in several passes if there are more than MERGE_FAN_IN of
+ * them. The last run is merged straight from memory. The sort is stable.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Number of tuples held in memory unless another budget is given. */
+    public static final int DEFAULT_MEMORY_TUPLES = 100000;
+
+    /** The greatest number of runs merged at once. */
+    public static final int MERGE_FAN_IN = 64;
+
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
+    private int[] orderByFields;
+    private boolean[] ascs;
     private int orderByField;
     private String orderByFieldName;
     private Iterator<Tuple> it;
     private boolean asc;
+    private final int memoryTuples;
+    private TupleComparator comparator;
+
+    // the runs written to disk; childTups holds the last run if there are any
+    transient private ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    transient private int numRuns = 0;
+    // the merge of the runs, ordered by their next tuple
+    transient private ArrayList<RunCursor> cursors = null;
+    transient private PriorityQueue<RunCursor> merge = null;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -27,28 +52,88 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields, holding up to
+     * DEFAULT_MEMORY_TUPLES tuples in memory.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
+        this(orderbyFields, asc, child, DEFAULT_MEMORY_TUPLES);
+    }
+
+    /**
+     * Creates a new OrderBy node with a given memory budget.
+     *
+     * @param memoryTuples
+     *            the number of tuples to sort in memory before spilling a
+     *            run to disk.
+     * @see #OrderBy(int[], boolean[], DbIterator)
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child,
+            int memoryTuples) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("Need one sort order for each of at least one field");
+        if (memoryTuples < 1)
+            throw new IllegalArgumentException("memoryTuples must be positive");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.orderByField = orderbyFields[0];
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.asc = asc[0];
+        this.memoryTuples = memoryTuples;
+        this.comparator = new TupleComparator(this.orderByFields, this.ascs);
     }
-    
+
     public boolean isASC()
     {
 	return this.asc;
     }
-    
+
     public int getOrderByField()
     {
         return this.orderByField;
     }
-    
+
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
-    
+
+    /**
+     * @return the fields the tuples are sorted on, most significant first.
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for each of the fields returned by getOrderByFields, true if
+     *         it is sorted in ascending order.
+     */
+    public boolean[] getAscending() {
+        return ascs.clone();
+    }
+
+    /**
+     * @return the number of sorted runs the last call to open wrote to disk;
+     *         0 if the child was sorted in memory.
+     */
+    public int numRuns() {
+        return numRuns;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -56,32 +141,153 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        childTups.clear();
+        deleteRuns();
+        numRuns = 0;
+        // load the tuples in a collection, spilling sorted runs when it is full
+        try {
+            while (child.hasNext()) {
+                childTups.add((Tuple) child.next());
+                if (childTups.size() == memoryTuples)
+                    spillRun();
+            }
+            Collections.sort(childTups, comparator);
+            numRuns = runs.size();
+            while (runs.size() >= MERGE_FAN_IN)
+                mergeRuns();
+        } catch (IOException e) {
+            throw new DbException("Could not write sorted run: " + e.getMessage());
+        }
+        startMerge();
         super.open();
     }
 
+    private void spillRun() throws IOException {
+        Collections.sort(childTups, comparator);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : childTups)
+            run.add(t);
+        run.finish();
+        runs.add(run);
+        childTups.clear();
+    }
+
+    /**
+     * Merges each group of MERGE_FAN_IN consecutive runs into a single run.
+     * The runs stay in input order, so that the sort stays stable.
+     */
+    private void mergeRuns() throws IOException, DbException,
+            TransactionAbortedException {
+        ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+        for (int first = 0; first < runs.size(); first += MERGE_FAN_IN) {
+            List<SpillFile> group = runs.subList(first, Math.min(first + MERGE_FAN_IN, runs.size()));
+            if (group.size() == 1) {
+                merged.add(group.get(0));
+                continue;
+            }
+            ArrayList<RunCursor> batch = new ArrayList<RunCursor>();
+            for (SpillFile run : group)
+                batch.add(new RunCursor(batch.size(), run.iterator(), null));
+            PriorityQueue<RunCursor> queue = openCursors(batch);
+            SpillFile run = new SpillFile(td);
+            while (!queue.isEmpty())
+                run.add(nextMerged(queue));
+            run.finish();
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).close();
+                group.get(i).delete();
+            }
+            merged.add(run);
+        }
+        runs = merged;
+    }
+
+    /**
+     * Positions the output at the first tuple: of childTups if everything was
+     * sorted in memory, otherwise of the merge of the runs and childTups.
+     */
+    private void startMerge() throws DbException, TransactionAbortedException {
+        if (runs.isEmpty()) {
+            it = childTups.iterator();
+            return;
+        }
+        cursors = new ArrayList<RunCursor>();
+        try {
+            for (SpillFile run : runs)
+                cursors.add(new RunCursor(cursors.size(), run.iterator(), null));
+        } catch (IOException e) {
+            throw new DbException("Could not read sorted run: " + e.getMessage());
+        }
+        cursors.add(new RunCursor(cursors.size(), null, childTups));
+        merge = openCursors(cursors);
+    }
+
+    private PriorityQueue<RunCursor> openCursors(List<RunCursor> runCursors)
+            throws DbException, TransactionAbortedException {
+        PriorityQueue<RunCursor> queue = new PriorityQueue<RunCursor>(
+                runCursors.size(), new Comparator<RunCursor>() {
+                    public int compare(RunCursor a, RunCursor b) {
+                        int c = comparator.compare(a.head, b.head);
+                        // ties go to the earlier run, which keeps the sort stable
+                        return c != 0 ? c : a.index - b.index;
+                    }
+                });
+        for (RunCursor c : runCursors) {
+            c.open();
+            if (c.head != null)
+                queue.add(c);
+        }
+        return queue;
+    }
+
+    private static Tuple nextMerged(PriorityQueue<RunCursor> queue)
+            throws DbException, TransactionAbortedException {
+        RunCursor c = queue.poll();
+        Tuple t = c.head;
+        if (c.advance())
+            queue.add(c);
+        return t;
+    }
+
+    private void closeMerge() {
+        if (cursors != null) {
+            for (RunCursor c : cursors)
+                c.close();
+        }
+        cursors = null;
+        merge = null;
+    }
+
+    private void deleteRuns() {
+        closeMerge();
+        for (SpillFile run : runs)
+            run.delete();
+        runs.clear();
+    }
+
     public void close() {
         super.close();
         it = null;
+        deleteRuns();
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        closeMerge();
+        startMerge();
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merge != null)
+            return merge.isEmpty() ? null : nextMerged(merge);
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -98,26 +304,45 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
+    /**
+     * The next tuple of one sorted run during a merge. A run is either a
+     * spill file or the tuples still in memory.
+     */
+    private static class RunCursor {
+        // position of the run in the input, to break ties between runs
+        final int index;
+        final DbIterator spilled;
+        final List<Tuple> inMemory;
+        Iterator<Tuple> memoryIt;
+        Tuple head;
 
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+        RunCursor(int index, DbIterator spilled, List<Tuple> inMemory) {
+            this.index = index;
+            this.spilled = spilled;
+            this.inMemory = inMemory;
+        }
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
+        void open() throws DbException, TransactionAbortedException {
+            if (spilled != null)
+                spilled.open();
+            else
+                memoryIt = inMemory.iterator();
+            advance();
+        }
+
+        /** Moves head to the next tuple of the run; returns false at its end. */
+        boolean advance() throws DbException, TransactionAbortedException {
+            if (spilled != null)
+                head = spilled.hasNext() ? spilled.next() : null;
+            else
+                head = memoryIt.hasNext() ? memoryIt.next() : null;
+            return head != null;
+        }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        void close() {
+            if (spilled != null)
+                spilled.close();
+        }
     }
-    
+
 }
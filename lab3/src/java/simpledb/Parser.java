@@ -5,6 +5,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -183,23 +185,20 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
+                lp.addGroupBy(groupByField);
             }
 
         }
@@ -208,8 +207,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -219,20 +217,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField, null);
+                hasAgg = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -242,30 +238,24 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
-        }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -277,10 +267,22 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, -1);
+    }
+
+    /**
+     * Plans a query that returns at most limit rows, or all of its rows if
+     * limit is negative.
+     */
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
         // and run it
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.setLimit(limit);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -467,14 +469,160 @@ public class Parser {
         }
     }
 
+    // LOAD tablename FROM 'file' [DELIMITER 'c'], which Zql does not parse
+    static final Pattern LOAD_STATEMENT = Pattern.compile(
+            "\\s*load\\s+(\\w+)\\s+from\\s+'([^']*)'(?:\\s+delimiter\\s+'(.)')?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    // CREATE INDEX ON tablename (field), which Zql does not parse
+    static final Pattern CREATE_INDEX_STATEMENT = Pattern.compile(
+            "\\s*create\\s+index\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * A LIMIT clause at the end of a query, which Zql does not parse. It is
+     * cut off by {@link #splitLimit} before the query is handed to Zql.
+     */
+    static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+limit\\s+(\\d+)\\s*;?\\s*$", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern SELECT_STATEMENT = Pattern.compile(
+            "\\s*select\\s.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /** A statement with its LIMIT clause cut off, and the limit. */
+    static class LimitSplit {
+        /** the statement without the LIMIT clause */
+        final String statement;
+        /** the limit, or -1 if the statement had no LIMIT clause */
+        final int limit;
+
+        LimitSplit(String statement, int limit) {
+            this.statement = statement;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * Cuts the LIMIT clause off the end of a SELECT statement. A LIMIT inside
+     * a quoted string is part of the string, not a clause.
+     *
+     * @return the statement ending in ';' without its LIMIT clause, and the
+     *         limit; or the statement unchanged and -1 if it has no LIMIT
+     *         clause
+     */
+    static LimitSplit splitLimit(String s) {
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!SELECT_STATEMENT.matcher(s).matches() || !m.find())
+            return new LimitSplit(s, -1);
+        // an odd number of quotes before the match opens a string literal
+        int quotes = 0;
+        for (int i = 0; i < m.start(); i++) {
+            if (s.charAt(i) == '\'')
+                quotes++;
+        }
+        if (quotes % 2 != 0)
+            return new LimitSplit(s, -1);
+        return new LimitSplit(s.substring(0, m.start()) + ";", Integer.parseInt(m.group(1)));
+    }
+
+    /**
+     * Bulk loads a delimited text file into a table with
+     * {@link HeapFile#bulkLoad}, rebuilds the indexes over the table,
+     * then recomputes the statistics of the table and reports the load
+     * rate. The load bypasses the buffer pool and is not part of any
+     * transaction.
+     */
+    public void handleLoadStatement(String tableName, String fileName,
+            char fieldSeparator) throws DbException, IOException,
+            TransactionAbortedException, simpledb.ParsingException {
+        if (inUserTrans)
+            throw new simpledb.ParsingException(
+                    "LOAD cannot be run inside a transaction");
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(tableName);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table " + tableName);
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof HeapFile))
+            throw new DbException("LOAD only supports heap files");
+        File in = new File(fileName);
+        if (!in.exists())
+            throw new simpledb.ParsingException("Unable to find data file "
+                    + fileName);
+
+        long startTime = System.nanoTime();
+        long rows = ((HeapFile) f).bulkLoad(in, fieldSeparator);
+        // the loaded rows bypassed the index maintenance of the buffer pool
+        for (BTreeFile index : Database.getCatalog().getIndexes(tableId))
+            index.build();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        TableStats.setTableStats(tableName, new TableStats(tableId,
+                TableStats.IOCOSTPERPAGE));
+        System.out.printf("Loaded %d rows into %s in %.2f seconds (%.0f rows/s)\n",
+                rows, tableName, seconds, rows / Math.max(seconds, 1e-9));
+    }
+
+    /**
+     * Builds a B+ tree index over a field of a table with
+     * {@link BTreeFile#build}, stored next to the table's file as
+     * <tt>table.field.idx</tt> like the indexes of a schema file, and adds
+     * it to the catalog. The build bypasses the buffer pool and is not part
+     * of any transaction.
+     */
+    public void handleCreateIndexStatement(String tableName, String fieldName)
+            throws DbException, IOException, TransactionAbortedException,
+            simpledb.ParsingException {
+        if (inUserTrans)
+            throw new simpledb.ParsingException(
+                    "CREATE INDEX cannot be run inside a transaction");
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(tableName);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table " + tableName);
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof HeapFile))
+            throw new DbException("CREATE INDEX only supports heap files");
+        int field;
+        try {
+            field = f.getTupleDesc().fieldNameToIndex(fieldName);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown field " + fieldName
+                    + " in " + tableName);
+        }
+        if (Database.getCatalog().getIndex(tableId, field) != null)
+            throw new simpledb.ParsingException(tableName + "." + fieldName
+                    + " is already indexed");
+
+        File heapFile = ((HeapFile) f).getFile().getAbsoluteFile();
+        File idxFile = new File(heapFile.getParentFile(), tableName + "."
+                + fieldName + ".idx");
+        long startTime = System.nanoTime();
+        BTreeFile index = new BTreeFile(idxFile, field, f);
+        index.build();
+        Database.getCatalog().addIndex(index);
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("Built index %s over %d pages in %.2f seconds\n",
+                idxFile.getName(), index.numPages(), seconds);
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
+        LimitSplit split = splitLimit(s);
+        s = split.statement;
+        int limit = split.limit;
         ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limit >= 0)
+                    lp.setLimit(limit);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -507,6 +655,22 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
+            byte[] statement = readStatement(is);
+            Matcher load = LOAD_STATEMENT.matcher(new String(statement, "UTF-8"));
+            if (load.matches()) {
+                char separator = load.group(3) == null ? ',' : load.group(3).charAt(0);
+                handleLoadStatement(load.group(1), load.group(2), separator);
+                return;
+            }
+            Matcher createIndex = CREATE_INDEX_STATEMENT.matcher(new String(statement, "UTF-8"));
+            if (createIndex.matches()) {
+                handleCreateIndexStatement(createIndex.group(1), createIndex.group(2));
+                return;
+            }
+            LimitSplit split = splitLimit(new String(statement, "UTF-8"));
+            int limit = split.limit;
+            is = new ByteArrayInputStream(split.statement.getBytes("UTF-8"));
+
             ZqlParser p = new ZqlParser(is);
             ZStatement s = p.readStatement();
 
@@ -529,15 +693,22 @@ public class Parser {
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
+                                curtrans.getId(), limit);
                     else {
                         System.out
                                 .println("Can't parse "
                                         + s
                                         + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
                     }
-                    if (query != null)
+                    if (query != null) {
                         query.execute();
+                        // with what was measured while it ran, such as spills
+                        if (explain && s instanceof ZQuery && query.getPhysicalPlan() != null) {
+                            System.out.println("The executed query plan is:");
+                            new QueryPlanVisualizer().printQueryPlanTree(
+                                    query.getPhysicalPlan(), System.out);
+                        }
+                    }
 
                     if (!inUserTrans && curtrans != null) {
                         curtrans.commit();
@@ -582,14 +753,23 @@ public class Parser {
         }
     }
 
+    private static byte[] readStatement(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) > 0)
+            bytes.write(buf, 0, n);
+        return bytes.toByteArray();
+    }
+
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "load", "limit", "create index" };
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 5) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -599,7 +779,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-batch] [-f queryFile]";
 
     protected void shutdown() {
         System.out.println("Bye");
@@ -619,6 +799,9 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-batch")) {
+                    Query.setBatchMode(true);
+                    System.out.println("Batch execution enabled.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * PaxFile is a HeapFile whose pages are {@link PaxPage}s, which store their
+ * tuples column by column. It holds the same tuples per page as a HeapFile
+ * of the same table, and supports everything a HeapFile does, including
+ * memory mapping, bulk loads, and the free-space and zone maps.
+ * <p>
+ * Tables that are mostly scanned for a few of many fields benefit from it:
+ * a {@link SeqScan} that projects some fields decodes only their
+ * mini-pages. Choose it for a table by adding <tt>pax</tt> after the field
+ * list of the table in the catalog file, or by adding a PaxFile to the
+ * {@link Catalog} directly.
+ *
+ * @see PaxPage
+ */
+public class PaxFile extends HeapFile {
+
+    /**
+     * Constructs a PAX file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this file.
+     */
+    public PaxFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    /**
+     * Constructs a PAX file backed by the specified file.
+     *
+     * @see HeapFile#HeapFile(File, TupleDesc, boolean)
+     */
+    public PaxFile(File f, TupleDesc td, boolean memoryMapped) {
+        super(f, td, memoryMapped);
+    }
+
+    HeapPage newPage(HeapPageId pid, byte[] data) throws IOException {
+        return new PaxPage(pid, data);
+    }
+
+    HeapPage newPage(HeapPageId pid, ByteBuffer data) throws IOException {
+        return new PaxPage(pid, data);
+    }
+
+    OutputStream pageOutput(OutputStream os) {
+        return new PageConverter(os, getTupleDesc());
+    }
+
+    /**
+     * Converts a stream of HeapPages into a stream of PaxPages, a page at a
+     * time.
+     */
+    private static class PageConverter extends FilterOutputStream {
+        private final TupleDesc td;
+        private final byte[] page = new byte[BufferPool.getPageSize()];
+        private int filled = 0;
+
+        PageConverter(OutputStream out, TupleDesc td) {
+            super(out);
+            this.td = td;
+        }
+
+        public void write(int b) throws IOException {
+            page[filled++] = (byte) b;
+            if (filled == page.length)
+                writePage();
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, page.length - filled);
+                System.arraycopy(b, off, page, filled, n);
+                filled += n;
+                off += n;
+                len -= n;
+                if (filled == page.length)
+                    writePage();
+            }
+        }
+
+        private void writePage() throws IOException {
+            out.write(PaxPage.fromHeapPageData(page, td));
+            filled = 0;
+        }
+
+        public void flush() throws IOException {
+            if (filled != 0)
+                throw new IOException("partial page of " + filled + " bytes");
+            out.flush();
+        }
+    }
+}
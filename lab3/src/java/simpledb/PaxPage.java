@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * PaxPage is a page of a {@link PaxFile}. It holds as many tuples as a
+ * {@link HeapPage} of the same table, behind the same header of used slots,
+ * but stores them column by column (the PAX layout): after the header, each
+ * field has a mini-page holding the values of that field for every slot, in
+ * slot order.
+ * <p>
+ * A scan that reads some of the fields of a table only decodes, and only
+ * walks the memory of, their mini-pages.
+ *
+ * @see PaxFile
+ */
+public class PaxPage extends HeapPage {
+
+    /**
+     * Create a PaxPage from a set of bytes of data read from disk. The
+     * number of slots and the header are as described in
+     * {@link HeapPage#HeapPage(HeapPageId, byte[])}; the mini-page of field
+     * i follows the mini-pages of the fields before it, and holds
+     * numSlots values of the size of field i.
+     */
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data), Database.getCatalog().getTupleDesc(id.getTableId()), false);
+    }
+
+    /**
+     * Create a PaxPage directly over a buffer of page data, such as a slice
+     * of a memory-mapped file. See {@link HeapPage#HeapPage(HeapPageId, ByteBuffer)}.
+     */
+    public PaxPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()), true);
+    }
+
+    private PaxPage(HeapPageId id, ByteBuffer data, TupleDesc td, boolean mapped) throws IOException {
+        super(id, data, td, mapped);
+    }
+
+    /**
+     * @return the offset of field i of slot 0, the start of its mini-page.
+     */
+    int fieldBase(int i) {
+        return headerSize + numSlots * td.getFieldOffset(i);
+    }
+
+    /**
+     * @return the size of field i; its values are next to each other.
+     */
+    int fieldStride(int i) {
+        return td.getFieldType(i).getLen();
+    }
+
+    HeapPage newPage(HeapPageId id, ByteBuffer data, TupleDesc td) throws IOException {
+        return new PaxPage(id, data, td, false);
+    }
+
+    /**
+     * Converts the data of a HeapPage into the data of a PaxPage holding the
+     * same tuples in the same slots.
+     *
+     * @param heapPageData
+     *            the page in the layout of a HeapPage; it is not changed.
+     * @param td
+     *            the schema of the tuples of the page
+     * @return the page in the layout of a PaxPage
+     */
+    public static byte[] fromHeapPageData(byte[] heapPageData, TupleDesc td) {
+        int pageSize = heapPageData.length;
+        int tupleSize = td.getSize();
+        int numSlots = (pageSize * 8) / (tupleSize * 8 + 1);
+        int headerSize = (numSlots + 7) / 8;
+
+        byte[] pax = new byte[pageSize];
+        System.arraycopy(heapPageData, 0, pax, 0, headerSize);
+        for (int i = 0; i < td.numFields(); i++) {
+            int offset = td.getFieldOffset(i);
+            int len = td.getFieldType(i).getLen();
+            int from = headerSize + offset;
+            int to = headerSize + numSlots * offset;
+            for (int slot = 0; slot < numSlots; slot++)
+                System.arraycopy(heapPageData, from + slot * tupleSize, pax, to + slot * len, len);
+        }
+        return pax;
+    }
+}
@@ -4,11 +4,17 @@ import java.util.Set;
 import java.util.Vector;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to order a given set of joins.  Besides the cheapest plan for each set
+ * it keeps the cheapest plan for each sort order of the output (its
+ * "interesting orders"), since a more expensive plan whose output is
+ * already sorted can save a sort later on */
 public class PlanCache {
     HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
     HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
     HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
+    HashMap<Set<LogicalJoinNode>,JoinAlgorithm> bestAlgorithms = new HashMap<Set<LogicalJoinNode>,JoinAlgorithm>();
+    HashMap<Set<LogicalJoinNode>,String> bestSortOrders = new HashMap<Set<LogicalJoinNode>,String>();
+    HashMap<Set<LogicalJoinNode>,HashMap<String,CostCard>> orderedPlans = new HashMap<Set<LogicalJoinNode>,HashMap<String,CostCard>>();
     
     /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
@@ -19,9 +25,83 @@ public class PlanCache {
         @param order the ordering of the joins in the plan
     */
     void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order) {
+        JoinAlgorithm algorithm = order.isEmpty() ? null : order.lastElement().algorithm;
+        addPlan(s, cost, card, order, algorithm);
+    }
+
+    /** Add a new cost, cardinality and ordering for a particular join set, along with the
+        algorithm chosen for the last join of the ordering.
+        @param algorithm the algorithm used to evaluate the last join in order
+    */
+    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order, JoinAlgorithm algorithm) {
         bestOrders.put(s,order);                        
         bestCosts.put(s,cost);
         bestCardinalities.put(s,card);
+        bestAlgorithms.put(s,algorithm);
+        bestSortOrders.remove(s);
+    }
+
+    /** Add a new plan for a particular join set, as described by a {@link CostCard}, replacing
+        any existing plan for the set.
+        @param s the set of joins for which a new plan is being added
+        @param cc the cost, cardinality, ordering, algorithm and sort order of the plan
+    */
+    void addPlan(Set<LogicalJoinNode> s, CostCard cc) {
+        addPlan(s, cc.cost, cc.card, cc.plan, cc.algorithm);
+        if (cc.sortOrder != null)
+            bestSortOrders.put(s, cc.sortOrder);
+    }
+
+    /** Add a plan whose output is sorted on cc.sortOrder for a particular join set, unless a cheaper
+        plan with the same sort order has been added already.
+        @param s the set of joins the plan is for
+        @param cc the plan; cc.sortOrder must not be null
+    */
+    void addOrderedPlan(Set<LogicalJoinNode> s, CostCard cc) {
+        HashMap<String,CostCard> plans = orderedPlans.get(s);
+        if (plans == null) {
+            plans = new HashMap<String,CostCard>();
+            orderedPlans.put(s, plans);
+        }
+        CostCard old = plans.get(cc.sortOrder);
+        if (old == null || cc.cost < old.cost)
+            plans.put(cc.sortOrder, cc);
+    }
+
+    /** Find the cheapest plan in the cache for the specified join set whose output is sorted on a field
+        @param s the set of joins to look up
+        @param sortOrder the quantified name of the field
+        @return the plan, or null if no such plan has been added
+    */
+    CostCard getOrderedPlan(Set<LogicalJoinNode> s, String sortOrder) {
+        HashMap<String,CostCard> plans = orderedPlans.get(s);
+        return plans == null ? null : plans.get(sortOrder);
+    }
+
+    /** Find the plans for the specified join set that are worth extending with another join: the best
+        plan, followed by the cheapest plan for each other sort order
+        @param s the set of joins to look up
+        @return the plans; empty if there is no plan for s in the cache
+    */
+    Vector<CostCard> getPlans(Set<LogicalJoinNode> s) {
+        Vector<CostCard> plans = new Vector<CostCard>();
+        if (!bestOrders.containsKey(s))
+            return plans;
+        CostCard best = new CostCard();
+        best.cost = getCost(s);
+        best.card = getCard(s);
+        best.plan = getOrder(s);
+        best.algorithm = getAlgorithm(s);
+        best.sortOrder = getSortOrder(s);
+        plans.add(best);
+        HashMap<String,CostCard> ordered = orderedPlans.get(s);
+        if (ordered != null) {
+            for (CostCard cc : ordered.values()) {
+                if (!cc.sortOrder.equals(best.sortOrder))
+                    plans.add(cc);
+            }
+        }
+        return plans;
     }
     
     /** Find the best join order in the cache for the specified plan 
@@ -47,4 +127,20 @@ public class PlanCache {
     int getCard(Set<LogicalJoinNode> s) {
         return bestCardinalities.get(s);
     }
+
+    /** Find the algorithm chosen for the last join of the best join order in the cache for the specified plan
+        @param s the set of joins to look up the algorithm for
+        @return the algorithm of the last join of the best order for s in the cache
+    */
+    JoinAlgorithm getAlgorithm(Set<LogicalJoinNode> s) {
+        return bestAlgorithms.get(s);
+    }
+
+    /** Find the field the output of the best join order in the cache for the specified plan is sorted on
+        @param s the set of joins to look up the sort order for
+        @return the quantified name of the field, or null if the output is unordered
+    */
+    String getSortOrder(Set<LogicalJoinNode> s) {
+        return bestSortOrders.get(s);
+    }
 }
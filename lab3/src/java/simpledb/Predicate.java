@@ -108,6 +108,37 @@ public class Predicate implements Serializable {
     	return t.getField(field).compare(op, operand);
     }
 
+    /**
+     * Applies this predicate to every row of a batch. INT_TYPE columns are
+     * compared without creating Field objects.
+     * 
+     * @param batch
+     *            The rows to compare against
+     * @return a batch with the rows for which the comparison is true; batch
+     *         itself if every row passes.
+     */
+    public TupleBatch filter(TupleBatch batch) {
+    	int n = batch.size();
+    	int[] sel = new int[n];
+    	int selected = 0;
+    	
+    	if (batch.isIntColumn(field) && operand instanceof IntField) {
+    		int[] values = batch.getIntColumn(field);
+    		int value = ((IntField)operand).getValue();
+    		for (int row = 0; row < n; row++) {
+    			if (TupleBatch.compare(values[row], op, value))
+    				sel[selected++] = row;
+    		}
+    	} else {
+    		for (int row = 0; row < n; row++) {
+    			if (batch.getField(field, row).compare(op, operand))
+    				sel[selected++] = row;
+    		}
+    	}
+    	
+    	return batch.select(sel, selected);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string
@@ -11,6 +11,7 @@ public class Project extends Operator {
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private transient int[] outFieldIdArray;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -80,6 +81,26 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Operator.fetchNextBatch implementation. Projects whole batches from the
+     * child operator; the projected batch shares its columns with the
+     * child's batch.
+     * 
+     * @return The next batch, or null if there are no more tuples
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException,
+            DbException {
+        TupleBatch batch = BatchAdapter.nextBatch(child);
+        if (batch == null)
+            return null;
+        if (outFieldIdArray == null) {
+            outFieldIdArray = new int[outFieldIds.size()];
+            for (int i = 0; i < outFieldIdArray.length; i++)
+                outFieldIdArray[i] = outFieldIds.get(i);
+        }
+        return batch.project(td, outFieldIdArray);
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
@@ -21,6 +21,21 @@ public class Query implements Serializable {
     TransactionId tid;
     transient private boolean started = false;
 
+    // When set, queries run a batch at a time under a BatchAdapter
+    private static boolean batchMode = false;
+
+    /**
+     * Sets whether queries started from now on execute their physical plan
+     * a batch at a time. Results are the same either way.
+     */
+    public static void setBatchMode(boolean enabled) {
+        batchMode = enabled;
+    }
+
+    public static boolean isBatchMode() {
+        return batchMode;
+    }
+
     public TransactionId getTransactionId() {
         return this.tid;
     }
@@ -52,6 +67,8 @@ public class Query implements Serializable {
 
     public void start() throws IOException, DbException,
             TransactionAbortedException {
+        if (batchMode && op instanceof BatchIterator)
+            op = new BatchAdapter((BatchIterator) op);
         op.open();
 
         started = true;
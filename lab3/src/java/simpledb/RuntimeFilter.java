@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A RuntimeFilter drops the tuples of a scan whose value of one field cannot
+ * match, by a filter that only exists once a query runs. A
+ * {@link HybridHashJoin} fills one with a {@link BloomFilter} of the keys of
+ * its build side and hands it to the {@link SeqScan} on its probe side, so
+ * that probe tuples without a partner are dropped as they are read instead
+ * of travelling up to the join.
+ * <p>
+ * Until its Bloom filter is set, a RuntimeFilter passes every tuple. It
+ * counts the tuples it checks and drops.
+ */
+public class RuntimeFilter {
+
+    private final int field;
+    private volatile BloomFilter bloom = null;
+    private final AtomicLong rowsChecked = new AtomicLong();
+    private final AtomicLong rowsEliminated = new AtomicLong();
+
+    /**
+     * @param field
+     *            the index of the filtered field in the scan's TupleDesc
+     */
+    public RuntimeFilter(int field) {
+        this.field = field;
+    }
+
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * Replaces the set of values that pass; null passes every tuple.
+     */
+    public void setBloomFilter(BloomFilter bloom) {
+        this.bloom = bloom;
+    }
+
+    /**
+     * @return false if t cannot match.
+     */
+    public boolean pass(Tuple t) {
+        BloomFilter b = bloom;
+        if (b == null)
+            return true;
+        rowsChecked.incrementAndGet();
+        if (b.mightContain(t.getField(field)))
+            return true;
+        rowsEliminated.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return the rows of batch that may match, in a new batch or batch
+     *         itself if they all may.
+     */
+    public TupleBatch filter(TupleBatch batch) {
+        BloomFilter b = bloom;
+        if (b == null)
+            return batch;
+        int n = batch.size();
+        int[] sel = new int[n];
+        int selected = 0;
+        if (batch.isIntColumn(field)) {
+            // IntField hash codes are their values
+            int[] values = batch.getIntColumn(field);
+            for (int row = 0; row < n; row++) {
+                if (b.mightContain(values[row]))
+                    sel[selected++] = row;
+            }
+        } else {
+            for (int row = 0; row < n; row++) {
+                if (b.mightContain(batch.getField(field, row)))
+                    sel[selected++] = row;
+            }
+        }
+        rowsChecked.addAndGet(n);
+        rowsEliminated.addAndGet(n - selected);
+        return batch.select(sel, selected);
+    }
+
+    /**
+     * @return the number of tuples checked against a Bloom filter.
+     */
+    public long getRowsChecked() {
+        return rowsChecked.get();
+    }
+
+    /**
+     * @return the number of tuples dropped.
+     */
+    public long getRowsEliminated() {
+        return rowsEliminated.get();
+    }
+}
@@ -7,7 +7,7 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements DbIterator {
+public class SeqScan implements BatchIterator {
 
 	// ME
 	private TransactionId tid;
@@ -15,6 +15,13 @@ public class SeqScan implements DbIterator {
 	private String tableAlias;
 	private DbFile file;
 	private DbFileIterator fileItr;
+	private transient TupleDesc batchTD;
+	private ArrayList<Predicate> pageFilters = new ArrayList<Predicate>();
+	private ArrayList<RuntimeFilter> runtimeFilters = new ArrayList<RuntimeFilter>();
+	// the next tuple that passed the runtime filters, read by hasNext
+	private transient Tuple pending = null;
+	// the fields of the table returned, or null for all of them
+	private int[] projection = null;
 	
     private static final long serialVersionUID = 1L;
 
@@ -76,14 +83,123 @@ public class SeqScan implements DbIterator {
     public void reset(int tableid, String tableAlias) {
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        this.batchTD = null;
     }
 
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * @return the number of pages this scan can be partitioned over with
+     *         {@link #partition}, or 0 if the table cannot be partitioned.
+     */
+    public int numPartitionPages() {
+    	return file instanceof HeapFile ? ((HeapFile) file).numPages() : 0;
+    }
+
+    /**
+     * Returns a scan, as part of the same transaction and with the same
+     * alias, over only pages firstPage to endPage - 1 of the table. Scans
+     * over disjoint page ranges can run on different threads.
+     *
+     * @throws UnsupportedOperationException
+     *             if numPartitionPages() is 0.
+     */
+    public SeqScan partition(int firstPage, int endPage) {
+    	if (!(file instanceof HeapFile))
+    		throw new UnsupportedOperationException("Only heap files can be partitioned.");
+    	SeqScan scan = new SeqScan(tid, tableid, tableAlias);
+    	scan.fileItr = ((HeapFile) file).iterator(tid, firstPage, endPage);
+    	if (projection != null)
+    		scan.setProjection(projection);
+    	for (Predicate p : pageFilters)
+    		scan.addPageFilter(p);
+    	for (RuntimeFilter f : runtimeFilters)
+    		scan.addRuntimeFilter(f);
+    	return scan;
+    }
+
+    /**
+     * Makes the scan return only some fields of the table, in the given
+     * order, and changes its TupleDesc to match. The pages of heap files are
+     * read without decoding the other fields, which for a {@link PaxFile}
+     * are stored apart from them. Must be called before the scan is opened.
+     *
+     * @param fields
+     *            indexes of fields of the table, or null for all of them
+     * @throws IllegalArgumentException
+     *             if a field is not in the table
+     * @throws IllegalStateException
+     *             if page filters have already been added
+     */
+    public void setProjection(int[] fields) {
+    	if (!pageFilters.isEmpty())
+    		throw new IllegalStateException("Project a scan before adding page filters.");
+    	if (fields != null) {
+    		for (int f : fields) {
+    			if (f < 0 || f >= file.getTupleDesc().numFields())
+    				throw new IllegalArgumentException("No field " + f + " in the table.");
+    		}
+    		fields = fields.clone();
+    	}
+    	projection = fields;
+    	batchTD = null;
+    	if (fileItr instanceof HeapFileIterator)
+    		((HeapFileIterator) fileItr).setProjection(fields);
+    }
+
+    /**
+     * @return the fields of the table this scan returns, or null if it
+     *         returns all of them.
+     */
+    public int[] getProjection() {
+    	return projection == null ? null : projection.clone();
+    }
+
+    /**
+     * Lets the scan skip the pages of a heap file that cannot hold a tuple
+     * satisfying p according to the file's {@link ZoneMap}. The scan does
+     * not apply p to the tuples it returns; a {@link Filter} above it does,
+     * and pushes its predicate down with this method when it is opened.
+     */
+    public void addPageFilter(Predicate p) {
+    	if (pageFilters.contains(p))
+    		return;
+    	pageFilters.add(p);
+    	if (projection != null) {
+    		// the zone map knows the fields of the table
+    		p = new Predicate(projection[p.getField()], p.getOp(), p.getOperand());
+    	}
+    	if (fileItr instanceof HeapFileIterator)
+    		((HeapFileIterator) fileItr).addPageFilter(p);
+    }
+
+    /**
+     * Makes the scan drop the tuples that f does not pass before returning
+     * them. Runtime filters are set up by the operators above the scan, such
+     * as {@link HybridHashJoin}, while the query runs.
+     */
+    public void addRuntimeFilter(RuntimeFilter f) {
+    	if (!runtimeFilters.contains(f))
+    		runtimeFilters.add(f);
+    }
+
+    public void removeRuntimeFilter(RuntimeFilter f) {
+    	runtimeFilters.remove(f);
+    }
+
+    private boolean passesRuntimeFilters(Tuple t) {
+    	for (RuntimeFilter f : runtimeFilters) {
+    		if (!f.pass(t))
+    			return false;
+    	}
+    	return true;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // DONE
+    	pending = null;
     	fileItr.open();
     }
 
@@ -99,15 +215,16 @@ public class SeqScan implements DbIterator {
     public TupleDesc getTupleDesc() {
         // DONE
     	TupleDesc oldTD = file.getTupleDesc();
-    	int numFields = oldTD.numFields();
+    	int numFields = projection == null ? oldTD.numFields() : projection.length;
     	
     	Type[] typeAr = new Type[numFields];
     	String[] nameAr = new String[numFields];
     	
     	// Prefix the field name with the table alias
     	for (int i = 0; i < numFields; i++) {
-    		typeAr[i] = oldTD.getFieldType(i);
-    		nameAr[i] = tableAlias + "." + oldTD.getFieldName(i);
+    		int field = projection == null ? i : projection[i];
+    		typeAr[i] = oldTD.getFieldType(field);
+    		nameAr[i] = tableAlias + "." + oldTD.getFieldName(field);
     	}
     	
     	return new TupleDesc(typeAr, nameAr);
@@ -115,23 +232,81 @@ public class SeqScan implements DbIterator {
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
        // DONE
-    	return fileItr.hasNext();
+    	if (runtimeFilters.isEmpty())
+    		return pending != null || fileItr.hasNext();
+    	while (pending == null && fileItr.hasNext()) {
+    		Tuple t = nextFromFile();
+    		if (passesRuntimeFilters(t))
+    			pending = t;
+    	}
+    	return pending != null;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // DONE
-    	return fileItr.next();
+    	if (!hasNext())
+    		throw new NoSuchElementException();
+    	if (pending == null)
+    		return nextFromFile();
+    	Tuple t = pending;
+    	pending = null;
+    	return t;
+    }
+
+    /**
+     * @return the next tuple of the file, holding only the projected fields.
+     */
+    private Tuple nextFromFile() throws TransactionAbortedException, DbException {
+    	Tuple t = fileItr.next();
+    	if (projection == null || fileItr instanceof HeapFileIterator)
+    		return t;
+    	// other files return whole tuples
+    	if (batchTD == null)
+    		batchTD = getTupleDesc();
+    	Tuple projected = new Tuple(batchTD);
+    	for (int i = 0; i < projection.length; i++)
+    		projected.setField(i, t.getField(projection[i]));
+    	projected.setRecordId(t.getRecordId());
+    	return projected;
+    }
+
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+    	if (batchTD == null)
+    		batchTD = getTupleDesc();
+    	
+    	while (true) {
+    		TupleBatch batch = new TupleBatch(batchTD);
+    		if (pending != null) {
+    			batch.addTuple(pending);
+    			pending = null;
+    		}
+    		if (fileItr instanceof HeapFileIterator) {
+    			// decode straight from the pages
+    			((HeapFileIterator)fileItr).nextBatch(batch);
+    		} else {
+    			while (!batch.isFull() && fileItr.hasNext())
+    				batch.addTuple(nextFromFile());
+    		}
+    		if (batch.isEmpty())
+    			return null;
+    		for (RuntimeFilter f : runtimeFilters)
+    			batch = f.filter(batch);
+    		if (!batch.isEmpty())
+    			return batch;
+    	}
     }
 
     public void close() {
         // DONE
+    	pending = null;
     	fileItr.close();
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // DONE
+    	pending = null;
     	fileItr.rewind();
     }
 }
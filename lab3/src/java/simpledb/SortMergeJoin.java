@@ -0,0 +1,338 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin evaluates an equality or range join by sorting both
+ * children on their join fields and merging them.
+ * <p>
+ * A child that is not known to be sorted already (for example because it is
+ * the output of another SortMergeJoin on the same field) is sorted by an
+ * {@link OrderBy}, which spills to disk once it holds more than the memory
+ * budget of tuples. child1 is then streamed. For an EQUALS join child2 is
+ * streamed too, holding only the run of tuples whose key equals the current
+ * child1 key. For a range join child2 is read into memory, since each child1
+ * tuple matches one contiguous range of the sorted child2: a suffix for
+ * LESS_THAN and LESS_THAN_OR_EQ, and a prefix for GREATER_THAN and
+ * GREATER_THAN_OR_EQ. The bounds of these ranges only move forward as the
+ * child1 keys grow, so duplicate keys on either side are handled without
+ * backing up either input. The optimizer does not plan range merge joins
+ * whose child2 exceeds the memory budget.
+ * <p>
+ * The output is sorted in ascending order of child1's join field.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of tuples sorted in memory unless another budget is given. */
+    public static final int DEFAULT_MEMORY_TUPLES = OrderBy.DEFAULT_MEMORY_TUPLES;
+
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private TupleDesc comboTD;
+    private final boolean child1Sorted, child2Sorted;
+    private final int memoryTuples;
+
+    // the children, or OrderBys over the children that are not sorted
+    transient private DbIterator in1 = null, in2 = null;
+    // range joins: child2 sorted, with its join fields decoded
+    transient private ArrayList<Tuple> right = null;
+    transient private Field[] rightKeys = null;
+    // EQUALS joins: the child2 tuples with key groupKey, the child2 tuple
+    // after them, and the key of the last child2 tuple read
+    transient private ArrayList<Tuple> group = null;
+    transient private Field groupKey = null;
+    transient private Tuple next2 = null;
+    transient private Field key2 = null;
+
+    // the current tuple of child1 and the range of child2 tuples it matches
+    transient private Tuple t1 = null;
+    transient private Field key1 = null;
+    transient private int pos, to;
+    // first child2 position with a key >= key1, and with a key > key1
+    transient private int geIdx, gtIdx;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on; both children are sorted by the operator.
+     *
+     * @param p
+     *            The predicate to use to join the children; NOT_EQUALS and
+     *            LIKE are not supported
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, false, false);
+    }
+
+    /**
+     * Constructor, sorting up to DEFAULT_MEMORY_TUPLES tuples in memory.
+     *
+     * @param child1Sorted
+     *            true if child1 returns its tuples in ascending order of its
+     *            join field, so it need not be sorted
+     * @param child2Sorted
+     *            true if child2 returns its tuples in ascending order of its
+     *            join field, so it need not be sorted
+     * @see #SortMergeJoin(JoinPredicate, DbIterator, DbIterator)
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            boolean child1Sorted, boolean child2Sorted) {
+        this(p, child1, child2, child1Sorted, child2Sorted, DEFAULT_MEMORY_TUPLES);
+    }
+
+    /**
+     * Constructor with a given memory budget.
+     *
+     * @param memoryTuples
+     *            the number of tuples of each child to sort in memory before
+     *            spilling runs to disk
+     * @see #SortMergeJoin(JoinPredicate, DbIterator, DbIterator, boolean, boolean)
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            boolean child1Sorted, boolean child2Sorted, int memoryTuples) {
+        if (!JoinAlgorithm.SORT_MERGE.supports(p.getOperator()))
+            throw new IllegalArgumentException("SortMergeJoin does not support " + p.getOperator());
+        if (memoryTuples < 1)
+            throw new IllegalArgumentException("memoryTuples must be positive");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.child1Sorted = child1Sorted;
+        this.child2Sorted = child2Sorted;
+        this.memoryTuples = memoryTuples;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * @return true if child1 is streamed rather than sorted by this operator.
+     */
+    public boolean isChild1Sorted() {
+        return child1Sorted;
+    }
+
+    /**
+     * @return true if child2 is not sorted by this operator.
+     */
+    public boolean isChild2Sorted() {
+        return child2Sorted;
+    }
+
+    private boolean isEquiJoin() {
+        return pred.getOperator() == Predicate.Op.EQUALS;
+    }
+
+    /** @return child, or an OrderBy that sorts it on field */
+    private DbIterator sorted(DbIterator child, int field, boolean isSorted) {
+        if (isSorted)
+            return child;
+        return new OrderBy(new int[] { field }, new boolean[] { true }, child, memoryTuples);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        in1 = sorted(child1, pred.getField1(), child1Sorted);
+        in2 = sorted(child2, pred.getField2(), child2Sorted);
+        in1.open();
+        in2.open();
+        super.open();
+
+        if (isEquiJoin()) {
+            group = new ArrayList<Tuple>();
+            next2 = readRight();
+        } else {
+            right = new ArrayList<Tuple>();
+            Tuple t;
+            while ((t = readRight()) != null)
+                right.add(t);
+            rightKeys = new Field[right.size()];
+            for (int i = 0; i < rightKeys.length; i++)
+                rightKeys[i] = right.get(i).getField(pred.getField2());
+        }
+        reset();
+    }
+
+    /**
+     * @return the next tuple of sorted child2, or null if it is exhausted.
+     */
+    private Tuple readRight() throws DbException, TransactionAbortedException {
+        if (!in2.hasNext())
+            return null;
+        Tuple t = in2.next();
+        Field key = t.getField(pred.getField2());
+        if (key2 != null && key.compare(Predicate.Op.LESS_THAN, key2))
+            throw new DbException("child2 of SortMergeJoin is not sorted on its join field");
+        key2 = key;
+        return t;
+    }
+
+    private void reset() {
+        t1 = null;
+        key1 = null;
+        pos = to = 0;
+        geIdx = gtIdx = 0;
+        groupKey = null;
+        if (group != null)
+            group.clear();
+    }
+
+    public void close() {
+        super.close();
+        if (in2 != null)
+            in2.close();
+        if (in1 != null)
+            in1.close();
+        in1 = in2 = null;
+        right = null;
+        rightKeys = null;
+        group = null;
+        next2 = null;
+        key2 = null;
+        t1 = null;
+        key1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        in1.rewind();
+        reset();
+        if (isEquiJoin()) {
+            in2.rewind();
+            key2 = null;
+            next2 = readRight();
+        }
+    }
+
+    /**
+     * Advances to the next tuple of child1.
+     *
+     * @return false if child1 is exhausted.
+     */
+    private boolean nextLeft() throws DbException, TransactionAbortedException {
+        if (!in1.hasNext())
+            return false;
+        Tuple t = in1.next();
+        Field key = t.getField(pred.getField1());
+        if (key1 != null && key.compare(Predicate.Op.LESS_THAN, key1))
+            throw new DbException("child1 of SortMergeJoin is not sorted on its join field");
+        t1 = t;
+        key1 = key;
+        return true;
+    }
+
+    /**
+     * Makes group hold the child2 tuples whose key equals key1, reading
+     * past the child2 tuples with smaller keys.
+     */
+    private void readGroup() throws DbException, TransactionAbortedException {
+        group.clear();
+        groupKey = null;
+        while (next2 != null && next2.getField(pred.getField2()).compare(Predicate.Op.LESS_THAN, key1))
+            next2 = readRight();
+        while (next2 != null && next2.getField(pred.getField2()).compare(Predicate.Op.EQUALS, key1)) {
+            group.add(next2);
+            next2 = readRight();
+        }
+        if (!group.isEmpty())
+            groupKey = key1;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Each result is the concatenation of a tuple of child1 and
+     * a tuple of child2 that satisfy the join predicate.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (isEquiJoin()) {
+            while (true) {
+                if (t1 != null && pos < to)
+                    return merge(t1, group.get(pos++));
+                if (!nextLeft())
+                    return null;
+                if (groupKey == null || !key1.compare(Predicate.Op.EQUALS, groupKey))
+                    readGroup();
+                pos = 0;
+                to = groupKey == null ? 0 : group.size();
+            }
+        }
+
+        int n = rightKeys.length;
+        while (true) {
+            if (t1 != null && pos < to)
+                return merge(t1, right.get(pos++));
+            if (!nextLeft())
+                return null;
+
+            while (geIdx < n && rightKeys[geIdx].compare(Predicate.Op.LESS_THAN, key1))
+                geIdx++;
+            if (gtIdx < geIdx)
+                gtIdx = geIdx;
+            while (gtIdx < n && rightKeys[gtIdx].compare(Predicate.Op.LESS_THAN_OR_EQ, key1))
+                gtIdx++;
+
+            // key1 op key2 holds for the child2 tuples in [pos, to)
+            switch (pred.getOperator()) {
+            case LESS_THAN:
+                pos = gtIdx;
+                to = n;
+                break;
+            case LESS_THAN_OR_EQ:
+                pos = geIdx;
+                to = n;
+                break;
+            case GREATER_THAN:
+                pos = 0;
+                to = geIdx;
+                break;
+            default: // GREATER_THAN_OR_EQ
+                pos = 0;
+                to = gtIdx;
+            }
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+}
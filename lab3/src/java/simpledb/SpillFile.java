@@ -0,0 +1,197 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples written by an operator that runs
+ * out of memory, such as a partition of a {@link HybridHashJoin}. Tuples are
+ * appended one at a time and read back in the order they were added.
+ * <p>
+ * The file is laid out as a HeapFile with the spill file's TupleDesc, with
+ * each page filled before the next one is started. It is read and written
+ * directly, without going through the BufferPool or the Catalog, so spilling
+ * does not evict the pages of the tables being queried.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private final int id;
+    private final int slotsPerPage;
+    private final int headerSize;
+
+    // the page being filled: its tuples are serialized to pageTuples
+    private final ByteArrayOutputStream pageTuples;
+    private final DataOutputStream pageOut;
+    private int pageCount = 0;
+
+    private OutputStream out;
+    private int numPages = 0;
+    private int numTuples = 0;
+
+    /**
+     * Creates an empty spill file in the default temporary directory.
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("simpledb-spill", ".dat");
+        this.file.deleteOnExit();
+        this.id = file.getAbsoluteFile().hashCode();
+        this.slotsPerPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        this.headerSize = (slotsPerPage + 7) / 8;
+        this.pageTuples = new ByteArrayOutputStream(slotsPerPage * td.getSize());
+        this.pageOut = new DataOutputStream(pageTuples);
+        this.out = new BufferedOutputStream(new FileOutputStream(file));
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of tuples added to this file.
+     */
+    public int numTuples() {
+        return numTuples;
+    }
+
+    /**
+     * @return the number of pages written so far.
+     */
+    public int numPages() {
+        return numPages;
+    }
+
+    /**
+     * Appends a tuple to this file.
+     *
+     * @throws IllegalStateException
+     *             if the file has been finished.
+     */
+    public void add(Tuple t) throws IOException {
+        if (out == null)
+            throw new IllegalStateException("Spill file is finished.");
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(pageOut);
+        numTuples++;
+        if (++pageCount == slotsPerPage)
+            writePage();
+    }
+
+    /**
+     * Writes the last page and closes the file for writing. Further calls
+     * have no effect.
+     */
+    public void finish() throws IOException {
+        if (out == null)
+            return;
+        if (pageCount > 0)
+            writePage();
+        out.close();
+        out = null;
+    }
+
+    private void writePage() throws IOException {
+        byte[] header = new byte[headerSize];
+        for (int i = 0; i < pageCount; i++)
+            header[i / 8] |= (byte) (1 << (i % 8));
+        out.write(header);
+        pageTuples.writeTo(out);
+        int padding = BufferPool.getPageSize() - headerSize - pageTuples.size();
+        out.write(new byte[padding]);
+        pageTuples.reset();
+        pageCount = 0;
+        numPages++;
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file, finishing the file
+     * first if needed. The iterator must be opened before use.
+     */
+    public DbIterator iterator() throws IOException {
+        finish();
+        return new SpillIterator();
+    }
+
+    /**
+     * Finishes and deletes this file.
+     */
+    public void delete() {
+        try {
+            finish();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        file.delete();
+    }
+
+    /**
+     * Reads the pages of a spill file in order, one page at a time.
+     */
+    private class SpillIterator implements DbIterator {
+        private static final long serialVersionUID = 1L;
+
+        private transient DataInputStream in = null;
+        private transient int pgNo;
+        private transient Iterator<Tuple> pageTuples;
+
+        public void open() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            } catch (FileNotFoundException e) {
+                throw new DbException("Spill file " + file + " is missing.");
+            }
+            pgNo = 0;
+            pageTuples = null;
+        }
+
+        public boolean hasNext() throws DbException {
+            if (in == null)
+                throw new IllegalStateException("Iterator is not open.");
+            while (pageTuples == null || !pageTuples.hasNext()) {
+                if (pgNo == numPages)
+                    return false;
+                byte[] data = new byte[BufferPool.getPageSize()];
+                try {
+                    in.readFully(data);
+                    pageTuples = new HeapPage(new HeapPageId(id, pgNo++), data, td).iterator();
+                } catch (IOException e) {
+                    throw new DbException("Could not read spill file " + file + ": " + e.getMessage());
+                }
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return pageTuples.next();
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                in = null;
+            }
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package simpledb;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
+ * <p>
+ * Each group keeps a running count in a primitive array indexed by its
+ * number in a {@link GroupTable}.
  */
 public class StringAggregator implements Aggregator {
 
@@ -17,8 +19,9 @@ public class StringAggregator implements Aggregator {
     int afield;
     Op what;
 
-    private ArrayList<Field> noGroup;
-    private HashMap<Field, ArrayList<Field>> group;
+    private GroupTable groups;
+    // count of group g, at index g
+    private int[] counts;
     
     /**
      * Aggregate constructor
@@ -36,13 +39,8 @@ public class StringAggregator implements Aggregator {
     	this.afield = afield;
     	this.what = what;
     	
-    	if (noGrouping()) {
-    		// No grouping
-    		noGroup = new ArrayList<Field>();
-    	} else {
-    		// Grouping
-    		group = new HashMap<Field, ArrayList<Field>>();
-    	}
+    	groups = new GroupTable(noGrouping() ? null : gbfieldtype);
+    	counts = new int[16];
     }
 
     /**
@@ -50,25 +48,65 @@ public class StringAggregator implements Aggregator {
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-    	// DONE
-    	if (noGrouping()) {
-    		// No grouping
-    		noGroup.add(tup.getField(afield));
-    	} else {
-    		// Grouping
-    		Field groupField = tup.getField(gbfield);
-    		
-    		ArrayList<Field> aggs = group.get(groupField);
-    		
-    		if (aggs == null) {
-    			aggs = new ArrayList<Field>();
+        // DONE
+    	merge(groups.groupOf(noGrouping() ? null : tup.getField(gbfield)));
+    }
+
+    /**
+     * Merge every row of a batch into the aggregate, grouping as indicated
+     * in the constructor
+     * 
+     * @param batch
+     *            the rows containing an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+    	for (int row = 0; row < batch.size(); row++)
+    		merge(groups.groupOf(batch, gbfield, row));
+    }
+
+    public int mergeBatchIntoGroup(TupleBatch batch, int maxGroups, boolean[] rejected) {
+    	int n = 0;
+    	for (int row = 0; row < batch.size(); row++) {
+    		int g = groups.find(batch, gbfield, row);
+    		if (g < 0 && groups.size() < maxGroups)
+    			g = groups.groupOf(batch, gbfield, row);
+    		rejected[row] = g < 0;
+    		if (g < 0) {
+    			n++;
+    			continue;
     		}
-    		
-    		aggs.add(tup.getField(afield));
-    		group.put(tup.getField(gbfield), aggs);
+    		if (g == counts.length)
+    			counts = Arrays.copyOf(counts, counts.length * 2);
+    		counts[g]++;
+    	}
+    	return n;
+    }
+
+    public int numGroups() {
+    	return groups.size();
+    }
+
+    /**
+     * Merge the count of each group of another StringAggregator into this
+     * one.
+     */
+    public void mergePartial(Aggregator partial) {
+    	StringAggregator other = (StringAggregator) partial;
+    	for (int og = 0; og < other.groups.size(); og++) {
+    		int g = groups.groupOf(other.groups, og);
+    		if (g == counts.length)
+    			counts = Arrays.copyOf(counts, counts.length * 2);
+    		counts[g] += other.counts[og];
     	}
     }
 
+    // ME: count one value in group g
+    private void merge(int g) {
+    	if (g == counts.length)
+    		counts = Arrays.copyOf(counts, counts.length * 2);
+    	counts[g]++;
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
      *
@@ -82,32 +120,23 @@ public class StringAggregator implements Aggregator {
     	ArrayList<Tuple> tuples = new ArrayList<Tuple>();
     	TupleDesc td;
     	Tuple tuple;
-    	int aggVal = 0;
     	
         if (noGrouping()) {
         	// No grouping
         	td = new TupleDesc(new Type[]{Type.INT_TYPE});
         	
-        	aggVal = noGroup.size();
-        	
         	tuple = new Tuple(td);
-        	tuple.setField(0, new IntField(aggVal));
+        	tuple.setField(0, new IntField(counts[0]));
         	
         	tuples.add(tuple);
         } else {
         	// Grouping
         	td = new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE});
         	
-        	Iterator<Field> ki = group.keySet().iterator();
-        	
-        	while(ki.hasNext()) {
-        		Field newField = ki.next();
-        		
-        		aggVal = group.get(newField).size();
-        		
+        	for (int g = 0; g < groups.size(); g++) {
         		tuple = new Tuple(td);
-            	tuple.setField(0, newField);
-            	tuple.setField(1, new IntField(aggVal));
+            	tuple.setField(0, groups.value(g));
+            	tuple.setField(1, new IntField(counts[g]));
             	
             	tuples.add(tuple);
         	}
@@ -209,6 +209,35 @@ public class TableStats {
         return pagesRead * ioCostPerPage;
     }
 
+    /**
+     * Estimates the cost of reading the tuples that satisfy a predicate with
+     * the given selectivity through a secondary index, in the units of
+     * {@link #estimateScanCost()}. The matching tuples are assumed to be
+     * spread uniformly over the pages of the table, so the number of
+     * distinct pages read is estimated with Cardenas' formula; each is read
+     * once. Reading the index itself adds a page per level and a page per
+     * leaf's worth of matching entries; how many entries fit on a leaf
+     * depends on the type of the key.
+     *
+     * @param selectivityFactor
+     *            The selectivity of the predicate the index answers
+     * @param keyType
+     *            The type of the key of the index
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(double selectivityFactor, Type keyType) {
+    	int pageSize = BufferPool.PAGE_SIZE;
+    	int numTuplesPerPage = pageSize / td.getSize();
+    	int pages = ((numTuples - 1) / numTuplesPerPage) + 1;
+    	double matches = numTuples * selectivityFactor;
+
+    	double pagesRead = pages * (1 - Math.pow(1 - 1.0 / pages, matches));
+    	double entriesPerLeaf = BTreePage.leafCapacity(keyType) / 2.0;
+    	double indexPages = Math.ceil(Math.log(Math.max(numTuples, 2)) / Math.log(entriesPerLeaf))
+    			+ matches / entriesPerLeaf;
+    	return (pagesRead + indexPages) * ioCostPerPage;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN implements ORDER BY ... LIMIT k. Rather than sorting all of its
+ * child, it keeps the first k tuples in sort order seen so far in a bounded
+ * heap, whose head is the tuple to drop when a better one arrives. It uses
+ * O(k) memory and O(n log k) time for a child of n tuples.
+ * <p>
+ * Like {@link OrderBy}, the sort is stable: of tuples that compare equal,
+ * the ones read first are kept and returned first.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private TupleDesc td;
+    private int[] orderByFields;
+    private boolean[] ascs;
+    private final int limit;
+    private TupleComparator comparator;
+
+    transient private ArrayList<Tuple> top = null;
+    transient private Iterator<Tuple> it = null;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, DbIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("Need one sort order for each of at least one field");
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        this.child = child;
+        td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.limit = limit;
+        this.comparator = new TupleComparator(this.orderByFields, this.ascs);
+    }
+
+    /**
+     * @return the fields the tuples are sorted on, most significant first.
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for each of the fields returned by getOrderByFields, true if
+     *         it is sorted in ascending order.
+     */
+    public boolean[] getAscending() {
+        return ascs.clone();
+    }
+
+    /**
+     * @return the greatest number of tuples this operator returns.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** A tuple of the child, with its position to break ties. */
+    private static class Ranked {
+        final Tuple t;
+        final long seq;
+
+        Ranked(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final Comparator<Ranked> order = new Comparator<Ranked>() {
+            public int compare(Ranked a, Ranked b) {
+                int c = comparator.compare(a.t, b.t);
+                return c != 0 ? c : (a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1));
+            }
+        };
+        top = new ArrayList<Tuple>();
+        if (limit > 0) {
+            // the head of the heap is the last of the tuples kept
+            PriorityQueue<Ranked> heap = new PriorityQueue<Ranked>(limit,
+                    Collections.reverseOrder(order));
+            long seq = 0;
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (heap.size() < limit) {
+                    heap.add(new Ranked(t, seq));
+                } else if (comparator.compare(t, heap.peek().t) < 0) {
+                    // a later tuple that compares equal does not displace the head
+                    heap.poll();
+                    heap.add(new Ranked(t, seq));
+                }
+                seq++;
+            }
+            ArrayList<Ranked> ranked = new ArrayList<Ranked>(heap);
+            Collections.sort(ranked, order);
+            for (Ranked r : ranked)
+                top.add(r.t);
+        }
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        it = null;
+        top = null;
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the first limit tuples of
+     * the child in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
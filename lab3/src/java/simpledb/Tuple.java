@@ -1,6 +1,9 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -9,6 +12,9 @@ import java.util.NoSuchElementException;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page can be a view over the page's bytes: each field is
+ * decoded from the buffer the first time it is requested.
  */
 public class Tuple implements Serializable {
 
@@ -18,6 +24,13 @@ public class Tuple implements Serializable {
     private TupleDesc myTD;
     private RecordId myRID;
     private Field fields[];
+    
+    // Source of lazily decoded fields; field i lives at
+    // fieldBase[i] + slot * fieldStride[i] in source
+    private transient ByteBuffer source;
+    private transient int[] fieldBase;
+    private transient int[] fieldStride;
+    private transient int slot;
 
     /**
      * Create a new tuple with the specified schema (type).
@@ -37,6 +50,30 @@ public class Tuple implements Serializable {
     	fields = new Field[myTD.numFields()];
     }
 
+    /**
+     * Create a tuple whose fields are decoded on demand from a buffer. The
+     * buffer must not change while the tuple is in use.
+     * 
+     * @param td
+     *            the schema of this tuple.
+     * @param source
+     *            the buffer holding the encoded fields.
+     * @param fieldBase
+     *            offset in source of each field of the tuple in slot 0.
+     * @param fieldStride
+     *            distance in bytes between the same field of two
+     *            consecutive slots.
+     * @param slot
+     *            the slot this tuple occupies.
+     */
+    Tuple(TupleDesc td, ByteBuffer source, int[] fieldBase, int[] fieldStride, int slot) {
+    	this(td);
+    	this.source = source;
+    	this.fieldBase = fieldBase;
+    	this.fieldStride = fieldStride;
+    	this.slot = slot;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -94,8 +131,26 @@ public class Tuple implements Serializable {
     		// error: invalid index
     		throw new NoSuchElementException("Invalid field index.");
     	
+    	if (fields[i] == null && source != null)
+    		fields[i] = myTD.getFieldType(i).parse(source, fieldBase[i] + slot * fieldStride[i]);
+    	
     	return fields[i];
     }
+    
+    /**
+     * Decodes every field that has not been decoded yet.
+     */
+    private void decodeFields() {
+    	if (source == null)
+    		return;
+    	for (int i = 0; i < fields.length; i++)
+    		getField(i);
+    }
+    
+    private void writeObject(ObjectOutputStream out) throws IOException {
+    	decodeFields();
+    	out.defaultWriteObject();
+    }
 
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
@@ -111,9 +166,9 @@ public class Tuple implements Serializable {
     	String str = "";
     	int i;
     	for (i = 0; i < myTD.numFields() - 1; i++)
-    		str += fields[i].toString() + " ";
+    		str += getField(i).toString() + " ";
     	
-    	str += fields[i].toString() + "\n";
+    	str += getField(i).toString() + "\n";
     	return str;
     }
     
@@ -124,6 +179,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // DONE
+    	decodeFields();
     	return Arrays.asList(fields).iterator();
     }
     
@@ -0,0 +1,328 @@
+package simpledb;
+
+/**
+ * TupleBatch holds up to a fixed number of rows of one TupleDesc, stored by
+ * column. INT_TYPE columns are kept in primitive int arrays so that batch
+ * operators can evaluate predicates and aggregates without creating a Field
+ * per value; other columns hold Field objects.
+ * <p>
+ * Batches are produced by {@link BatchIterator#nextBatch}. A batch returned
+ * by an operator belongs to the caller, but it may share column arrays with
+ * the batch it was derived from (see {@link #project}), so it should not be
+ * modified.
+ */
+public class TupleBatch {
+
+    /** Number of rows in a batch unless another capacity is requested. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private int size;
+
+    // ints[i] is set for INT_TYPE columns, fields[i] for the others
+    private final int[][] ints;
+    private final Field[][] fields;
+
+    // RecordId of each row, split so that a row read from a page costs no
+    // allocation; null until a row with a RecordId is added
+    private PageId[] ridPages;
+    private int[] ridSlots;
+
+    /**
+     * Create an empty batch of DEFAULT_CAPACITY rows.
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td
+     *            the schema of the rows of this batch.
+     * @param capacity
+     *            the largest number of rows this batch can hold.
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = new int[td.numFields()][];
+        this.fields = new Field[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+            else
+                fields[i] = new Field[capacity];
+        }
+    }
+
+    private TupleBatch(TupleDesc td, int capacity, int size, int[][] ints,
+            Field[][] fields, PageId[] ridPages, int[] ridSlots) {
+        this.td = td;
+        this.capacity = capacity;
+        this.size = size;
+        this.ints = ints;
+        this.fields = fields;
+        this.ridPages = ridPages;
+        this.ridSlots = ridSlots;
+    }
+
+    /**
+     * @return the schema of the rows of this batch.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of rows in this batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the largest number of rows this batch can hold.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * @return true if column i is stored as an int array.
+     */
+    public boolean isIntColumn(int i) {
+        return ints[i] != null;
+    }
+
+    /**
+     * Returns the values of an INT_TYPE column. Only the first size()
+     * entries are valid.
+     *
+     * @throws IllegalArgumentException
+     *             if the column is not of type INT_TYPE.
+     */
+    public int[] getIntColumn(int i) {
+        if (ints[i] == null)
+            throw new IllegalArgumentException("Column " + i + " is not an int column.");
+        return ints[i];
+    }
+
+    /**
+     * @return the value of INT_TYPE column i of a row.
+     */
+    public int getInt(int i, int row) {
+        return getIntColumn(i)[row];
+    }
+
+    /**
+     * @return the value of column i of a row as a Field.
+     */
+    public Field getField(int i, int row) {
+        if (ints[i] != null)
+            return new IntField(ints[i][row]);
+        return fields[i][row];
+    }
+
+    /**
+     * @return the RecordId of a row, or null if it has none.
+     */
+    public RecordId getRecordId(int row) {
+        if (ridPages == null || ridPages[row] == null)
+            return null;
+        return new RecordId(ridPages[row], ridSlots[row]);
+    }
+
+    /**
+     * @return a new Tuple holding the values of a row.
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < ints.length; i++)
+            t.setField(i, getField(i, row));
+        t.setRecordId(getRecordId(row));
+        return t;
+    }
+
+    /**
+     * Appends the values of a tuple to this batch.
+     */
+    public void addTuple(Tuple t) {
+        int row = addRow();
+        for (int i = 0; i < ints.length; i++)
+            setField(i, row, t.getField(i));
+        RecordId rid = t.getRecordId();
+        if (rid != null)
+            setRecordId(row, rid.getPageId(), rid.tupleno());
+    }
+
+    /**
+     * Appends a row of another batch with the same column types.
+     */
+    public void addRow(TupleBatch src, int srcRow) {
+        int row = addRow();
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null)
+                ints[i][row] = src.ints[i][srcRow];
+            else
+                fields[i][row] = src.fields[i][srcRow];
+        }
+        if (src.ridPages != null && src.ridPages[srcRow] != null)
+            setRecordId(row, src.ridPages[srcRow], src.ridSlots[srcRow]);
+    }
+
+    /**
+     * Appends the concatenation of a row of left and a row of right, as
+     * produced by a join. The columns of this batch must be those of left
+     * followed by those of right.
+     */
+    public void addJoinedRow(TupleBatch left, int leftRow, TupleBatch right, int rightRow) {
+        int row = addRow();
+        int n = left.ints.length;
+        for (int i = 0; i < n; i++)
+            copyValue(left, i, leftRow, i, row);
+        for (int i = 0; i < right.ints.length; i++)
+            copyValue(right, i, rightRow, n + i, row);
+    }
+
+    /**
+     * Appends the concatenation of a tuple and a row of right, as produced by
+     * a join.
+     */
+    public void addJoinedRow(Tuple left, TupleBatch right, int rightRow) {
+        int row = addRow();
+        int n = left.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++)
+            setField(i, row, left.getField(i));
+        for (int i = 0; i < right.ints.length; i++)
+            copyValue(right, i, rightRow, n + i, row);
+    }
+
+    private void copyValue(TupleBatch src, int srcCol, int srcRow, int col, int row) {
+        if (ints[col] != null)
+            ints[col][row] = src.ints[srcCol] != null ? src.ints[srcCol][srcRow]
+                    : ((IntField) src.fields[srcCol][srcRow]).getValue();
+        else
+            fields[col][row] = src.getField(srcCol, srcRow);
+    }
+
+    /**
+     * Returns a batch with the given columns of this batch. The new batch
+     * shares its column arrays with this one.
+     *
+     * @param td
+     *            the schema of the new batch.
+     * @param cols
+     *            the column of this batch that provides each column of td.
+     */
+    public TupleBatch project(TupleDesc td, int[] cols) {
+        int[][] pints = new int[cols.length][];
+        Field[][] pfields = new Field[cols.length][];
+        for (int i = 0; i < cols.length; i++) {
+            pints[i] = ints[cols[i]];
+            pfields[i] = fields[cols[i]];
+        }
+        return new TupleBatch(td, capacity, size, pints, pfields, ridPages, ridSlots);
+    }
+
+    /**
+     * Returns a batch with the rows of this batch listed in sel. If sel
+     * selects every row, this batch is returned.
+     *
+     * @param sel
+     *            indexes of the selected rows, in increasing order.
+     * @param n
+     *            the number of entries of sel to use.
+     */
+    public TupleBatch select(int[] sel, int n) {
+        if (n == size)
+            return this;
+        TupleBatch out = new TupleBatch(td, capacity);
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null) {
+                int[] src = ints[i], dst = out.ints[i];
+                for (int j = 0; j < n; j++)
+                    dst[j] = src[sel[j]];
+            } else {
+                Field[] src = fields[i], dst = out.fields[i];
+                for (int j = 0; j < n; j++)
+                    dst[j] = src[sel[j]];
+            }
+        }
+        if (ridPages != null) {
+            out.ridPages = new PageId[capacity];
+            out.ridSlots = new int[capacity];
+            for (int j = 0; j < n; j++) {
+                out.ridPages[j] = ridPages[sel[j]];
+                out.ridSlots[j] = ridSlots[sel[j]];
+            }
+        }
+        out.size = n;
+        return out;
+    }
+
+    /**
+     * Reserves the next row of this batch; its values must then be set with
+     * setInt or setField.
+     *
+     * @return the index of the new row.
+     */
+    int addRow() {
+        if (size == capacity)
+            throw new IllegalStateException("Batch is full.");
+        return size++;
+    }
+
+    void setInt(int i, int row, int value) {
+        ints[i][row] = value;
+    }
+
+    void setField(int i, int row, Field f) {
+        if (ints[i] != null)
+            ints[i][row] = ((IntField) f).getValue();
+        else
+            fields[i][row] = f;
+    }
+
+    void setRecordId(int row, PageId pid, int slot) {
+        if (ridPages == null) {
+            ridPages = new PageId[capacity];
+            ridSlots = new int[capacity];
+        }
+        ridPages[row] = pid;
+        ridSlots[row] = slot;
+    }
+
+    /**
+     * Compares two ints the way IntField.compare does.
+     */
+    static boolean compare(int a, Predicate.Op op, int b) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return a == b;
+        case NOT_EQUALS:
+            return a != b;
+        case GREATER_THAN:
+            return a > b;
+        case GREATER_THAN_OR_EQ:
+            return a >= b;
+        case LESS_THAN:
+            return a < b;
+        case LESS_THAN_OR_EQ:
+            return a <= b;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,43 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * Orders tuples by one or more fields, each ascending or descending; later
+ * fields break ties of earlier ones. Used by {@link OrderBy} and
+ * {@link TopN}.
+ */
+class TupleComparator implements Comparator<Tuple> {
+    int[] fields;
+    boolean[] asc;
+
+    public TupleComparator(int field, boolean asc) {
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    public TupleComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
+        this.asc = asc;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            int c = compare(o1.getField(fields[i]), o2.getField(fields[i]));
+            if (c != 0)
+                return asc[i] ? c : -c;
+        }
+        return 0;
+    }
+
+    private static int compare(Field t1, Field t2) {
+        if (t1 instanceof IntField && t2 instanceof IntField) {
+            int v1 = ((IntField) t1).getValue();
+            int v2 = ((IntField) t2).getValue();
+            return v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+        }
+        if (t1.compare(Predicate.Op.EQUALS, t2))
+            return 0;
+        return t1.compare(Predicate.Op.GREATER_THAN, t2) ? 1 : -1;
+    }
+
+}
@@ -173,6 +173,23 @@ public class TupleDesc implements Serializable {
     	return size;
     }
 
+    /**
+     * @return The offset (in bytes) of the ith field from the start of a
+     *         tuple corresponding to this TupleDesc.
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+    	if (i < 0 || i >= this.numFields())
+    		throw new NoSuchElementException("Invalid field index.");
+    	
+    	int offset = 0;
+    	for (int j = 0; j < i; j++)
+    		offset += fields.get(j).fieldType.getLen();
+    	
+    	return offset;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The simplified 2Q replacement policy of Johnson and Shasha. Newly loaded
+ * pages enter A1in, a FIFO queue; references to a page while it is in A1in
+ * are ignored. Pages evicted from A1in are remembered (by id only) in the
+ * A1out queue. A page that is loaded again while it is remembered in A1out
+ * has proved it is reused, and goes to Am, which is managed as LRU.
+ * <p>
+ * A sequential scan only ever passes through A1in, so it cannot push the
+ * pages in Am out of the buffer pool.
+ */
+public class TwoQueuePolicy implements EvictionPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    // access-ordered LRU list
+    private final LinkedHashMap<PageId, Boolean> am =
+            new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    /**
+     * Creates a 2Q policy for a buffer pool of the given size, with A1in
+     * holding a quarter of the pool and A1out remembering as many page ids
+     * as the pool holds pages.
+     */
+    public TwoQueuePolicy(int numPages) {
+        this(Math.max(1, numPages / 4), Math.max(1, numPages));
+    }
+
+    /**
+     * @param kin  the number of pages A1in may hold before its pages are
+     *             preferred for eviction
+     * @param kout the number of evicted page ids A1out remembers
+     */
+    public TwoQueuePolicy(int kin, int kout) {
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (a1in.contains(pid) || am.containsKey(pid))
+            return;
+        if (a1out.remove(pid))
+            am.put(pid, Boolean.TRUE);
+        else
+            a1in.add(pid);
+    }
+
+    public synchronized void pageReferenced(PageId pid) {
+        // refreshes the page's position if it is in Am
+        am.get(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Set<PageId> skip) {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty())
+            victim = firstNotSkipped(a1in, skip);
+        if (victim == null)
+            victim = firstNotSkipped(am.keySet(), skip);
+        if (victim == null)
+            victim = firstNotSkipped(a1in, skip);
+        return victim;
+    }
+
+    private static PageId firstNotSkipped(Set<PageId> queue, Set<PageId> skip) {
+        for (PageId pid : queue) {
+            if (!skip.contains(pid))
+                return pid;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,343 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * ZoneMap records the smallest and largest value of each integer field on
+ * each page of a HeapFile, so that a scan with a predicate on such a field
+ * can skip the pages that cannot hold a matching tuple without reading them.
+ * <p>
+ * The bounds of a page may be wider than the values on it, but never
+ * narrower: an insert widens them, a delete leaves them as they are, and
+ * they are recomputed from the page whenever it is written. A page with no
+ * tuples has empty bounds (min greater than max) and matches nothing.
+ * <p>
+ * Like the {@link FreeSpaceMap}, the map is kept in a side file next to the
+ * heap file, named after it with a ".zm" suffix: a header holding a magic
+ * number, the number of pages and the length of the heap file, followed by
+ * the min and max of each integer field of each page. The entry for a page
+ * is written whenever the page is written. The side file is read the first
+ * time the map is needed, and the map is rebuilt by reading every page of
+ * the file once if the side file is missing or stale. Inserts before then
+ * do not load the map; the pages they change match every predicate until
+ * they are next written.
+ */
+public class ZoneMap {
+
+    /** Suffix appended to the heap file name to get the side file name. */
+    public static final String SUFFIX = ".zm";
+
+    private static final int MAGIC = 0x5a4d4131;
+    private static final int HEADER_SIZE = 16;
+
+    private final HeapFile hf;
+    private final File file;
+    // the integer fields of the file, and the position of each field's
+    // bounds in an entry (-1 for other fields)
+    private final int[] intFields;
+    private final int[] column;
+
+    private boolean loaded = false;
+    private int numPages = 0;
+    // bounds of page p, field column[f]: mins/maxes[p * intFields.length + column[f]]
+    private int[] mins = new int[0];
+    private int[] maxes = new int[0];
+    // Null until the side file is first written, or if it cannot be written
+    private RandomAccessFile raf = null;
+    private boolean writable = true;
+    // set once the side file has been removed after a write to the heap file
+    private boolean sideFileStale = false;
+    // pages changed in the buffer pool before the map was loaded
+    private final BitSet changedUnloaded = new BitSet();
+
+    /**
+     * Creates the zone map of a heap file. Nothing is read from disk until
+     * the map is first used.
+     */
+    public ZoneMap(HeapFile hf) {
+        this.hf = hf;
+        this.file = new File(hf.getFile().getPath() + SUFFIX);
+        TupleDesc td = hf.getTupleDesc();
+        this.column = new int[td.numFields()];
+        int n = 0;
+        for (int i = 0; i < column.length; i++)
+            column[i] = td.getFieldType(i) == Type.INT_TYPE ? n++ : -1;
+        this.intFields = new int[n];
+        for (int i = 0; i < column.length; i++) {
+            if (column[i] >= 0)
+                intFields[column[i]] = i;
+        }
+    }
+
+    /**
+     * @return the side file storing this map.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns whether page pgNo may hold a tuple that satisfies p according
+     * to the map. Pages the map does not know about, and predicates on
+     * fields that are not integers, may always match.
+     *
+     * @return false if no tuple on the page can satisfy p.
+     */
+    public synchronized boolean mayMatch(int pgNo, Predicate p) throws IOException {
+        int field = p.getField();
+        if (field < 0 || field >= column.length || column[field] < 0
+                || !(p.getOperand() instanceof IntField))
+            return true;
+        ensureLoaded();
+        if (pgNo < 0 || pgNo >= numPages)
+            return true;
+
+        int at = pgNo * intFields.length + column[field];
+        int min = mins[at];
+        int max = maxes[at];
+        if (min > max)
+            return false;
+        int v = ((IntField) p.getOperand()).getValue();
+        switch (p.getOp()) {
+        case EQUALS:
+            return min <= v && v <= max;
+        case NOT_EQUALS:
+            return min != v || max != v;
+        case LESS_THAN:
+            return min < v;
+        case LESS_THAN_OR_EQ:
+            return min <= v;
+        case GREATER_THAN:
+            return max > v;
+        case GREATER_THAN_OR_EQ:
+            return max >= v;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Widens the bounds of a page, changed in the buffer pool but not yet
+     * written, to hold a tuple inserted into it.
+     */
+    public synchronized void tupleInserted(int pgNo, Tuple t) {
+        if (!loaded) {
+            changedUnloaded.set(pgNo);
+            return;
+        }
+        if (pgNo >= numPages)
+            grow(pgNo + 1);
+        for (int f = 0; f < intFields.length; f++) {
+            int v = ((IntField) t.getField(intFields[f])).getValue();
+            int at = pgNo * intFields.length + f;
+            mins[at] = Math.min(mins[at], v);
+            maxes[at] = Math.max(maxes[at], v);
+        }
+    }
+
+    /**
+     * Recomputes the bounds of a page that has just been written to the heap
+     * file, and writes them to the side file.
+     */
+    public synchronized void pageWritten(HeapPage page) {
+        if (!loaded) {
+            // The side file no longer matches the heap file. Remove it so
+            // that it cannot pass for current, and rebuild the map when it
+            // is next loaded
+            if (!sideFileStale && raf == null)
+                sideFileStale = !file.exists() || file.delete();
+            return;
+        }
+        int pgNo = page.getId().pageNumber();
+        // pages appended directly to the file before this one are not
+        // in the map yet
+        if (pgNo > numPages)
+            scan(numPages, pgNo);
+        set(pgNo, page);
+        if (!openSideFile())
+            return;
+        try {
+            writeHeader();
+            writeEntries(pgNo, pgNo + 1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            writable = false;
+        }
+    }
+
+    /**
+     * Closes the side file. The map reopens it when it is next written.
+     */
+    public synchronized void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+    }
+
+    private void grow(int pages) {
+        int needed = pages * intFields.length;
+        if (needed > mins.length) {
+            int size = Math.max(needed, mins.length * 2);
+            int[] grownMins = new int[size];
+            int[] grownMaxes = new int[size];
+            System.arraycopy(mins, 0, grownMins, 0, mins.length);
+            System.arraycopy(maxes, 0, grownMaxes, 0, maxes.length);
+            mins = grownMins;
+            maxes = grownMaxes;
+        }
+        for (int at = numPages * intFields.length; at < needed; at++) {
+            mins[at] = Integer.MAX_VALUE;
+            maxes[at] = Integer.MIN_VALUE;
+        }
+        numPages = pages;
+    }
+
+    private void set(int pgNo, HeapPage page) {
+        if (pgNo >= numPages)
+            grow(pgNo + 1);
+        for (int f = 0; f < intFields.length; f++) {
+            int[] range = page.getIntRange(intFields[f]);
+            int at = pgNo * intFields.length + f;
+            mins[at] = range == null ? Integer.MAX_VALUE : range[0];
+            maxes[at] = range == null ? Integer.MIN_VALUE : range[1];
+        }
+    }
+
+    /**
+     * Loads the map from the side file, or rebuilds it from the heap file if
+     * the side file is missing or stale. Pages appended to the heap file
+     * without going through the map are scanned and added.
+     */
+    private void ensureLoaded() throws IOException {
+        int filePages = hf.numPages();
+        if (loaded && filePages >= numPages) {
+            if (filePages > numPages)
+                scan(numPages, filePages);
+            return;
+        }
+
+        loaded = false;
+        numPages = 0;
+        if (!readSideFile()) {
+            numPages = 0;
+            scan(0, filePages);
+            writeSideFile();
+        }
+        sideFileStale = false;
+        loaded = true;
+
+        // the pages on disk may be older than the changed pages
+        for (int pgNo = changedUnloaded.nextSetBit(0); pgNo >= 0;
+                pgNo = changedUnloaded.nextSetBit(pgNo + 1)) {
+            if (pgNo >= numPages)
+                grow(pgNo + 1);
+            for (int f = 0; f < intFields.length; f++) {
+                mins[pgNo * intFields.length + f] = Integer.MIN_VALUE;
+                maxes[pgNo * intFields.length + f] = Integer.MAX_VALUE;
+            }
+        }
+        changedUnloaded.clear();
+    }
+
+    /**
+     * Reads the side file if it matches the heap file.
+     *
+     * @return true if the map was read.
+     */
+    private boolean readSideFile() {
+        File dataFile = hf.getFile();
+        if (!file.exists() || file.lastModified() < dataFile.lastModified())
+            return false;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC)
+                return false;
+            int pages = in.readInt();
+            long length = in.readLong();
+            if (length != dataFile.length() || pages != hf.numPages())
+                return false;
+
+            grow(pages);
+            for (int at = 0; at < pages * intFields.length; at++) {
+                mins[at] = in.readInt();
+                maxes[at] = in.readInt();
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads pages [from, to) of the heap file directly, bypassing the buffer
+     * pool, and records their bounds.
+     */
+    private void scan(int from, int to) {
+        int tableId = hf.getId();
+        for (int i = from; i < to; i++)
+            set(i, (HeapPage) hf.readPage(new HeapPageId(tableId, i)));
+    }
+
+    private void writeSideFile() {
+        if (!openSideFile())
+            return;
+        try {
+            raf.setLength(0);
+            writeHeader();
+            writeEntries(0, numPages);
+        } catch (IOException e) {
+            e.printStackTrace();
+            writable = false;
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(numPages);
+        raf.writeLong(hf.getFile().length());
+    }
+
+    /** Writes the entries of pages [from, to) to the side file. */
+    private void writeEntries(int from, int to) throws IOException {
+        int entrySize = intFields.length * 8;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((to - from) * entrySize);
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int at = from * intFields.length; at < to * intFields.length; at++) {
+            out.writeInt(mins[at]);
+            out.writeInt(maxes[at]);
+        }
+        raf.seek(HEADER_SIZE + (long) from * entrySize);
+        raf.write(bytes.toByteArray());
+    }
+
+    /**
+     * @return true if the side file is open for writing.
+     */
+    private boolean openSideFile() {
+        if (raf != null)
+            return true;
+        if (!writable)
+            return false;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            return true;
+        } catch (FileNotFoundException e) {
+            // Read-only directory: keep the map in memory only
+            writable = false;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package simpledb;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HeapFileEncoderTest extends SimpleDbTestBase {
+    private static final Type[] TYPES = {Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE};
+
+    private static File writeInput(int rows, boolean trailingNewline) throws IOException {
+        File f = File.createTempFile("encoder", ".txt");
+        f.deleteOnExit();
+        Random r = new Random(rows);
+        PrintWriter out = new PrintWriter(new FileWriter(f));
+        for (int i = 0; i < rows; i++) {
+            // blank lines and Windows line endings are not records
+            if (r.nextInt(10) == 0)
+                out.print(r.nextBoolean() ? "\n" : "\r\n");
+            out.print(r.nextInt() + ",name" + r.nextInt(1000) + "," + i);
+            if (i < rows - 1 || trailingNewline)
+                out.print(r.nextBoolean() ? "\n" : "\r\n");
+        }
+        out.close();
+        return f;
+    }
+
+    private static byte[] readAll(File f) throws IOException {
+        byte[] bytes = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        int off = 0;
+        while (off < bytes.length)
+            off += in.read(bytes, off, bytes.length - off);
+        in.close();
+        return bytes;
+    }
+
+    private static void assertSameOutput(File in) throws IOException {
+        File serial = File.createTempFile("serial", ".dat");
+        serial.deleteOnExit();
+        HeapFileEncoder.convert(in, serial, BufferPool.getPageSize(), TYPES.length, TYPES, ',');
+        byte[] expected = readAll(serial);
+
+        for (int threads = 1; threads <= 5; threads++) {
+            File parallel = File.createTempFile("parallel", ".dat");
+            parallel.deleteOnExit();
+            HeapFileEncoder.convertParallel(in, parallel, BufferPool.getPageSize(),
+                    TYPES.length, TYPES, ',', threads);
+            assertTrue("output differs with " + threads + " threads",
+                    Arrays.equals(expected, readAll(parallel)));
+        }
+    }
+
+    /**
+     * convertParallel produces the same file as convert
+     */
+    @Test public void parallelMatchesSerial() throws IOException {
+        // 29 records per page: inputs smaller than a page, exactly one page,
+        // and many pages split unevenly between the workers
+        assertSameOutput(writeInput(0, true));
+        assertSameOutput(writeInput(5, true));
+        assertSameOutput(writeInput(29, true));
+        assertSameOutput(writeInput(1000, true));
+        assertSameOutput(writeInput(1000, false));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileEncoderTest.class);
+    }
+}
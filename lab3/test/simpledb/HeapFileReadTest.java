@@ -77,6 +77,28 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * A read interrupted while it holds a pooled channel closes the channel;
+     * later reads must not be handed the closed channel.
+     */
+    @Test
+    public void readPageAfterInterrupt() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.readPage(pid);
+        Thread.currentThread().interrupt();
+        try {
+            hf.readPage(pid);
+        } catch (IllegalArgumentException e) {
+            // the interrupted read may fail
+        } finally {
+            Thread.interrupted();
+        }
+        for (int i = 0; i < HeapFile.MAX_IDLE_CHANNELS + 1; i++) {
+            HeapPage page = (HeapPage) hf.readPage(pid);
+            assertEquals(484, page.getNumEmptySlots());
+        }
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -1,5 +1,9 @@
 package simpledb;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +47,76 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for the free-space map: inserts go to a page with a free
+     * slot, and the map is read back from its side file.
+     */
+    @Test public void freeSpaceMap() throws Exception {
+        Tuple first = null;
+        for (int i = 0; i < 504 * 3; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+            if (i == 0)
+                first = t;
+        }
+        assertEquals(3, empty.numPages());
+        assertEquals(-1, empty.getFreeSpaceMap().findPage(0));
+
+        // freeing a slot on the first page makes the next insert go there
+        Database.getBufferPool().deleteTuple(tid, first);
+        assertEquals(0, empty.getFreeSpaceMap().findPage(0));
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+        assertEquals(0, t.getRecordId().getPageId().pageNumber());
+        assertEquals(3, empty.numPages());
+
+        // free a slot on the last page and write it out
+        Tuple last = Utility.getHeapTuple(-2, 2);
+        last.setRecordId(new RecordId(new HeapPageId(empty.getId(), 2), 503));
+        Database.getBufferPool().deleteTuple(tid, last);
+        Database.getBufferPool().flushAllPages();
+        empty.close();
+
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(2, reopened.getFreeSpaceMap().findPage(0));
+        assertEquals(1, reopened.getFreeSpaceMap().getFreeSlots(2));
+        assertTrue(reopened.getFreeSpaceMap().getFile().exists());
+        reopened.close();
+    }
+
+    /**
+     * Unit test for HeapFile.bulkLoad()
+     */
+    @Test public void bulkLoad() throws Exception {
+        File csv = File.createTempFile("bulk", ".csv");
+        csv.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(csv));
+        for (int i = 0; i < 504 * 2 + 10; ++i)
+            out.print(i + "," + (-i) + (i % 2 == 0 ? "\n" : "\r\n"));
+        out.print("-1,1"); // no trailing newline
+        out.close();
+
+        assertEquals(504 * 2 + 11, empty.bulkLoad(csv, ','));
+        // the existing empty page is left alone and three pages are appended
+        assertEquals(4, empty.numPages());
+        assertEquals(0, empty.getFreeSpaceMap().findPage(0));
+        assertEquals(3, empty.getFreeSpaceMap().findPage(1));
+        assertEquals(255, empty.getFreeSpaceMap().getFreeSlots(3)); // saturated
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        long sum = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            sum += ((IntField) t.getField(0)).getValue() + ((IntField) t.getField(1)).getValue();
+            count++;
+        }
+        it.close();
+        assertEquals(504 * 2 + 11, count);
+        assertEquals(0, sum);
+    }
+
     /**
      * JUnit suite target
      */
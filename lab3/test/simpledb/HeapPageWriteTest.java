@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +127,40 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Tuples returned by HeapPage.iterator() keep the contents the page had
+     * when they were read, and the page and its before image serialize back
+     * to the bytes they were built from.
+     */
+    @Test public void tupleViews() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, before));
+
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        Tuple second = it.next();
+        Tuple copy = new Tuple(first.getTupleDesc());
+        copy.setField(0, first.getField(0));
+        copy.setField(1, first.getField(1));
+
+        // deleting both and inserting a new tuple reuses the first slot
+        page.deleteTuple(first);
+        page.deleteTuple(second);
+        page.insertTuple(Utility.getHeapTuple(-7, 2));
+        assertTrue(TestUtil.compareTuples(copy, first));
+        assertEquals(first.getRecordId(), page.iterator().next().getRecordId());
+        assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(-7, 2), page.iterator().next()));
+
+        // the caller's array and the before image are left untouched
+        assertTrue(Arrays.equals(before, HeapPageReadTest.EXAMPLE_DATA));
+        assertTrue(Arrays.equals(before, page.getBeforeImage().getPageData()));
+
+        HeapPage reread = new HeapPage(pid, page.getPageData());
+        assertEquals(page.getNumEmptySlots(), reread.getNumEmptySlots());
+        assertTrue(Arrays.equals(page.getPageData(), reread.getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
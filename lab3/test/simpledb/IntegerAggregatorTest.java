@@ -178,6 +178,34 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator with enough groups, including negative ones, to
+   * grow its group table several times
+   */
+  @Test public void manyGroups() throws Exception {
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.MAX);
+    int groups = 5000;
+    for (int round = 0; round < 2; round++) {
+      for (int g = -groups / 2; g < groups / 2; g++) {
+        Tuple t = new Tuple(Utility.getTupleDesc(width1));
+        t.setField(0, new IntField(g));
+        t.setField(1, new IntField(g * 2 + round));
+        agg.mergeTupleIntoGroup(t);
+      }
+    }
+
+    DbIterator it = agg.iterator();
+    it.open();
+    int expected = -groups / 2;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      assertEquals(expected, ((IntField) t.getField(0)).getValue());
+      assertEquals(expected * 2 + 1, ((IntField) t.getField(1)).getValue());
+      expected++;
+    }
+    assertEquals(groups / 2, expected);
+  }
+
   /**
    * JUnit suite target
    */
@@ -28,7 +28,9 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         File temp = File.createTempFile("table", ".dat");
         temp.deleteOnExit();
         HeapFileEncoder.convert(tuples, temp, BufferPool.PAGE_SIZE, columns);
-        return Utility.openHeapFile(columns, colPrefix, temp);
+        HeapFile hf = Utility.openHeapFile(columns, colPrefix, temp);
+        hf.deleteOnExit();
+        return hf;
 	}
 
 	ArrayList<ArrayList<Integer>> tuples1;
@@ -161,6 +163,74 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 		Assert.assertEquals(Boolean.TRUE, ret[0]);
 	}
 
+	/**
+	 * Verify that the optimizer picks a hash join for large equality joins,
+	 * a merge or block nested-loop join for other predicates, a plain
+	 * nested-loop join for a single outer tuple, and that instantiateJoin()
+	 * builds the chosen operator.
+	 */
+	@Test public void chooseJoinAlgorithmTest() throws ParsingException {
+		TransactionId tid = new TransactionId();
+		Parser p = new Parser();
+		JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1 + " t1, " + tableName2 + " t2 WHERE t1.c1 = t2.c2;"),
+				new Vector<LogicalJoinNode>());
+		double cost1 = stats1.estimateScanCost();
+		double cost2 = stats2.estimateScanCost();
+		int card1 = stats1.estimateTableCardinality(1.0);
+		int card2 = stats2.estimateTableCardinality(1.0);
+
+		LogicalJoinNode equalsJoinNode = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS);
+		Assert.assertEquals(JoinAlgorithm.HASH, jo.chooseJoinAlgorithm(equalsJoinNode, card1, card2, cost1, cost2));
+		Assert.assertTrue(jo.estimateJoinCost(equalsJoinNode, JoinAlgorithm.HASH, card1, card2, cost1, cost2)
+				< jo.estimateJoinCost(equalsJoinNode, card1, card2, cost1, cost2));
+
+		LogicalJoinNode rangeJoinNode = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.LESS_THAN);
+		Assert.assertEquals(JoinAlgorithm.SORT_MERGE, jo.chooseJoinAlgorithm(rangeJoinNode, card1, card2, cost1, cost2));
+		Assert.assertTrue(jo.estimateJoinCost(rangeJoinNode, JoinAlgorithm.SORT_MERGE, card1, card2, cost1, cost2)
+				< jo.estimateJoinCost(rangeJoinNode, JoinAlgorithm.BLOCK_NESTED_LOOP, card1, card2, cost1, cost2));
+		Assert.assertTrue(jo.estimateJoinCost(rangeJoinNode, JoinAlgorithm.BLOCK_NESTED_LOOP, card1, card2, cost1, cost2)
+				< jo.estimateJoinCost(rangeJoinNode, card1, card2, cost1, cost2));
+
+		LogicalJoinNode notEqualsJoinNode = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.NOT_EQUALS);
+		Assert.assertEquals(JoinAlgorithm.BLOCK_NESTED_LOOP, jo.chooseJoinAlgorithm(notEqualsJoinNode, card1, card2, cost1, cost2));
+
+		// with one outer tuple the inner side is scanned once whatever the
+		// algorithm, and nested loops need neither a block nor a hash table
+		Assert.assertEquals(JoinAlgorithm.NESTED_LOOP, jo.chooseJoinAlgorithm(equalsJoinNode, 1, card2, cost1, cost2));
+		Assert.assertEquals(JoinAlgorithm.NESTED_LOOP, jo.chooseJoinAlgorithm(rangeJoinNode, 1, card2, cost1, cost2));
+		Assert.assertEquals(JoinAlgorithm.NESTED_LOOP, jo.chooseJoinAlgorithm(notEqualsJoinNode, 1, card2, cost1, cost2));
+		Assert.assertTrue(jo.estimateJoinCost(notEqualsJoinNode, 1, card2, cost1, cost2)
+				< jo.estimateJoinCost(notEqualsJoinNode, JoinAlgorithm.BLOCK_NESTED_LOOP, 1, card2, cost1, cost2));
+
+		// a merge join need not sort an input that is already sorted
+		LogicalJoinNode sortedJoinNode = rangeJoinNode.withSortedInputs(true, false);
+		Assert.assertTrue(jo.estimateJoinCost(sortedJoinNode, JoinAlgorithm.SORT_MERGE, card1, card2, cost1, cost2)
+				< jo.estimateJoinCost(rangeJoinNode, JoinAlgorithm.SORT_MERGE, card1, card2, cost1, cost2));
+		Assert.assertTrue(sortedJoinNode.swapInnerOuter().t2Sorted);
+		Assert.assertFalse(sortedJoinNode.swapInnerOuter().t1Sorted);
+
+		// sorting past the memory budget costs I/O, and a range merge join
+		// whose inner side does not fit in memory is not planned
+		int big = SortMergeJoin.DEFAULT_MEMORY_TUPLES * 4;
+		LogicalJoinNode bigEqualsNode = equalsJoinNode.withAlgorithm(JoinAlgorithm.SORT_MERGE);
+		double unsortedCost = jo.estimateJoinCost(bigEqualsNode, big, card2, cost1 * 4, cost2);
+		double sortedCost = jo.estimateJoinCost(bigEqualsNode.withSortedInputs(true, false), big, card2, cost1 * 4, cost2);
+		Assert.assertEquals(sortedCost + JoinOptimizer.sortCost(big) + 2 * cost1 * 4, unsortedCost, unsortedCost * 1e-9);
+		Assert.assertEquals(Double.POSITIVE_INFINITY, jo.estimateJoinCost(rangeJoinNode,
+				JoinAlgorithm.SORT_MERGE, card1, big, cost1, cost2 * 4), 0);
+		Assert.assertEquals(JoinAlgorithm.BLOCK_NESTED_LOOP, jo.chooseJoinAlgorithm(rangeJoinNode, card1, big, cost1, cost2 * 4));
+
+		DbIterator scan1 = new SeqScan(tid, tableId1, "t1");
+		DbIterator scan2 = new SeqScan(tid, tableId2, "t2");
+		Assert.assertTrue(JoinOptimizer.instantiateJoin(equalsJoinNode.withAlgorithm(JoinAlgorithm.HASH), scan1, scan2) instanceof HybridHashJoin);
+		Assert.assertTrue(JoinOptimizer.instantiateJoin(rangeJoinNode, scan1, scan2) instanceof Join);
+		Assert.assertTrue(JoinOptimizer.instantiateJoin(rangeJoinNode.withAlgorithm(JoinAlgorithm.BLOCK_NESTED_LOOP), scan1, scan2) instanceof BlockNestedLoopJoin);
+		DbIterator merge = JoinOptimizer.instantiateJoin(sortedJoinNode.withAlgorithm(JoinAlgorithm.SORT_MERGE), scan1, scan2);
+		Assert.assertTrue(merge instanceof SortMergeJoin);
+		Assert.assertTrue(((SortMergeJoin) merge).isChild1Sorted());
+		Assert.assertFalse(((SortMergeJoin) merge).isChild2Sorted());
+	}
+
 	/**
 	 * Verify that the join cardinalities produced by estimateJoinCardinality() are reasonable
 	 */
@@ -465,5 +535,29 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 		
 		// Make sure that "a" is the outermost table in the join
 		Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a") || result.get(result.size() - 1).t1Alias.equals("a"));
+
+		// Only the equality joins can be evaluated with a hash join
+		for (LogicalJoinNode node : result) {
+			if (node.p != Predicate.Op.EQUALS)
+				Assert.assertFalse(node.algorithm == JoinAlgorithm.HASH);
+		}
+	}
+
+	/**
+	 * A merge join on the ORDER BY field already sorts the output, so the plan needs no OrderBy
+	 */
+	@Test public void interestingOrderTest() throws ParsingException {
+		TransactionId tid = new TransactionId();
+		Parser p = new Parser();
+
+		DbIterator plan = p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1 + " t1, " + tableName2 + " t2 WHERE t1.c1 < t2.c2 ORDER BY t1.c1;")
+				.physicalPlan(tid, TableStats.getStatsMap(), false);
+		DbIterator joined = ((Operator) plan).getChildren()[0];
+		Assert.assertTrue(joined instanceof SortMergeJoin);
+
+		// a descending ORDER BY still needs its own sort
+		plan = p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1 + " t1, " + tableName2 + " t2 WHERE t1.c1 < t2.c2 ORDER BY t1.c1 DESC;")
+				.physicalPlan(tid, TableStats.getStatsMap(), false);
+		Assert.assertTrue(((Operator) plan).getChildren()[0] instanceof OrderBy);
 	}
 }
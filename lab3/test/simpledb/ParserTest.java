@@ -0,0 +1,50 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+public class ParserTest extends SimpleDbTestBase {
+
+  /**
+   * Unit test for Parser.splitLimit()
+   */
+  @Test public void splitLimit() {
+    Parser.LimitSplit split = Parser.splitLimit("SELECT * FROM t LIMIT 5;");
+    assertEquals("SELECT * FROM t;", split.statement);
+    assertEquals(5, split.limit);
+
+    split = Parser.splitLimit("select *\nfrom t limit 7\n");
+    assertEquals("select *\nfrom t;", split.statement);
+    assertEquals(7, split.limit);
+
+    // only a clause at the end of the statement is cut off
+    split = Parser.splitLimit("SELECT * FROM t WHERE t.s = 'a limit 3' LIMIT 4;");
+    assertEquals("SELECT * FROM t WHERE t.s = 'a limit 3';", split.statement);
+    assertEquals(4, split.limit);
+
+    // not in a string literal
+    String s = "SELECT * FROM t WHERE t.s = 'it''s no limit 3;";
+    split = Parser.splitLimit(s);
+    assertEquals(s, split.statement);
+    assertEquals(-1, split.limit);
+
+    // and not in other statements
+    s = "DELETE FROM t WHERE t.a = 1 limit 3;";
+    split = Parser.splitLimit(s);
+    assertEquals(s, split.statement);
+    assertEquals(-1, split.limit);
+
+    s = "SELECT * FROM t WHERE t.s = 'a limit 3';";
+    assertEquals(-1, Parser.splitLimit(s).limit);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParserTest.class);
+  }
+}
@@ -100,6 +100,18 @@ public class TableStatsTest extends SimpleDbTestBase {
 		Assert.assertEquals(0, s.estimateTableCardinality(0.0));
 	}
 	
+	/**
+	 * Verify that an index with wider keys, and so fewer entries per leaf,
+	 * costs more to scan
+	 */
+	@Test public void estimateIndexScanCostTest() {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		Assert.assertTrue(s.estimateIndexScanCost(0.5, Type.STRING_TYPE)
+				> s.estimateIndexScanCost(0.5, Type.INT_TYPE));
+		Assert.assertTrue(s.estimateIndexScanCost(0.5, Type.INT_TYPE)
+				> s.estimateIndexScanCost(0.1, Type.INT_TYPE));
+	}
+	
 	/**
 	 * Verify that selectivity estimates do something reasonable.
 	 * Don't bother splitting this into N different functions for
@@ -385,6 +385,7 @@ public class TestUtil {
             try{
             	Database.reset();
                 empty = Utility.createEmptyHeapFile(emptyFile.getAbsolutePath(), 2);
+                empty.deleteOnExit();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
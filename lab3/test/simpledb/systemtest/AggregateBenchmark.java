@@ -0,0 +1,100 @@
+package simpledb.systemtest;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Measures IntegerAggregator and StringAggregator throughput, in rows per
+ * second, and the bytes they allocate per row, for a range of group counts.
+ * The input batches are built before timing starts, so the numbers measure
+ * only the aggregators.
+ *
+ * Run with: ant runbenchmark -Dbenchmark=AggregateBenchmark
+ */
+public class AggregateBenchmark {
+    private static final int ROWS = 2000000;
+    private static final int ROUNDS = 3;
+    private static final int[] GROUPS = { 0, 10, 10000, 1000000 };
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface Factory {
+        Aggregator create();
+    }
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Rows of (group, value), with group drawn from [0, groups). */
+    private static ArrayList<TupleBatch> batches(TupleDesc td, int groups) {
+        Random rand = new Random(1);
+        ArrayList<TupleBatch> batches = new ArrayList<TupleBatch>();
+        TupleBatch batch = new TupleBatch(td);
+        for (int row = 0; row < ROWS; row++) {
+            if (batch.isFull()) {
+                batches.add(batch);
+                batch = new TupleBatch(td);
+            }
+            Tuple t = new Tuple(td);
+            int g = groups == 0 ? 0 : rand.nextInt(groups);
+            if (td.getFieldType(0) == Type.INT_TYPE)
+                t.setField(0, new IntField(g));
+            else
+                t.setField(0, new StringField("g" + g, Type.STRING_LEN));
+            t.setField(1, new IntField(rand.nextInt()));
+            batch.addTuple(t);
+        }
+        batches.add(batch);
+        return batches;
+    }
+
+    private static void run(String name, Factory factory, ArrayList<TupleBatch> batches)
+            throws Exception {
+        System.gc();
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        Aggregator agg = factory.create();
+        for (TupleBatch batch : batches)
+            agg.mergeBatchIntoGroup(batch);
+        DbIterator it = agg.iterator();
+        it.open();
+        while (it.hasNext())
+            it.next();
+        it.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        bytes = allocatedBytes() - bytes;
+        System.out.printf("%-30s %12.0f rows/s %8.2f bytes/row%n",
+                name, ROWS / seconds, (double) bytes / ROWS);
+    }
+
+    public static void main(String[] args) throws Exception {
+        TupleDesc intTd = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE });
+        TupleDesc stringTd = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.println("round " + round);
+            for (final int groups : GROUPS) {
+                final int gbfield = groups == 0 ? Aggregator.NO_GROUPING : 0;
+                final Type intType = groups == 0 ? null : Type.INT_TYPE;
+                final Type stringType = groups == 0 ? null : Type.STRING_TYPE;
+                run("int AVG, " + groups + " groups", new Factory() {
+                    public Aggregator create() {
+                        return new IntegerAggregator(gbfield, intType, 1, Aggregator.Op.AVG);
+                    }
+                }, batches(intTd, groups));
+                if (groups > 10000)
+                    continue; // a million distinct strings measures the HashMap
+                run("string COUNT, " + groups + " groups", new Factory() {
+                    public Aggregator create() {
+                        return new StringAggregator(gbfield, stringType, 0, Aggregator.Op.COUNT);
+                    }
+                }, batches(stringTd, groups));
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package simpledb.systemtest;
+
+import java.util.HashMap;
+
+import simpledb.*;
+
+/**
+ * Compares tuple-at-a-time and batch-at-a-time execution of TPC-H Q1/Q6
+ * style plans over a lineitem-like table of int columns: a plain scan, a
+ * selective filter, and a filtered grouped aggregate. The table fits in the
+ * buffer pool, so the numbers measure the operators rather than I/O.
+ *
+ * Run with: ant runbenchmark -Dbenchmark=BatchExecutionBenchmark
+ */
+public class BatchExecutionBenchmark {
+    private static final int ROWS = 400000;
+    private static final int COLUMNS = 4; // quantity, price, discount, flag
+    private static final int ROUNDS = 5;
+
+    private interface Plan {
+        Operator create(TransactionId tid);
+    }
+
+    private static long drain(DbIterator it) throws Exception {
+        long n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private static double rowsPerSecond(Plan plan, boolean batch) throws Exception {
+        TransactionId tid = new TransactionId();
+        Operator op = plan.create(tid);
+        long start = System.nanoTime();
+        drain(batch ? new BatchAdapter(op) : op);
+        return ROWS / ((System.nanoTime() - start) / 1e9);
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<Integer, Integer> spec = new HashMap<Integer, Integer>();
+        final HeapFile lineitem = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 50, spec, null);
+        Database.resetBufferPool(lineitem.numPages() + 100);
+
+        HashMap<String, Plan> plans = new HashMap<String, Plan>();
+        String[] names = {"scan", "filter", "filter+aggregate"};
+        plans.put("scan", new Plan() {
+            public Operator create(TransactionId tid) {
+                // a filter that passes every row, so the scan is measured
+                return new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)),
+                        new SeqScan(tid, lineitem.getId(), "l"));
+            }
+        });
+        plans.put("filter", new Plan() {
+            public Operator create(TransactionId tid) {
+                // quantity < 12, about a quarter of the rows
+                return new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(12)),
+                        new SeqScan(tid, lineitem.getId(), "l"));
+            }
+        });
+        plans.put("filter+aggregate", new Plan() {
+            public Operator create(TransactionId tid) {
+                // SELECT flag, SUM(price) WHERE discount < 25 GROUP BY flag
+                Filter f = new Filter(new Predicate(2, Predicate.Op.LESS_THAN, new IntField(25)),
+                        new SeqScan(tid, lineitem.getId(), "l"));
+                return new Aggregate(f, 1, 3, Aggregator.Op.SUM);
+            }
+        });
+
+        for (int round = 0; round < ROUNDS; round++) {
+            for (String name : names) {
+                double tuple = rowsPerSecond(plans.get(name), false);
+                double batch = rowsPerSecond(plans.get(name), true);
+                System.out.printf("round %d %s: tuple-at-a-time %.0f rows/s, batch %.0f rows/s%n",
+                        round, name, tuple, batch);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Runs plans a batch at a time through a BatchAdapter and checks that they
+ * return the same tuples as the tuple-at-a-time execution.
+ */
+public class BatchExecutionTest extends SimpleDbTestBase {
+    private HeapFile big;
+    private HeapFile small;
+    private ArrayList<ArrayList<Integer>> bigTuples = new ArrayList<ArrayList<Integer>>();
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // several pages, and more rows than a batch holds
+        big = SystemTestUtil.createRandomHeapFile(3, 3000, 100, null, bigTuples);
+        small = SystemTestUtil.createRandomHeapFile(2, 1500, 100, null, null);
+        tid = new TransactionId();
+    }
+
+    /** @return the tuples of it, as strings in sorted order */
+    /** Checks that plan returns the same tuples both ways. */
+    private void assertSameResult(Operator plan)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sortedTuples(plan);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, SystemTestUtil.sortedTuples(new BatchAdapter(plan)));
+    }
+
+    @Test public void testScan() throws Exception {
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.open();
+        int rows = 0;
+        TupleBatch batch;
+        while ((batch = scan.nextBatch()) != null) {
+            assertTrue(batch.size() <= TupleBatch.DEFAULT_CAPACITY);
+            for (int row = 0; row < batch.size(); row++)
+                assertNotNull(batch.getRecordId(row));
+            rows += batch.size();
+        }
+        scan.close();
+        assertEquals(3000, rows);
+
+        SystemTestUtil.matchTuples(new BatchAdapter(new SeqScan(tid, big.getId(), "")), bigTuples);
+    }
+
+    @Test public void testFilterProject() throws Exception {
+        Filter filter = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(30)),
+                new SeqScan(tid, big.getId(), ""));
+        assertSameResult(filter);
+
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        fields.add(2);
+        fields.add(0);
+        ArrayList<Type> types = new ArrayList<Type>();
+        types.add(Type.INT_TYPE);
+        types.add(Type.INT_TYPE);
+        assertSameResult(new Project(fields, types, filter));
+    }
+
+    @Test public void testAggregate() throws Exception {
+        assertSameResult(new Aggregate(new SeqScan(tid, big.getId(), ""), 1, 0, Aggregator.Op.SUM));
+        assertSameResult(new Aggregate(new SeqScan(tid, big.getId(), ""), 2, Aggregator.NO_GROUPING,
+                Aggregator.Op.AVG));
+    }
+
+    @Test public void testJoins() throws Exception {
+        JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        assertSameResult(new Join(eq, new SeqScan(tid, small.getId(), ""),
+                new SeqScan(tid, big.getId(), "")));
+        assertSameResult(new HashEquiJoin(eq, new SeqScan(tid, small.getId(), ""),
+                new SeqScan(tid, big.getId(), "")));
+
+        JoinPredicate lt = new JoinPredicate(1, Predicate.Op.LESS_THAN, 2);
+        Filter outer = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(5)),
+                new SeqScan(tid, small.getId(), ""));
+        assertSameResult(new Join(lt, outer, new SeqScan(tid, big.getId(), "")));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BatchExecutionTest.class);
+    }
+}
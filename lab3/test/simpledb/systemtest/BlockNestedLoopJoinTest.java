@@ -0,0 +1,84 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that BlockNestedLoopJoin returns the same tuples as a nested-loop
+ * Join, and that it rescans its inner child once per block rather than once
+ * per outer tuple.
+ */
+public class BlockNestedLoopJoinTest extends SimpleDbTestBase {
+    // 2 int columns -> 504 tuples per page
+    private static final int OUTER_ROWS = 1200;
+    private HeapFile outer;
+    private HeapFile inner;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        outer = SystemTestUtil.createRandomHeapFile(2, OUTER_ROWS, 100, null, null);
+        inner = SystemTestUtil.createRandomHeapFile(3, 300, 100, null, null);
+        tid = new TransactionId();
+    }
+
+    /** @return the tuples of it, as strings in sorted order */
+    private void validateJoin(Predicate.Op op) throws DbException, TransactionAbortedException {
+        JoinPredicate pred = new JoinPredicate(0, op, 1);
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sortedTuples(new Join(pred,
+                new SeqScan(tid, outer.getId(), ""), new SeqScan(tid, inner.getId(), "")));
+
+        CountingIterator right = new CountingIterator(new SeqScan(tid, inner.getId(), ""));
+        BlockNestedLoopJoin join = new BlockNestedLoopJoin(pred,
+                new SeqScan(tid, outer.getId(), ""), right, 1);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, SystemTestUtil.sortedTuples(join));
+
+        // blocks of one page: 3 blocks, so the inner child is rewound twice
+        int blocks = (OUTER_ROWS + 503) / 504;
+        assertEquals(blocks - 1, right.rewinds);
+    }
+
+    @Test public void testEquals() throws Exception {
+        validateJoin(Predicate.Op.EQUALS);
+    }
+
+    @Test public void testLessThan() throws Exception {
+        validateJoin(Predicate.Op.LESS_THAN);
+    }
+
+    @Test public void testGreaterThanOrEq() throws Exception {
+        validateJoin(Predicate.Op.GREATER_THAN_OR_EQ);
+    }
+
+    @Test public void testRewind() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        BlockNestedLoopJoin join = new BlockNestedLoopJoin(pred,
+                new SeqScan(tid, outer.getId(), ""), new SeqScan(tid, inner.getId(), ""), 1);
+        join.open();
+        int first = 0;
+        while (join.hasNext()) {
+            join.next();
+            first++;
+        }
+        join.rewind();
+        int second = 0;
+        while (join.hasNext()) {
+            join.next();
+            second++;
+        }
+        join.close();
+        assertEquals(first, second);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BlockNestedLoopJoinTest.class);
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb.systemtest;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Measures BufferPool.getPage throughput with several threads fetching
+ * random pages of one table. The all-hits case has the whole table cached;
+ * the eviction case uses a pool smaller than the table, so threads also load
+ * and evict pages. Each case also runs with every getPage call wrapped in one
+ * shared monitor, which is how the pool behaved before its page table was
+ * striped.
+ *
+ * Run with: ant runbenchmark -Dbenchmark=BufferPoolBenchmark
+ */
+public class BufferPoolBenchmark {
+    private static final int TABLE_PAGES = 400;
+    private static final long RUN_MILLIS = 1000;
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    private static double opsPerSecond(final HeapFile hf, final int bufferPages,
+            int threads, final boolean globalMonitor) throws Exception {
+        final BufferPool pool = Database.resetBufferPool(bufferPages);
+        final Object monitor = new Object();
+        final AtomicLong ops = new AtomicLong();
+        final long deadline = System.currentTimeMillis() + RUN_MILLIS;
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final Random r = new Random(t);
+            workers[t] = new Thread() {
+                public void run() {
+                    TransactionId tid = new TransactionId();
+                    long n = 0;
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            for (int i = 0; i < 100; i++) {
+                                HeapPageId pid = new HeapPageId(hf.getId(), r.nextInt(TABLE_PAGES));
+                                if (globalMonitor) {
+                                    synchronized (monitor) {
+                                        pool.getPage(tid, pid, Permissions.READ_ONLY);
+                                        pool.unpinPage(tid, pid);
+                                    }
+                                } else {
+                                    pool.getPage(tid, pid, Permissions.READ_ONLY);
+                                    pool.unpinPage(tid, pid);
+                                }
+                            }
+                            n += 100;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    ops.addAndGet(n);
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers)
+            worker.start();
+        for (Thread worker : workers)
+            worker.join();
+        return ops.get() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    public static void main(String[] args) throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+
+        int[] bufferSizes = {TABLE_PAGES, TABLE_PAGES / 4};
+        for (int bufferPages : bufferSizes) {
+            String workload = bufferPages >= TABLE_PAGES ? "all hits" : "with eviction";
+            for (int threads : THREADS) {
+                double striped = opsPerSecond(hf, bufferPages, threads, false);
+                double global = opsPerSecond(hf, bufferPages, threads, true);
+                System.out.printf("%s, %d threads: striped %.0f getPage/s, single monitor %.0f getPage/s%n",
+                        workload, threads, striped, global);
+            }
+        }
+        hf.close();
+    }
+}
@@ -0,0 +1,209 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that pages handed out by the BufferPool stay pinned until they are
+ * released, and that tables written and scanned by several threads through a
+ * small buffer pool keep every tuple.
+ */
+public class BufferPoolTest extends SimpleDbTestBase {
+    private static final int WRITERS = 4;
+    private static final int READERS = 2;
+    private static final int ROWS_PER_WRITER = 1500;
+
+    @Test public void testPinHeldUntilReleased() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        assertTrue(f.numPages() >= 3);
+        BufferPool pool = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        HeapPageId p0 = new HeapPageId(f.getId(), 0);
+        HeapPageId p1 = new HeapPageId(f.getId(), 1);
+        HeapPageId p2 = new HeapPageId(f.getId(), 2);
+
+        pool.getPage(tid, p0, Permissions.READ_ONLY);
+        pool.getPage(tid, p1, Permissions.READ_ONLY);
+        try {
+            pool.getPage(tid, p2, Permissions.READ_ONLY);
+            fail("evicted a pinned page");
+        } catch (DbException expected) {
+        }
+
+        // a page pinned twice needs both pins released
+        pool.getPage(tid, p0, Permissions.READ_ONLY);
+        pool.unpinPage(tid, p0);
+        try {
+            pool.getPage(tid, p2, Permissions.READ_ONLY);
+            fail("evicted a pinned page");
+        } catch (DbException expected) {
+        }
+        pool.unpinPage(tid, p0);
+        pool.getPage(tid, p2, Permissions.READ_ONLY);
+        assertFalse(pool.holdsPage(p0));
+
+        pool.releasePage(tid, p1);
+        pool.getPage(tid, p0, Permissions.READ_ONLY);
+        assertFalse(pool.holdsPage(p1));
+
+        // completing the transaction releases the rest
+        pool.transactionComplete(tid);
+        TransactionId other = new TransactionId();
+        pool.getPage(other, p1, Permissions.READ_ONLY);
+        pool.unpinPage(other, p1);
+    }
+
+    @Test public void testCallReleasesOnlyItsPins() throws Exception {
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        assertTrue(other.numPages() >= 3);
+        final HeapPageId p0 = new HeapPageId(other.getId(), 0);
+        File file = File.createTempFile("table", ".dat");
+        file.deleteOnExit();
+        // another thread of the same transaction pins a page while the
+        // insert runs
+        HeapFile table = new HeapFile(file, Utility.getTupleDesc(2)) {
+            public ArrayList<Page> insertTuple(final TransactionId tid, Tuple t)
+                    throws DbException, IOException, TransactionAbortedException {
+                final List<Throwable> errors = new ArrayList<Throwable>();
+                Thread reader = new Thread() {
+                    public void run() {
+                        try {
+                            Database.getBufferPool().getPage(tid, p0, Permissions.READ_ONLY);
+                        } catch (Throwable e) {
+                            errors.add(e);
+                        }
+                    }
+                };
+                reader.start();
+                try {
+                    reader.join();
+                } catch (InterruptedException e) {
+                    throw new DbException("interrupted");
+                }
+                assertEquals(new ArrayList<Throwable>(), errors);
+                return super.insertTuple(tid, t);
+            }
+        };
+        table.deleteOnExit();
+        Database.getCatalog().addTable(table, "pinned_by_call");
+        BufferPool pool = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        pool.insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[] { 1, 2 }));
+
+        // the insert released its own pin, but not the reader's
+        TransactionId other2 = new TransactionId();
+        pool.getPage(other2, new HeapPageId(other.getId(), 1), Permissions.READ_ONLY);
+        try {
+            pool.getPage(other2, new HeapPageId(other.getId(), 2), Permissions.READ_ONLY);
+            fail("evicted a pinned page");
+        } catch (DbException expected) {
+        }
+        pool.unpinPage(tid, p0);
+        pool.getPage(other2, new HeapPageId(other.getId(), 2), Permissions.READ_ONLY);
+        pool.transactionComplete(other2);
+    }
+
+    @Test public void testScansReleasePins() throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, null, rows);
+        assertTrue(f.numPages() > 3);
+        Database.resetBufferPool(3);
+
+        // scans within one transaction must not run out of frames
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++)
+            SystemTestUtil.matchTuples(f, tid, rows);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testConcurrentWritersAndReaders() throws Exception {
+        final HeapFile[] written = new HeapFile[WRITERS];
+        for (int i = 0; i < WRITERS; i++)
+            written[i] = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        final ArrayList<ArrayList<Integer>> readRows = new ArrayList<ArrayList<Integer>>();
+        final HeapFile read = SystemTestUtil.createRandomHeapFile(2, 2000, null, readRows);
+        // small enough that every insert races with evictions
+        Database.resetBufferPool(12);
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[WRITERS + READERS];
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            threads[w] = new Thread() {
+                public void run() {
+                    try {
+                        TransactionId tid = new TransactionId();
+                        for (int i = 0; i < ROWS_PER_WRITER; i++) {
+                            Database.getBufferPool().insertTuple(tid, written[writer].getId(),
+                                    Utility.getHeapTuple(new int[] { writer, i }));
+                        }
+                        Database.getBufferPool().transactionComplete(tid);
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+        }
+        for (int r = 0; r < READERS; r++) {
+            threads[WRITERS + r] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 3; i++)
+                            SystemTestUtil.matchTuples(read, readRows);
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        assertEquals(new ArrayList<Throwable>(), errors);
+
+        // every tuple is there exactly once, cached or on disk
+        for (int w = 0; w < WRITERS; w++) {
+            ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+            for (int i = 0; i < ROWS_PER_WRITER; i++) {
+                ArrayList<Integer> row = new ArrayList<Integer>();
+                row.add(w);
+                row.add(i);
+                expected.add(row);
+            }
+            SystemTestUtil.matchTuples(written[w], expected);
+        }
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        for (int w = 0; w < WRITERS; w++)
+            assertEquals(ROWS_PER_WRITER, count(written[w]));
+    }
+
+    private static int count(DbFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        int n = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
@@ -0,0 +1,43 @@
+package simpledb.systemtest;
+
+import java.util.NoSuchElementException;
+
+import simpledb.*;
+
+/** Counts the tuples read from a child and the times it is rewound. */
+class CountingIterator implements DbIterator {
+    private static final long serialVersionUID = 1L;
+    private final DbIterator child;
+    int reads = 0;
+    int rewinds = 0;
+
+    CountingIterator(DbIterator child) {
+        this.child = child;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return child.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        reads++;
+        return child.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        rewinds++;
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
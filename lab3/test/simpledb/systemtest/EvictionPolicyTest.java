@@ -0,0 +1,154 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Runs a mixed workload of point lookups on a small hot table and sequential
+ * scans of a table much larger than the buffer pool, once per eviction
+ * policy, and compares the buffer pool hit ratios. Under LRU every scan
+ * pushes the hot pages out; the scan-resistant policies should keep them.
+ */
+public class EvictionPolicyTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 50;
+    private static final int HOT_PAGES = 30;
+    private static final int SCAN_PAGES = 200;
+    private static final int TUPLES_PER_PAGE = 504; // 2 int columns
+    private static final int SCANS = 3;
+
+    private HeapFile hot;
+    private HeapFile big;
+    private int readAheadPages;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hot = SystemTestUtil.createRandomHeapFile(2, TUPLES_PER_PAGE * HOT_PAGES, null, null);
+        big = SystemTestUtil.createRandomHeapFile(2, TUPLES_PER_PAGE * SCAN_PAGES, null, null);
+
+        // Read-ahead would make the hit ratio depend on thread timing
+        readAheadPages = HeapFileIterator.getReadAheadPages();
+        HeapFileIterator.setReadAheadPages(0);
+    }
+
+    @After public void tearDown() {
+        HeapFileIterator.setReadAheadPages(readAheadPages);
+    }
+
+    /**
+     * Scans the big table SCANS times, doing one point lookup on a random
+     * hot page for every page scanned.
+     * @return the buffer pool hit ratio over the workload
+     */
+    private double runWorkload(EvictionPolicy policy)
+            throws DbException, TransactionAbortedException {
+        BufferPool pool = Database.resetBufferPool(BUFFER_PAGES, policy);
+        Random r = new Random(42);
+        TransactionId tid = new TransactionId();
+
+        for (int i = 0; i < SCANS; i++) {
+            SeqScan scan = new SeqScan(tid, big.getId(), "");
+            scan.open();
+            int count = 0;
+            while (scan.hasNext()) {
+                scan.next();
+                if (++count % TUPLES_PER_PAGE == 0) {
+                    HeapPageId pid = new HeapPageId(hot.getId(), r.nextInt(HOT_PAGES));
+                    pool.getPage(tid, pid, Permissions.READ_ONLY);
+                    pool.unpinPage(tid, pid);
+                }
+            }
+            scan.close();
+            assertEquals(TUPLES_PER_PAGE * SCAN_PAGES, count);
+        }
+        return pool.getHitRatio();
+    }
+
+    @Test public void testScanResistance() throws IOException, DbException, TransactionAbortedException {
+        double lru = runWorkload(new LruPolicy());
+        double clock = runWorkload(new ClockPolicy());
+        double twoQueue = runWorkload(new TwoQueuePolicy(BUFFER_PAGES));
+        double lruK = runWorkload(new LruKPolicy(BUFFER_PAGES));
+
+        assertTrue("CLOCK (" + clock + ") should beat LRU (" + lru + ")", clock > lru);
+        assertTrue("2Q (" + twoQueue + ") should beat LRU (" + lru + ")", twoQueue > lru);
+        assertTrue("LRU-2 (" + lruK + ") should beat LRU (" + lru + ")", lruK > lru);
+    }
+
+    /**
+     * Plays page references against a policy the way the BufferPool does,
+     * with room for capacity pages.
+     * @return for each reference, whether the page was cached
+     */
+    private static boolean[] simulate(EvictionPolicy policy, int capacity, ArrayList<Integer> refs) {
+        HashSet<PageId> cached = new HashSet<PageId>();
+        boolean[] hits = new boolean[refs.size()];
+        for (int i = 0; i < refs.size(); i++) {
+            PageId pid = new HeapPageId(1, refs.get(i));
+            hits[i] = cached.contains(pid);
+            if (!hits[i]) {
+                if (cached.size() == capacity) {
+                    PageId victim = policy.chooseVictim(Collections.<PageId>emptySet());
+                    assertTrue(cached.remove(victim));
+                    policy.pageRemoved(victim);
+                }
+                cached.add(pid);
+                policy.pageLoaded(pid);
+            }
+            policy.pageReferenced(pid);
+        }
+        return hits;
+    }
+
+    /**
+     * Uses one hot set of pages, then another, each interleaved with a scan.
+     * The first hot set must not keep its place in the pool once it is no
+     * longer used.
+     */
+    @Test public void testWorkingSetChange() {
+        final int capacity = 20;
+        final int hotPages = 10;
+        final int rounds = 50;
+        final int firstScanPage = 1000;
+        ArrayList<Integer> refs = new ArrayList<Integer>();
+        int scanPage = firstScanPage;
+        for (int set = 0; set < 2; set++) {
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < hotPages; i++) {
+                    refs.add(set * 100 + i);
+                    refs.add(scanPage++);
+                }
+            }
+        }
+
+        boolean[] hits = simulate(new ClockPolicy(), capacity, refs);
+        // the second hot set, once the first has aged out
+        int lookups = 0;
+        int lookupHits = 0;
+        for (int i = refs.size() * 3 / 4; i < refs.size(); i++) {
+            if (refs.get(i) < firstScanPage) {
+                lookups++;
+                if (hits[i])
+                    lookupHits++;
+            }
+        }
+        assertEquals(rounds * hotPages / 2, lookups);
+        assertTrue("hit ratio of the new hot set: " + lookupHits + "/" + lookups,
+                lookupHits > lookups * 9 / 10);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,55 @@
+package simpledb.systemtest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Measures how long HeapFileEncoder takes to convert a large text file,
+ * serially and with convertParallel at several thread counts.
+ *
+ * Run with: ant runbenchmark -Dbenchmark=HeapFileEncoderBenchmark
+ */
+public class HeapFileEncoderBenchmark {
+    private static final int ROWS = 2000000;
+    private static final int COLUMNS = 4;
+
+    private static double seconds(long start) {
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File in = File.createTempFile("encoder", ".txt");
+        in.deleteOnExit();
+        BufferedWriter out = new BufferedWriter(new FileWriter(in));
+        Random r = new Random(0);
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < COLUMNS; j++) {
+                out.write(Integer.toString(r.nextInt()));
+                out.write(j < COLUMNS - 1 ? ',' : '\n');
+            }
+        }
+        out.close();
+
+        File dat = File.createTempFile("encoder", ".dat");
+        dat.deleteOnExit();
+        Type[] types = new Type[COLUMNS];
+        for (int i = 0; i < COLUMNS; i++)
+            types[i] = Type.INT_TYPE;
+
+        System.out.printf("input: %d rows, %.1f MB%n", ROWS, in.length() / 1e6);
+        long start = System.nanoTime();
+        HeapFileEncoder.convert(in, dat, BufferPool.getPageSize(), COLUMNS, types, ',');
+        System.out.printf("serial: %.2f s%n", seconds(start));
+
+        int max = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= Math.max(max, 2); threads *= 2) {
+            start = System.nanoTime();
+            HeapFileEncoder.convertParallel(in, dat, BufferPool.getPageSize(), COLUMNS, types, ',', threads);
+            System.out.printf("parallel, %d threads: %.2f s%n", threads, seconds(start));
+        }
+    }
+}
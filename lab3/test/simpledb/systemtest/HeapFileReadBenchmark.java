@@ -0,0 +1,73 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import simpledb.*;
+
+/**
+ * Measures HeapFile page reads per second. Compares the old
+ * open/seek/read/close access path against the pooled positional channels
+ * used by HeapFile.readPage, single threaded and with several readers.
+ *
+ * Run with: ant runbenchmark -Dbenchmark=HeapFileReadBenchmark
+ */
+public class HeapFileReadBenchmark {
+    private static final int PAGES = 2000;
+    private static final int ROUNDS = 5;
+    private static final int THREADS = 4;
+
+    /** The access path HeapFile.readPage used before the channel pool. */
+    private static Page readPageReopening(File f, PageId pid) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            raf.seek((long) pid.pageNumber() * BufferPool.getPageSize());
+            byte[] bytes = new byte[BufferPool.getPageSize()];
+            raf.read(bytes, 0, bytes.length);
+            return new HeapPage(new HeapPageId(pid.getTableId(), pid.pageNumber()), bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static double reopeningPagesPerSecond(HeapFile hf) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < PAGES; i++)
+            readPageReopening(hf.getFile(), new HeapPageId(hf.getId(), i));
+        return PAGES / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static double pooledPagesPerSecond(final HeapFile hf, int threads) throws InterruptedException {
+        Thread[] readers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            final int stride = threads;
+            readers[t] = new Thread() {
+                public void run() {
+                    for (int i = first; i < PAGES; i += stride)
+                        hf.readPage(new HeapPageId(hf.getId(), i));
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread reader : readers)
+            reader.start();
+        for (Thread reader : readers)
+            reader.join();
+        return PAGES / ((System.nanoTime() - start) / 1e9);
+    }
+
+    public static void main(String[] args) throws Exception {
+        // 2 int columns -> 504 tuples per page
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.printf("round %d: reopening %.0f pages/s, pooled %.0f pages/s, pooled x%d %.0f pages/s%n",
+                    round, reopeningPagesPerSecond(hf), pooledPagesPerSecond(hf, 1),
+                    THREADS, pooledPagesPerSecond(hf, THREADS));
+        }
+        hf.close();
+    }
+}
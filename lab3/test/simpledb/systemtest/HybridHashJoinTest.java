@@ -0,0 +1,114 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that HybridHashJoin returns the same tuples as a nested-loop Join
+ * whether or not it spills, and that it reads each child only once.
+ */
+public class HybridHashJoinTest extends SimpleDbTestBase {
+    private HeapFile build;
+    private HeapFile probe;
+    private TransactionId tid;
+    private final JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        build = SystemTestUtil.createRandomHeapFile(2, 3000, 100, null, null);
+        probe = SystemTestUtil.createRandomHeapFile(3, 1500, 100, null, null);
+        tid = new TransactionId();
+    }
+
+    /** @return the tuples of it, as strings in sorted order */
+    private ArrayList<ArrayList<Integer>> expected() throws DbException, TransactionAbortedException {
+        return SystemTestUtil.sortedTuples(new Join(pred, new SeqScan(tid, build.getId(), ""),
+                new SeqScan(tid, probe.getId(), "")));
+    }
+
+    @Test public void testInMemory() throws Exception {
+        HybridHashJoin join = new HybridHashJoin(pred, new SeqScan(tid, build.getId(), ""),
+                new SeqScan(tid, probe.getId(), ""));
+        ArrayList<ArrayList<Integer>> result = SystemTestUtil.sortedTuples(join);
+        assertEquals(0, join.numSpilledPartitions());
+        assertEquals(expected(), result);
+    }
+
+    @Test public void testSpill() throws Exception {
+        CountingIterator left = new CountingIterator(new SeqScan(tid, build.getId(), ""));
+        CountingIterator right = new CountingIterator(new SeqScan(tid, probe.getId(), ""));
+        HybridHashJoin join = new HybridHashJoin(pred, left, right, 200);
+
+        join.open();
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        while (join.hasNext())
+            result.add(SystemTestUtil.tupleToList(join.next()));
+        assertTrue(join.numSpilledPartitions() > 0);
+        join.close();
+        Collections.sort(result, SystemTestUtil.ROWS_IN_ORDER);
+        assertEquals(expected(), result);
+
+        // each child is read once, and never rescanned
+        assertEquals(3000, left.reads);
+        assertEquals(1500, right.reads);
+        assertEquals(0, left.rewinds);
+        assertEquals(0, right.rewinds);
+    }
+
+    @Test public void testRewind() throws Exception {
+        HybridHashJoin join = new HybridHashJoin(pred, new SeqScan(tid, build.getId(), ""),
+                new SeqScan(tid, probe.getId(), ""), 200);
+        join.open();
+        int first = 0;
+        while (join.hasNext()) {
+            join.next();
+            first++;
+        }
+        join.rewind();
+        int second = 0;
+        while (join.hasNext()) {
+            join.next();
+            second++;
+        }
+        join.close();
+        assertEquals(expected().size(), first);
+        assertEquals(first, second);
+    }
+
+    /**
+     * Every tuple has the same key, so partitioning cannot split the build
+     * side and the join falls back to joining it in chunks.
+     */
+    @Test public void testSkew() throws Exception {
+        HashMap<Integer, Integer> sameKey = new HashMap<Integer, Integer>();
+        sameKey.put(0, 7);
+        HeapFile skewed = SystemTestUtil.createRandomHeapFile(2, 1000, sameKey, null);
+        HeapFile matching = SystemTestUtil.createRandomHeapFile(2, 30, sameKey, null);
+
+        HybridHashJoin join = new HybridHashJoin(pred, new SeqScan(tid, skewed.getId(), ""),
+                new SeqScan(tid, matching.getId(), ""), 100);
+        join.open();
+        int count = 0;
+        while (join.hasNext()) {
+            Tuple t = join.next();
+            assertEquals(new IntField(7), t.getField(0));
+            assertEquals(new IntField(7), t.getField(2));
+            count++;
+        }
+        join.close();
+        assertEquals(1000 * 30, count);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(HybridHashJoinTest.class);
+    }
+}
@@ -0,0 +1,290 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that inserts and deletes through the BufferPool keep the indexes of
+ * a table in step with it, and that a bulk built index holds the same
+ * entries as one built by inserts, in fewer pages.
+ */
+public class IndexMaintenanceTest extends SimpleDbTestBase {
+    private static final int ROWS = 20000;
+    private static final int MAX_VALUE = 100000;
+
+    private static BTreeFile createIndex(HeapFile table, int field) throws Exception {
+        File f = File.createTempFile("index", ".idx");
+        f.delete();
+        f.deleteOnExit();
+        new File(f.getPath() + BTreeFile.STAMP_SUFFIX).deleteOnExit();
+        BTreeFile index = new BTreeFile(f, field, table);
+        index.build();
+        Database.getCatalog().addIndex(index);
+        return index;
+    }
+
+    private static ArrayList<ArrayList<Integer>> entries(BTreeFile index, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        DbFileIterator it = index.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return result;
+    }
+
+    /** Checks that the index has exactly one entry for each tuple of table. */
+    private static void validate(HeapFile table, BTreeFile index, TransactionId tid)
+            throws Exception {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            ArrayList<Integer> entry = new ArrayList<Integer>();
+            entry.add(((IntField) t.getField(index.getKeyField())).getValue());
+            entry.add(t.getRecordId().getPageId().pageNumber());
+            entry.add(t.getRecordId().tupleno());
+            expected.add(entry);
+        }
+        it.close();
+        Collections.sort(expected, SystemTestUtil.ROWS_IN_ORDER);
+        assertEquals(expected, entries(index, tid));
+    }
+
+    @Test public void testInsertAndDelete() throws Exception {
+        HeapFile source = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, null, "c");
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, MAX_VALUE, null, null, "c");
+        BTreeFile c0 = createIndex(table, 0);
+        BTreeFile c1 = createIndex(table, 1);
+        TransactionId tid = new TransactionId();
+
+        Insert insert = new Insert(tid, new SeqScan(tid, source.getId(), "s"), table.getId());
+        assertEquals(ROWS, (int) SystemTestUtil.tuples(insert).get(0).get(0));
+        validate(table, c0, tid);
+        validate(table, c1, tid);
+
+        Delete delete = new Delete(tid, new Filter(new Predicate(0, Predicate.Op.LESS_THAN,
+                new IntField(MAX_VALUE / 2)), new SeqScan(tid, table.getId(), "t")));
+        SystemTestUtil.tuples(delete);
+        validate(table, c0, tid);
+        validate(table, c1, tid);
+        assertEquals(0, SystemTestUtil.tuples(new IndexScan(tid, c0, "t", Predicate.Op.LESS_THAN,
+                new IntField(MAX_VALUE / 2))).size());
+
+        // the emptied slots are filled again
+        insert = new Insert(tid, new SeqScan(tid, source.getId(), "s"), table.getId());
+        SystemTestUtil.tuples(insert);
+        validate(table, c0, tid);
+        validate(table, c1, tid);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testBulkBuild() throws Exception {
+        validateBulkBuild();
+    }
+
+    @Test public void testBulkBuildSmallPages() throws Exception {
+        // a few entries per page, so that there are several internal levels
+        BufferPool.setPageSize(256);
+        try {
+            validateBulkBuild();
+        } finally {
+            BufferPool.setPageSize(BufferPool.PAGE_SIZE);
+        }
+    }
+
+    private void validateBulkBuild() throws Exception {
+        HeapFile source = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, null, "c");
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, MAX_VALUE, null, null, "c");
+        BTreeFile inserted = createIndex(table, 0);
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.tuples(new Insert(tid, new SeqScan(tid, source.getId(), "s"), table.getId()));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+
+        // a budget well below the table size, so the sort spills runs
+        File f = File.createTempFile("index", ".idx");
+        f.deleteOnExit();
+        new File(f.getPath() + BTreeFile.STAMP_SUFFIX).deleteOnExit();
+        BTreeFile bulk = new BTreeFile(f, 0, table);
+        bulk.build(ROWS / 10);
+        Database.getCatalog().addIndex(bulk);
+
+        tid = new TransactionId();
+        validate(table, bulk, tid);
+        assertEquals(entries(inserted, tid), entries(bulk, tid));
+        // full leaves instead of half full ones after splits
+        assertTrue(bulk.numPages() < inserted.numPages());
+        ArrayList<ArrayList<Integer>> scanned = SystemTestUtil.tuples(new IndexScan(tid, bulk, "t",
+                Predicate.Op.GREATER_THAN_OR_EQ, new IntField(MAX_VALUE / 2)));
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.tuples(new Filter(new Predicate(0,
+                Predicate.Op.GREATER_THAN_OR_EQ, new IntField(MAX_VALUE / 2)),
+                new SeqScan(tid, table.getId(), "t")));
+        Collections.sort(scanned, SystemTestUtil.ROWS_IN_ORDER);
+        Collections.sort(expected, SystemTestUtil.ROWS_IN_ORDER);
+        assertEquals(expected, scanned);
+
+        // rebuilding replaces the old contents
+        bulk.build();
+        validate(table, bulk, tid);
+    }
+
+    @Test public void testEmptyTable() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, MAX_VALUE, null, null, "c");
+        BTreeFile index = createIndex(table, 0);
+        assertEquals(1, index.numPages());
+        assertEquals(0, entries(index, new TransactionId()).size());
+    }
+
+    @Test public void testCreateIndexStatement() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, null, "c");
+        String name = "index_maintenance";
+        Database.getCatalog().addTable(table, name);
+        File idxFile = new File(table.getFile().getAbsoluteFile().getParentFile(), name + ".c1.idx");
+        idxFile.deleteOnExit();
+        new File(idxFile.getPath() + BTreeFile.STAMP_SUFFIX).deleteOnExit();
+
+        Parser p = new Parser();
+        p.processNextStatement("CREATE INDEX ON " + name + " (c1);");
+        BTreeFile index = Database.getCatalog().getIndex(table.getId(), 1);
+        assertNotNull(index);
+        assertEquals(idxFile.getAbsoluteFile(), index.getFile().getAbsoluteFile());
+        validate(table, index, new TransactionId());
+    }
+
+    /** LOAD into a table with an index rebuilds the index. */
+    @Test public void testLoadStatement() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, MAX_VALUE, null, null, "c");
+        String name = "index_load";
+        Database.getCatalog().addTable(table, name);
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[] { 1, -1 }));
+        Database.getBufferPool().transactionComplete(tid);
+        BTreeFile index = createIndex(table, 0);
+
+        File in = File.createTempFile("load", ".txt");
+        in.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(in));
+        for (int i = 2; i <= 1000; i++)
+            out.println(i + "," + (-i));
+        out.close();
+        new Parser().processNextStatement("LOAD " + name + " FROM '" + in.getPath() + "';");
+
+        tid = new TransactionId();
+        assertEquals(1000, SystemTestUtil.tuples(new SeqScan(tid, table.getId(), "t")).size());
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        expected.add(new ArrayList<Integer>(Arrays.asList(500, -500)));
+        assertEquals(expected, SystemTestUtil.tuples(new IndexScan(tid, index, "t",
+                Predicate.Op.EQUALS, new IntField(500))));
+        validate(table, index, tid);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static ArrayList<ArrayList<Integer>> rows(int first, int count) {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        for (int i = first; i < first + count; i++)
+            rows.add(new ArrayList<Integer>(Arrays.asList(i, -i)));
+        return rows;
+    }
+
+    /** @return the rows an IndexScan of the only index of table finds for a = value */
+    private static ArrayList<ArrayList<Integer>> lookup(String table, int value) throws Exception {
+        int tableId = Database.getCatalog().getTableId(table);
+        BTreeFile index = Database.getCatalog().getIndex(tableId, 0);
+        return SystemTestUtil.tuples(new IndexScan(new TransactionId(), index, "t",
+                Predicate.Op.EQUALS, new IntField(value)));
+    }
+
+    /** Sets the modification time of files, as if they were written at time. */
+    private static void age(long time, File... files) {
+        for (File f : files) {
+            if (f.exists())
+                assertTrue(f.setLastModified(time));
+        }
+    }
+
+    /**
+     * Loading a schema reuses an index file while it matches the table,
+     * including after inserts and deletes, and rebuilds it once the table's
+     * file has been changed behind its back.
+     */
+    @Test public void testStaleIndexFile() throws Exception {
+        File dir = File.createTempFile("schema", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File schema = new File(dir, "catalog.txt");
+        File dat = new File(dir, "stale.dat");
+        File fsm = new File(dat.getPath() + FreeSpaceMap.SUFFIX);
+        File zm = new File(dat.getPath() + ZoneMap.SUFFIX);
+        File idx = new File(dir, "stale.a.idx");
+        File stamp = new File(idx.getPath() + BTreeFile.STAMP_SUFFIX);
+        for (File f : new File[] { schema, dat, fsm, zm, idx, stamp })
+            f.deleteOnExit();
+        FileWriter out = new FileWriter(schema);
+        out.write("stale (a int index, b int)\n");
+        out.close();
+
+        HeapFileEncoder.convert(rows(0, 100), dat, BufferPool.getPageSize(), 2);
+        Database.getCatalog().loadSchema(schema.getPath());
+        assertEquals(rows(50, 1), lookup("stale", 50));
+
+        // unchanged table: the index file is reused
+        long written = idx.lastModified() - 10000;
+        age(written, idx);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getCatalog().loadSchema(schema.getPath());
+        assertEquals(written, idx.lastModified());
+
+        // inserts and deletes keep the index in step, so once they are
+        // flushed the index file is still reused
+        int tableId = Database.getCatalog().getTableId("stale");
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, tableId, Utility.getHeapTuple(new int[] { 500, -500 }));
+        DbIterator it = new IndexScan(tid, Database.getCatalog().getIndex(tableId, 0), "t",
+                Predicate.Op.EQUALS, new IntField(10));
+        it.open();
+        Database.getBufferPool().deleteTuple(tid, it.next());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        age(written, idx);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getCatalog().loadSchema(schema.getPath());
+        assertEquals(written, idx.lastModified());
+        assertEquals(rows(500, 1), lookup("stale", 500));
+        assertEquals(0, lookup("stale", 10).size());
+
+        // new rows of the same length, written after the index
+        age(written, fsm, zm, idx, stamp);
+        HeapFileEncoder.convert(rows(1000, 100), dat, BufferPool.getPageSize(), 2);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getCatalog().loadSchema(schema.getPath());
+        assertEquals(rows(1050, 1), lookup("stale", 1050));
+        assertEquals(0, lookup("stale", 50).size());
+
+        // more rows, though the index looks newer than the table
+        HeapFileEncoder.convert(rows(2000, 1000), dat, BufferPool.getPageSize(), 2);
+        age(written, dat);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getCatalog().loadSchema(schema.getPath());
+        assertEquals(rows(2900, 1), lookup("stale", 2900));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(IndexMaintenanceTest.class);
+    }
+}
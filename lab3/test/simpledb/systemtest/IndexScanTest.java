@@ -0,0 +1,161 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that an IndexScan over a B+ tree index returns the same tuples as a
+ * Filter over a SeqScan, that the index survives being written out and read
+ * back, and that the optimizer picks it for selective predicates only.
+ */
+public class IndexScanTest extends SimpleDbTestBase {
+    private static final int ROWS = 60000;
+    private static final int MAX_VALUE = 1000000;
+    private static final String NAME = "index_test";
+    private HeapFile table;
+    private BTreeFile index;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, null, "c");
+        Database.getCatalog().addTable(table, NAME);
+        index = createIndex(0);
+        tid = new TransactionId();
+    }
+
+    private BTreeFile createIndex(int field) throws Exception {
+        File f = File.createTempFile("index", ".idx");
+        f.delete();
+        f.deleteOnExit();
+        new File(f.getPath() + BTreeFile.STAMP_SUFFIX).deleteOnExit();
+        BTreeFile index = new BTreeFile(f, field, table);
+        Database.getCatalog().addIndex(index);
+        index.build();
+        return index;
+    }
+
+    private void validate(BTreeFile index, Predicate.Op op, int value) throws Exception {
+        int field = index.getKeyField();
+        ArrayList<ArrayList<Integer>> scanned = SystemTestUtil.tuples(new IndexScan(tid, index, "t", op,
+                new IntField(value)));
+        for (int i = 1; i < scanned.size(); i++)
+            assertTrue(scanned.get(i - 1).get(field) <= scanned.get(i).get(field));
+
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.tuples(new Filter(new Predicate(field, op,
+                new IntField(value)), new SeqScan(tid, table.getId(), "t")));
+        Collections.sort(scanned, SystemTestUtil.ROWS_IN_ORDER);
+        Collections.sort(expected, SystemTestUtil.ROWS_IN_ORDER);
+        assertEquals(expected, scanned);
+    }
+
+    @Test public void testRanges() throws Exception {
+        // a key that is in the table, so equality finds something
+        int present = SystemTestUtil.tuples(new SeqScan(tid, table.getId(), "t")).get(ROWS / 2).get(0);
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ }) {
+            for (int value : new int[] { -1, 0, present, MAX_VALUE / 100, MAX_VALUE })
+                validate(index, op, value);
+        }
+        // the tree has split past its root
+        assertTrue(index.numPages() > 3);
+    }
+
+    @Test public void testDuplicateKeys() throws Exception {
+        // column 1 of a table with few distinct values
+        table = SystemTestUtil.createRandomHeapFile(2, ROWS, 10, null, null, "c");
+        BTreeFile dups = createIndex(1);
+        for (int value = 0; value < 10; value++) {
+            validate(dups, Predicate.Op.EQUALS, value);
+            validate(dups, Predicate.Op.GREATER_THAN, value);
+        }
+    }
+
+    @Test public void testDelete() throws Exception {
+        IntField bound = new IntField(MAX_VALUE / 100);
+        ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+        DbFileIterator entries = index.iterator(tid, Predicate.Op.LESS_THAN, bound);
+        entries.open();
+        while (entries.hasNext()) {
+            RecordId rid = index.recordId(entries.next());
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(),
+                    Permissions.READ_ONLY);
+            deleted.add(page.getTuple(rid.tupleno()));
+            Database.getBufferPool().unpinPage(tid, rid.getPageId());
+        }
+        entries.close();
+        assertTrue(deleted.size() > 0);
+
+        for (Tuple t : deleted) {
+            for (Page page : index.deleteTuple(tid, t))
+                page.markDirty(true, tid);
+        }
+        assertEquals(0, SystemTestUtil.tuples(new IndexScan(tid, index, "t", Predicate.Op.LESS_THAN, bound)).size());
+        validate(index, Predicate.Op.GREATER_THAN_OR_EQ, MAX_VALUE / 100);
+        try {
+            index.deleteTuple(tid, deleted.get(0));
+            fail("Deleted an entry twice");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    @Test public void testReopen() throws Exception {
+        ArrayList<ArrayList<Integer>> before = SystemTestUtil.tuples(new IndexScan(tid, index, "t",
+                Predicate.Op.LESS_THAN, new IntField(MAX_VALUE / 10)));
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        BTreeFile reopened = new BTreeFile(index.getFile(), 0, table);
+        Database.getCatalog().addIndex(reopened);
+        assertEquals(before, SystemTestUtil.tuples(new IndexScan(tid, reopened, "t", Predicate.Op.LESS_THAN,
+                new IntField(MAX_VALUE / 10))));
+    }
+
+    private static DbIterator leaf(DbIterator plan) {
+        while (plan instanceof Operator)
+            plan = ((Operator) plan).getChildren()[0];
+        return plan;
+    }
+
+    @Test public void testPlan() throws Exception {
+        TableStats.setTableStats(NAME, new TableStats(table.getId(), 1000));
+        Parser p = new Parser();
+
+        DbIterator plan = p.generateLogicalPlan(tid, "SELECT * FROM " + NAME
+                + " t WHERE t.c0 = 42;").physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(leaf(plan) instanceof IndexScan);
+
+        // a wide range reads most pages anyway
+        plan = p.generateLogicalPlan(tid, "SELECT * FROM " + NAME
+                + " t WHERE t.c0 > 10;").physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(leaf(plan) instanceof SeqScan);
+
+        // the index answers one filter, a Filter the other
+        int present = SystemTestUtil.tuples(new SeqScan(tid, table.getId(), "t")).get(ROWS / 2).get(0);
+        plan = p.generateLogicalPlan(tid, "SELECT * FROM " + NAME + " t WHERE t.c1 > 10 AND t.c0 = "
+                + present + ";").physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(leaf(plan) instanceof IndexScan);
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.tuples(new Filter(new Predicate(1,
+                Predicate.Op.GREATER_THAN, new IntField(10)), new Filter(new Predicate(0,
+                Predicate.Op.EQUALS, new IntField(present)), new SeqScan(tid, table.getId(), "t"))));
+        ArrayList<ArrayList<Integer>> actual = SystemTestUtil.tuples(plan);
+        Collections.sort(expected, SystemTestUtil.ROWS_IN_ORDER);
+        Collections.sort(actual, SystemTestUtil.ROWS_IN_ORDER);
+        assertEquals(expected, actual);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(IndexScanTest.class);
+    }
+}
@@ -0,0 +1,145 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that an Aggregate computing several aggregates over a composite
+ * GROUP BY returns the same groups as computing the aggregates one at a time
+ * by hand, serially, in parallel and when it spills, and that the Parser plans
+ * such queries into a single Aggregate.
+ */
+public class MultiAggregateTest extends SimpleDbTestBase {
+    private static final int ROWS = 60000;
+    private static final int KEY_VALUES = 30;
+    private static final Aggregator.Op[] OPS = { Aggregator.Op.COUNT, Aggregator.Op.SUM,
+            Aggregator.Op.AVG, Aggregator.Op.MIN, Aggregator.Op.MAX };
+    private HeapFile table;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+    private int parallelism;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        parallelism = Aggregate.getParallelism();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(3, ROWS, KEY_VALUES, null, tuples, "c");
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Aggregate.setParallelism(parallelism);
+    }
+
+    /** Every op of OPS over field 2, grouped by fields 0 and 1, by hand. */
+    private ArrayList<ArrayList<Integer>> expected() {
+        HashMap<List<Integer>, ArrayList<Integer>> groups = new HashMap<List<Integer>, ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            List<Integer> key = t.subList(0, 2);
+            ArrayList<Integer> values = groups.get(key);
+            if (values == null) {
+                values = new ArrayList<Integer>();
+                groups.put(key, values);
+            }
+            values.add(t.get(2));
+        }
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (List<Integer> key : groups.keySet()) {
+            ArrayList<Integer> values = groups.get(key);
+            long sum = 0;
+            for (int v : values)
+                sum += v;
+            ArrayList<Integer> row = new ArrayList<Integer>(key);
+            row.addAll(Arrays.asList(values.size(), (int) sum, (int) (sum / values.size()),
+                    Collections.min(values), Collections.max(values)));
+            result.add(row);
+        }
+        Collections.sort(result, SystemTestUtil.ROWS_IN_ORDER);
+        return result;
+    }
+
+    private Aggregate aggregate(int memoryGroups) {
+        int[] afields = new int[OPS.length];
+        Arrays.fill(afields, 2);
+        return new Aggregate(new SeqScan(tid, table.getId(), ""), afields,
+                new int[] { 0, 1 }, OPS, memoryGroups);
+    }
+
+    @Test public void testSerial() throws Exception {
+        Aggregate.setParallelism(1);
+        Aggregate agg = aggregate(Aggregate.DEFAULT_MEMORY_GROUPS);
+        assertEquals(5, agg.getTupleDesc().numFields() - 2);
+        assertEquals(expected(), SystemTestUtil.sortedTuples(agg));
+    }
+
+    @Test public void testParallel() throws Exception {
+        Aggregate.setParallelism(4);
+        Aggregate agg = aggregate(Aggregate.DEFAULT_MEMORY_GROUPS);
+        assertEquals(expected(), SystemTestUtil.sortedTuples(agg));
+        assertTrue(agg.numPartitions() > 1);
+    }
+
+    @Test public void testSpill() throws Exception {
+        Aggregate agg = aggregate(100);
+        assertEquals(expected(), SystemTestUtil.sortedTuples(agg));
+        assertTrue(agg.numSpilledPartitions() > 0);
+    }
+
+    @Test public void testNoGrouping() throws Exception {
+        Aggregate agg = new Aggregate(new SeqScan(tid, table.getId(), ""), new int[] { 0, 2 },
+                new int[0], new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.COUNT });
+        ArrayList<ArrayList<Integer>> result = SystemTestUtil.sortedTuples(agg);
+        assertEquals(1, result.size());
+        assertEquals(Arrays.asList(0, ROWS), result.get(0));
+    }
+
+    @Test public void testParse() throws Exception {
+        String name = "multiagg_test";
+        Database.getCatalog().addTable(table, name);
+        TableStats.setTableStats(name, new TableStats(table.getId(), 1000));
+        Parser p = new Parser();
+
+        DbIterator plan = p.generateLogicalPlan(tid, "SELECT t.c0, t.c1, COUNT(t.c2), SUM(t.c2), "
+                + "AVG(t.c2), MIN(t.c2), MAX(t.c2) FROM " + name + " t GROUP BY t.c0, t.c1;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        Aggregate agg = (Aggregate) ((Operator) plan).getChildren()[0];
+        assertEquals(2, agg.groupFields().length);
+        assertEquals(5, agg.aggregateFields().length);
+        assertEquals(expected(), SystemTestUtil.sortedTuples(plan));
+
+        // the select list may reorder and repeat the group and aggregate fields
+        plan = p.generateLogicalPlan(tid, "SELECT MAX(t.c2), t.c1, t.c0, MAX(t.c2) FROM "
+                + name + " t GROUP BY t.c0, t.c1;").physicalPlan(tid, TableStats.getStatsMap(), false);
+        agg = (Aggregate) ((Operator) plan).getChildren()[0];
+        assertEquals(1, agg.aggregateFields().length);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : expected())
+            expected.add(new ArrayList<Integer>(Arrays.asList(t.get(6), t.get(1), t.get(0), t.get(6))));
+        Collections.sort(expected, SystemTestUtil.ROWS_IN_ORDER);
+        assertEquals(expected, SystemTestUtil.sortedTuples(plan));
+    }
+
+    @Test(expected = ParsingException.class) public void testUngroupedField() throws Exception {
+        String name = "multiagg_test";
+        Database.getCatalog().addTable(table, name);
+        TableStats.setTableStats(name, new TableStats(table.getId(), 1000));
+        new Parser().generateLogicalPlan(tid, "SELECT t.c0, t.c2, COUNT(t.c1) FROM " + name
+                + " t GROUP BY t.c0;");
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(MultiAggregateTest.class);
+    }
+}
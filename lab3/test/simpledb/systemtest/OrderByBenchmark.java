@@ -0,0 +1,51 @@
+package simpledb.systemtest;
+
+import simpledb.*;
+
+/**
+ * Measures OrderBy throughput, in tuples per second, sorting a table fully
+ * in memory and externally with memory budgets of a fraction of the table.
+ * Reports the heap in use after each sort has loaded its input.
+ *
+ * Run with: ant runbenchmark -Dbenchmark=OrderByBenchmark
+ */
+public class OrderByBenchmark {
+    private static final int ROWS = 1000000;
+    private static final int ROUNDS = 3;
+    // the first budget holds the whole table, so it is the in-memory sort
+    private static final int[] BUDGETS = { Integer.MAX_VALUE, ROWS / 10, ROWS / 100 };
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static void run(HeapFile hf, int memoryTuples) throws Exception {
+        System.gc();
+        long start = System.nanoTime();
+        OrderBy sort = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, true },
+                new SeqScan(new TransactionId(), hf.getId(), ""), memoryTuples);
+        sort.open();
+        long heap = usedHeap();
+        int count = 0;
+        while (sort.hasNext()) {
+            sort.next();
+            count++;
+        }
+        sort.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("budget %10d: %d runs, %.0f tuples/s, %.1f MB heap after load%n",
+                memoryTuples, sort.numRuns(), count / seconds, heap / 1e6);
+    }
+
+    public static void main(String[] args) throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.println("round " + round);
+            for (int budget : BUDGETS)
+                run(hf, budget);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that OrderBy sorts the same way whether the input fits in its
+ * memory budget or is sorted externally in one or more merge passes.
+ */
+public class OrderByTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+    private HeapFile table;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        // few distinct values in the first column, so the second one decides ties
+        table = SystemTestUtil.createRandomHeapFile(3, ROWS, 10, null, tuples);
+        tid = new TransactionId();
+    }
+
+    /** @return the rows of the table sorted on column 0 ascending, then column 1 descending */
+    private ArrayList<ArrayList<Integer>> expected() {
+        ArrayList<ArrayList<Integer>> sorted = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(sorted, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                int c = a.get(0).compareTo(b.get(0));
+                return c != 0 ? c : b.get(1).compareTo(a.get(1));
+            }
+        });
+        return sorted;
+    }
+
+    private OrderBy orderBy(int memoryTuples) {
+        return new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+                new SeqScan(tid, table.getId(), ""), memoryTuples);
+    }
+
+    private void validateSort(int memoryTuples, boolean spills) throws Exception {
+        OrderBy sort = orderBy(memoryTuples);
+        ArrayList<ArrayList<Integer>> result = SystemTestUtil.tuples(sort);
+        assertEquals(spills, sort.numRuns() > 0);
+
+        // sorting is stable, so even the order within ties is the same
+        ArrayList<ArrayList<Integer>> expected = expected();
+        assertEquals(expected, result);
+    }
+
+    @Test public void testInMemory() throws Exception {
+        validateSort(OrderBy.DEFAULT_MEMORY_TUPLES, false);
+    }
+
+    @Test public void testExternal() throws Exception {
+        validateSort(500, true);
+    }
+
+    /** More runs than MERGE_FAN_IN, so they are merged in several passes. */
+    @Test public void testMultiPassMerge() throws Exception {
+        int memoryTuples = ROWS / (OrderBy.MERGE_FAN_IN * 2);
+        OrderBy sort = orderBy(memoryTuples);
+        ArrayList<ArrayList<Integer>> result = SystemTestUtil.tuples(sort);
+        assertTrue(sort.numRuns() > OrderBy.MERGE_FAN_IN);
+        assertEquals(expected(), result);
+    }
+
+    @Test public void testRewind() throws Exception {
+        OrderBy sort = orderBy(500);
+        ArrayList<ArrayList<Integer>> first = SystemTestUtil.tuples(sort);
+        sort.open();
+        while (sort.hasNext())
+            sort.next();
+        sort.rewind();
+        ArrayList<ArrayList<Integer>> second = new ArrayList<ArrayList<Integer>>();
+        while (sort.hasNext())
+            second.add(SystemTestUtil.tupleToList(sort.next()));
+        sort.close();
+        assertEquals(ROWS, first.size());
+        assertEquals(first, second);
+    }
+
+    @Test public void testReopen() throws Exception {
+        OrderBy sort = orderBy(500);
+        ArrayList<ArrayList<Integer>> first = SystemTestUtil.tuples(sort);
+        ArrayList<ArrayList<Integer>> second = SystemTestUtil.tuples(sort);
+        assertEquals(first, second);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OrderByTest.class);
+    }
+}
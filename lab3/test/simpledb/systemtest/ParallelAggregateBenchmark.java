@@ -0,0 +1,45 @@
+package simpledb.systemtest;
+
+import simpledb.*;
+
+/**
+ * Measures GROUP BY throughput, in rows per second, as the number of
+ * threads an Aggregate runs on grows from 1 to the number of processors.
+ * The table fits in the buffer pool, so the numbers measure the aggregation
+ * rather than I/O. The number of rows may be given as the first argument.
+ *
+ * Run with: ant runbenchmark -Dbenchmark=ParallelAggregateBenchmark
+ */
+public class ParallelAggregateBenchmark {
+    private static final int DEFAULT_ROWS = 5000000;
+    private static final int GROUPS = 10000;
+    private static final int ROUNDS = 3;
+
+    private static double rowsPerSecond(HeapFile hf, int rows, int threads) throws Exception {
+        Aggregate.setParallelism(threads);
+        long start = System.nanoTime();
+        Aggregate agg = new Aggregate(new SeqScan(new TransactionId(), hf.getId(), ""),
+                1, 0, Aggregator.Op.AVG);
+        agg.open();
+        while (agg.hasNext())
+            agg.next();
+        agg.close();
+        return rows / ((System.nanoTime() - start) / 1e9);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, GROUPS, null, null);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        Database.resetBufferPool(hf.numPages() + 100);
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.println("round " + round);
+            for (int threads = 1; threads <= processors; threads *= 2)
+                System.out.printf("%3d threads: %12.0f rows/s%n", threads,
+                        rowsPerSecond(hf, rows, threads));
+        }
+        Aggregate.setParallelism(processors);
+    }
+}
@@ -0,0 +1,82 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that a parallel Aggregate over a partitioned SeqScan returns the
+ * same groups, in the same order, as a serial one.
+ */
+public class ParallelAggregateTest extends SimpleDbTestBase {
+    private static final int ROWS = 60000;
+    private HeapFile table;
+    private TransactionId tid;
+    private int parallelism;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        parallelism = Aggregate.getParallelism();
+        table = SystemTestUtil.createRandomHeapFile(2, ROWS, 1000, null, null);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Aggregate.setParallelism(parallelism);
+    }
+
+    private ArrayList<ArrayList<Integer>> aggregate(Aggregator.Op op, int gfield,
+            Predicate filter, int threads) throws Exception {
+        Aggregate.setParallelism(threads);
+        DbIterator child = new SeqScan(tid, table.getId(), "");
+        if (filter != null)
+            child = new Filter(filter, child);
+        Aggregate agg = new Aggregate(child, 1, gfield, op);
+
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        agg.open();
+        while (agg.hasNext())
+            result.add(SystemTestUtil.tupleToList(agg.next()));
+        agg.close();
+        if (threads > 1)
+            assertTrue(agg.numPartitions() > 1);
+        else
+            assertEquals(1, agg.numPartitions());
+        return result;
+    }
+
+    private void validate(Aggregator.Op op, int gfield, Predicate filter) throws Exception {
+        assertTrue(table.numPages() >= 2 * Aggregate.MIN_PAGES_PER_TASK);
+        assertEquals(aggregate(op, gfield, filter, 1), aggregate(op, gfield, filter, 4));
+    }
+
+    @Test public void testGrouped() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM,
+                Aggregator.Op.AVG, Aggregator.Op.MIN, Aggregator.Op.MAX })
+            validate(op, 0, null);
+    }
+
+    @Test public void testNoGrouping() throws Exception {
+        validate(Aggregator.Op.AVG, Aggregator.NO_GROUPING, null);
+        validate(Aggregator.Op.MIN, Aggregator.NO_GROUPING, null);
+    }
+
+    @Test public void testFiltered() throws Exception {
+        validate(Aggregator.Op.SUM, 0,
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(100)));
+        // no rows pass: no groups
+        validate(Aggregator.Op.COUNT, 0,
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(-1)));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelAggregateTest.class);
+    }
+}
@@ -0,0 +1,249 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that a PaxFile returns the same tuples as a HeapFile with the same
+ * rows, that its pages store each field in a mini-page of its own, and that
+ * scans and queries over it can return only some of its fields.
+ */
+public class PaxFileTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 5;
+    private static final int ROWS = 5000;
+
+    private ArrayList<ArrayList<Integer>> rows;
+    private PaxFile pax;
+    private HeapFile heap;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        rows = new ArrayList<ArrayList<Integer>>();
+        Random r = new Random();
+        for (int i = 0; i < ROWS; i++) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(i);
+            for (int j = 1; j < COLUMNS; j++)
+                row.add(r.nextInt(1000));
+            rows.add(row);
+        }
+        File in = File.createTempFile("rows", ".txt");
+        in.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(in));
+        for (ArrayList<Integer> row : rows) {
+            StringBuilder line = new StringBuilder();
+            for (int j = 0; j < COLUMNS; j++)
+                line.append(j == 0 ? "" : ",").append(row.get(j));
+            out.println(line);
+        }
+        out.close();
+
+        pax = new PaxFile(emptyFile("pax"), Utility.getTupleDesc(COLUMNS, "c"));
+        Database.getCatalog().addTable(pax, "pax_table");
+        assertEquals(ROWS, pax.bulkLoad(in, ','));
+        heap = new HeapFile(emptyFile("heap"), Utility.getTupleDesc(COLUMNS, "c"));
+        Database.getCatalog().addTable(heap, "heap_table");
+        assertEquals(ROWS, heap.bulkLoad(in, ','));
+        tid = new TransactionId();
+    }
+
+    private static File emptyFile(String prefix) throws Exception {
+        File f = File.createTempFile(prefix, ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
+        new File(f.getPath() + ZoneMap.SUFFIX).deleteOnExit();
+        return f;
+    }
+
+    /** @return rows with only the given fields */
+    private ArrayList<ArrayList<Integer>> project(ArrayList<ArrayList<Integer>> rows, int[] fields) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> row : rows) {
+            ArrayList<Integer> projected = new ArrayList<Integer>();
+            for (int f : fields)
+                projected.add(row.get(f));
+            result.add(projected);
+        }
+        return result;
+    }
+
+    @Test public void testLayout() throws Exception {
+        assertEquals(heap.numPages(), pax.numPages());
+        Page page = Database.getBufferPool().getPage(tid,
+                new HeapPageId(pax.getId(), 0), Permissions.READ_ONLY);
+        assertTrue(page instanceof PaxPage);
+
+        // the page holds c0 = 0, 1, 2, ... in order, right after the header
+        int tupleSize = pax.getTupleDesc().getSize();
+        int numSlots = (BufferPool.getPageSize() * 8) / (tupleSize * 8 + 1);
+        ByteBuffer data = ByteBuffer.wrap(page.getPageData());
+        int headerSize = (numSlots + 7) / 8;
+        for (int slot = 0; slot < numSlots; slot++)
+            assertEquals(slot, data.getInt(headerSize + slot * 4));
+        // and c1 of every slot after that
+        for (int slot = 0; slot < numSlots; slot++)
+            assertEquals((int) rows.get(slot).get(1), data.getInt(headerSize + (numSlots + slot) * 4));
+    }
+
+    @Test public void testScan() throws Exception {
+        SystemTestUtil.matchTuples(pax, rows);
+        ArrayList<ArrayList<Integer>> batches = new ArrayList<ArrayList<Integer>>();
+        SeqScan scan = new SeqScan(tid, pax.getId(), "p");
+        scan.open();
+        TupleBatch batch;
+        while ((batch = scan.nextBatch()) != null) {
+            for (int row = 0; row < batch.size(); row++)
+                batches.add(SystemTestUtil.tupleToList(batch.getTuple(row)));
+        }
+        scan.close();
+        Collections.sort(batches, SystemTestUtil.ROWS_IN_ORDER);
+        assertEquals(rows, batches);
+    }
+
+    @Test public void testProjection() throws Exception {
+        int[] fields = new int[] { 3, 0 };
+        for (HeapFile f : new HeapFile[] { pax, heap }) {
+            SeqScan scan = new SeqScan(tid, f.getId(), "t");
+            scan.setProjection(fields);
+            assertEquals(2, scan.getTupleDesc().numFields());
+            assertEquals("t.c3", scan.getTupleDesc().getFieldName(0));
+            SystemTestUtil.matchTuples(scan, project(rows, fields));
+
+            // batches hold only the projected fields too
+            scan = new SeqScan(tid, f.getId(), "t");
+            scan.setProjection(fields);
+            BatchAdapter it = new BatchAdapter(scan);
+            SystemTestUtil.matchTuples(it, project(rows, fields));
+        }
+
+        // a Filter over a projected scan still skips pages by zone map
+        SeqScan scan = new SeqScan(tid, pax.getId(), "t");
+        scan.setProjection(fields);
+        HeapFileIterator.resetPagesSkipped();
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        expected.add(project(rows, fields).get(10));
+        SystemTestUtil.matchTuples(new Filter(new Predicate(1, Predicate.Op.EQUALS,
+                new IntField(10)), scan), expected);
+        assertEquals(pax.numPages() - 1, HeapFileIterator.getPagesSkipped());
+    }
+
+    @Test public void testInsertAndDelete() throws Exception {
+        ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+        for (int i = 0; i < 10; i++) {
+            int[] values = new int[COLUMNS];
+            values[0] = ROWS + i;
+            values[COLUMNS - 1] = -i;
+            inserted.add(Utility.getTuple(values, COLUMNS));
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            for (int v : values)
+                row.add(v);
+            rows.add(row);
+        }
+        Insert insert = new Insert(tid, new TupleIterator(Utility.getTupleDesc(COLUMNS),
+                inserted), pax.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+
+        // delete the first half of the rows
+        Delete delete = new Delete(tid, new Filter(new Predicate(0, Predicate.Op.LESS_THAN,
+                new IntField(ROWS / 2)), new SeqScan(tid, pax.getId(), "t")));
+        delete.open();
+        delete.next();
+        delete.close();
+        ArrayList<ArrayList<Integer>> remaining = new ArrayList<ArrayList<Integer>>(
+                rows.subList(ROWS / 2, rows.size()));
+        SystemTestUtil.matchTuples(pax, tid, remaining);
+
+        // the pages written to disk read back the same
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(pax, remaining);
+    }
+
+    @Test public void testQuery() throws Exception {
+        TableStats.setTableStats("pax_table", new TableStats(pax.getId(), 1000));
+        TableStats.setTableStats("heap_table", new TableStats(heap.getId(), 1000));
+        Parser p = new Parser();
+        LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT pax_table.c2, heap_table.c4 "
+                + "FROM pax_table, heap_table WHERE pax_table.c0 = heap_table.c0 "
+                + "AND pax_table.c1 < 500;");
+        DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> row : rows) {
+            if (row.get(1) < 500) {
+                ArrayList<Integer> out = new ArrayList<Integer>();
+                out.add(row.get(2));
+                out.add(row.get(4));
+                expected.add(out);
+            }
+        }
+        SystemTestUtil.matchTuples(plan, expected);
+
+        // each scan returns only the fields the query uses
+        ArrayList<SeqScan> scans = new ArrayList<SeqScan>();
+        findScans(plan, scans);
+        assertEquals(2, scans.size());
+        for (SeqScan scan : scans) {
+            if (scan.getTableName().equals("pax_table"))
+                assertArrayEquals(new int[] { 0, 1, 2 }, scan.getProjection());
+            else
+                assertArrayEquals(new int[] { 0, 4 }, scan.getProjection());
+        }
+    }
+
+    private static void findScans(DbIterator it, ArrayList<SeqScan> scans) {
+        if (it instanceof SeqScan)
+            scans.add((SeqScan) it);
+        else if (it instanceof Operator) {
+            for (DbIterator child : ((Operator) it).getChildren())
+                findScans(child, scans);
+        }
+    }
+
+    @Test public void testCatalog() throws Exception {
+        File dir = File.createTempFile("schema", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File schema = new File(dir, "catalog.txt");
+        schema.deleteOnExit();
+        File dataFile = new File(dir, "columns.dat");
+        dataFile.deleteOnExit();
+        dataFile.createNewFile();
+        FileWriter out = new FileWriter(schema);
+        out.write("columns (a int, b int) pax\n");
+        out.write("mapped_columns (a int, b int) mmap pax\n");
+        out.close();
+        new File(dir, "mapped_columns.dat").deleteOnExit();
+        new File(dir, "mapped_columns.dat").createNewFile();
+
+        Database.getCatalog().loadSchema(schema.getPath());
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("columns"));
+        assertTrue(f instanceof PaxFile);
+        HeapFile mapped = (HeapFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId("mapped_columns"));
+        assertTrue(mapped instanceof PaxFile);
+        assertTrue(mapped.isMemoryMapped());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(PaxFileTest.class);
+    }
+}
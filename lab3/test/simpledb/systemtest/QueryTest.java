@@ -30,7 +30,9 @@ public class QueryTest {
         File temp = File.createTempFile("table", ".dat");
         temp.deleteOnExit();
         HeapFileEncoder.convert(tuples, temp, BufferPool.PAGE_SIZE, columns);
-        return Utility.openHeapFile(columns, colPrefix, temp);
+        HeapFile hf = Utility.openHeapFile(columns, colPrefix, temp);
+        hf.deleteOnExit();
+        return hf;
 	}
 	
 	@Test(timeout=20000) public void queryTest() throws IOException, DbException, TransactionAbortedException {
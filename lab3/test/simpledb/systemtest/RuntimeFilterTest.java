@@ -0,0 +1,177 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that a HybridHashJoin drops probe tuples without a partner at the
+ * probe scan with a Bloom filter of its build keys, and that it returns the
+ * same tuples as without the filter, including in plans the optimizer
+ * builds.
+ */
+public class RuntimeFilterTest extends SimpleDbTestBase {
+    private static final int FACT_ROWS = 20000;
+    private static final int DIM_ROWS = 100;
+    private static final int MAX_VALUE = 10000;
+
+    private HeapFile fact;
+    private HeapFile dim;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        fact = SystemTestUtil.createRandomHeapFile(2, FACT_ROWS, MAX_VALUE, null, null);
+        dim = SystemTestUtil.createRandomHeapFile(2, DIM_ROWS, MAX_VALUE, null, null);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        HybridHashJoin.setUseRuntimeFilters(true);
+    }
+
+    private HybridHashJoin join(HeapFile build, DbIterator probe) {
+        return join(build, probe, HybridHashJoin.DEFAULT_MEMORY_TUPLES);
+    }
+
+    private HybridHashJoin join(HeapFile build, DbIterator probe, int memoryTuples) {
+        return new HybridHashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, build.getId(), "b"), probe, memoryTuples);
+    }
+
+    /** @return the result of the join without runtime filters */
+    private ArrayList<ArrayList<Integer>> unfiltered(HeapFile build, DbIterator probe) throws Exception {
+        HybridHashJoin.setUseRuntimeFilters(false);
+        HybridHashJoin j = join(build, probe);
+        ArrayList<ArrayList<Integer>> result = SystemTestUtil.sortedTuples(j);
+        assertEquals(0, j.getRowsEliminated());
+        HybridHashJoin.setUseRuntimeFilters(true);
+        return result;
+    }
+
+    @Test public void testStarJoin() throws Exception {
+        SeqScan probe = new SeqScan(tid, fact.getId(), "f");
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sortedTuples(new Join(new JoinPredicate(0,
+                Predicate.Op.EQUALS, 0), new SeqScan(tid, dim.getId(), "b"), probe));
+        assertEquals(expected, unfiltered(dim, probe));
+
+        HybridHashJoin j = join(dim, probe);
+        assertEquals(expected, SystemTestUtil.sortedTuples(j));
+        // about 1% of the fact rows have a partner and 1% are false positives
+        assertEquals(FACT_ROWS, j.getRowsChecked());
+        assertTrue(j.getRowsEliminated() > FACT_ROWS * 9 / 10);
+        assertTrue(j.getRowsEliminated() <= FACT_ROWS - expected.size());
+    }
+
+    @Test public void testBatches() throws Exception {
+        SeqScan probe = new SeqScan(tid, fact.getId(), "f");
+        ArrayList<ArrayList<Integer>> expected = unfiltered(dim, probe);
+        HybridHashJoin j = join(dim, probe);
+        assertEquals(expected, SystemTestUtil.sortedTuples(new BatchAdapter(j)));
+        assertTrue(j.getRowsEliminated() > FACT_ROWS * 9 / 10);
+    }
+
+    @Test public void testUnderFilter() throws Exception {
+        DbIterator probe = new Filter(new Predicate(1, Predicate.Op.LESS_THAN,
+                new IntField(MAX_VALUE / 2)), new SeqScan(tid, fact.getId(), "f"));
+        ArrayList<ArrayList<Integer>> expected = unfiltered(dim, probe);
+        HybridHashJoin j = join(dim, probe);
+        assertEquals(expected, SystemTestUtil.sortedTuples(j));
+        // the scan drops rows before the Filter sees them
+        assertEquals(FACT_ROWS, j.getRowsChecked());
+        assertTrue(j.getRowsEliminated() > FACT_ROWS * 9 / 10);
+    }
+
+    @Test public void testSpilledBuild() throws Exception {
+        // more build rows than the join holds in memory
+        HeapFile build = SystemTestUtil.createRandomHeapFile(2, 5000,
+                MAX_VALUE * 100, null, null);
+        SeqScan probe = new SeqScan(tid, fact.getId(), "f");
+        ArrayList<ArrayList<Integer>> expected = unfiltered(build, probe);
+        HybridHashJoin j = join(build, probe, 500);
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        j.open();
+        while (j.hasNext())
+            result.add(SystemTestUtil.tupleToList(j.next()));
+        assertTrue(j.numSpilledPartitions() > 0);
+        j.close();
+        Collections.sort(result, SystemTestUtil.ROWS_IN_ORDER);
+        assertEquals(expected, result);
+        // the filter holds the spilled keys too, and the probe side is read once
+        assertEquals(FACT_ROWS, j.getRowsChecked());
+        assertTrue(j.getRowsEliminated() > FACT_ROWS / 2);
+        assertTrue(j.getRowsEliminated() <= FACT_ROWS - expected.size());
+
+        // opening the join again builds the filter again
+        assertEquals(expected, SystemTestUtil.sortedTuples(j));
+        assertEquals(FACT_ROWS * 2, j.getRowsChecked());
+    }
+
+    @Test public void testPlannedQuery() throws Exception {
+        HeapFile fact = SystemTestUtil.createRandomHeapFile(2, FACT_ROWS, MAX_VALUE, null, null, "c");
+        // few keys of either table have a partner, whichever side is built
+        HeapFile dim = SystemTestUtil.createRandomHeapFile(2, DIM_ROWS * 10, MAX_VALUE * 100,
+                null, null, "c");
+        Database.getCatalog().addTable(fact, "fact");
+        Database.getCatalog().addTable(dim, "dim");
+        TableStats.setTableStats("fact", new TableStats(fact.getId(), 1000));
+        TableStats.setTableStats("dim", new TableStats(dim.getId(), 1000));
+        String query = "SELECT * FROM fact, dim WHERE fact.c0 = dim.c0 "
+                + "AND fact.c1 < " + (MAX_VALUE / 2) + ";";
+
+        HybridHashJoin.setUseRuntimeFilters(false);
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sortedTuples(plan(query));
+        HybridHashJoin.setUseRuntimeFilters(true);
+
+        DbIterator plan = plan(query);
+        assertEquals(expected, SystemTestUtil.sortedTuples(plan));
+        HybridHashJoin j = findJoin(plan);
+        assertNotNull(j);
+        assertTrue(j.getRowsChecked() > 0);
+        assertTrue(j.getRowsEliminated() > j.getRowsChecked() / 2);
+    }
+
+    private DbIterator plan(String query) throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, query);
+        return lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    }
+
+    private static HybridHashJoin findJoin(DbIterator it) {
+        if (it instanceof HybridHashJoin)
+            return (HybridHashJoin) it;
+        if (it instanceof Operator) {
+            for (DbIterator child : ((Operator) it).getChildren()) {
+                HybridHashJoin j = findJoin(child);
+                if (j != null)
+                    return j;
+            }
+        }
+        return null;
+    }
+
+    @Test public void testBloomFilter() {
+        BloomFilter bloom = new BloomFilter(1000);
+        for (int i = 0; i < 1000; i++)
+            bloom.add(new IntField(i * 7));
+        int falsePositives = 0;
+        for (int i = 0; i < 7000; i++) {
+            if (i % 7 == 0)
+                assertTrue(bloom.mightContain(new IntField(i)));
+            else if (bloom.mightContain(i))
+                falsePositives++;
+        }
+        assertTrue(falsePositives < 6000 * 3 / 100);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RuntimeFilterTest.class);
+    }
+}
@@ -92,6 +92,7 @@ public class ScanTest extends SimpleDbTestBase {
         File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992*PAGES, 1000, null, tuples);
         TupleDesc td = Utility.getTupleDesc(1);
         InstrumentedHeapFile table = new InstrumentedHeapFile(f, td);
+        table.deleteOnExit();
         Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
 
         // Scan the table once
@@ -104,6 +105,63 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Verifies that read-ahead pages are accounted for and do not change scan results. */
+    @Test public void testReadAhead() throws IOException, DbException, TransactionAbortedException {
+        final int PAGES = 30;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(1, 992*PAGES, 1000, null, tuples);
+
+        HeapFileIterator.resetPrefetchStats();
+        SystemTestUtil.matchTuples(f, tuples);
+        long hits = HeapFileIterator.getPrefetchHits();
+        long waste = HeapFileIterator.getPrefetchWaste();
+        // once the scan is seen to be sequential, the pages it is about to
+        // read are read ahead for it; it reads every one of them, so at
+        // most a window of them can have been evicted unused
+        assertTrue(hits > 0);
+        assertTrue(hits + waste <= PAGES);
+        assertTrue(waste <= HeapFileIterator.getReadAheadPages());
+
+        // Without read-ahead nothing is prefetched
+        int window = HeapFileIterator.getReadAheadPages();
+        HeapFileIterator.setReadAheadPages(0);
+        try {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            HeapFileIterator.resetPrefetchStats();
+            SystemTestUtil.matchTuples(f, tuples);
+            assertEquals(0, HeapFileIterator.getPrefetchHits());
+            assertEquals(0, HeapFileIterator.getPrefetchWaste());
+        } finally {
+            HeapFileIterator.setReadAheadPages(window);
+        }
+    }
+
+    /** Scans a memory-mapped table, then grows it and scans it again. */
+    @Test public void testMemoryMapped() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504*3 + 10, 1000, null, tuples);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2), true);
+        table.deleteOnExit();
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        assertTrue(table.isMemoryMapped());
+        SystemTestUtil.matchTuples(table, tuples);
+
+        // Fill the last page and add a new one; the mapping must pick it up
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 504; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            Database.getBufferPool().insertTuple(tid, table.getId(), t);
+            tuples.add(SystemTestUtil.tupleToList(t));
+        }
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(5, table.numPages());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(table, tuples);
+        table.close();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ScanTest.class);
@@ -0,0 +1,152 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that SortMergeJoin returns the same tuples as a nested-loop Join
+ * for equality and range predicates over keys with many duplicates, and that
+ * its output is sorted on the join field of child1.
+ */
+public class SortMergeJoinTest extends SimpleDbTestBase {
+    private HeapFile left;
+    private HeapFile right;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // keys in [0, 20), so every key repeats many times on both sides
+        left = SystemTestUtil.createRandomHeapFile(2, 400, 20, null, null);
+        right = SystemTestUtil.createRandomHeapFile(3, 300, 20, null, null);
+        tid = new TransactionId();
+    }
+
+    /** @return the tuples of it, as strings in sorted order */
+    private void validateJoin(Predicate.Op op) throws DbException, TransactionAbortedException {
+        JoinPredicate pred = new JoinPredicate(0, op, 1);
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sortedTuples(new Join(pred,
+                new SeqScan(tid, left.getId(), ""), new SeqScan(tid, right.getId(), "")));
+        assertFalse(expected.isEmpty());
+
+        SortMergeJoin join = new SortMergeJoin(pred,
+                new SeqScan(tid, left.getId(), ""), new SeqScan(tid, right.getId(), ""));
+        assertEquals(expected, SystemTestUtil.sortedTuples(join));
+
+        // the output is in order of the left join field
+        join.open();
+        Field last = null;
+        while (join.hasNext()) {
+            Field f = join.next().getField(0);
+            if (last != null)
+                assertFalse(f.compare(Predicate.Op.LESS_THAN, last));
+            last = f;
+        }
+        join.close();
+    }
+
+    @Test public void testEquals() throws Exception {
+        validateJoin(Predicate.Op.EQUALS);
+    }
+
+    @Test public void testLessThan() throws Exception {
+        validateJoin(Predicate.Op.LESS_THAN);
+    }
+
+    @Test public void testLessThanOrEq() throws Exception {
+        validateJoin(Predicate.Op.LESS_THAN_OR_EQ);
+    }
+
+    @Test public void testGreaterThan() throws Exception {
+        validateJoin(Predicate.Op.GREATER_THAN);
+    }
+
+    @Test public void testGreaterThanOrEq() throws Exception {
+        validateJoin(Predicate.Op.GREATER_THAN_OR_EQ);
+    }
+
+    /**
+     * The output of one merge join feeds another on the same field without
+     * being sorted again.
+     */
+    @Test public void testSortedInput() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        SortMergeJoin first = new SortMergeJoin(pred,
+                new SeqScan(tid, left.getId(), ""), new SeqScan(tid, right.getId(), ""));
+        SortMergeJoin second = new SortMergeJoin(pred, first,
+                new SeqScan(tid, left.getId(), ""), true, false);
+
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sortedTuples(new Join(pred,
+                new Join(pred, new SeqScan(tid, left.getId(), ""), new SeqScan(tid, right.getId(), "")),
+                new SeqScan(tid, left.getId(), "")));
+        assertEquals(expected, SystemTestUtil.sortedTuples(second));
+    }
+
+    /** A child that claims to be sorted but is not is reported. */
+    @Test(expected = DbException.class) public void testUnsortedInput() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        SortMergeJoin join = new SortMergeJoin(pred,
+                new SeqScan(tid, left.getId(), ""), new SeqScan(tid, right.getId(), ""), false, true);
+        join.open();
+        while (join.hasNext())
+            join.next();
+    }
+
+    /** Children larger than the memory budget are sorted on disk. */
+    @Test public void testExternalSort() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN }) {
+            JoinPredicate pred = new JoinPredicate(0, op, 1);
+            ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sortedTuples(new Join(pred,
+                    new SeqScan(tid, left.getId(), ""), new SeqScan(tid, right.getId(), "")));
+            SortMergeJoin join = new SortMergeJoin(pred, new SeqScan(tid, left.getId(), ""),
+                    new SeqScan(tid, right.getId(), ""), false, false, 50);
+            assertEquals(expected, SystemTestUtil.sortedTuples(join));
+
+            // and again after a rewind
+            join.open();
+            join.rewind();
+            ArrayList<ArrayList<Integer>> rewound = new ArrayList<ArrayList<Integer>>();
+            while (join.hasNext())
+                rewound.add(SystemTestUtil.tupleToList(join.next()));
+            join.close();
+            Collections.sort(rewound, SystemTestUtil.ROWS_IN_ORDER);
+            assertEquals(expected, rewound);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void testNotEquals() {
+        new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+                new SeqScan(tid, left.getId(), ""), new SeqScan(tid, right.getId(), ""));
+    }
+
+    @Test public void testRewind() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+        SortMergeJoin join = new SortMergeJoin(pred,
+                new SeqScan(tid, left.getId(), ""), new SeqScan(tid, right.getId(), ""));
+        join.open();
+        int first = 0;
+        while (join.hasNext()) {
+            join.next();
+            first++;
+        }
+        join.rewind();
+        int second = 0;
+        while (join.hasNext()) {
+            join.next();
+            second++;
+        }
+        join.close();
+        assertEquals(first, second);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
@@ -0,0 +1,105 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that an Aggregate with a small memory budget spills partitions of
+ * its groups to disk and still returns the same groups as one without.
+ */
+public class SpillAggregateTest extends SimpleDbTestBase {
+    private static final int ROWS = 20000;
+    private static final int MAX_VALUE = 5000;
+    private HeapFile table;
+    private TransactionId tid;
+    private int parallelism;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        parallelism = Aggregate.getParallelism();
+        table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, null);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Aggregate.setParallelism(parallelism);
+    }
+
+    private ArrayList<ArrayList<Integer>> aggregate(Aggregator.Op op, int gfield, int memoryGroups)
+            throws Exception {
+        Aggregate agg = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, gfield, op, memoryGroups);
+        return SystemTestUtil.sortedTuples(agg);
+    }
+
+    @Test public void testSpill() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.AVG,
+                Aggregator.Op.MIN, Aggregator.Op.MAX }) {
+            Aggregate agg = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0, op, 100);
+            ArrayList<ArrayList<Integer>> spilled = SystemTestUtil.sortedTuples(agg);
+
+            assertTrue(agg.numSpilledPartitions() > 0);
+            assertTrue(agg.getBytesSpilled() > 0);
+            assertEquals(aggregate(op, 0, Aggregate.DEFAULT_MEMORY_GROUPS), spilled);
+        }
+    }
+
+    @Test public void testRewind() throws Exception {
+        Aggregate agg = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0,
+                Aggregator.Op.SUM, 100);
+        ArrayList<ArrayList<Integer>> first = SystemTestUtil.sortedTuples(agg);
+
+        agg.open();
+        while (agg.hasNext())
+            agg.next();
+        agg.rewind();
+        ArrayList<ArrayList<Integer>> rewound = new ArrayList<ArrayList<Integer>>();
+        while (agg.hasNext())
+            rewound.add(SystemTestUtil.tupleToList(agg.next()));
+        agg.close();
+        Collections.sort(rewound, SystemTestUtil.ROWS_IN_ORDER);
+        assertEquals(first, rewound);
+    }
+
+    @Test public void testNoGroupingNeverSpills() throws Exception {
+        Aggregate agg = new Aggregate(new SeqScan(tid, table.getId(), ""), 1,
+                Aggregator.NO_GROUPING, Aggregator.Op.SUM, 1);
+        assertEquals(1, SystemTestUtil.sortedTuples(agg).size());
+        assertEquals(0, agg.numSpilledPartitions());
+    }
+
+    @Test public void testParallelFallsBackToSpill() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 60000, 100000, null, null);
+        Aggregate.setParallelism(4);
+        Aggregate agg = new Aggregate(new SeqScan(tid, big.getId(), ""), 1, 0,
+                Aggregator.Op.COUNT, 1000);
+        ArrayList<ArrayList<Integer>> spilled = SystemTestUtil.sortedTuples(agg);
+        assertEquals(1, agg.numPartitions());
+        assertTrue(agg.numSpilledPartitions() > 0);
+
+        agg = new Aggregate(new SeqScan(tid, big.getId(), ""), 1, 0, Aggregator.Op.COUNT);
+        assertEquals(SystemTestUtil.sortedTuples(agg), spilled);
+        assertTrue(agg.numPartitions() > 1);
+    }
+
+    @Test public void testPlanOutput() throws Exception {
+        Aggregate agg = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0,
+                Aggregator.Op.COUNT, 100);
+        SystemTestUtil.sortedTuples(agg);
+        String plan = new QueryPlanVisualizer().getQueryPlanTree(agg);
+        assertTrue(plan, plan.contains("spilled:" + agg.getBytesSpilled() + "B in "
+                + agg.numSpilledPartitions() + " partitions"));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SpillAggregateTest.class);
+    }
+}
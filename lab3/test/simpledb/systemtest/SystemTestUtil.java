@@ -3,6 +3,8 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -33,7 +35,9 @@ public class SystemTestUtil {
             throws IOException, DbException, TransactionAbortedException {
         File temp = createRandomHeapFileUnopened(columns, rows, maxValue,
                 columnSpecification, tuples);
-        return Utility.openHeapFile(columns, temp);
+        HeapFile hf = Utility.openHeapFile(columns, temp);
+        hf.deleteOnExit();
+        return hf;
     }
     
     public static HeapFile createRandomHeapFile(
@@ -49,7 +53,9 @@ public class SystemTestUtil {
             throws IOException, DbException, TransactionAbortedException {
         File temp = createRandomHeapFileUnopened(columns, rows, maxValue,
                 columnSpecification, tuples);
-        return Utility.openHeapFile(columns, colPrefix, temp);
+        HeapFile hf = Utility.openHeapFile(columns, colPrefix, temp);
+        hf.deleteOnExit();
+        return hf;
     }
 
     public static File createRandomHeapFileUnopened(int columns, int rows,
@@ -94,6 +100,40 @@ public class SystemTestUtil {
         return list;
     }
 
+    /** Opens it, returns all of its tuples in list form, and closes it. */
+    public static ArrayList<ArrayList<Integer>> tuples(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            result.add(tupleToList(it.next()));
+        it.close();
+        return result;
+    }
+
+    /** Orders tuples in list form field by field, for comparing unordered results. */
+    public static final Comparator<ArrayList<Integer>> ROWS_IN_ORDER = new Comparator<ArrayList<Integer>>() {
+        public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+            for (int i = 0; i < a.size(); i++) {
+                int c = a.get(i).compareTo(b.get(i));
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * Opens it, returns all of its tuples in list form sorted with
+     * ROWS_IN_ORDER, and closes it.
+     */
+    public static ArrayList<ArrayList<Integer>> sortedTuples(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> result = tuples(it);
+        Collections.sort(result, ROWS_IN_ORDER);
+        return result;
+    }
+
     public static void matchTuples(DbFile f, List<ArrayList<Integer>> tuples)
             throws DbException, TransactionAbortedException, IOException {
         TransactionId tid = new TransactionId();
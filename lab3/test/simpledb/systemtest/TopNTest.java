@@ -0,0 +1,97 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that TopN returns the first rows of the same order as OrderBy,
+ * that Limit stops reading its child once it has enough rows, and that the
+ * Parser plans a LIMIT with them.
+ */
+public class TopNTest extends SimpleDbTestBase {
+    private static final int ROWS = 2000;
+    private HeapFile table;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // few distinct values, so ties decide which rows make the cut
+        table = SystemTestUtil.createRandomHeapFile(2, ROWS, 50, null, null, "c");
+        tid = new TransactionId();
+    }
+
+    private void validateTopN(int limit, boolean asc) throws Exception {
+        int[] fields = { 0 };
+        boolean[] ascs = { asc };
+        ArrayList<ArrayList<Integer>> sorted = SystemTestUtil.tuples(new OrderBy(fields, ascs,
+                new SeqScan(tid, table.getId(), "")));
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(
+                sorted.subList(0, Math.min(limit, sorted.size())));
+
+        assertEquals(expected, SystemTestUtil.tuples(new TopN(fields, ascs, limit,
+                new SeqScan(tid, table.getId(), ""))));
+    }
+
+    @Test public void testAscending() throws Exception {
+        validateTopN(20, true);
+    }
+
+    @Test public void testDescending() throws Exception {
+        validateTopN(20, false);
+    }
+
+    @Test public void testLimitAboveInput() throws Exception {
+        validateTopN(ROWS * 2, true);
+    }
+
+    @Test public void testZero() throws Exception {
+        validateTopN(0, true);
+    }
+
+    @Test public void testLimitStopsEarly() throws Exception {
+        CountingIterator scan = new CountingIterator(new SeqScan(tid, table.getId(), ""));
+        Limit limit = new Limit(10, scan);
+        assertEquals(10, SystemTestUtil.tuples(limit).size());
+        assertEquals(10, scan.reads);
+
+        limit.open();
+        limit.next();
+        limit.rewind();
+        int count = 0;
+        while (limit.hasNext()) {
+            limit.next();
+            count++;
+        }
+        limit.close();
+        assertEquals(10, count);
+    }
+
+    @Test public void testParseLimit() throws Exception {
+        String name = "topn_test";
+        Database.getCatalog().addTable(table, name);
+        TableStats.setTableStats(name, new TableStats(table.getId(), 1000));
+        Parser p = new Parser();
+
+        DbIterator plan = p.generateLogicalPlan(tid,
+                "SELECT * FROM " + name + " t ORDER BY t.c0 LIMIT 5;").physicalPlan(
+                tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+        assertEquals(5, SystemTestUtil.tuples(plan).size());
+
+        plan = p.generateLogicalPlan(tid, "SELECT * FROM " + name + " t limit 7").physicalPlan(
+                tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+        assertEquals(7, SystemTestUtil.tuples(plan).size());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(TopNTest.class);
+    }
+}
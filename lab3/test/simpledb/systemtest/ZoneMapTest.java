@@ -0,0 +1,171 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks that a Filter over a SeqScan skips the pages that the zone map of a
+ * table rules out, and that it returns the same tuples as without the zone
+ * map as the table changes.
+ */
+public class ZoneMapTest extends SimpleDbTestBase {
+    private static final int ROWS = 100000;
+
+    private File dataFile;
+    private HeapFile table;
+    private ArrayList<ArrayList<Integer>> rows;
+    private TransactionId tid;
+
+    /** Creates a table of ROWS rows with c0 = 0, 1, 2, ... and a random c1. */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        rows = new ArrayList<ArrayList<Integer>>();
+        Random r = new Random();
+        for (int i = 0; i < ROWS; i++) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(i);
+            row.add(r.nextInt(1000));
+            rows.add(row);
+        }
+        dataFile = File.createTempFile("table", ".dat");
+        HeapFileEncoder.convert(rows, dataFile, BufferPool.getPageSize(), 2);
+        table = Utility.openHeapFile(2, "c", dataFile);
+        table.deleteOnExit();
+        tid = new TransactionId();
+        HeapFileIterator.resetPagesSkipped();
+    }
+
+    private static DbIterator filter(DbIterator child, int field, Predicate.Op op, int value) {
+        return new Filter(new Predicate(field, op, new IntField(value)), child);
+    }
+
+    private static DbIterator rowsOf(ArrayList<ArrayList<Integer>> rows) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (ArrayList<Integer> row : rows)
+            tuples.add(Utility.getTuple(new int[] { row.get(0), row.get(1) }, 2));
+        return new TupleIterator(Utility.getTupleDesc(2), tuples);
+    }
+
+    private ArrayList<ArrayList<Integer>> expected(int field, Predicate.Op op, int value) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> row : rows) {
+            if (new IntField(row.get(field)).compare(op, new IntField(value)))
+                result.add(row);
+        }
+        Collections.sort(result, SystemTestUtil.ROWS_IN_ORDER);
+        return result;
+    }
+
+    @Test public void testSkipsPages() throws Exception {
+        int pages = table.numPages();
+        assertEquals(expected(0, Predicate.Op.LESS_THAN, 1000), SystemTestUtil.sortedTuples(filter(
+                new SeqScan(tid, table.getId(), "t"), 0, Predicate.Op.LESS_THAN, 1000)));
+        // the rows before 1000 are on the first pages
+        assertTrue(HeapFileIterator.getPagesSkipped() >= pages - 3);
+
+        HeapFileIterator.resetPagesSkipped();
+        assertEquals(expected(0, Predicate.Op.EQUALS, ROWS / 2), SystemTestUtil.sortedTuples(filter(
+                new SeqScan(tid, table.getId(), "t"), 0, Predicate.Op.EQUALS, ROWS / 2)));
+        assertEquals(pages - 1, HeapFileIterator.getPagesSkipped());
+
+        // both filters of a range are pushed down
+        HeapFileIterator.resetPagesSkipped();
+        ArrayList<ArrayList<Integer>> range = SystemTestUtil.sortedTuples(filter(filter(new SeqScan(tid,
+                table.getId(), "t"), 0, Predicate.Op.GREATER_THAN_OR_EQ, ROWS / 2), 0,
+                Predicate.Op.LESS_THAN, ROWS / 2 + 100));
+        assertEquals(100, range.size());
+        assertTrue(HeapFileIterator.getPagesSkipped() >= pages - 2);
+    }
+
+    @Test public void testAllOperators() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS,
+                Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ }) {
+            for (int value : new int[] { -1, 0, 500, ROWS / 3, ROWS - 1, ROWS }) {
+                assertEquals(expected(0, op, value), SystemTestUtil.sortedTuples(filter(new SeqScan(tid,
+                        table.getId(), "t"), 0, op, value)));
+                // c1 is random, so every page may match
+                assertEquals(expected(1, op, value), SystemTestUtil.sortedTuples(filter(new SeqScan(tid,
+                        table.getId(), "t"), 1, op, value)));
+            }
+        }
+    }
+
+    @Test public void testInsertAndDelete() throws Exception {
+        // warm the map, then insert tuples that are below every bound
+        SystemTestUtil.sortedTuples(filter(new SeqScan(tid, table.getId(), "t"), 0, Predicate.Op.LESS_THAN, 0));
+        ArrayList<ArrayList<Integer>> inserted = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 10; i++) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(-1 - i);
+            row.add(i);
+            inserted.add(row);
+        }
+        Collections.sort(inserted, SystemTestUtil.ROWS_IN_ORDER);
+        DbIterator insert = new Insert(tid, rowsOf(inserted), table.getId());
+        SystemTestUtil.sortedTuples(insert);
+        assertEquals(inserted, SystemTestUtil.sortedTuples(filter(new SeqScan(tid, table.getId(), "t"), 0,
+                Predicate.Op.LESS_THAN, 0)));
+
+        // deleted tuples are not returned, and once the pages are written
+        // their bounds tighten again
+        SystemTestUtil.sortedTuples(new Delete(tid, filter(new SeqScan(tid, table.getId(), "t"), 0,
+                Predicate.Op.LESS_THAN, 0)));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        tid = new TransactionId();
+        HeapFileIterator.resetPagesSkipped();
+        assertEquals(0, SystemTestUtil.sortedTuples(filter(new SeqScan(tid, table.getId(), "t"), 0,
+                Predicate.Op.LESS_THAN, 0)).size());
+        assertEquals(table.numPages(), HeapFileIterator.getPagesSkipped());
+    }
+
+    @Test public void testInsertBeforeLoad() throws Exception {
+        // the map is not loaded yet: the insert is remembered, not applied
+        ArrayList<ArrayList<Integer>> inserted = new ArrayList<ArrayList<Integer>>();
+        inserted.add(new ArrayList<Integer>(Arrays.asList(-1, 0)));
+        DbIterator insert = new Insert(tid, rowsOf(inserted), table.getId());
+        SystemTestUtil.sortedTuples(insert);
+        assertEquals(1, SystemTestUtil.sortedTuples(filter(new SeqScan(tid, table.getId(), "t"), 0,
+                Predicate.Op.LESS_THAN, 0)).size());
+    }
+
+    @Test public void testPersistedAndRebuilt() throws Exception {
+        SystemTestUtil.sortedTuples(filter(new SeqScan(tid, table.getId(), "t"), 0, Predicate.Op.LESS_THAN, 0));
+        assertTrue(table.getZoneMap().getFile().exists());
+
+        // a new HeapFile over the same file reads the side file
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table = Utility.openHeapFile(2, "c", dataFile);
+        HeapFileIterator.resetPagesSkipped();
+        assertEquals(expected(0, Predicate.Op.GREATER_THAN, ROWS - 10), SystemTestUtil.sortedTuples(filter(
+                new SeqScan(tid, table.getId(), "t"), 0, Predicate.Op.GREATER_THAN, ROWS - 10)));
+        assertEquals(table.numPages() - 1, HeapFileIterator.getPagesSkipped());
+
+        // pages appended by a bulk load are added to the map
+        File in = File.createTempFile("rows", ".txt");
+        in.deleteOnExit();
+        FileWriter out = new FileWriter(in);
+        out.write("-5,1\n-6,2\n");
+        out.close();
+        table.bulkLoad(in, ',');
+        assertEquals(2, SystemTestUtil.sortedTuples(filter(new SeqScan(tid, table.getId(), "t"), 0,
+                Predicate.Op.LESS_THAN, 0)).size());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}